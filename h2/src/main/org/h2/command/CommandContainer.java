@@ -53,6 +53,7 @@ class CommandContainer extends Command {
             ArrayList<Parameter> oldParams = prepared.getParameters();
             Parser parser = new Parser(session);
             prepared = parser.parse(sql);
+            prepared.setCommand(this);
             long mod = prepared.getModificationMetaId();
             prepared.setModificationMetaId(0);
             ArrayList<Parameter> newParams = prepared.getParameters();
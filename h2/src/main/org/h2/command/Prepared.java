@@ -174,6 +174,16 @@ public abstract class Prepared {
         this.command = command;
     }
 
+    /**
+     * Get the command.
+     *
+     * @return the command, or null if this statement is part of another
+     *         statement
+     */
+    public Command getCommand() {
+        return command;
+    }
+
     /**
      * Check if this object is a query.
      *
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2004-2013 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.command.dml;
+
+import java.util.ArrayList;
+import org.h2.engine.Session;
+import org.h2.result.ResultDiskBuffer;
+import org.h2.result.Row;
+import org.h2.table.TableFilter;
+import org.h2.util.New;
+import org.h2.value.Value;
+import org.h2.value.ValueInt;
+import org.h2.value.ValueLong;
+import org.h2.value.ValueNull;
+
+/**
+ * The rows of a GROUP BY query whose groups did not fit in memory. The rows
+ * are distributed to temporary files by the hash code of the group key, so
+ * that the groups of each file can be aggregated separately. Instead of the
+ * group key and the values of the aggregates, the row number and the current
+ * rows of all table filters are stored, so that the expressions can be
+ * evaluated again when reading the rows.
+ * <p>
+ * Each level uses different bits of the hash code, so that a partition that
+ * still contains too many groups can be split again.
+ */
+class GroupPartitions {
+
+    /**
+     * The number of bits of the hash code that are used for each level.
+     */
+    private static final int BITS = 4;
+
+    /**
+     * The highest level. The groups of a partition of this level are
+     * aggregated in memory, as all rows have the same hash code.
+     */
+    static final int MAX_LEVEL = 32 / BITS - 1;
+
+    private final Session session;
+    private final TableFilter[] filters;
+    private final int level;
+    private final int bufferSize;
+    private final ResultDiskBuffer[] files = new ResultDiskBuffer[1 << BITS];
+    private final ArrayList<ArrayList<Value[]>> buffers = New.arrayList();
+    private final int[] rowCounts = new int[1 << BITS];
+    private int columnCount;
+    private int rowNumber;
+
+    GroupPartitions(Session session, ArrayList<TableFilter> filters, int level) {
+        this.session = session;
+        this.filters = new TableFilter[filters.size()];
+        filters.toArray(this.filters);
+        this.level = level;
+        // the row number
+        columnCount = 1;
+        for (TableFilter f : this.filters) {
+            // the key, and the columns
+            columnCount += 1 + f.getTable().getColumns().length;
+        }
+        bufferSize = Math.max(1, session.getDatabase().getMaxMemoryRows() >> BITS);
+        for (int i = 0; i < files.length; i++) {
+            buffers.add(New.<Value[]>arrayList());
+        }
+    }
+
+    int getLevel() {
+        return level;
+    }
+
+    int getPartitionCount() {
+        return files.length;
+    }
+
+    /**
+     * Get the row number of the row that was read last.
+     *
+     * @return the row number
+     */
+    int getRowNumber() {
+        return rowNumber;
+    }
+
+    /**
+     * Add the current rows of the table filters.
+     *
+     * @param key the group key
+     * @param rowNumber the current row number
+     */
+    void add(Value key, int rowNumber) {
+        int h = key.hashCode();
+        h = (h ^ (h >>> 16)) * 0x45d9f3b;
+        h ^= h >>> 16;
+        int partition = (h >>> (level * BITS)) & (files.length - 1);
+        Value[] row = new Value[columnCount];
+        row[0] = ValueInt.get(rowNumber);
+        int i = 1;
+        for (TableFilter f : filters) {
+            Row r = f.get();
+            int len = f.getTable().getColumns().length;
+            if (r == null) {
+                for (int j = 0; j <= len; j++) {
+                    row[i++] = ValueNull.INSTANCE;
+                }
+            } else {
+                row[i++] = ValueLong.get(r.getKey());
+                for (int j = 0; j < len; j++) {
+                    row[i++] = r.getValue(j);
+                }
+            }
+        }
+        ArrayList<Value[]> buffer = buffers.get(partition);
+        buffer.add(row);
+        rowCounts[partition]++;
+        if (buffer.size() >= bufferSize) {
+            flush(partition);
+        }
+    }
+
+    private void flush(int partition) {
+        ArrayList<Value[]> buffer = buffers.get(partition);
+        if (buffer.size() > 0) {
+            if (files[partition] == null) {
+                files[partition] = new ResultDiskBuffer(session, null, columnCount);
+            }
+            files[partition].addRows(buffer);
+            buffer.clear();
+        }
+    }
+
+    /**
+     * This method is called after all rows have been added.
+     */
+    void done() {
+        for (int i = 0; i < files.length; i++) {
+            flush(i);
+            if (files[i] != null) {
+                files[i].done();
+            }
+        }
+    }
+
+    /**
+     * Read the next row of a partition, and set the row number and the current
+     * rows of the table filters. The file is closed after the last row was
+     * read.
+     *
+     * @param partition the partition
+     * @return true if a row was read, false if there are no more rows
+     */
+    boolean next(int partition) {
+        if (rowCounts[partition] == 0) {
+            if (files[partition] != null) {
+                files[partition].close();
+                files[partition] = null;
+            }
+            return false;
+        }
+        rowCounts[partition]--;
+        Value[] row = files[partition].next();
+        rowNumber = row[0].getInt();
+        int i = 1;
+        for (TableFilter f : filters) {
+            int len = f.getTable().getColumns().length;
+            Value key = row[i++];
+            if (key == ValueNull.INSTANCE) {
+                f.set(null);
+            } else {
+                Value[] data = new Value[len];
+                System.arraycopy(row, i, data, 0, len);
+                Row r = new Row(data, Row.MEMORY_CALCULATE);
+                r.setKey(key.getLong());
+                f.set(r);
+            }
+            i += len;
+        }
+        return true;
+    }
+
+    /**
+     * Close all remaining files.
+     */
+    void close() {
+        for (int i = 0; i < files.length; i++) {
+            if (files[i] != null) {
+                files[i].close();
+                files[i] = null;
+            }
+        }
+    }
+
+}
@@ -8,10 +8,10 @@ package org.h2.command.dml;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
 import org.h2.api.Trigger;
 import org.h2.command.CommandInterface;
+import org.h2.command.Prepared;
 import org.h2.constant.ErrorCode;
 import org.h2.constant.SysProperties;
 import org.h2.engine.Constants;
@@ -26,8 +26,11 @@ import org.h2.expression.Parameter;
 import org.h2.expression.Wildcard;
 import org.h2.index.Cursor;
 import org.h2.index.Index;
+import org.h2.index.IndexCondition;
 import org.h2.index.IndexType;
+import org.h2.index.PageDataIndex;
 import org.h2.message.DbException;
+import org.h2.mvstore.db.MVPrimaryIndex;
 import org.h2.result.LocalResult;
 import org.h2.result.ResultInterface;
 import org.h2.result.ResultTarget;
@@ -42,6 +45,7 @@ import org.h2.table.TableFilter;
 import org.h2.util.New;
 import org.h2.util.StatementBuilder;
 import org.h2.util.StringUtils;
+import org.h2.util.Task;
 import org.h2.util.ValueHashMap;
 import org.h2.value.Value;
 import org.h2.value.ValueArray;
@@ -61,6 +65,23 @@ import org.h2.value.ValueNull;
  * @author Joel Turkel (Group sorted query)
  */
 public class Select extends Query {
+
+    /**
+     * The group key of a query without GROUP BY clause.
+     */
+    private static final ValueArray DEFAULT_GROUP = ValueArray.get(new Value[0]);
+
+    /**
+     * The minimum number of rows per thread if a query is run in parallel.
+     */
+    private static final int PARALLEL_MIN_ROWS = 10000;
+
+    /**
+     * The number of rows a thread reads at once if a query is run in
+     * parallel.
+     */
+    private static final int PARALLEL_BATCH_SIZE = 128;
+
     private TableFilter topTableFilter;
     private final ArrayList<TableFilter> filters = New.arrayList();
     private final ArrayList<TableFilter> topFilters = New.arrayList();
@@ -73,7 +94,8 @@ public class Select extends Query {
     private ArrayList<Expression> group;
     private int[] groupIndex;
     private boolean[] groupByExpression;
-    private HashMap<Expression, Object> currentGroup;
+    private Object[] currentGroup;
+    private final ArrayList<Expression> groupSlots = New.arrayList();
     private int havingIndex;
     private boolean isGroupQuery, isGroupSortedQuery;
     private boolean isForUpdate, isForUpdateMvcc;
@@ -123,6 +145,10 @@ public class Select extends Query {
         isGroupQuery = true;
     }
 
+    public boolean isGroupQuery() {
+        return isGroupQuery;
+    }
+
     public void setGroupBy(ArrayList<Expression> group) {
         this.group = group;
     }
@@ -131,10 +157,28 @@ public class Select extends Query {
         return group;
     }
 
-    public HashMap<Expression, Object> getCurrentGroup() {
+    /**
+     * Get the state of the current group. Each aggregate and each column of a
+     * group query stores its state in the slot that was allocated for it.
+     *
+     * @return the state, or null if no group is being processed
+     */
+    public Object[] getCurrentGroup() {
         return currentGroup;
     }
 
+    /**
+     * Allocate a slot in the state of the groups. This method is called when
+     * preparing the query.
+     *
+     * @param owner the expression that stores its state in the slot
+     * @return the slot index
+     */
+    public int allocateGroupSlot(Expression owner) {
+        groupSlots.add(owner);
+        return groupSlots.size() - 1;
+    }
+
     public int getCurrentGroupRowId() {
         return currentGroupRowId;
     }
@@ -176,11 +220,11 @@ public class Select extends Query {
 
                 if (previousKeyValues == null) {
                     previousKeyValues = keyValues;
-                    currentGroup = New.hashMap();
+                    currentGroup = new Object[groupSlots.size()];
                 } else if (!Arrays.equals(previousKeyValues, keyValues)) {
                     addGroupSortedRow(previousKeyValues, columnCount, result);
                     previousKeyValues = keyValues;
-                    currentGroup = New.hashMap();
+                    currentGroup = new Object[groupSlots.size()];
                 }
                 currentGroupRowId++;
 
@@ -314,51 +358,374 @@ public class Select extends Query {
     }
 
     private void queryGroup(int columnCount, LocalResult result) {
-        ValueHashMap<HashMap<Expression, Object>> groups = ValueHashMap.newInstance();
+        if (queryGroupParallel(columnCount, result)) {
+            return;
+        }
+        ValueHashMap<Object[]> groups = ValueHashMap.newInstance();
+        GroupPartitions partitions = null;
+        int maxGroups = getMaxMemoryGroups();
         int rowNumber = 0;
         setCurrentRowNumber(0);
         currentGroup = null;
-        ValueArray defaultGroup = ValueArray.get(new Value[0]);
         int sampleSize = getSampleSizeValue(session);
         while (topTableFilter.next()) {
             setCurrentRowNumber(rowNumber + 1);
             if (condition == null || Boolean.TRUE.equals(condition.getBooleanValue(session))) {
-                Value key;
                 rowNumber++;
-                if (groupIndex == null) {
-                    key = defaultGroup;
+                partitions = updateGroup(groups, maxGroups, partitions, 0, columnCount);
+                if (sampleSize > 0 && rowNumber >= sampleSize) {
+                    break;
+                }
+            }
+        }
+        if (groupIndex == null && groups.size() == 0) {
+            groups.put(DEFAULT_GROUP, new Object[groupSlots.size()]);
+        }
+        addGroupRows(groups, columnCount, result);
+        if (partitions != null) {
+            queryGroupPartitions(partitions, maxGroups, columnCount, result);
+        }
+    }
+
+    /**
+     * Run a group query with multiple threads, if possible. The table is split
+     * into key ranges. Each range is read by a separate thread, using a copy
+     * of this query that is parsed and prepared again, so that the threads
+     * don't share the state of the table filter and the expressions. Each
+     * copy builds the groups of its rows, and the groups are then merged.
+     * <p>
+     * All threads use the same session. They may only read state of the
+     * session that is already initialized when the threads are started, and
+     * must not change it.
+     *
+     * @param columnCount the number of columns
+     * @param result the result
+     * @return false if the query was not run
+     */
+    private boolean queryGroupParallel(final int columnCount, LocalResult result) {
+        int threads = getParallelThreads();
+        if (threads <= 1) {
+            return false;
+        }
+        ArrayList<Select> copies = New.arrayList();
+        for (int i = 0; i < threads; i++) {
+            Prepared p = session.prepare(sqlStatement, true);
+            if (!(p instanceof Select)) {
+                return false;
+            }
+            Select copy = (Select) p;
+            ArrayList<Parameter> params = copy.getParameters();
+            if (copy.groupSlots.size() != groupSlots.size() ||
+                    copy.expressions.size() != columnCount ||
+                    params.size() != parameters.size()) {
+                return false;
+            }
+            for (int j = 0; j < params.size(); j++) {
+                params.get(j).setValue(parameters.get(j).getParamValue());
+            }
+            copies.add(copy);
+        }
+        final Index index = topTableFilter.getIndex();
+        long[] splitKeys;
+        final Object lock;
+        if (index instanceof PageDataIndex) {
+            splitKeys = ((PageDataIndex) index).getSplitKeys(session, threads);
+            // the pages are not thread safe
+            lock = new Object();
+        } else {
+            // the transaction and the read view are created on demand, and
+            // not synchronized, so they are created before the threads start
+            session.getTransaction();
+            session.getReadView();
+            splitKeys = ((MVPrimaryIndex) index).getSplitKeys(threads);
+            lock = null;
+        }
+        final int maxGroups = getMaxMemoryGroups();
+        ArrayList<ValueHashMap<Object[]>> parts = New.arrayList();
+        ArrayList<Task> tasks = New.arrayList();
+        try {
+            for (int i = 0; i < threads; i++) {
+                final long min = i == 0 ? Long.MIN_VALUE : splitKeys[i - 1];
+                final long max;
+                if (i == threads - 1) {
+                    max = Long.MAX_VALUE;
+                } else if (splitKeys[i] == Long.MIN_VALUE) {
+                    // empty range
+                    continue;
                 } else {
-                    Value[] keyValues = new Value[groupIndex.length];
-                    // update group
-                    for (int i = 0; i < groupIndex.length; i++) {
-                        int idx = groupIndex[i];
-                        Expression expr = expressions.get(idx);
-                        keyValues[i] = expr.getValue(session);
+                    max = splitKeys[i] - 1;
+                }
+                final Select copy = copies.get(i);
+                final ValueHashMap<Object[]> groups = ValueHashMap.newInstance();
+                parts.add(groups);
+                Task task = new Task() {
+                    @Override
+                    public void call() {
+                        copy.queryGroupRange(index, lock, min, max, groups, maxGroups, columnCount);
                     }
-                    key = ValueArray.get(keyValues);
+                };
+                tasks.add(task.execute("H2 parallel query " + i));
+            }
+            DbException ex = null;
+            for (Task t : tasks) {
+                Exception e = t.getException();
+                if (e != null && ex == null) {
+                    ex = DbException.convert(e);
                 }
-                HashMap<Expression, Object> values = groups.get(key);
-                if (values == null) {
-                    values = new HashMap<Expression, Object>();
+            }
+            tasks.clear();
+            if (ex != null) {
+                throw ex;
+            }
+        } finally {
+            for (Task t : tasks) {
+                t.getException();
+            }
+        }
+        ValueHashMap<Object[]> groups = ValueHashMap.newInstance();
+        for (ValueHashMap<Object[]> part : parts) {
+            for (Value key : part.keys()) {
+                Object[] values = part.get(key);
+                Object[] old = groups.get(key);
+                if (old == null) {
+                    if (groups.size() >= maxGroups) {
+                        // too many groups: run the query again, so that the
+                        // groups are written to disk
+                        return false;
+                    }
                     groups.put(key, values);
+                } else {
+                    for (Expression e : groupSlots) {
+                        e.mergeAggregate(session, old, values);
+                    }
                 }
-                currentGroup = values;
-                currentGroupRowId++;
-                int len = columnCount;
-                for (int i = 0; i < len; i++) {
-                    if (groupByExpression == null || !groupByExpression[i]) {
-                        Expression expr = expressions.get(i);
-                        expr.updateAggregate(session);
+            }
+        }
+        currentGroup = null;
+        if (groupIndex == null && groups.size() == 0) {
+            groups.put(DEFAULT_GROUP, new Object[groupSlots.size()]);
+        }
+        addGroupRows(groups, columnCount, result);
+        return true;
+    }
+
+    /**
+     * Get the number of threads that should be used to run this group query.
+     * Only queries on one table that is read using the primary key or the
+     * table scan can be split, and only if the expressions can be evaluated
+     * by copies of the query, and the aggregates can be merged.
+     *
+     * @return the number of threads, or 1 if the query should not be run in
+     *         parallel
+     */
+    private int getParallelThreads() {
+        int parallelism = session.getQueryParallelism();
+        if (parallelism == 0) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+        }
+        if (parallelism <= 1 || getCommand() == null || isForUpdate ||
+                filters.size() != 1 || getSampleSizeValue(session) > 0) {
+            return 1;
+        }
+        Index index = topTableFilter.getIndex();
+        int mainIndexColumn;
+        if (index instanceof PageDataIndex) {
+            mainIndexColumn = ((PageDataIndex) index).getMainIndexColumn();
+        } else if (index instanceof MVPrimaryIndex) {
+            mainIndexColumn = ((MVPrimaryIndex) index).getMainIndexColumn();
+        } else {
+            return 1;
+        }
+        for (IndexCondition c : topTableFilter.getIndexConditions()) {
+            if (c.isAlwaysFalse()) {
+                return 1;
+            }
+            int columnId = c.getColumn().getColumnId();
+            if (columnId < 0 || columnId == mainIndexColumn) {
+                // only a range of the table is read
+                return 1;
+            }
+        }
+        ExpressionVisitor visitor = ExpressionVisitor.PARALLELIZABLE_VISITOR;
+        for (Expression e : expressions) {
+            if (!e.isEverything(visitor)) {
+                return 1;
+            }
+        }
+        if (condition != null && !condition.isEverything(visitor)) {
+            return 1;
+        }
+        long rows = index.getRowCountApproximation() / PARALLEL_MIN_ROWS;
+        return (int) Math.min(parallelism, rows);
+    }
+
+    /**
+     * Build the groups of the rows in the given key range. This method is
+     * called for a copy of the query, by a separate thread. It stops if there
+     * are more than the given number of groups.
+     *
+     * @param index the primary key index or table scan index
+     * @param lock the object to synchronize on when reading, or null
+     * @param min the key of the first row
+     * @param max the key of the last row
+     * @param groups the groups
+     * @param maxGroups the maximum number of groups
+     * @param columnCount the number of columns
+     */
+    private void queryGroupRange(Index index, Object lock, long min, long max,
+            ValueHashMap<Object[]> groups, int maxGroups, int columnCount) {
+        Cursor cursor;
+        if (index instanceof PageDataIndex) {
+            cursor = ((PageDataIndex) index).find(session, min, max);
+        } else {
+            cursor = ((MVPrimaryIndex) index).find(session, min, max);
+        }
+        ArrayList<Row> rows = New.arrayList();
+        boolean more = true;
+        while (more) {
+            rows.clear();
+            if (lock == null) {
+                more = readRows(cursor, rows);
+            } else {
+                synchronized (lock) {
+                    more = readRows(cursor, rows);
+                }
+            }
+            for (Row row : rows) {
+                topTableFilter.set(row);
+                if (condition == null || Boolean.TRUE.equals(condition.getBooleanValue(session))) {
+                    updateGroup(groups, Integer.MAX_VALUE, null, 0, columnCount);
+                    if (groups.size() > maxGroups) {
+                        return;
                     }
                 }
-                if (sampleSize > 0 && rowNumber >= sampleSize) {
-                    break;
+            }
+            checkCanceled();
+        }
+    }
+
+    /**
+     * Read the next batch of rows.
+     *
+     * @param cursor the cursor
+     * @param rows the list to add the rows to
+     * @return false if there are no more rows
+     */
+    private static boolean readRows(Cursor cursor, ArrayList<Row> rows) {
+        while (rows.size() < PARALLEL_BATCH_SIZE) {
+            if (!cursor.next()) {
+                return false;
+            }
+            rows.add(cursor.get());
+        }
+        return true;
+    }
+
+    /**
+     * Aggregate the groups of the rows that were written to disk, one
+     * partition at a time.
+     *
+     * @param partitions the partitions
+     * @param maxGroups the maximum number of groups to keep in memory
+     * @param columnCount the number of columns
+     * @param result the result
+     */
+    private void queryGroupPartitions(GroupPartitions partitions, int maxGroups,
+            int columnCount, LocalResult result) {
+        try {
+            partitions.done();
+            int level = partitions.getLevel() + 1;
+            for (int i = 0; i < partitions.getPartitionCount(); i++) {
+                ValueHashMap<Object[]> groups = ValueHashMap.newInstance();
+                GroupPartitions next = null;
+                currentGroup = null;
+                while (partitions.next(i)) {
+                    setCurrentRowNumber(partitions.getRowNumber());
+                    next = updateGroup(groups, maxGroups, next, level, columnCount);
+                }
+                addGroupRows(groups, columnCount, result);
+                if (next != null) {
+                    queryGroupPartitions(next, maxGroups, columnCount, result);
                 }
             }
+        } finally {
+            partitions.close();
         }
-        if (groupIndex == null && groups.size() == 0) {
-            groups.put(defaultGroup, new HashMap<Expression, Object>());
+    }
+
+    /**
+     * Get the maximum number of groups that are kept in memory. If there are
+     * more groups, the rows of the remaining groups are written to disk. The
+     * expressions are evaluated again when reading the rows from disk, so
+     * this is only done if all expressions are deterministic.
+     *
+     * @return the maximum number of groups
+     */
+    private int getMaxMemoryGroups() {
+        Database db = session.getDatabase();
+        if (groupIndex == null || !db.isPersistent()) {
+            return Integer.MAX_VALUE;
+        }
+        for (Expression e : expressions) {
+            if (!e.isEverything(ExpressionVisitor.DETERMINISTIC_VISITOR)) {
+                return Integer.MAX_VALUE;
+            }
+        }
+        return db.getMaxMemoryRows();
+    }
+
+    /**
+     * Update the aggregates of the group of the current row. If the group is
+     * not in memory, and there are already too many groups, the row is added
+     * to the partitions instead.
+     *
+     * @param groups the groups in memory
+     * @param maxGroups the maximum number of groups to keep in memory
+     * @param partitions the partitions, or null
+     * @param level the level of the partitions
+     * @param columnCount the number of columns
+     * @return the partitions, or null if no row was added to a partition
+     */
+    private GroupPartitions updateGroup(ValueHashMap<Object[]> groups,
+            int maxGroups, GroupPartitions partitions, int level, int columnCount) {
+        Value key;
+        if (groupIndex == null) {
+            key = DEFAULT_GROUP;
+        } else {
+            Value[] keyValues = new Value[groupIndex.length];
+            // update group
+            for (int i = 0; i < groupIndex.length; i++) {
+                int idx = groupIndex[i];
+                Expression expr = expressions.get(idx);
+                keyValues[i] = expr.getValue(session);
+            }
+            key = ValueArray.get(keyValues);
         }
+        Object[] values = groups.get(key);
+        if (values == null) {
+            if (groups.size() >= maxGroups && level <= GroupPartitions.MAX_LEVEL) {
+                if (partitions == null) {
+                    partitions = new GroupPartitions(session, filters, level);
+                }
+                partitions.add(key, getCurrentRowNumber());
+                return partitions;
+            }
+            values = new Object[groupSlots.size()];
+            groups.put(key, values);
+        }
+        currentGroup = values;
+        currentGroupRowId++;
+        for (int i = 0; i < columnCount; i++) {
+            if (groupByExpression == null || !groupByExpression[i]) {
+                Expression expr = expressions.get(i);
+                expr.updateAggregate(session);
+            }
+        }
+        return partitions;
+    }
+
+    private void addGroupRows(ValueHashMap<Object[]> groups,
+            int columnCount, LocalResult result) {
         ArrayList<Value> keys = groups.keys();
         for (Value v : keys) {
             ValueArray key = (ValueArray) v;
@@ -1252,6 +1619,9 @@ public class Select extends Query {
             }
             break;
         }
+        case ExpressionVisitor.PARALLELIZABLE:
+            // subqueries are not run in parallel
+            return false;
         default:
         }
         ExpressionVisitor v2 = visitor.incrementQueryLevel(1);
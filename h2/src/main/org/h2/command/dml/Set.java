@@ -53,6 +53,7 @@ public class Set extends Prepared {
         case SetTypes.CLUSTER:
         case SetTypes.VARIABLE:
         case SetTypes.QUERY_TIMEOUT:
+        case SetTypes.QUERY_PARALLELISM:
         case SetTypes.LOCK_TIMEOUT:
         case SetTypes.TRACE_LEVEL_SYSTEM_OUT:
         case SetTypes.TRACE_LEVEL_FILE:
@@ -340,6 +341,13 @@ public class Set extends Prepared {
             session.setQueryTimeout(value);
             break;
         }
+        case SetTypes.QUERY_PARALLELISM: {
+            if (getIntValue() < 0) {
+                throw DbException.getInvalidValueException("QUERY_PARALLELISM", getIntValue());
+            }
+            session.setQueryParallelism(getIntValue());
+            break;
+        }
         case SetTypes.REDO_LOG_BINARY: {
             int value = getIntValue();
             session.setRedoLogBinary(value == 1);
@@ -219,6 +219,11 @@ public class SetTypes {
      */
     public static final int QUERY_STATISTICS = 41;
 
+    /**
+     * The type of a SET QUERY_PARALLELISM statement.
+     */
+    public static final int QUERY_PARALLELISM = 42;
+
     private static final ArrayList<String> TYPES = New.arrayList();
 
     private SetTypes() {
@@ -269,6 +274,7 @@ public class SetTypes {
         list.add(JAVA_OBJECT_SERIALIZER, "JAVA_OBJECT_SERIALIZER");
         list.add(RETENTION_TIME, "RETENTION_TIME");
         list.add(QUERY_STATISTICS, "QUERY_STATISTICS");
+        list.add(QUERY_PARALLELISM, "QUERY_PARALLELISM");
     }
 
     /**
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2004-2013 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.compress;
+
+/**
+ * <p>
+ * This class implements a compressor that writes the LZ4 block format. The
+ * compression is greedy (one hash table lookup per position), and expansion
+ * is a simple loop of array copies, which makes it faster than LZF for
+ * reading, at a similar compression rate.
+ * </p>
+ * <p>
+ * Safety/Use Notes:
+ * </p>
+ * <ul>
+ * <li>Each instance should be used by a single thread only when compressing.
+ * Expanding data is thread safe.</li>
+ * <li>The data buffers should be smaller than 1 GB.</li>
+ * <li>Invalid compressed data can cause an ArrayIndexOutOfBoundsException.</li>
+ * </ul>
+ * <p>
+ * The compressed data is a list of sequences. Each sequence starts with a
+ * token byte: the highest four bits are the number of literals, the lowest
+ * four bits are the match length minus four. If a length is 15, additional
+ * bytes follow that are added to the length (until a byte is not 255). After
+ * the literals, the offset of the match follows (two bytes, little endian).
+ * The last sequence only contains literals.
+ * </p>
+ */
+public final class CompressLZ4 implements Compressor {
+
+    /**
+     * The minimum length of a match.
+     */
+    private static final int MIN_MATCH = 4;
+
+    /**
+     * The maximum offset of a match.
+     */
+    private static final int MAX_OFFSET = 0xffff;
+
+    /**
+     * The last match must start at least this many bytes before the end.
+     */
+    private static final int MATCH_FIND_LIMIT = 12;
+
+    /**
+     * The last bytes are always literals.
+     */
+    private static final int LAST_LITERALS = 5;
+
+    /**
+     * The mask for the lengths in the token byte.
+     */
+    private static final int LENGTH_MASK = 15;
+
+    /**
+     * The number of bits of the hash table index.
+     */
+    private static final int HASH_LOG = 12;
+
+    /**
+     * The hash table of each thread (the last position of a 4-byte
+     * sequence). It is not cleared between calls, as all matches are
+     * verified. There is one table per thread, because the same compressor
+     * instance may be used by multiple threads concurrently.
+     */
+    private final ThreadLocal<int[]> hashTables = new ThreadLocal<int[]>();
+
+    @Override
+    public void setOptions(String options) {
+        // nothing to do
+    }
+
+    @Override
+    public int getAlgorithm() {
+        return Compressor.LZ4;
+    }
+
+    @Override
+    public int compress(byte[] in, int inLen, byte[] out, int outPos) {
+        int[] hashTab = hashTables.get();
+        if (hashTab == null) {
+            hashTab = new int[1 << HASH_LOG];
+            hashTables.set(hashTab);
+        }
+        int anchor = 0;
+        int ip = 0;
+        int limit = inLen - MATCH_FIND_LIMIT;
+        int matchLimit = inLen - LAST_LITERALS;
+        while (ip < limit) {
+            int seq = readInt(in, ip);
+            int hash = hash(seq);
+            int ref = hashTab[hash];
+            hashTab[hash] = ip;
+            if (ref >= ip || ip - ref > MAX_OFFSET || readInt(in, ref) != seq) {
+                ip++;
+                continue;
+            }
+            // extend the match backwards
+            while (ip > anchor && ref > 0 && in[ip - 1] == in[ref - 1]) {
+                ip--;
+                ref--;
+            }
+            int len = MIN_MATCH;
+            while (ip + len < matchLimit && in[ip + len] == in[ref + len]) {
+                len++;
+            }
+            int token = len - MIN_MATCH;
+            int tokenPos = outPos;
+            outPos = writeLiterals(in, anchor, ip - anchor, out, outPos);
+            out[outPos++] = (byte) (ip - ref);
+            out[outPos++] = (byte) ((ip - ref) >>> 8);
+            if (token >= LENGTH_MASK) {
+                outPos = writeLength(out, outPos, token - LENGTH_MASK);
+                token = LENGTH_MASK;
+            }
+            out[tokenPos] |= token;
+            ip += len;
+            anchor = ip;
+        }
+        return writeLiterals(in, anchor, inLen - anchor, out, outPos);
+    }
+
+    /**
+     * Write the token byte (with the number of literals, and without the
+     * match length) and the literals.
+     *
+     * @param in the input data
+     * @param start the position of the first literal
+     * @param len the number of literals
+     * @param out the output area
+     * @param outPos the position of the token in the output
+     * @return the new output position
+     */
+    private static int writeLiterals(byte[] in, int start, int len,
+            byte[] out, int outPos) {
+        if (len >= LENGTH_MASK) {
+            out[outPos++] = (byte) (LENGTH_MASK << 4);
+            outPos = writeLength(out, outPos, len - LENGTH_MASK);
+        } else {
+            out[outPos++] = (byte) (len << 4);
+        }
+        System.arraycopy(in, start, out, outPos, len);
+        return outPos + len;
+    }
+
+    private static int writeLength(byte[] out, int outPos, int len) {
+        while (len >= 255) {
+            out[outPos++] = (byte) 255;
+            len -= 255;
+        }
+        out[outPos++] = (byte) len;
+        return outPos;
+    }
+
+    private static int readInt(byte[] in, int pos) {
+        return (in[pos] << 24) | ((in[pos + 1] & 255) << 16) |
+                ((in[pos + 2] & 255) << 8) | (in[pos + 3] & 255);
+    }
+
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    @Override
+    public void expand(byte[] in, int inPos, int inLen, byte[] out, int outPos,
+            int outLen) {
+        if (inPos < 0 || outPos < 0 || outLen < 0) {
+            throw new IllegalArgumentException();
+        }
+        int inEnd = inPos + inLen;
+        while (true) {
+            int token = in[inPos++] & 255;
+            int len = token >>> 4;
+            if (len == LENGTH_MASK) {
+                int x;
+                do {
+                    x = in[inPos++] & 255;
+                    len += x;
+                } while (x == 255);
+            }
+            System.arraycopy(in, inPos, out, outPos, len);
+            inPos += len;
+            outPos += len;
+            if (inPos >= inEnd) {
+                break;
+            }
+            int offset = (in[inPos++] & 255) | ((in[inPos++] & 255) << 8);
+            len = token & LENGTH_MASK;
+            if (len == LENGTH_MASK) {
+                int x;
+                do {
+                    x = in[inPos++] & 255;
+                    len += x;
+                } while (x == 255);
+            }
+            len += MIN_MATCH;
+            int ref = outPos - offset;
+            if (offset >= len) {
+                System.arraycopy(out, ref, out, outPos, len);
+                outPos += len;
+            } else {
+                // overlapping copy
+                for (int i = 0; i < len; i++) {
+                    out[outPos++] = out[ref++];
+                }
+            }
+        }
+    }
+
+}
@@ -27,6 +27,11 @@ public interface Compressor {
      */
     int DEFLATE = 2;
 
+    /**
+     * The LZ4 compression algorithm is used.
+     */
+    int LZ4 = 3;
+
     /**
      * Get the compression algorithm type.
      *
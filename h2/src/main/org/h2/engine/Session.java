@@ -28,7 +28,9 @@ import org.h2.message.Trace;
 import org.h2.message.TraceSystem;
 import org.h2.mvstore.db.MVTable;
 import org.h2.mvstore.db.TransactionStore.Change;
+import org.h2.mvstore.db.TransactionStore.ReadView;
 import org.h2.mvstore.db.TransactionStore.Transaction;
+import org.h2.mvstore.db.ValueLazyArray;
 import org.h2.result.ResultInterface;
 import org.h2.result.Row;
 import org.h2.schema.Schema;
@@ -40,7 +42,6 @@ import org.h2.table.Table;
 import org.h2.util.New;
 import org.h2.util.SmallLRUCache;
 import org.h2.value.Value;
-import org.h2.value.ValueArray;
 import org.h2.value.ValueLong;
 import org.h2.value.ValueNull;
 import org.h2.value.ValueString;
@@ -104,6 +105,7 @@ public class Session extends SessionWithState {
     private HashMap<String, Value> variables;
     private HashSet<ResultInterface> temporaryResults;
     private int queryTimeout;
+    private int queryParallelism = 1;
     private boolean commitOrRollbackDisabled;
     private Table waitForLock;
     private Thread waitForLockThread;
@@ -116,6 +118,7 @@ public class Session extends SessionWithState {
 
     private Transaction transaction;
     private long startStatement = -1;
+    private ReadView readView;
 
     public Session(Database database, User user, int id) {
         this.database = database;
@@ -373,6 +376,21 @@ public class Session extends SessionWithState {
 
     public void setLockTimeout(int lockTimeout) {
         this.lockTimeout = lockTimeout;
+        if (transaction != null) {
+            setTransactionLockTimeout();
+        }
+    }
+
+    /**
+     * In multi-threaded mode, changing a row that is locked by another
+     * transaction waits for the other transaction. Otherwise, the statement
+     * fails with a concurrent update exception and is re-tried, so that the
+     * other sessions can continue.
+     */
+    private void setTransactionLockTimeout() {
+        if (database.isMultiThreaded()) {
+            transaction.setLockTimeout(lockTimeout);
+        }
     }
 
     @Override
@@ -599,7 +617,7 @@ public class Session extends SessionWithState {
                 MVTable t = tableMap.get(c.mapName);
                 if (t != null) {
                     long key = ((ValueLong) c.key).getLong();
-                    ValueArray value = (ValueArray) c.value;
+                    Value value = (Value) c.value;
                     short op;
                     Row row;
                     if (value == null) {
@@ -607,7 +625,7 @@ public class Session extends SessionWithState {
                         row = t.getRow(this, key);
                     } else {
                         op = UndoLogRecord.DELETE;
-                        row = new Row(value.getList(), Row.MEMORY_CALCULATE);
+                        row = new Row(ValueLazyArray.getList(value), Row.MEMORY_CALCULATE);
                     }
                     row.setKey(key);
                     UndoLogRecord log = new UndoLogRecord(t, op, row);
@@ -1298,6 +1316,20 @@ public class Session extends SessionWithState {
         return queryTimeout;
     }
 
+    /**
+     * Set the maximum number of threads that are used to run a query. The
+     * value 0 means the number of available processors is used.
+     *
+     * @param queryParallelism the number of threads
+     */
+    public void setQueryParallelism(int queryParallelism) {
+        this.queryParallelism = queryParallelism;
+    }
+
+    public int getQueryParallelism() {
+        return queryParallelism;
+    }
+
     /**
      * Set the table this session is waiting for, and the thread that is waiting.
      *
@@ -1402,6 +1434,7 @@ public class Session extends SessionWithState {
                 throw DbException.get(ErrorCode.DATABASE_IS_CLOSED);
             }
             transaction = database.getMvStore().getTransactionStore().begin();
+            setTransactionLockTimeout();
             startStatement = -1;
         }
         return transaction;
@@ -1427,9 +1460,31 @@ public class Session extends SessionWithState {
      */
     public void endStatement() {
         startStatement = -1;
+        if (readView != null) {
+            database.getMvStore().getTransactionStore().closeReadView(readView);
+            readView = null;
+        }
         closeTemporaryResults();
     }
 
+    /**
+     * Get the read view of the current statement. Only queries use a read
+     * view, so that they see a consistent state even if other transactions
+     * commit in the meantime. The view is opened when it is first needed,
+     * and closed at the end of the statement.
+     *
+     * @return the read view, or null if the statement is not a query
+     */
+    public ReadView getReadView() {
+        if (readView == null) {
+            Command c = currentCommand;
+            if (c != null && c.isQuery() && c.isReadOnly()) {
+                readView = database.getMvStore().getTransactionStore().openReadView();
+            }
+        }
+        return readView;
+    }
+
     @Override
     public void addTemporaryLob(Value v) {
         if (temporaryLobs == null) {
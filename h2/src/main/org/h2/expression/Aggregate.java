@@ -130,6 +130,7 @@ public class Aggregate extends Expression {
     private long precision;
     private int displaySize;
     private int lastGroupRowId;
+    private int groupSlot = -1;
 
     /**
      * Create a new aggregate object.
@@ -225,7 +226,7 @@ public class Aggregate extends Expression {
         // if(on != null) {
         // on.updateAggregate();
         // }
-        HashMap<Expression, Object> group = select.getCurrentGroup();
+        Object[] group = select.getCurrentGroup();
         if (group == null) {
             // this is a different level (the enclosing query)
             return;
@@ -238,10 +239,10 @@ public class Aggregate extends Expression {
         }
         lastGroupRowId = groupRowId;
 
-        AggregateData data = (AggregateData) group.get(this);
+        AggregateData data = (AggregateData) group[groupSlot];
         if (data == null) {
-            data = AggregateData.create(type);
-            group.put(this, data);
+            data = AggregateData.create(type, dataType, distinct);
+            group[groupSlot] = data;
         }
         Value v = on == null ? null : on.getValue(session);
         if (type == GROUP_CONCAT) {
@@ -291,13 +292,13 @@ public class Aggregate extends Expression {
                 DbException.throwInternalError("type=" + type);
             }
         }
-        HashMap<Expression, Object> group = select.getCurrentGroup();
+        Object[] group = select.getCurrentGroup();
         if (group == null) {
             throw DbException.get(ErrorCode.INVALID_USE_OF_AGGREGATE_FUNCTION_1, getSQL());
         }
-        AggregateData data = (AggregateData) group.get(this);
+        AggregateData data = (AggregateData) group[groupSlot];
         if (data == null) {
-            data = AggregateData.create(type);
+            data = AggregateData.create(type, dataType, distinct);
         }
         Value v = data.getValue(session.getDatabase(), dataType, distinct);
         if (type == GROUP_CONCAT) {
@@ -360,6 +361,9 @@ public class Aggregate extends Expression {
 
     @Override
     public Expression optimize(Session session) {
+        if (groupSlot < 0) {
+            groupSlot = select.allocateGroupSlot(this);
+        }
         if (on != null) {
             on = on.optimize(session);
             dataType = on.getType();
@@ -562,8 +566,40 @@ public class Aggregate extends Expression {
         return null;
     }
 
+    @Override
+    public void mergeAggregate(Session session, Object[] group, Object[] other) {
+        AggregateData data = (AggregateData) other[groupSlot];
+        if (data == null) {
+            return;
+        }
+        AggregateData old = (AggregateData) group[groupSlot];
+        if (old == null) {
+            group[groupSlot] = data;
+        } else {
+            old.merge(session.getDatabase(), dataType, data);
+        }
+    }
+
     @Override
     public boolean isEverything(ExpressionVisitor visitor) {
+        if (visitor.getType() == ExpressionVisitor.PARALLELIZABLE) {
+            switch (type) {
+            case COUNT_ALL:
+            case COUNT:
+            case SUM:
+            case AVG:
+            case MIN:
+            case MAX:
+            case BOOL_AND:
+            case BOOL_OR:
+                if (distinct) {
+                    return false;
+                }
+                break;
+            default:
+                return false;
+            }
+        }
         if (visitor.getType() == ExpressionVisitor.OPTIMIZABLE_MIN_MAX_COUNT_ALL) {
             switch (type) {
             case COUNT:
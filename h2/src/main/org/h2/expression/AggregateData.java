@@ -7,6 +7,7 @@
 package org.h2.expression;
 
 import org.h2.engine.Database;
+import org.h2.message.DbException;
 import org.h2.value.Value;
 
 /**
@@ -18,9 +19,11 @@ abstract class AggregateData {
      * Create an AggregateData object of the correct sub-type.
      *
      * @param aggregateType the type of the aggregate operation
+     * @param dataType the datatype of the computed result
+     * @param distinct if the calculation should be distinct
      * @return the aggregate data object of the specified type
      */
-    static AggregateData create(int aggregateType) {
+    static AggregateData create(int aggregateType, int dataType, boolean distinct) {
         if (aggregateType == Aggregate.SELECTIVITY) {
             return new AggregateDataSelectivity();
         } else if (aggregateType == Aggregate.GROUP_CONCAT) {
@@ -31,6 +34,10 @@ abstract class AggregateData {
             return new AggregateDataCount();
         } else if (aggregateType == Aggregate.HISTOGRAM) {
             return new AggregateDataHistogram();
+        } else if (!distinct && AggregateDataLong.isSupported(aggregateType, dataType)) {
+            return new AggregateDataLong(aggregateType);
+        } else if (!distinct && AggregateDataDouble.isSupported(aggregateType, dataType)) {
+            return new AggregateDataDouble(aggregateType);
         } else {
             return new AggregateDataDefault(aggregateType);
         }
@@ -55,4 +62,16 @@ abstract class AggregateData {
      * @return the value
      */
     abstract Value getValue(Database database, int dataType, boolean distinct);
+
+    /**
+     * Add the values of another aggregate of the same type, that was
+     * calculated for a different set of rows.
+     *
+     * @param database the database
+     * @param dataType the datatype of the computed result
+     * @param other the other aggregate
+     */
+    void merge(Database database, int dataType, AggregateData other) {
+        throw DbException.throwInternalError();
+    }
 }
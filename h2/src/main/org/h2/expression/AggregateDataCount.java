@@ -6,6 +6,7 @@
 package org.h2.expression;
 
 import org.h2.engine.Database;
+import org.h2.message.DbException;
 import org.h2.util.ValueHashMap;
 import org.h2.value.Value;
 import org.h2.value.ValueLong;
@@ -46,4 +47,13 @@ class AggregateDataCount extends AggregateData {
         return v.convertTo(dataType);
     }
 
+    @Override
+    void merge(Database database, int dataType, AggregateData other) {
+        AggregateDataCount o = (AggregateDataCount) other;
+        if (distinctValues != null || o.distinctValues != null) {
+            DbException.throwInternalError();
+        }
+        count += o.count;
+    }
+
 }
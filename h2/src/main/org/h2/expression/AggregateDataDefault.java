@@ -166,6 +166,33 @@ class AggregateDataDefault extends AggregateData {
         return v == null ? ValueNull.INSTANCE : v.convertTo(dataType);
     }
 
+    @Override
+    void merge(Database database, int dataType, AggregateData other) {
+        AggregateDataDefault o = (AggregateDataDefault) other;
+        if (distinctValues != null || o.distinctValues != null) {
+            DbException.throwInternalError();
+        }
+        if (o.value == null) {
+            return;
+        }
+        switch (aggregateType) {
+        case Aggregate.SUM:
+        case Aggregate.AVG:
+            count += o.count;
+            value = value == null ? o.value : value.add(o.value.convertTo(value.getType()));
+            break;
+        case Aggregate.MIN:
+        case Aggregate.MAX:
+        case Aggregate.BOOL_AND:
+        case Aggregate.BOOL_OR:
+            // the count is not used for those types
+            add(database, dataType, false, o.value);
+            break;
+        default:
+            DbException.throwInternalError("type=" + aggregateType);
+        }
+    }
+
     private static Value divide(Value a, long by) {
         if (by == 0) {
             return ValueNull.INSTANCE;
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2004-2013 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.expression;
+
+import org.h2.engine.Database;
+import org.h2.message.DbException;
+import org.h2.value.Value;
+import org.h2.value.ValueDouble;
+import org.h2.value.ValueNull;
+
+/**
+ * Data stored while calculating a SUM, MIN, or MAX aggregate of DOUBLE
+ * values. The value is kept as a primitive, so that no value object needs to
+ * be created for each row.
+ */
+class AggregateDataDouble extends AggregateData {
+    private final int aggregateType;
+    private boolean hasValue;
+    private double value;
+
+    /**
+     * @param aggregateType the type of the aggregate operation
+     */
+    AggregateDataDouble(int aggregateType) {
+        this.aggregateType = aggregateType;
+    }
+
+    /**
+     * Check whether this class can be used for the given aggregate.
+     *
+     * @param aggregateType the type of the aggregate operation
+     * @param dataType the datatype of the computed result
+     * @return true if it can be used
+     */
+    static boolean isSupported(int aggregateType, int dataType) {
+        switch (aggregateType) {
+        case Aggregate.SUM:
+        case Aggregate.MIN:
+        case Aggregate.MAX:
+            return dataType == Value.DOUBLE;
+        default:
+            return false;
+        }
+    }
+
+    @Override
+    void add(Database database, int dataType, boolean distinct, Value v) {
+        if (v == ValueNull.INSTANCE) {
+            return;
+        }
+        add(v.getDouble());
+    }
+
+    private void add(double x) {
+        if (!hasValue) {
+            value = x;
+            hasValue = true;
+            return;
+        }
+        switch (aggregateType) {
+        case Aggregate.SUM:
+            value += x;
+            break;
+        case Aggregate.MIN:
+            if (Double.compare(x, value) < 0) {
+                value = x;
+            }
+            break;
+        case Aggregate.MAX:
+            if (Double.compare(x, value) > 0) {
+                value = x;
+            }
+            break;
+        default:
+            DbException.throwInternalError("type=" + aggregateType);
+        }
+    }
+
+    @Override
+    void merge(Database database, int dataType, AggregateData other) {
+        AggregateDataDouble o = (AggregateDataDouble) other;
+        if (o.hasValue) {
+            add(o.value);
+        }
+    }
+
+    @Override
+    Value getValue(Database database, int dataType, boolean distinct) {
+        if (!hasValue) {
+            return ValueNull.INSTANCE;
+        }
+        return ValueDouble.get(value).convertTo(dataType);
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2004-2013 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.expression;
+
+import org.h2.constant.ErrorCode;
+import org.h2.engine.Database;
+import org.h2.message.DbException;
+import org.h2.value.Value;
+import org.h2.value.ValueLong;
+import org.h2.value.ValueNull;
+
+/**
+ * Data stored while calculating a SUM, MIN, or MAX aggregate of integer
+ * values. The value is kept as a primitive, so that no value object needs to
+ * be created for each row.
+ */
+class AggregateDataLong extends AggregateData {
+    private final int aggregateType;
+    private boolean hasValue;
+    private long value;
+
+    /**
+     * @param aggregateType the type of the aggregate operation
+     */
+    AggregateDataLong(int aggregateType) {
+        this.aggregateType = aggregateType;
+    }
+
+    /**
+     * Check whether this class can be used for the given aggregate.
+     *
+     * @param aggregateType the type of the aggregate operation
+     * @param dataType the datatype of the computed result
+     * @return true if it can be used
+     */
+    static boolean isSupported(int aggregateType, int dataType) {
+        switch (aggregateType) {
+        case Aggregate.SUM:
+            return dataType == Value.LONG;
+        case Aggregate.MIN:
+        case Aggregate.MAX:
+            switch (dataType) {
+            case Value.BYTE:
+            case Value.SHORT:
+            case Value.INT:
+            case Value.LONG:
+                return true;
+            default:
+                return false;
+            }
+        default:
+            return false;
+        }
+    }
+
+    @Override
+    void add(Database database, int dataType, boolean distinct, Value v) {
+        if (v == ValueNull.INSTANCE) {
+            return;
+        }
+        add(v.getLong());
+    }
+
+    private void add(long x) {
+        if (!hasValue) {
+            value = x;
+            hasValue = true;
+            return;
+        }
+        switch (aggregateType) {
+        case Aggregate.SUM: {
+            long r = value + x;
+            // overflow if both operands have a different sign than the result
+            if (((value ^ r) & (x ^ r)) < 0) {
+                throw DbException.get(ErrorCode.NUMERIC_VALUE_OUT_OF_RANGE_1, Long.toString(value));
+            }
+            value = r;
+            break;
+        }
+        case Aggregate.MIN:
+            if (x < value) {
+                value = x;
+            }
+            break;
+        case Aggregate.MAX:
+            if (x > value) {
+                value = x;
+            }
+            break;
+        default:
+            DbException.throwInternalError("type=" + aggregateType);
+        }
+    }
+
+    @Override
+    void merge(Database database, int dataType, AggregateData other) {
+        AggregateDataLong o = (AggregateDataLong) other;
+        if (o.hasValue) {
+            add(o.value);
+        }
+    }
+
+    @Override
+    Value getValue(Database database, int dataType, boolean distinct) {
+        if (!hasValue) {
+            return ValueNull.INSTANCE;
+        }
+        return ValueLong.get(value).convertTo(dataType);
+    }
+
+}
@@ -110,6 +110,19 @@ public abstract class Expression {
      */
     public abstract void updateAggregate(Session session);
 
+    /**
+     * Merge the state of this expression in a group that was calculated by
+     * another copy of the query into the given group. This method is only
+     * called for expressions that allocated a slot in the state of the groups.
+     *
+     * @param session the session
+     * @param group the state of the group
+     * @param other the state of the same group calculated by the copy
+     */
+    public void mergeAggregate(Session session, Object[] group, Object[] other) {
+        throw DbException.throwInternalError(getSQL());
+    }
+
     /**
      * Check if this expression and all sub-expressions can fulfill a criteria.
      * If any part returns false, the result is false.
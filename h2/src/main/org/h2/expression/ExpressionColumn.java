@@ -6,7 +6,6 @@
  */
 package org.h2.expression;
 
-import java.util.HashMap;
 import org.h2.command.Parser;
 import org.h2.command.dml.Select;
 import org.h2.command.dml.SelectListColumnResolver;
@@ -37,6 +36,7 @@ public class ExpressionColumn extends Expression {
     private int queryLevel;
     private Column column;
     private boolean evaluatable;
+    private int groupSlot = -1;
 
     public ExpressionColumn(Database database, Column column) {
         this.database = database;
@@ -143,6 +143,10 @@ public class ExpressionColumn extends Expression {
             }
             throw DbException.get(ErrorCode.COLUMN_NOT_FOUND_1, name);
         }
+        Select select = columnResolver.getSelect();
+        if (groupSlot < 0 && select != null && select.isGroupQuery()) {
+            groupSlot = select.allocateGroupSlot(this);
+        }
         return columnResolver.optimize(this, column);
     }
 
@@ -153,14 +157,14 @@ public class ExpressionColumn extends Expression {
         if (select == null) {
             throw DbException.get(ErrorCode.MUST_GROUP_BY_COLUMN_1, getSQL());
         }
-        HashMap<Expression, Object> values = select.getCurrentGroup();
-        if (values == null) {
+        Object[] values = select.getCurrentGroup();
+        if (values == null || groupSlot < 0) {
             // this is a different level (the enclosing query)
             return;
         }
-        Value v = (Value) values.get(this);
+        Value v = (Value) values[groupSlot];
         if (v == null) {
-            values.put(this, now);
+            values[groupSlot] = now;
         } else {
             if (!database.areEqual(now, v)) {
                 throw DbException.get(ErrorCode.MUST_GROUP_BY_COLUMN_1, getSQL());
@@ -168,13 +172,27 @@ public class ExpressionColumn extends Expression {
         }
     }
 
+    @Override
+    public void mergeAggregate(Session session, Object[] group, Object[] other) {
+        Value v = (Value) other[groupSlot];
+        if (v == null) {
+            return;
+        }
+        Value old = (Value) group[groupSlot];
+        if (old == null) {
+            group[groupSlot] = v;
+        } else if (!database.areEqual(old, v)) {
+            throw DbException.get(ErrorCode.MUST_GROUP_BY_COLUMN_1, getSQL());
+        }
+    }
+
     @Override
     public Value getValue(Session session) {
         Select select = columnResolver.getSelect();
         if (select != null) {
-            HashMap<Expression, Object> values = select.getCurrentGroup();
-            if (values != null) {
-                Value v = (Value) values.get(this);
+            Object[] values = select.getCurrentGroup();
+            if (values != null && groupSlot >= 0) {
+                Value v = (Value) values[groupSlot];
                 if (v != null) {
                     return v;
                 }
@@ -267,6 +285,7 @@ public class ExpressionColumn extends Expression {
         case ExpressionVisitor.READONLY:
         case ExpressionVisitor.DETERMINISTIC:
         case ExpressionVisitor.QUERY_COMPARABLE:
+        case ExpressionVisitor.PARALLELIZABLE:
             return true;
         case ExpressionVisitor.INDEPENDENT:
             return this.queryLevel < visitor.getQueryLevel();
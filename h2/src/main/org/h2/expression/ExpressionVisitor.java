@@ -101,6 +101,18 @@ public class ExpressionVisitor {
      */
     public static final ExpressionVisitor QUERY_COMPARABLE_VISITOR = new ExpressionVisitor(QUERY_COMPARABLE);
 
+    /**
+     * Can the expression be evaluated by multiple threads, each using its own
+     * copy of the query, and can the aggregates calculated by the threads be
+     * merged?
+     */
+    public static final int PARALLELIZABLE = 10;
+
+    /**
+     * The visitor singleton for the type PARALLELIZABLE.
+     */
+    public static final ExpressionVisitor PARALLELIZABLE_VISITOR = new ExpressionVisitor(PARALLELIZABLE);
+
     private final int type;
     private final int queryLevel;
     private final HashSet<DbObject> dependencies;
@@ -8,7 +8,6 @@ package org.h2.expression;
 
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.HashMap;
 import org.h2.api.AggregateFunction;
 import org.h2.command.Parser;
 import org.h2.command.dml.Select;
@@ -35,6 +34,7 @@ public class JavaAggregate extends Expression {
     private int dataType;
     private Connection userConnection;
     private int lastGroupRowId;
+    private int groupSlot = -1;
 
     public JavaAggregate(UserAggregate userAggregate, Expression[] args, Select select) {
         this.userAggregate = userAggregate;
@@ -90,6 +90,8 @@ public class JavaAggregate extends Expression {
             // know (no setting for that)
         case ExpressionVisitor.OPTIMIZABLE_MIN_MAX_COUNT_ALL:
             // user defined aggregate functions can not be optimized
+        case ExpressionVisitor.PARALLELIZABLE:
+            // and the results of multiple threads can not be merged
             return false;
         case ExpressionVisitor.GET_DEPENDENCIES:
             visitor.addDependency(userAggregate);
@@ -113,6 +115,9 @@ public class JavaAggregate extends Expression {
 
     @Override
     public Expression optimize(Session session) {
+        if (groupSlot < 0) {
+            groupSlot = select.allocateGroupSlot(this);
+        }
         userConnection = session.createConnection(false);
         int len = args.length;
         argTypes = new int[len];
@@ -148,12 +153,12 @@ public class JavaAggregate extends Expression {
 
     @Override
     public Value getValue(Session session) {
-        HashMap<Expression, Object> group = select.getCurrentGroup();
+        Object[] group = select.getCurrentGroup();
         if (group == null) {
             throw DbException.get(ErrorCode.INVALID_USE_OF_AGGREGATE_FUNCTION_1, getSQL());
         }
         try {
-            AggregateFunction agg = (AggregateFunction) group.get(this);
+            AggregateFunction agg = (AggregateFunction) group[groupSlot];
             if (agg == null) {
                 agg = getInstance();
             }
@@ -169,7 +174,7 @@ public class JavaAggregate extends Expression {
 
     @Override
     public void updateAggregate(Session session) {
-        HashMap<Expression, Object> group = select.getCurrentGroup();
+        Object[] group = select.getCurrentGroup();
         if (group == null) {
             // this is a different level (the enclosing query)
             return;
@@ -182,11 +187,11 @@ public class JavaAggregate extends Expression {
         }
         lastGroupRowId = groupRowId;
 
-        AggregateFunction agg = (AggregateFunction) group.get(this);
+        AggregateFunction agg = (AggregateFunction) group[groupSlot];
         try {
             if (agg == null) {
                 agg = getInstance();
-                group.put(this, agg);
+                group[groupSlot] = agg;
             }
             Object[] argValues = new Object[args.length];
             Object arg = null;
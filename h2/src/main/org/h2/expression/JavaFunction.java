@@ -139,6 +139,7 @@ public class JavaFunction extends Expression implements FunctionCall {
     public boolean isEverything(ExpressionVisitor visitor) {
         switch(visitor.getType()) {
         case ExpressionVisitor.DETERMINISTIC:
+        case ExpressionVisitor.PARALLELIZABLE:
             if (!isDeterministic()) {
                 return false;
             }
@@ -153,6 +153,7 @@ public class Parameter extends Expression implements ParameterInterface {
         case ExpressionVisitor.DETERMINISTIC:
         case ExpressionVisitor.READONLY:
         case ExpressionVisitor.GET_COLUMNS:
+        case ExpressionVisitor.PARALLELIZABLE:
             return true;
         case ExpressionVisitor.INDEPENDENT:
             return value != null;
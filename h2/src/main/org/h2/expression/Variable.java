@@ -78,6 +78,7 @@ public class Variable extends Expression {
         case ExpressionVisitor.GET_COLUMNS:
             return true;
         case ExpressionVisitor.DETERMINISTIC:
+        case ExpressionVisitor.PARALLELIZABLE:
             return false;
         default:
             throw DbException.throwInternalError("type="+visitor.getType());
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2004-2013 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.index;
+
+import java.util.ArrayList;
+import org.h2.engine.Constants;
+import org.h2.engine.Session;
+import org.h2.message.DbException;
+import org.h2.result.Row;
+import org.h2.result.SearchRow;
+import org.h2.result.SortOrder;
+import org.h2.table.Column;
+import org.h2.table.IndexColumn;
+import org.h2.table.Table;
+import org.h2.table.TableFilter;
+import org.h2.util.New;
+import org.h2.util.ValueHashMap;
+import org.h2.value.CompareMode;
+import org.h2.value.Value;
+import org.h2.value.ValueArray;
+
+/**
+ * A temporary index that is used to join a table on columns that are not
+ * indexed. When the first row is requested, all rows of the table are read
+ * and added to an in-memory hash map, keyed by the join columns. Afterwards,
+ * each lookup only reads the rows with the same key.
+ * <p>
+ * If the table contains more than MAX_MEMORY_ROWS rows, the hash map is not
+ * built, and each lookup scans the table as in a nested loop join. Lookups
+ * that don't specify all columns (for example ranges) also scan the table.
+ * Both cases are correct, as the join condition is checked for each row.
+ */
+public class HashJoinIndex extends BaseIndex {
+
+    private final int[] columnIds;
+    private ValueHashMap<ArrayList<Row>> rows;
+    private boolean tooLarge;
+
+    public HashJoinIndex(Table table, IndexColumn[] columns) {
+        initBaseIndex(table, 0, null, columns, IndexType.createNonUnique(false));
+        columnIds = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            columnIds[i] = columns[i].column.getColumnId();
+        }
+    }
+
+    /**
+     * Check whether a hash lookup finds the same rows as a comparison for the
+     * given column. This is not the case for data types where two values can
+     * be equal without having the same representation, for example for
+     * DECIMAL, or strings if a collation is used.
+     *
+     * @param column the column
+     * @param compareMode the compare mode
+     * @return true if the column can be used
+     */
+    public static boolean isHashable(Column column, CompareMode compareMode) {
+        switch (column.getType()) {
+        case Value.BOOLEAN:
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG:
+        case Value.DATE:
+        case Value.TIME:
+        case Value.TIMESTAMP:
+        case Value.BYTES:
+        case Value.UUID:
+            return true;
+        case Value.STRING:
+        case Value.STRING_FIXED:
+            return CompareMode.OFF.equals(compareMode.getName());
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Forget the hash map, so that it is built again with the current data
+     * of the table when the next row is requested.
+     */
+    public void reset() {
+        rows = null;
+        tooLarge = false;
+    }
+
+    @Override
+    public Cursor find(Session session, SearchRow first, SearchRow last) {
+        Value key = getKey(first, last);
+        if (key == null || tooLarge) {
+            return table.getScanIndex(session).find(session, null, null);
+        }
+        if (rows == null) {
+            buildHashMap(session);
+            if (tooLarge) {
+                return table.getScanIndex(session).find(session, null, null);
+            }
+        }
+        return new RowListCursor(rows.get(key));
+    }
+
+    private void buildHashMap(Session session) {
+        int maxMemoryRows = database.getMaxMemoryRows();
+        ValueHashMap<ArrayList<Row>> map = ValueHashMap.newInstance();
+        Value[] values = new Value[columnIds.length];
+        Cursor cursor = table.getScanIndex(session).find(session, null, null);
+        int count = 0;
+        while (cursor.next()) {
+            if (++count > maxMemoryRows) {
+                tooLarge = true;
+                return;
+            }
+            Row row = cursor.get();
+            for (int i = 0; i < columnIds.length; i++) {
+                values[i] = row.getValue(columnIds[i]);
+            }
+            Value key = values.length == 1 ? values[0] : ValueArray.get(values.clone());
+            ArrayList<Row> list = map.get(key);
+            if (list == null) {
+                list = New.arrayList();
+                map.put(key, list);
+            }
+            list.add(row);
+        }
+        rows = map;
+    }
+
+    /**
+     * Get the hash key of a lookup.
+     *
+     * @param first the first row
+     * @param last the last row
+     * @return the key, or null if the lookup is not an equality lookup on all
+     *         columns
+     */
+    private Value getKey(SearchRow first, SearchRow last) {
+        if (first == null || last == null) {
+            return null;
+        }
+        Value[] values = new Value[columnIds.length];
+        for (int i = 0; i < columnIds.length; i++) {
+            int id = columnIds[i];
+            Value v = first.getValue(id);
+            if (v == null || v != last.getValue(id) && !v.equals(last.getValue(id))) {
+                return null;
+            }
+            int type = columns[i].getType();
+            if (v.getType() != type) {
+                // only widening conversions result in the same comparison
+                if (Value.getHigherOrder(type, v.getType()) != type) {
+                    return null;
+                }
+                v = v.convertTo(type);
+            }
+            values[i] = v;
+        }
+        return values.length == 1 ? values[0] : ValueArray.get(values);
+    }
+
+    @Override
+    public double getCost(Session session, int[] masks, TableFilter filter, SortOrder sortOrder) {
+        // the same cost as a lookup in a b-tree index, so that join orders
+        // that can use existing indexes are preferred
+        return 10 * getCostRangeIndex(masks, table.getRowCountApproximation(), filter, null);
+    }
+
+    /**
+     * Get the cost to build the hash map.
+     *
+     * @param session the session
+     * @return the cost
+     */
+    public double getBuildCost(Session session) {
+        return table.getRowCountApproximation() + Constants.COST_ROW_OFFSET;
+    }
+
+    @Override
+    public void close(Session session) {
+        // nothing to do
+    }
+
+    @Override
+    public void add(Session session, Row row) {
+        throw DbException.getUnsupportedException("HASH JOIN");
+    }
+
+    @Override
+    public void remove(Session session, Row row) {
+        throw DbException.getUnsupportedException("HASH JOIN");
+    }
+
+    @Override
+    public void remove(Session session) {
+        throw DbException.getUnsupportedException("HASH JOIN");
+    }
+
+    @Override
+    public void truncate(Session session) {
+        throw DbException.getUnsupportedException("HASH JOIN");
+    }
+
+    @Override
+    public boolean needRebuild() {
+        return false;
+    }
+
+    @Override
+    public void checkRename() {
+        throw DbException.getUnsupportedException("HASH JOIN");
+    }
+
+    @Override
+    public boolean canGetFirstOrLast() {
+        return false;
+    }
+
+    @Override
+    public Cursor findFirstOrLast(Session session, boolean first) {
+        throw DbException.getUnsupportedException("HASH JOIN");
+    }
+
+    @Override
+    public long getRowCount(Session session) {
+        return table.getRowCount(session);
+    }
+
+    @Override
+    public long getRowCountApproximation() {
+        return table.getRowCountApproximation();
+    }
+
+    @Override
+    public long getDiskSpaceUsed() {
+        return 0;
+    }
+
+    @Override
+    public String getPlanSQL() {
+        return table.getSQL() + ".hashJoin";
+    }
+
+    @Override
+    public boolean canScan() {
+        return false;
+    }
+
+    /**
+     * A cursor over the rows with the same key.
+     */
+    private static class RowListCursor implements Cursor {
+
+        private final ArrayList<Row> list;
+        private int index = -1;
+
+        RowListCursor(ArrayList<Row> list) {
+            this.list = list;
+        }
+
+        @Override
+        public Row get() {
+            return list.get(index);
+        }
+
+        @Override
+        public SearchRow getSearchRow() {
+            return get();
+        }
+
+        @Override
+        public boolean next() {
+            return list != null && ++index < list.size();
+        }
+
+        @Override
+        public boolean previous() {
+            throw DbException.throwInternalError();
+        }
+
+    }
+
+}
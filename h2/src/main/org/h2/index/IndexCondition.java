@@ -21,6 +21,7 @@ import org.h2.message.DbException;
 import org.h2.result.ResultInterface;
 import org.h2.table.Column;
 import org.h2.table.Table;
+import org.h2.util.New;
 import org.h2.util.StatementBuilder;
 import org.h2.value.CompareMode;
 import org.h2.value.Value;
@@ -327,6 +328,22 @@ public class IndexCondition {
         }
     }
 
+    /**
+     * Check if this is an equality condition that compares the column with
+     * an expression that contains columns of other tables, as in a join.
+     *
+     * @return true if this is an equi-join condition
+     */
+    public boolean isEquiJoin() {
+        if (compareType != Comparison.EQUAL &&
+                compareType != Comparison.EQUAL_NULL_SAFE) {
+            return false;
+        }
+        HashSet<Column> columns = New.hashSet();
+        expression.isEverything(ExpressionVisitor.getColumnsVisitor(columns));
+        return !columns.isEmpty();
+    }
+
     public int getCompareType() {
         return compareType;
     }
@@ -340,6 +357,10 @@ public class IndexCondition {
         return column;
     }
 
+    public Expression getExpression() {
+        return expression;
+    }
+
     /**
      * Check if the expression can be evaluated.
      *
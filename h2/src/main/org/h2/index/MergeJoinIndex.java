@@ -0,0 +1,263 @@
+/*
+ * Copyright 2004-2013 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.index;
+
+import java.util.ArrayList;
+import org.h2.engine.Session;
+import org.h2.message.DbException;
+import org.h2.mvstore.db.MVPrimaryIndex;
+import org.h2.result.Row;
+import org.h2.result.SearchRow;
+import org.h2.result.SortOrder;
+import org.h2.table.Column;
+import org.h2.table.IndexColumn;
+import org.h2.table.TableFilter;
+import org.h2.util.New;
+import org.h2.value.Value;
+import org.h2.value.ValueNull;
+
+/**
+ * An index that is used to join a table if the outer table is read in the
+ * order of the join column. It wraps a sorted index on the join column, and
+ * keeps the cursor of the last lookup open. If the next lookup is for a
+ * larger value, the cursor is moved forward instead of searching the index
+ * again, so that both tables are read in one pass as in a merge join. Rows
+ * with the same value are kept in memory, as the outer table may contain the
+ * same value multiple times.
+ * <p>
+ * If the value is smaller than the last one, or much larger, or if there are
+ * more than MAX_MEMORY_ROWS rows with the same value, the base index is
+ * searched as usual.
+ */
+public class MergeJoinIndex extends BaseIndex {
+
+    /**
+     * The number of rows to skip before the base index is searched instead.
+     */
+    private static final int MAX_SKIP = 64;
+
+    private final Index base;
+    private final int columnId;
+
+    private Cursor cursor;
+    private SearchRow next;
+    private Value runValue;
+    private ArrayList<Row> run;
+
+    public MergeJoinIndex(Index base) {
+        this.base = base;
+        IndexColumn[] cols = base.getIndexColumns();
+        initBaseIndex(base.getTable(), 0, null, cols, IndexType.createNonUnique(false));
+        columnId = cols[0].column.getColumnId();
+    }
+
+    /**
+     * Check whether the rows are returned in ascending order of the column if
+     * the given index is used.
+     *
+     * @param index the index
+     * @param column the column
+     * @return true if the rows are sorted by the column
+     */
+    public static boolean isSortedBy(Index index, Column column) {
+        if (index instanceof MergeJoinIndex) {
+            index = ((MergeJoinIndex) index).base;
+        }
+        int mainIndexColumn = -1;
+        if (index instanceof PageDataIndex) {
+            mainIndexColumn = ((PageDataIndex) index).getMainIndexColumn();
+        } else if (index instanceof MVPrimaryIndex) {
+            mainIndexColumn = ((MVPrimaryIndex) index).getMainIndexColumn();
+        }
+        if (mainIndexColumn >= 0) {
+            // the rows are sorted by key
+            return mainIndexColumn == column.getColumnId();
+        }
+        IndexType type = index.getIndexType();
+        if (type.isScan() || type.isHash() || type.isSpatial()) {
+            return false;
+        }
+        ArrayList<Index> indexes = index.getTable().getIndexes();
+        if (indexes == null || !indexes.contains(index)) {
+            // for example a view index
+            return false;
+        }
+        IndexColumn first = index.getIndexColumns()[0];
+        return first.column == column &&
+                (first.sortType & SortOrder.DESCENDING) == 0;
+    }
+
+    /**
+     * Forget the current position, so that the next lookup searches the base
+     * index.
+     */
+    public void reset() {
+        cursor = null;
+        next = null;
+        runValue = null;
+        run = null;
+    }
+
+    @Override
+    public Cursor find(Session session, SearchRow first, SearchRow last) {
+        return base.find(session, first, last);
+    }
+
+    @Override
+    public Cursor find(TableFilter filter, SearchRow first, SearchRow last) {
+        Value v = getValue(first, last);
+        if (v == null) {
+            return base.find(filter, first, last);
+        }
+        if (runValue != null) {
+            int comp = database.compare(v, runValue);
+            if (comp == 0) {
+                return new MetaCursor(run);
+            }
+            if (comp < 0 || !skipTo(v)) {
+                cursor = null;
+            }
+        }
+        if (cursor == null) {
+            cursor = base.find(filter, first, null);
+            next = cursor.next() ? cursor.getSearchRow() : null;
+        }
+        ArrayList<Row> list = New.arrayList();
+        int maxMemoryRows = database.getMaxMemoryRows();
+        while (next != null && database.compare(next.getValue(columnId), v) == 0) {
+            if (list.size() >= maxMemoryRows) {
+                reset();
+                return base.find(filter, first, last);
+            }
+            list.add(cursor.get());
+            next = cursor.next() ? cursor.getSearchRow() : null;
+        }
+        runValue = v;
+        run = list;
+        return new MetaCursor(list);
+    }
+
+    /**
+     * Move the cursor forward to the first row that is not smaller than the
+     * given value.
+     *
+     * @param v the value
+     * @return false if too many rows would need to be skipped
+     */
+    private boolean skipTo(Value v) {
+        for (int i = 0; next != null; i++) {
+            Value x = next.getValue(columnId);
+            if (x != ValueNull.INSTANCE && database.compare(x, v) >= 0) {
+                break;
+            }
+            if (i >= MAX_SKIP) {
+                return false;
+            }
+            next = cursor.next() ? cursor.getSearchRow() : null;
+        }
+        return true;
+    }
+
+    /**
+     * Get the value of an equality lookup on the first column.
+     *
+     * @param first the first row
+     * @param last the last row
+     * @return the value, or null if this is not an equality lookup for a
+     *         value that is not null
+     */
+    private Value getValue(SearchRow first, SearchRow last) {
+        if (first == null || last == null) {
+            return null;
+        }
+        Value v = first.getValue(columnId);
+        if (v == null || v == ValueNull.INSTANCE) {
+            return null;
+        }
+        Value v2 = last.getValue(columnId);
+        if (v != v2 && (v2 == null || database.compare(v, v2) != 0)) {
+            return null;
+        }
+        return v;
+    }
+
+    @Override
+    public double getCost(Session session, int[] masks, TableFilter filter, SortOrder sortOrder) {
+        return base.getCost(session, masks, filter, sortOrder);
+    }
+
+    @Override
+    public void close(Session session) {
+        // nothing to do
+    }
+
+    @Override
+    public void add(Session session, Row row) {
+        throw DbException.getUnsupportedException("MERGE JOIN");
+    }
+
+    @Override
+    public void remove(Session session, Row row) {
+        throw DbException.getUnsupportedException("MERGE JOIN");
+    }
+
+    @Override
+    public void remove(Session session) {
+        throw DbException.getUnsupportedException("MERGE JOIN");
+    }
+
+    @Override
+    public void truncate(Session session) {
+        throw DbException.getUnsupportedException("MERGE JOIN");
+    }
+
+    @Override
+    public boolean needRebuild() {
+        return false;
+    }
+
+    @Override
+    public void checkRename() {
+        throw DbException.getUnsupportedException("MERGE JOIN");
+    }
+
+    @Override
+    public boolean canGetFirstOrLast() {
+        return false;
+    }
+
+    @Override
+    public Cursor findFirstOrLast(Session session, boolean first) {
+        throw DbException.getUnsupportedException("MERGE JOIN");
+    }
+
+    @Override
+    public long getRowCount(Session session) {
+        return base.getRowCount(session);
+    }
+
+    @Override
+    public long getRowCountApproximation() {
+        return base.getRowCountApproximation();
+    }
+
+    @Override
+    public long getDiskSpaceUsed() {
+        return 0;
+    }
+
+    @Override
+    public String getPlanSQL() {
+        return base.getPlanSQL() + ".mergeJoin";
+    }
+
+    @Override
+    public boolean canScan() {
+        return false;
+    }
+
+}
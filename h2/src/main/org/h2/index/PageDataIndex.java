@@ -6,6 +6,7 @@
  */
 package org.h2.index;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -297,6 +298,41 @@ public class PageDataIndex extends PageIndex {
         return root.find(session, first, last, multiVersion);
     }
 
+    /**
+     * Search for the rows with a key in the given range.
+     *
+     * @param session the session
+     * @param first the key of the first row
+     * @param last the key of the last row
+     * @return the cursor
+     */
+    public Cursor find(Session session, long first, long last) {
+        return find(session, first, last, isMultiVersion);
+    }
+
+    /**
+     * Get the row keys that split the table into parts with about the same
+     * number of rows, assuming the keys are distributed evenly.
+     *
+     * @param session the session
+     * @param parts the number of parts
+     * @return the first row key of each part except the first one
+     */
+    public long[] getSplitKeys(Session session, int parts) {
+        long[] keys = new long[parts - 1];
+        Cursor cursor = find(session, Long.MIN_VALUE, Long.MAX_VALUE, isMultiVersion);
+        if (!cursor.next()) {
+            Arrays.fill(keys, Long.MAX_VALUE);
+            return keys;
+        }
+        long first = cursor.getSearchRow().getKey();
+        double range = (double) getLastKey() - first + 1;
+        for (int i = 1; i < parts; i++) {
+            keys[i - 1] = first + (long) (range * i / parts);
+        }
+        return keys;
+    }
+
     @Override
     public Cursor findFirstOrLast(Session session, boolean first) {
         throw DbException.throwInternalError();
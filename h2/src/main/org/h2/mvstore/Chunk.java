@@ -81,10 +81,81 @@ public class Chunk {
      */
     long time;
 
+    /**
+     * The positions of the pages that are in use. This is only known for
+     * chunks written since the store was opened (null otherwise), and is not
+     * persisted. Freed pages are removed when the freed space is applied.
+     */
+    CountingBloomFilter livePages;
+
+    /**
+     * The positions of the pages written to this chunk (while the chunk is
+     * written), or of the pages freed in this chunk (for freed space
+     * entries).
+     */
+    private long[] pagePositions;
+
+    private int pagePositionCount;
+
     Chunk(int id) {
         this.id = id;
     }
 
+    /**
+     * Add the position of a page that was written or freed.
+     *
+     * @param pos the page position
+     */
+    void addPagePosition(long pos) {
+        if (pagePositions == null) {
+            pagePositions = new long[16];
+        } else if (pagePositionCount == pagePositions.length) {
+            long[] p = new long[pagePositionCount * 2];
+            System.arraycopy(pagePositions, 0, p, 0, pagePositionCount);
+            pagePositions = p;
+        }
+        pagePositions[pagePositionCount++] = pos;
+    }
+
+    /**
+     * Create the filter of live pages from the positions of the pages written
+     * to this chunk.
+     */
+    void initLivePages() {
+        CountingBloomFilter f = new CountingBloomFilter(pagePositionCount);
+        for (int i = 0; i < pagePositionCount; i++) {
+            f.add(pagePositions[i]);
+        }
+        livePages = f;
+        pagePositions = null;
+        pagePositionCount = 0;
+    }
+
+    /**
+     * Remove the freed pages of the given freed space entry from the filter
+     * of live pages.
+     *
+     * @param freed the freed space entry
+     */
+    void removeLivePages(Chunk freed) {
+        if (livePages == null) {
+            return;
+        }
+        for (int i = 0; i < freed.pagePositionCount; i++) {
+            livePages.remove(freed.pagePositions[i]);
+        }
+    }
+
+    /**
+     * Check whether the page at the given position might still be in use.
+     *
+     * @param pos the page position
+     * @return false if the page is known to be no longer in use
+     */
+    boolean isLivePage(long pos) {
+        return livePages == null || livePages.mightContain(pos);
+    }
+
     /**
      * Read the header from the byte buffer.
      *
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2004-2013 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore;
+
+/**
+ * A counting Bloom filter for long values. Values can be added and removed.
+ * The method mightContain never returns false for a value that was added (and
+ * not removed), but may return true for a value that was not added.
+ * <p>
+ * Each counter uses 4 bits. Counters that overflow stay at the maximum value,
+ * and are then never decremented.
+ */
+public class CountingBloomFilter {
+
+    /**
+     * The number of counters per expected entry.
+     */
+    private static final int COUNTERS_PER_ENTRY = 6;
+
+    /**
+     * The number of hash functions.
+     */
+    private static final int HASH_COUNT = 3;
+
+    private static final int MAX_COUNT = 15;
+
+    /**
+     * The counters, 16 per long value.
+     */
+    private final long[] data;
+
+    private final int counterCount;
+
+    /**
+     * Create a new filter.
+     *
+     * @param expectedEntries the expected number of entries
+     */
+    public CountingBloomFilter(int expectedEntries) {
+        long counters = Math.max(64, (long) expectedEntries * COUNTERS_PER_ENTRY);
+        counters = Math.min(counters, Integer.MAX_VALUE / 2);
+        int len = (int) ((counters + 15) / 16);
+        data = new long[len];
+        counterCount = len * 16;
+    }
+
+    /**
+     * Add a value.
+     *
+     * @param x the value
+     */
+    public void add(long x) {
+        long h = hash(x);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int index = getIndex(h, i);
+            int c = get(index);
+            if (c < MAX_COUNT) {
+                set(index, c + 1);
+            }
+        }
+    }
+
+    /**
+     * Remove a value. The value must have been added before.
+     *
+     * @param x the value
+     */
+    public void remove(long x) {
+        long h = hash(x);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int index = getIndex(h, i);
+            int c = get(index);
+            if (c > 0 && c < MAX_COUNT) {
+                set(index, c - 1);
+            }
+        }
+    }
+
+    /**
+     * Check whether the value might have been added.
+     *
+     * @param x the value
+     * @return false if the value was certainly not added (or was removed)
+     */
+    public boolean mightContain(long x) {
+        long h = hash(x);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            if (get(getIndex(h, i)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the estimated memory used, in bytes.
+     *
+     * @return the memory
+     */
+    public int getMemory() {
+        return data.length * 8 + 24;
+    }
+
+    private int getIndex(long h, int i) {
+        // double hashing, using the upper and lower half of the hash
+        int x = (int) h + i * (int) (h >>> 32);
+        return (x & Integer.MAX_VALUE) % counterCount;
+    }
+
+    private int get(int index) {
+        return (int) (data[index >>> 4] >>> ((index & 15) << 2)) & 15;
+    }
+
+    private void set(int index, int value) {
+        int shift = (index & 15) << 2;
+        long x = data[index >>> 4] & ~(15L << shift);
+        data[index >>> 4] = x | ((long) value << shift);
+    }
+
+    private static long hash(long x) {
+        // the finalizer of MurmurHash3
+        x = (x ^ (x >>> 33)) * 0xff51afd7ed558ccdL;
+        x = (x ^ (x >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return x ^ (x >>> 33);
+    }
+
+}
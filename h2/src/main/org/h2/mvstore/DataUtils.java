@@ -17,6 +17,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.HashMap;
+import java.util.zip.CRC32;
 import org.h2.engine.Constants;
 import org.h2.util.New;
 
@@ -76,6 +77,11 @@ public class DataUtils {
      */
     public static final int ERROR_TRANSACTION_LOCK_TIMEOUT = 101;
 
+    /**
+     * A deadlock was detected, and this transaction was chosen as the victim.
+     */
+    public static final int ERROR_TRANSACTION_DEADLOCK = 102;
+
     /**
      * The type for leaf page.
      */
@@ -91,6 +97,31 @@ public class DataUtils {
      */
     public static final int PAGE_COMPRESSED = 2;
 
+    /**
+     * The bit mask for pages that are compressed with an algorithm other than
+     * LZF. The algorithm is stored in the following byte.
+     */
+    public static final int PAGE_COMPRESSED_ALGORITHM = 4;
+
+    /**
+     * The bit mask for pages with a checksum. The checksum (an int) is stored
+     * after the page type.
+     */
+    public static final int PAGE_CHECKSUM = 8;
+
+    /**
+     * The bit mask for pages with long keys. The first key is stored as a
+     * variable size long, followed by the differences to the previous key.
+     */
+    public static final int PAGE_LONG_KEYS = 16;
+
+    /**
+     * The bit mask for pages with prefix compressed keys. The common prefix
+     * of all keys is stored once, followed by the remaining bytes of each
+     * key.
+     */
+    public static final int PAGE_PREFIX_KEYS = 32;
+
     /**
      * The maximum length of a variable size int.
      */
@@ -646,6 +677,38 @@ public class DataUtils {
         return (s2 << 16) | s1;
     }
 
+    /**
+     * Calculate the checksum of a page (a CRC-32 of all bytes of the page,
+     * except the checksum itself).
+     *
+     * @param buff the buffer
+     * @param start the start of the page
+     * @param pageLength the page length
+     * @param checksumPos the position of the checksum
+     * @return the checksum
+     */
+    public static int getPageChecksum(ByteBuffer buff, int start,
+            int pageLength, int checksumPos) {
+        CRC32 crc = new CRC32();
+        updateChecksum(crc, buff, start, checksumPos - start);
+        updateChecksum(crc, buff, checksumPos + 4,
+                start + pageLength - checksumPos - 4);
+        return (int) crc.getValue();
+    }
+
+    private static void updateChecksum(CRC32 crc, ByteBuffer buff, int pos,
+            int len) {
+        if (buff.hasArray()) {
+            crc.update(buff.array(), buff.arrayOffset() + pos, len);
+        } else {
+            byte[] b = new byte[len];
+            ByteBuffer d = buff.duplicate();
+            d.position(pos);
+            d.get(b);
+            crc.update(b, 0, len);
+        }
+    }
+
     /**
      * Throw an IllegalArgumentException if the argument is invalid.
      *
@@ -0,0 +1,542 @@
+/*
+ * Copyright 2004-2013 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+import org.h2.mvstore.type.DataType;
+import org.h2.store.fs.FilePath;
+import org.h2.store.fs.FilePathEncrypt;
+import org.h2.util.New;
+
+/**
+ * An append-only log of the changes (key-value operations) of committed
+ * versions that are not yet stored in a chunk. Committing a small transaction
+ * only appends the changed entries to the log and syncs it, instead of writing
+ * a chunk with all changed pages. The log is emptied whenever the changes are
+ * stored in a chunk.
+ * <p>
+ * The log is read when the store is opened; the changes of a map are
+ * applied when the map is opened. Only changes of a version that is not older
+ * than the chunk of the root page of the map are applied, as older changes are
+ * already stored. Changes of maps that were not opened are kept in the log
+ * when it is emptied.
+ * <p>
+ * There are two log files, "name.log.0" and "name.log.1". Only one is in use;
+ * the other is only used when emptying the log while keeping some changes:
+ * the kept changes are then written to the other file first, before the old
+ * file is truncated. Both files are valid if the process is stopped in the
+ * meantime; when opening, the file with the newer last batch is used.
+ * If the store is encrypted, the log files are encrypted with the same key.
+ * <p>
+ * File format: a list of batches. Each batch contains the length (int, in
+ * bytes, including the header), a Fletcher-32 checksum of the rest of the
+ * batch (int), the version (long), and a list of operations. Each operation
+ * contains the map id (varInt), the operation type (byte), the length of the
+ * data (varInt), and the data: the key, and for put operations the value.
+ */
+class DeltaLog {
+
+    /**
+     * The operation type for put.
+     */
+    static final int PUT = 0;
+
+    /**
+     * The operation type for remove.
+     */
+    static final int REMOVE = 1;
+
+    /**
+     * The length of the batch header.
+     */
+    private static final int HEADER_LENGTH = 16;
+
+    private final String fileName;
+    private final boolean readOnly;
+    private byte[] encryptionKey;
+    private final FileChannel[] files = new FileChannel[2];
+
+    /**
+     * The file that is currently in use (0 or 1).
+     */
+    private int current;
+
+    /**
+     * The size of the log file in use.
+     */
+    private long size;
+
+    /**
+     * The operations that are not committed yet.
+     */
+    private final WriteBuffer pending = new WriteBuffer();
+
+    /**
+     * The version and the position in the pending buffer of each operation
+     * that is not committed yet.
+     */
+    private final ArrayList<long[]> pendingList = New.arrayList();
+
+    private final WriteBuffer data = new WriteBuffer();
+
+    /**
+     * The version and the position of each batch in the file in use.
+     */
+    private final ArrayList<long[]> batchList = New.arrayList();
+
+    /**
+     * The operations of maps that were not opened yet.
+     */
+    private final HashMap<Integer, ArrayList<Operation>> replay = New.hashMap();
+
+    /**
+     * Create a new delta log.
+     *
+     * @param storeFileName the file name of the store
+     * @param readOnly whether the store is read-only
+     * @param encryptionKey the encryption key, or null if the log is not
+     *            encrypted (the array is cleared after opening)
+     */
+    DeltaLog(String storeFileName, boolean readOnly, byte[] encryptionKey) {
+        this.fileName = storeFileName + ".log.";
+        this.readOnly = readOnly;
+        this.encryptionKey = encryptionKey;
+    }
+
+    /**
+     * Open the log files, and read the operations of committed versions.
+     */
+    synchronized void open() {
+        ArrayList<ByteBuffer> batches0, batches1;
+        long size0, size1;
+        try {
+            for (int i = 0; i < 2; i++) {
+                FilePath f = FilePath.get(fileName + i);
+                if (readOnly && !f.exists()) {
+                    continue;
+                }
+                FileChannel file = f.open(readOnly ? "r" : "rw");
+                if (encryptionKey != null) {
+                    file = new FilePathEncrypt.FileEncrypt(f.toString(),
+                            encryptionKey, file);
+                }
+                files[i] = file;
+            }
+            batches0 = New.arrayList();
+            size0 = readBatches(files[0], batches0);
+            batches1 = New.arrayList();
+            size1 = readBatches(files[1], batches1);
+        } catch (IOException e) {
+            close();
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_READING_FAILED,
+                    "Could not open log file {0}", fileName, e);
+        } finally {
+            if (encryptionKey != null) {
+                Arrays.fill(encryptionKey, (byte) 0);
+                encryptionKey = null;
+            }
+        }
+        ArrayList<ByteBuffer> batches;
+        if (getLastVersion(batches1) > getLastVersion(batches0)) {
+            current = 1;
+            size = size1;
+            batches = batches1;
+        } else {
+            current = 0;
+            size = size0;
+            batches = batches0;
+        }
+        long pos = 0;
+        for (ByteBuffer b : batches) {
+            long version = b.getLong(8);
+            batchList.add(new long[] { version, pos });
+            pos += b.remaining();
+            b.position(HEADER_LENGTH);
+            while (b.remaining() > 0) {
+                int mapId = DataUtils.readVarInt(b);
+                int type = b.get();
+                int len = DataUtils.readVarInt(b);
+                byte[] op = new byte[len + 1];
+                op[0] = (byte) type;
+                b.get(op, 1, len);
+                ArrayList<Operation> list = replay.get(mapId);
+                if (list == null) {
+                    list = New.arrayList();
+                    replay.put(mapId, list);
+                }
+                list.add(new Operation(version, op));
+            }
+        }
+        if (!readOnly) {
+            // remove incomplete batches, and the unused file
+            truncate(current, size);
+            truncate(1 - current, 0);
+        }
+    }
+
+    private static long getLastVersion(ArrayList<ByteBuffer> batches) {
+        int size = batches.size();
+        return size == 0 ? -1 : batches.get(size - 1).getLong(8);
+    }
+
+    /**
+     * Read all complete batches of a file.
+     *
+     * @param file the file (may be null)
+     * @param batches the list of batches to add to
+     * @return the length of the valid part of the file
+     */
+    private static long readBatches(FileChannel file,
+            ArrayList<ByteBuffer> batches) throws IOException {
+        if (file == null) {
+            return 0;
+        }
+        long fileSize = file.size();
+        long pos = 0;
+        while (pos + HEADER_LENGTH <= fileSize) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            DataUtils.readFully(file, pos, header);
+            int len = header.getInt();
+            int check = header.getInt();
+            if (len < HEADER_LENGTH || pos + len > fileSize) {
+                break;
+            }
+            byte[] b = new byte[len + 1];
+            DataUtils.readFully(file, pos, ByteBuffer.wrap(b, 0, len));
+            if (getCheckValue(b, len) != check) {
+                break;
+            }
+            batches.add(ByteBuffer.wrap(b, 0, len));
+            pos += len;
+        }
+        return pos;
+    }
+
+    /**
+     * Get the checksum of a batch. The checksum field is set to 0.
+     *
+     * @param b the batch, with one additional byte at the end
+     * @param len the length of the batch
+     * @return the checksum
+     */
+    private static int getCheckValue(byte[] b, int len) {
+        for (int i = 4; i < 8; i++) {
+            b[i] = 0;
+        }
+        // the checksum requires an even length
+        b[len] = 0;
+        return DataUtils.getFletcher32(b, len + (len & 1));
+    }
+
+    /**
+     * Remove the operations of the given map that were read from the log.
+     *
+     * @param mapId the map id
+     * @return the operations, or null if none
+     */
+    synchronized ArrayList<Operation> removeReplayOperations(int mapId) {
+        return replay.remove(mapId);
+    }
+
+    /**
+     * Log a put or remove operation (not committed yet).
+     *
+     * @param mapId the map id
+     * @param version the version of the change
+     * @param keyType the key type
+     * @param valueType the value type
+     * @param key the key
+     * @param value the new value, or null if the entry was removed
+     */
+    synchronized void log(int mapId, long version, DataType keyType,
+            DataType valueType, Object key, Object value) {
+        data.clear();
+        keyType.write(data, key);
+        if (value != null) {
+            valueType.write(data, value);
+        }
+        int len = data.position();
+        pendingList.add(new long[] { version, pending.position() });
+        pending.putVarInt(mapId).
+            put((byte) (value == null ? REMOVE : PUT)).
+            putVarInt(len).
+            put(data.getBuffer().array(), 0, len);
+    }
+
+    /**
+     * Check whether there are operations that are not committed.
+     *
+     * @return true if yes
+     */
+    synchronized boolean hasPendingOperations() {
+        return pendingList.size() > 0;
+    }
+
+    /**
+     * Remove the operations that were not committed and are older than the
+     * given version, because they are stored in a chunk. The operations of
+     * this and newer versions are kept.
+     *
+     * @param version the first version to keep
+     */
+    synchronized void clearPending(long version) {
+        int count = pendingList.size();
+        int i = 0;
+        while (i < count && pendingList.get(i)[0] < version) {
+            i++;
+        }
+        if (i == count) {
+            clearPending();
+            return;
+        }
+        ByteBuffer buff = pending.getBuffer();
+        byte[] old = new byte[buff.position()];
+        System.arraycopy(buff.array(), 0, old, 0, old.length);
+        ArrayList<long[]> oldList = New.arrayList(pendingList);
+        clearPending();
+        for (; i < count; i++) {
+            long[] op = oldList.get(i);
+            if (op[0] < version) {
+                continue;
+            }
+            int start = (int) op[1];
+            int end = i + 1 < count ? (int) oldList.get(i + 1)[1] : old.length;
+            pendingList.add(new long[] { op[0], pending.position() });
+            pending.put(old, start, end - start);
+        }
+    }
+
+    private void clearPending() {
+        pending.clear();
+        pendingList.clear();
+    }
+
+    /**
+     * Append the pending operations to the log, and sync the file.
+     *
+     * @param version the version
+     */
+    synchronized void commit(long version) {
+        if (pendingList.size() == 0) {
+            return;
+        }
+        ByteBuffer ops = pending.getBuffer().duplicate();
+        ops.flip();
+        ByteBuffer batch = createBatch(version, ops);
+        int len = batch.remaining();
+        FileChannel f = files[current];
+        DataUtils.writeFully(f, size, batch);
+        sync(f);
+        batchList.add(new long[] { version, size });
+        size += len;
+        clearPending();
+    }
+
+    /**
+     * Remove the batches of the given version and newer, and the operations
+     * that are not committed.
+     *
+     * @param version the oldest version to remove
+     */
+    synchronized void rollback(long version) {
+        clearPending();
+        for (ArrayList<Operation> list : replay.values()) {
+            for (int i = list.size() - 1; i >= 0; i--) {
+                if (list.get(i).version >= version) {
+                    list.remove(i);
+                }
+            }
+        }
+        int i = batchList.size();
+        while (i > 0 && batchList.get(i - 1)[0] >= version) {
+            i--;
+        }
+        if (i < batchList.size()) {
+            truncate(current, batchList.get(i)[1]);
+            while (batchList.size() > i) {
+                batchList.remove(batchList.size() - 1);
+            }
+        }
+    }
+
+    private static ByteBuffer createBatch(long version, ByteBuffer ops) {
+        int len = HEADER_LENGTH + ops.remaining();
+        byte[] b = new byte[len + 1];
+        ByteBuffer buff = ByteBuffer.wrap(b);
+        buff.putInt(len).putInt(0).putLong(version).put(ops);
+        buff.putInt(4, getCheckValue(b, len));
+        buff.position(0);
+        buff.limit(len);
+        return buff;
+    }
+
+    /**
+     * Get the version of the newest batch.
+     *
+     * @return the version, or -1 if the log is empty
+     */
+    synchronized long getLastVersion() {
+        int count = batchList.size();
+        return count == 0 ? -1 : batchList.get(count - 1)[0];
+    }
+
+    /**
+     * Get the size of the log.
+     *
+     * @return the size in bytes
+     */
+    synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Empty the log, after all committed operations were stored. The
+     * operations of maps that were not opened are kept (except for maps that
+     * no longer exist).
+     *
+     * @param store the store (to check which maps exist)
+     */
+    synchronized void reset(MVStore store) {
+        ArrayList<ByteBuffer> kept = New.arrayList();
+        for (Iterator<Entry<Integer, ArrayList<Operation>>> it =
+                replay.entrySet().iterator(); it.hasNext();) {
+            Entry<Integer, ArrayList<Operation>> e = it.next();
+            int mapId = e.getKey();
+            if (!store.isMapIdUsed(mapId)) {
+                it.remove();
+                continue;
+            }
+            // the version of each operation is kept,
+            // so there is one batch for each version and map
+            ArrayList<Operation> list = e.getValue();
+            for (int i = 0; i < list.size();) {
+                long version = list.get(i).version;
+                WriteBuffer ops = new WriteBuffer();
+                for (; i < list.size() && list.get(i).version == version; i++) {
+                    byte[] op = list.get(i).data;
+                    ops.putVarInt(mapId).
+                        put(op[0]).
+                        putVarInt(op.length - 1).
+                        put(op, 1, op.length - 1);
+                }
+                ByteBuffer buff = ops.getBuffer();
+                buff.flip();
+                kept.add(createBatch(version, buff));
+            }
+        }
+        if (kept.size() == 0) {
+            if (size > 0) {
+                truncate(current, 0);
+            }
+            batchList.clear();
+            return;
+        }
+        // sort by version, so that rollback can truncate the file
+        Collections.sort(kept, new Comparator<ByteBuffer>() {
+            @Override
+            public int compare(ByteBuffer a, ByteBuffer b) {
+                long x = a.getLong(8), y = b.getLong(8);
+                return x < y ? -1 : x > y ? 1 : 0;
+            }
+        });
+        WriteBuffer keep = new WriteBuffer();
+        batchList.clear();
+        for (ByteBuffer b : kept) {
+            batchList.add(new long[] { b.getLong(8), keep.position() });
+            keep.put(b);
+        }
+        // write the kept operations to the other file first
+        int next = 1 - current;
+        ByteBuffer buff = keep.getBuffer();
+        buff.flip();
+        int len = buff.remaining();
+        truncate(next, 0);
+        DataUtils.writeFully(files[next], 0, buff);
+        sync(files[next]);
+        truncate(current, 0);
+        current = next;
+        size = len;
+    }
+
+    private void truncate(int index, long newSize) {
+        FileChannel f = files[index];
+        try {
+            if (f.size() > newSize) {
+                f.truncate(newSize);
+                sync(f);
+            }
+        } catch (IOException e) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_WRITING_FAILED,
+                    "Could not truncate log file {0}{1}", fileName, index, e);
+        }
+        if (index == current) {
+            size = newSize;
+        }
+    }
+
+    private void sync(FileChannel f) {
+        try {
+            f.force(false);
+        } catch (IOException e) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_WRITING_FAILED,
+                    "Could not sync log file {0}", fileName, e);
+        }
+    }
+
+    /**
+     * Close the log files.
+     */
+    synchronized void close() {
+        for (int i = 0; i < 2; i++) {
+            FileChannel f = files[i];
+            files[i] = null;
+            if (f != null) {
+                try {
+                    f.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * An operation that was read from the log.
+     */
+    static class Operation {
+
+        /**
+         * The version.
+         */
+        final long version;
+
+        /**
+         * The operation type, followed by the key and the value.
+         */
+        final byte[] data;
+
+        Operation(long version, byte[] data) {
+            this.version = version;
+            this.data = data;
+        }
+
+    }
+
+}
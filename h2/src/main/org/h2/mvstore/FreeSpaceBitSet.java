@@ -60,12 +60,7 @@ public class FreeSpaceBitSet {
     public boolean isUsed(long pos, int length) {
         int start = getBlock(pos);
         int blocks = getBlockCount(length);
-        for (int i = start; i < start + blocks; i++) {
-            if (!set.get(i)) {
-                return false;
-            }
-        }
-        return true;
+        return set.nextClearBit(start) >= start + blocks;
     }
 
     /**
@@ -78,12 +73,8 @@ public class FreeSpaceBitSet {
     public boolean isFree(long pos, int length) {
         int start = getBlock(pos);
         int blocks = getBlockCount(length);
-        for (int i = start; i < start + blocks; i++) {
-            if (set.get(i)) {
-                return false;
-            }
-        }
-        return true;
+        int next = set.nextSetBit(start);
+        return next < 0 || next >= start + blocks;
     }
 
     /**
@@ -16,7 +16,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import org.h2.mvstore.type.DataType;
+import org.h2.mvstore.type.LongKeyType;
 import org.h2.mvstore.type.ObjectDataType;
 import org.h2.util.New;
 
@@ -29,6 +32,14 @@ import org.h2.util.New;
 public class MVMap<K, V> extends AbstractMap<K, V>
         implements ConcurrentMap<K, V> {
 
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<MVMap, Page> ROOT_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(MVMap.class, Page.class, "root");
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicLongFieldUpdater<MVMap> WRITE_VERSION_UPDATER =
+            AtomicLongFieldUpdater.newUpdater(MVMap.class, "currentWriteVersion");
+
     /**
      * The store.
      */
@@ -45,22 +56,45 @@ public class MVMap<K, V> extends AbstractMap<K, V>
     protected volatile long writeVersion;
 
     /**
-     * This version is set during a write operation.
+     * This version is set during a write operation. While the background
+     * compaction re-writes an entry, it is set to -2 - version.
      */
     protected volatile long currentWriteVersion = -1;
 
+    /**
+     * The thread of the background compaction, while it re-writes an entry.
+     */
+    private volatile Thread rewriteThread;
+
     private int id;
     private long createVersion;
     private final DataType keyType;
     private final DataType valueType;
+
+    /**
+     * The key type, if the pages keep the keys as long values, or null.
+     */
+    private final LongKeyType longKeyType;
     private ArrayList<Page> oldRoots = new ArrayList<Page>();
 
     private boolean closed;
     private boolean readOnly;
 
+    /**
+     * The compression algorithm for new pages, or -1 to use the default of
+     * the store.
+     */
+    private int compressionAlgorithm = -1;
+
     protected MVMap(DataType keyType, DataType valueType) {
         this.keyType = keyType;
         this.valueType = valueType;
+        if (keyType instanceof LongKeyType &&
+                ((LongKeyType) keyType).useLongKeys()) {
+            this.longKeyType = (LongKeyType) keyType;
+        } else {
+            this.longKeyType = null;
+        }
         this.root = Page.createEmpty(this,  -1);
     }
 
@@ -75,6 +109,10 @@ public class MVMap<K, V> extends AbstractMap<K, V>
         this.id = Integer.parseInt(config.get("id"));
         String x = config.get("createVersion");
         this.createVersion = x == null ? 0 : Long.parseLong(x);
+        x = config.get("compress");
+        if (x != null && compressionAlgorithm < 0) {
+            compressionAlgorithm = Integer.parseInt(x);
+        }
         this.writeVersion = store.getCurrentVersion();
     }
 
@@ -111,12 +149,30 @@ public class MVMap<K, V> extends AbstractMap<K, V>
             p = splitRootIfNeeded(p, v);
             Object result = put(p, v, key, value);
             newRoot(p);
+            store.logChange(this, v, key, value);
             return (V) result;
         } finally {
             afterWrite();
         }
     }
 
+    /**
+     * Create a bulk loader that appends entries to this map. The entries need
+     * to be added in ascending key order, and the first key needs to be larger
+     * than the last key of the map. Instead of adding the entries one by one,
+     * the loader builds the pages bottom up, so that each page is filled up to
+     * the given fill rate.
+     * <p>
+     * The map must not be modified by other means while loading.
+     *
+     * @param fillRate the target fill rate of the pages, in percent of the
+     *            page split size (10 to 100)
+     * @return the bulk loader
+     */
+    public BulkLoader<K, V> bulkLoader(int fillRate) {
+        return new BulkLoader<K, V>(this, fillRate);
+    }
+
     /**
      * Split the root page if necessary.
      *
@@ -500,6 +556,7 @@ public class MVMap<K, V> extends AbstractMap<K, V>
         try {
             root.removeAllRecursive();
             newRoot(Page.createEmpty(this, writeVersion));
+            store.logClear(this);
         } finally {
             afterWrite();
         }
@@ -536,6 +593,9 @@ public class MVMap<K, V> extends AbstractMap<K, V>
                 p = Page.createEmpty(this,  p.getVersion());
             }
             newRoot(p);
+            if (result != null) {
+                store.logChange(this, v, key, null);
+            }
             return result;
         } finally {
             afterWrite();
@@ -609,6 +669,38 @@ public class MVMap<K, V> extends AbstractMap<K, V>
         return false;
     }
 
+    /**
+     * Re-write an entry, so that its page is stored again. This is used by
+     * the background compaction, which synchronizes on the map first, so
+     * that the entry is not changed by the synchronized methods. If another
+     * thread is writing to the map, nothing is done, and an application
+     * thread that starts writing in the meantime waits until the entry is
+     * re-written.
+     *
+     * @param key the key
+     * @return false if another thread is writing to the map
+     */
+    boolean rewrite(K key) {
+        if (closed || readOnly) {
+            return true;
+        }
+        store.beforeWrite();
+        if (!WRITE_VERSION_UPDATER.compareAndSet(this, -1, -2 - writeVersion)) {
+            return false;
+        }
+        rewriteThread = Thread.currentThread();
+        try {
+            V value = get(key);
+            if (value != null) {
+                put(key, value);
+            }
+        } finally {
+            rewriteThread = null;
+            afterWrite();
+        }
+        return true;
+    }
+
     /**
      * Replace a value for an existing key.
      *
@@ -680,20 +772,52 @@ public class MVMap<K, V> extends AbstractMap<K, V>
         if (root != newRoot) {
             removeUnusedOldVersions();
             if (root.getVersion() != newRoot.getVersion()) {
-                ArrayList<Page> list = oldRoots;
-                if (list.size() > 0) {
-                    Page last = list.get(list.size() - 1);
-                    if (last.getVersion() != root.getVersion()) {
-                        list.add(root);
-                    }
-                } else {
-                    list.add(root);
-                }
+                addOldRoot(root);
             }
             root = newRoot;
         }
     }
 
+    /**
+     * Atomically replace the root page, if it was not changed in the meantime
+     * by another thread.
+     *
+     * @param expectedRoot the root page the new root is based on
+     * @param newRoot the new root page
+     * @return true if the root was replaced
+     */
+    protected boolean compareAndSetRoot(Page expectedRoot, Page newRoot) {
+        if (!ROOT_UPDATER.compareAndSet(this, expectedRoot, newRoot)) {
+            return false;
+        }
+        if (expectedRoot.getVersion() != newRoot.getVersion()) {
+            synchronized (this) {
+                removeUnusedOldVersions();
+                addOldRoot(expectedRoot);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remember an old root page, unless a root with the same version is
+     * already known. The list is kept sorted by version.
+     *
+     * @param oldRoot the old root page
+     */
+    private synchronized void addOldRoot(Page oldRoot) {
+        ArrayList<Page> list = oldRoots;
+        long version = oldRoot.getVersion();
+        int i = list.size();
+        while (i > 0 && list.get(i - 1).getVersion() > version) {
+            i--;
+        }
+        if (i > 0 && list.get(i - 1).getVersion() == version) {
+            return;
+        }
+        list.add(i, oldRoot);
+    }
+
     /**
      * Compare two keys.
      *
@@ -705,6 +829,15 @@ public class MVMap<K, V> extends AbstractMap<K, V>
         return keyType.compare(a, b);
     }
 
+    /**
+     * Get the key type if the pages of this map keep the keys as long values.
+     *
+     * @return the key type, or null
+     */
+    LongKeyType getLongKeyType() {
+        return longKeyType;
+    }
+
     /**
      * Get the key type.
      *
@@ -880,6 +1013,10 @@ public class MVMap<K, V> extends AbstractMap<K, V>
      *      or if another thread is concurrently writing
      */
     protected void beforeWrite() {
+        if (rewriteThread == Thread.currentThread()) {
+            // the write version was already set by rewrite
+            return;
+        }
         if (closed) {
             throw DataUtils.newIllegalStateException(
                     DataUtils.ERROR_CLOSED, "This map is closed");
@@ -890,26 +1027,43 @@ public class MVMap<K, V> extends AbstractMap<K, V>
         }
         checkConcurrentWrite();
         store.beforeWrite();
-        currentWriteVersion = writeVersion;
+        startWrite();
     }
 
     /**
-     * Check that no write operation is in progress.
+     * Check that no write operation of another application thread is in
+     * progress.
      */
     protected void checkConcurrentWrite() {
-        if (currentWriteVersion != -1) {
+        if (currentWriteVersion >= 0) {
             // try to detect concurrent modification
             // on a best-effort basis
             throw DataUtils.newConcurrentModificationException(getName());
         }
     }
 
+    /**
+     * Set the current write version. If the background compaction is
+     * re-writing an entry, wait until it is done.
+     */
+    protected void startWrite() {
+        long v = writeVersion;
+        while (!WRITE_VERSION_UPDATER.compareAndSet(this, -1, v)) {
+            if (currentWriteVersion >= 0) {
+                throw DataUtils.newConcurrentModificationException(getName());
+            }
+            Thread.yield();
+        }
+    }
+
     /**
      * This method is called after writing to the map (whether or not the write
      * operation was successful).
      */
     protected void afterWrite() {
-        currentWriteVersion = -1;
+        if (rewriteThread != Thread.currentThread()) {
+            currentWriteVersion = -1;
+        }
     }
 
     /**
@@ -923,7 +1077,8 @@ public class MVMap<K, V> extends AbstractMap<K, V>
             throw DataUtils.newIllegalStateException(
                     DataUtils.ERROR_INTERNAL, "Waiting for writes to a read-only map");
         }
-        while (currentWriteVersion == version) {
+        while (currentWriteVersion == version ||
+                currentWriteVersion == -2 - version) {
             Thread.yield();
         }
     }
@@ -1094,9 +1249,32 @@ public class MVMap<K, V> extends AbstractMap<K, V>
         if (type != null) {
             DataUtils.appendMap(buff, "type", type);
         }
+        if (compressionAlgorithm >= 0) {
+            DataUtils.appendMap(buff, "compress", compressionAlgorithm);
+        }
         return buff.toString();
     }
 
+    /**
+     * Get the compression algorithm to use for new pages of this map.
+     *
+     * @return the algorithm, or Compressor.NO if disabled
+     */
+    int getCompressionAlgorithm() {
+        int algorithm = compressionAlgorithm;
+        return algorithm < 0 ? store.getCompressionAlgorithm() : algorithm;
+    }
+
+    /**
+     * Set the compression algorithm for new pages of this map. This is used
+     * by the map builders.
+     *
+     * @param algorithm the algorithm, or -1 to use the default of the store
+     */
+    protected void setCompressionAlgorithm(int algorithm) {
+        this.compressionAlgorithm = algorithm;
+    }
+
     void setWriteVersion(long writeVersion) {
         this.writeVersion = writeVersion;
     }
@@ -1106,6 +1284,315 @@ public class MVMap<K, V> extends AbstractMap<K, V>
         return asString(null);
     }
 
+    /**
+     * Loads sorted entries into a map. The pages are built bottom up: the
+     * entries are added to a leaf until it is full, and each full page is added
+     * to a parent node, which is created once it is full as well. The loader
+     * keeps the last, not yet full page of each level. If the map is not empty,
+     * these pages are initialized from the rightmost path of the map.
+     * <p>
+     * When the store needs to save changes, the root of the map is replaced
+     * with a tree that contains the loaded entries, so that the pages are
+     * written as the data is loaded.
+     *
+     * @param <K> the key type
+     * @param <V> the value type
+     */
+    public static class BulkLoader<K, V> {
+
+        private final MVMap<K, V> map;
+        private final int maxMemory;
+
+        /**
+         * The entries of the current leaf.
+         */
+        private final ArrayList<Object> keys = New.arrayList();
+        private final ArrayList<Object> values = New.arrayList();
+        private int leafMemory = DataUtils.PAGE_MEMORY;
+
+        /**
+         * The children of the current node of each level, starting with the
+         * parents of the leaves.
+         */
+        private final ArrayList<Level> levels = New.arrayList();
+
+        /**
+         * The pages of the current root that are replaced when the root is
+         * updated the next time.
+         */
+        private ArrayList<Page> replaced = New.arrayList();
+
+        private Page expectedRoot;
+        private Object lastKey;
+        private boolean changed;
+
+        BulkLoader(MVMap<K, V> map, int fillRate) {
+            DataUtils.checkArgument(fillRate >= 10 && fillRate <= 100,
+                    "The fill rate {0} is not between 10 and 100", fillRate);
+            this.map = map;
+            maxMemory = map.store.getPageSplitSize() * fillRate / 100;
+            map.beforeWrite();
+            try {
+                expectedRoot = map.root;
+                if (expectedRoot.getTotalCount() > 0) {
+                    lastKey = map.lastKey();
+                    readRightmostPath(expectedRoot);
+                }
+            } finally {
+                map.afterWrite();
+            }
+        }
+
+        /**
+         * Add an entry. The key needs to be larger than all keys added so far.
+         *
+         * @param key the key (may not be null)
+         * @param value the value (may not be null)
+         */
+        public void add(K key, V value) {
+            DataUtils.checkArgument(value != null, "The value may not be null");
+            if (lastKey != null && map.compare(key, lastKey) <= 0) {
+                throw DataUtils.newIllegalArgumentException(
+                        "The key {0} is not larger than the last key {1}",
+                        key, lastKey);
+            }
+            keys.add(key);
+            values.add(value);
+            lastKey = key;
+            changed = true;
+            leafMemory += getKeyMemory(key) + map.valueType.getMemory(value);
+            if (leafMemory >= maxMemory) {
+                addLeaf();
+                MVStore store = map.store;
+                int count = store.getAutoCommitPageCount();
+                if (count > 0 && store.getUnsavedPageCount() > count) {
+                    updateRoot();
+                }
+            }
+        }
+
+        /**
+         * Add the remaining entries and replace the root of the map. The last
+         * page of each level may not be full.
+         */
+        public void finish() {
+            if (!keys.isEmpty()) {
+                addLeaf();
+            }
+            if (changed) {
+                updateRoot();
+            }
+        }
+
+        private int getKeyMemory(Object key) {
+            return map.getLongKeyType() != null ? 8 : map.keyType.getMemory(key);
+        }
+
+        private void readRightmostPath(Page root) {
+            ArrayList<Page> nodes = New.arrayList();
+            Page p = root;
+            while (!p.isLeaf()) {
+                nodes.add(p);
+                p = p.getChildPage(p.getChildPageCount() - 1);
+            }
+            // the first key of the leftmost child of a node is the key of the
+            // node in its parent
+            Object key = null;
+            for (int i = 0, size = nodes.size(); i < size; i++) {
+                Page node = nodes.get(i);
+                Level level = getLevel(size - 1 - i);
+                int last = node.getChildPageCount() - 1;
+                for (int j = 0; j < last; j++) {
+                    addToLevel(level, new Child(j == 0 ? key : node.getKey(j - 1),
+                            node.getChildPagePos(j),
+                            node.getChildPageIfLoaded(j),
+                            node.getCounts(j)));
+                }
+                if (last > 0) {
+                    key = node.getKey(last - 1);
+                }
+                replaced.add(node);
+            }
+            for (int i = 0, len = p.getKeyCount(); i < len; i++) {
+                Object k = p.getKey(i);
+                Object v = p.getValue(i);
+                keys.add(k);
+                values.add(v);
+                leafMemory += getKeyMemory(k) + map.valueType.getMemory(v);
+            }
+            replaced.add(p);
+        }
+
+        private Level getLevel(int index) {
+            while (levels.size() <= index) {
+                levels.add(new Level());
+            }
+            return levels.get(index);
+        }
+
+        private void addLeaf() {
+            int len = keys.size();
+            Page p = Page.create(map, map.writeVersion,
+                    len, keys.toArray(), values.toArray(),
+                    0, null, null, null,
+                    len, 0, 0);
+            keys.clear();
+            values.clear();
+            leafMemory = DataUtils.PAGE_MEMORY;
+            addChild(0, new Child(p.getKey(0), p));
+        }
+
+        private void addChild(int index, Child child) {
+            Level level = getLevel(index);
+            addToLevel(level, child);
+            if (level.memory >= maxMemory && level.children.size() > 1) {
+                Page p = createNode(level.children);
+                Object key = level.children.get(0).key;
+                level.clear();
+                addChild(index + 1, new Child(key, p));
+            }
+        }
+
+        private void addToLevel(Level level, Child child) {
+            // the key of the first child is not stored in the node
+            if (!level.children.isEmpty()) {
+                level.memory += getKeyMemory(child.key);
+            }
+            level.memory += DataUtils.PAGE_MEMORY_CHILD;
+            level.children.add(child);
+        }
+
+        private Page createNode(ArrayList<Child> list) {
+            int len = list.size();
+            Object[] k = new Object[len - 1];
+            long[] children = new long[len];
+            Page[] childrenPages = new Page[len];
+            long[] counts = new long[len];
+            long total = 0;
+            for (int i = 0; i < len; i++) {
+                Child c = list.get(i);
+                if (i > 0) {
+                    k[i - 1] = c.key;
+                }
+                long pos = c.page == null ? c.pos : c.page.getPos();
+                children[i] = pos;
+                // pages that were already written are read again if needed
+                childrenPages[i] = pos == 0 ? c.page : null;
+                counts[i] = c.count;
+                total += c.count;
+            }
+            return Page.create(map, map.writeVersion,
+                    len - 1, k, null,
+                    len, children, childrenPages, counts,
+                    total, 0, 0);
+        }
+
+        /**
+         * Build the root from the current pages of all levels, without
+         * changing them, so that more entries can be added later on.
+         *
+         * @param created the list of new pages
+         * @return the root page
+         */
+        private Page buildRoot(ArrayList<Page> created) {
+            Child last = null;
+            for (int i = 0, size = levels.size(); i < size; i++) {
+                ArrayList<Child> list = levels.get(i).children;
+                if (last != null) {
+                    list = New.arrayList(list);
+                    list.add(last);
+                }
+                if (list.isEmpty()) {
+                    continue;
+                }
+                if (i == size - 1 && list.size() == 1) {
+                    last = list.get(0);
+                    break;
+                }
+                Page p = createNode(list);
+                created.add(p);
+                last = new Child(list.get(0).key, p);
+            }
+            return last.page != null ? last.page : map.readPage(last.pos);
+        }
+
+        private void updateRoot() {
+            ArrayList<Page> created = New.arrayList();
+            map.beforeWrite();
+            try {
+                if (map.root != expectedRoot) {
+                    throw DataUtils.newConcurrentModificationException(
+                            map.getName());
+                }
+                Page root = buildRoot(created);
+                for (Page p : replaced) {
+                    p.removePage();
+                }
+                replaced = created;
+                map.newRoot(root);
+                expectedRoot = root;
+                map.store.logBulkLoad(map);
+            } finally {
+                map.afterWrite();
+            }
+        }
+
+        /**
+         * The children of the current node of a level.
+         */
+        private static class Level {
+
+            final ArrayList<Child> children = New.arrayList();
+            int memory = DataUtils.PAGE_MEMORY;
+
+            void clear() {
+                children.clear();
+                memory = DataUtils.PAGE_MEMORY;
+            }
+
+        }
+
+        /**
+         * A reference to a child page.
+         */
+        private static class Child {
+
+            /**
+             * The smallest key of the child page, or null for the leftmost
+             * page of the map.
+             */
+            final Object key;
+
+            /**
+             * The position, if the page was stored before.
+             */
+            final long pos;
+
+            /**
+             * The page, or null if it was not read.
+             */
+            final Page page;
+
+            /**
+             * The number of entries.
+             */
+            final long count;
+
+            Child(Object key, Page page) {
+                this(key, 0, page, page.getTotalCount());
+            }
+
+            Child(Object key, long pos, Page page, long count) {
+                this.key = key;
+                this.pos = pos;
+                this.page = page;
+                this.count = count;
+            }
+
+        }
+
+    }
+
     /**
      * A builder for maps.
      *
@@ -1134,6 +1621,7 @@ public class MVMap<K, V> extends AbstractMap<K, V>
 
         protected DataType keyType;
         protected DataType valueType;
+        protected int compressionAlgorithm = -1;
 
         /**
          * Create a new builder with the default key and value data types.
@@ -1172,6 +1660,19 @@ public class MVMap<K, V> extends AbstractMap<K, V>
             return this;
         }
 
+        /**
+         * Set the compression algorithm for new pages of this map, overriding
+         * the default of the store. The setting is persisted. Use
+         * Compressor.NO to disable compression for this map.
+         *
+         * @param algorithm the algorithm (see Compressor)
+         * @return this
+         */
+        public Builder<K, V> compressData(int algorithm) {
+            this.compressionAlgorithm = algorithm;
+            return this;
+        }
+
         @Override
         public MVMap<K, V> create() {
             if (keyType == null) {
@@ -1180,7 +1681,9 @@ public class MVMap<K, V> extends AbstractMap<K, V>
             if (valueType == null) {
                 valueType = new ObjectDataType();
             }
-            return new MVMap<K, V>(keyType, valueType);
+            MVMap<K, V> map = new MVMap<K, V>(keyType, valueType);
+            map.setCompressionAlgorithm(compressionAlgorithm);
+            return map;
         }
 
     }
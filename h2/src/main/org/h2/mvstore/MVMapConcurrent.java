@@ -15,48 +15,46 @@ import org.h2.mvstore.type.ObjectDataType;
  * <p>
  * Write operations first read the relevant area from disk to memory
  * concurrently, and only then modify the data. The in-memory part of write
- * operations is synchronized. For scalable concurrent in-memory write
- * operations, the map should be split into multiple smaller sub-maps that are
- * then synchronized independently.
+ * operations is lock-free: the changed pages are copied, and the new root is
+ * set using compare-and-set. If another thread changed the root in the
+ * meantime, the operation is retried. Pages of the old root are only marked as
+ * deleted once the new root is set.
  *
  * @param <K> the key class
  * @param <V> the value class
  */
 public class MVMapConcurrent<K, V> extends MVMap<K, V> {
 
+    /**
+     * The marker for "update in any case".
+     */
+    private static final Object ANY = new Object();
+
+    /**
+     * The marker for "update only if the key exists".
+     */
+    private static final Object EXISTING = new Object();
+
     public MVMapConcurrent(DataType keyType, DataType valueType) {
         super(keyType, valueType);
     }
 
     @Override
     protected Page copyOnWrite(Page p, long writeVersion) {
-        return p.copy(writeVersion);
+        // the old page is only marked as deleted
+        // when the new root was set successfully
+        return p.copyKeepOld(writeVersion);
     }
 
     @Override
     protected void checkConcurrentWrite() {
-        // ignore (writes are synchronized)
+        // ignore (concurrent writes are supported)
     }
 
     @Override
-    @SuppressWarnings("unchecked")
-    public V put(K key, V value) {
-        beforeWrite();
-        try {
-            // even if the result is the same, we still update the value
-            // (otherwise compact doesn't work)
-            get(key);
-            long v = writeVersion;
-            synchronized (this) {
-                Page p = copyOnWrite(root, v);
-                p = splitRootIfNeeded(p, v);
-                V result = (V) put(p, v, key, value);
-                newRoot(p);
-                return result;
-            }
-        } finally {
-            afterWrite();
-        }
+    protected void startWrite() {
+        // concurrent writes are supported
+        currentWriteVersion = writeVersion;
     }
 
     @Override
@@ -64,31 +62,143 @@ public class MVMapConcurrent<K, V> extends MVMap<K, V> {
         // no need to wait
     }
 
+    @Override
+    boolean rewrite(K key) {
+        // concurrent writes are supported, but changes
+        // of other threads must not be overwritten
+        V value = get(key);
+        if (value != null) {
+            replace(key, value, value);
+        }
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V put(K key, V value) {
+        DataUtils.checkArgument(value != null, "The value may not be null");
+        return (V) update(key, value, ANY);
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public V remove(Object key) {
+        return (V) update(key, null, ANY);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V putIfAbsent(K key, V value) {
+        DataUtils.checkArgument(value != null, "The value may not be null");
+        return (V) update(key, value, null);
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        if (value == null) {
+            return false;
+        }
+        Object old = update(key, null, value);
+        return areValuesEqual(old, value);
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        DataUtils.checkArgument(newValue != null, "The value may not be null");
+        if (oldValue == null) {
+            return false;
+        }
+        Object old = update(key, newValue, oldValue);
+        return areValuesEqual(old, oldValue);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V replace(K key, V value) {
+        DataUtils.checkArgument(value != null, "The value may not be null");
+        return (V) update(key, value, EXISTING);
+    }
+
+    /**
+     * Add, replace or remove an entry if the current value matches the
+     * expected value. Each attempt works on a snapshot of the root page, and
+     * is repeated if the root was changed concurrently.
+     *
+     * @param key the key
+     * @param value the new value, or null to remove the entry
+     * @param expected the expected current value, null if the entry must not
+     *            exist, ANY to update in any case, or EXISTING to update only
+     *            if the entry exists
+     * @return the value before the operation (whether or not it was changed)
+     */
+    private Object update(Object key, Object value, Object expected) {
         beforeWrite();
         try {
-            V result = get(key);
-            if (result == null) {
-                return null;
-            }
-            long v = writeVersion;
-            synchronized (this) {
-                Page p = copyOnWrite(root, v);
-                result = (V) remove(p, v, key);
-                if (!p.isLeaf() && p.getTotalCount() == 0) {
-                    p.removePage();
-                    p = Page.createEmpty(this,  p.getVersion());
+            // read the affected pages from disk outside of the loop
+            get(key);
+            while (true) {
+                long v = writeVersion;
+                Page r = root;
+                Object old = binarySearch(r, key);
+                if (expected == EXISTING) {
+                    if (old == null) {
+                        return null;
+                    }
+                } else if (expected != ANY && !areValuesEqual(old, expected)) {
+                    return old;
+                }
+                Page p;
+                if (value == null) {
+                    if (old == null) {
+                        // nothing to remove
+                        return null;
+                    }
+                    p = copyOnWrite(r, v);
+                    remove(p, v, key);
+                    if (!p.isLeaf() && p.getTotalCount() == 0) {
+                        p.removePage();
+                        p = Page.createEmpty(this,  p.getVersion());
+                    }
+                } else {
+                    // even if the result is the same, we still update the
+                    // value (otherwise compact doesn't work)
+                    p = copyOnWrite(r, v);
+                    p = splitRootIfNeeded(p, v);
+                    put(p, v, key, value);
+                }
+                if (compareAndSetRoot(r, p)) {
+                    removePages(r, key);
+                    return old;
                 }
-                newRoot(p);
             }
-            return result;
         } finally {
             afterWrite();
         }
     }
 
+    /**
+     * Mark the pages on the path to the given key as deleted. Those are the
+     * pages that were replaced by an update operation.
+     *
+     * @param p the old root page
+     * @param key the key
+     */
+    private static void removePages(Page p, Object key) {
+        while (true) {
+            p.removePage();
+            if (p.isLeaf()) {
+                return;
+            }
+            int index = p.binarySearch(key);
+            if (index < 0) {
+                index = -index - 1;
+            } else {
+                index++;
+            }
+            p = p.getChildPage(index);
+        }
+    }
+
     /**
      * A builder for this class.
      *
@@ -99,6 +209,7 @@ public class MVMapConcurrent<K, V> extends MVMap<K, V> {
 
         protected DataType keyType;
         protected DataType valueType;
+        protected int compressionAlgorithm = -1;
 
         /**
          * Create a new builder with the default key and value data types.
@@ -129,6 +240,19 @@ public class MVMapConcurrent<K, V> extends MVMap<K, V> {
             return this;
         }
 
+        /**
+         * Set the compression algorithm for new pages of this map, overriding
+         * the default of the store. The setting is persisted. Use
+         * Compressor.NO to disable compression for this map.
+         *
+         * @param algorithm the algorithm (see Compressor)
+         * @return this
+         */
+        public Builder<K, V> compressData(int algorithm) {
+            this.compressionAlgorithm = algorithm;
+            return this;
+        }
+
         @Override
         public MVMapConcurrent<K, V> create() {
             if (keyType == null) {
@@ -137,7 +261,10 @@ public class MVMapConcurrent<K, V> extends MVMap<K, V> {
             if (valueType == null) {
                 valueType = new ObjectDataType();
             }
-            return new MVMapConcurrent<K, V>(keyType, valueType);
+            MVMapConcurrent<K, V> map =
+                    new MVMapConcurrent<K, V>(keyType, valueType);
+            map.setCompressionAlgorithm(compressionAlgorithm);
+            return map;
         }
 
     }
@@ -17,12 +17,24 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
-
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.h2.compress.CompressDeflate;
+import org.h2.compress.CompressLZ4;
 import org.h2.compress.CompressLZF;
 import org.h2.compress.Compressor;
 import org.h2.mvstore.cache.CacheLongKeyLIRS;
+import org.h2.mvstore.cache.CacheLongKeyOffHeap;
 import org.h2.mvstore.type.StringDataType;
+import org.h2.store.fs.FilePathEncrypt;
 import org.h2.util.MathUtils;
 import org.h2.util.New;
 
@@ -59,10 +71,9 @@ TransactionStore:
 MVStore:
 - automated 'kill process' and 'power failure' test
 - update checkstyle
-- feature to auto-compact from time to time and on close
+- auto-compact on close
 - test and possibly improve compact operation (for large dbs)
 - possibly split chunk metadata into immutable and mutable
-- compact: avoid processing pages using a counting bloom filter
 - defragment (re-creating maps, specially those with small pages)
 - chunk header: store changed chunk data as row; maybe after the root
 - chunk checksum (header, last page, 2 bytes per page?)
@@ -78,13 +89,9 @@ MVStore:
     real-time clock (Raspberry Pi) and if there are few writes per startup
 - SSD-friendly write (always in blocks of 4 MB / 1 second?)
 - close the file on out of memory or disk write error (out of disk space or so)
-- implement a sharded map (in one store, multiple stores)
-    to support concurrent updates and writes, and very large maps
-- to save space when persisting very small transactions,
-    use a transaction log where only the deltas are stored
+- sharded map in multiple stores
 - serialization for lists, sets, sets, sorted sets, maps, sorted maps
 - maybe rename 'rollback' to 'revert' to distinguish from transactions
-- support other compression algorithms (deflate, LZ4,...)
 - support opening (existing) maps by id
 - more consistent null handling (keys/values sometimes may be null)
 - autocommit (to avoid having to call commit,
@@ -95,8 +102,6 @@ MVStore:
 - rename "store" to "save", as "store" is used in "storeVersion"
 - MVStoreTool.dump should dump the data if possible;
     possibly using a callback for serialization
-- optional pluggable checksum mechanism (per page), which
-    requires that everything is a page (including headers)
 - rename setStoreVersion to setDataVersion or similar
 - to save space for small chunks, combine the last partial
     block with the header
@@ -104,9 +109,6 @@ MVStore:
 - simple rollback method (rollback to last committed version)
 - MVMap to implement SortedMap, then NavigableMap
 - Test with OSGi
-- storage that splits database into multiple files,
-    to speed up compact and allow using trim
-    (by truncating / deleting empty files)
 - add new feature to the file system API to avoid copying data
     (reads that returns a ByteBuffer instead of writing into one)
     for memory mapped files and off-heap storage
@@ -148,14 +150,50 @@ public class MVStore {
      */
     static final int BLOCK_SIZE = 4 * 1024;
 
-    private static final int FORMAT_WRITE = 1;
-    private static final int FORMAT_READ = 1;
+    private static final int FORMAT_WRITE = 2;
+    private static final int FORMAT_READ = 2;
+
+    /**
+     * The format of new stores. The format is only changed to FORMAT_WRITE
+     * once a page is written that older versions can not read (see
+     * upgradeFormat).
+     */
+    private static final int FORMAT_INITIAL = 1;
+
+    /**
+     * The maximum number of chunks that are queued for writing. If more
+     * chunks are pending, storing waits until the writer caught up.
+     */
+    private static final int MAX_PENDING_WRITES = 4;
 
     /**
      * The background thread, if any.
      */
     volatile BackgroundWriterThread backgroundWriterThread;
 
+    /**
+     * The thread that writes chunks to the file, if asynchronous writes are
+     * enabled. Chunks are written in the order they were stored.
+     */
+    private ExecutorService chunkWriter;
+
+    /**
+     * The data of the chunks that are not yet completely written. Key: the
+     * chunk id, value: the chunk data (starting with the chunk header).
+     */
+    private final ConcurrentHashMap<Integer, ByteBuffer> pendingChunks =
+            new ConcurrentHashMap<Integer, ByteBuffer>();
+
+    /**
+     * The completion of the last chunk that was queued for writing.
+     */
+    private volatile Future<Long> lastWrite;
+
+    /**
+     * The exception if writing a chunk asynchronously failed.
+     */
+    private volatile IllegalStateException writeFailure;
+
     private volatile boolean reuseSpace = true;
 
     private boolean closed;
@@ -173,6 +211,12 @@ public class MVStore {
      */
     private CacheLongKeyLIRS<Page> cache;
 
+    /**
+     * The second level page cache, which contains the serialized pages in the
+     * off-heap area of the main memory, or null if disabled (default).
+     */
+    private CacheLongKeyOffHeap offHeapCache;
+
     private int lastChunkId;
 
     /**
@@ -205,12 +249,28 @@ public class MVStore {
     private int versionsToKeep = 5;
 
     /**
-     * Whether to compress new pages. Even if disabled, the store may contain
-     * (old) compressed pages.
+     * The default compression algorithm for new pages (Compressor.NO if
+     * disabled). Even if disabled, the store may contain (old) compressed
+     * pages.
+     */
+    private final int compressionAlgorithm;
+
+    /**
+     * The compressors, indexed by algorithm (created on demand).
+     */
+    private final Compressor[] compressors = new Compressor[Compressor.LZ4 + 1];
+
+    /**
+     * Whether a checksum is written for new pages, and verified when reading
+     * a page that has a checksum.
      */
-    private final boolean compress;
+    private final boolean pageChecksum;
 
-    private final Compressor compressor = new CompressLZF();
+    /**
+     * Whether the store header contains the current format (see
+     * upgradeFormat).
+     */
+    private boolean formatUpgraded;
 
     private final UncaughtExceptionHandler backgroundExceptionHandler;
 
@@ -257,6 +317,54 @@ public class MVStore {
      */
     private int autoCommitDelay;
 
+    /**
+     * The target fill rate of the chunks (in percent) for the background
+     * compaction, or 0 if background compaction is disabled.
+     */
+    private volatile int autoCompactFillRate;
+
+    /**
+     * The maximum number of bytes per second the background compaction may
+     * read and write, or 0 for no limit.
+     */
+    private volatile long autoCompactIoLimit;
+
+    /**
+     * The I/O budget of the background compaction, in bytes.
+     */
+    private long autoCompactBudget;
+
+    private long autoCompactLastTime;
+
+    private volatile long autoCompactCount;
+
+    private volatile long autoCompactChunkCount;
+
+    private volatile long autoCompactBytes;
+
+    /**
+     * The log of committed changes that are not stored yet, or null if
+     * changes are always stored when committing.
+     */
+    private DeltaLog deltaLog;
+
+    /**
+     * The maximum size of the delta log, in bytes. If the log is larger, the
+     * changes are stored when committing.
+     */
+    private long deltaLogMaxSize;
+
+    /**
+     * Whether a change was made that can not be logged, so that the changes
+     * need to be stored when committing.
+     */
+    private volatile boolean deltaLogStoreNeeded;
+
+    /**
+     * The map whose changes are currently replayed from the delta log.
+     */
+    private MVMap<?, ?> deltaLogReplayMap;
+
     /**
      * Create and open the store.
      *
@@ -266,8 +374,11 @@ public class MVStore {
      * @throws IllegalArgumentException if the directory does not exist
      */
     MVStore(HashMap<String, Object> config) {
-        this.compress = config.containsKey("compress");
-        Object o = config.get("pageSplitSize");
+        Object o = config.get("compress");
+        compressionAlgorithm = o == null ? Compressor.NO :
+                Integer.parseInt(o.toString());
+        pageChecksum = config.containsKey("pageChecksum");
+        o = config.get("pageSplitSize");
         pageSplitSize = o == null ? 6 * 1024 : (Integer) o;
         o = config.get("backgroundExceptionHandler");
         this.backgroundExceptionHandler = (UncaughtExceptionHandler) o;
@@ -298,12 +409,23 @@ public class MVStore {
             cache = new CacheLongKeyLIRS<Page>(maxMemoryBytes, averageMemory,
                     segmentCount, stackMoveDistance);
         }
+        o = config.get("offHeapCacheSize");
+        mb = o == null ? 0 : (Integer) o;
+        if (mb > 0) {
+            offHeapCache = new CacheLongKeyOffHeap((long) mb * 1024 * 1024,
+                    pageSplitSize / 2);
+        }
         o = config.get("autoCommitBufferSize");
         mb = o == null ? 4 : (Integer) o;
         int autoCommitBufferSize = mb * 1024 * 1024;
         int div = pageSplitSize;
         autoCommitPageCount = autoCommitBufferSize / (div == 0 ? 1 : div);
         char[] encryptionKey = (char[]) config.get("encryptionKey");
+        byte[] deltaLogKey = null;
+        if (encryptionKey != null && config.containsKey("deltaLog")) {
+            // the log contains the changed entries, so it is encrypted as well
+            deltaLogKey = FilePathEncrypt.getPasswordBytes(encryptionKey);
+        }
         try {
             fileStore.open(fileName, readOnly, encryptionKey);
             if (fileStore.size() == 0) {
@@ -312,7 +434,7 @@ public class MVStore {
                 lastCommitTime = creationTime;
                 storeHeader.put("H", "3");
                 storeHeader.put("blockSize", "" + BLOCK_SIZE);
-                storeHeader.put("format", "" + FORMAT_WRITE);
+                storeHeader.put("format", "" + FORMAT_INITIAL);
                 storeHeader.put("creationTime", "" + creationTime);
                 writeStoreHeader();
             } else {
@@ -350,6 +472,50 @@ public class MVStore {
         }
         lastCommitTime = getTime();
 
+        if (config.containsKey("deltaLog")) {
+            if (fileName == null) {
+                closeImmediately();
+                throw DataUtils.newIllegalArgumentException(
+                        "The delta log requires a file name");
+            }
+            deltaLogMaxSize = Math.max(1024 * 1024, autoCommitBufferSize);
+            deltaLog = new DeltaLog(fileName, fileStore.isReadOnly(), deltaLogKey);
+            try {
+                deltaLog.open();
+            } catch (IllegalStateException e) {
+                deltaLog = null;
+                closeImmediately();
+                throw e;
+            }
+            // the versions of the logged changes are not re-used,
+            // so that the next chunk is newer than all of them
+            long last = deltaLog.getLastVersion();
+            if (last >= currentVersion) {
+                currentVersion = last + 1;
+                setWriteVersion(currentVersion);
+            }
+        }
+
+        if (config.containsKey("asyncWrite") && !fileStore.isReadOnly()) {
+            final String threadName = "MVStore chunk writer " +
+                    fileStore.toString();
+            chunkWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, threadName);
+                    t.setDaemon(true);
+                    return t;
+                }
+
+            });
+        }
+
+        o = config.get("autoCompactFillRate");
+        autoCompactFillRate = o == null ? 0 : (Integer) o;
+        o = config.get("autoCompactIoLimit");
+        autoCompactIoLimit = o == null ? 0 : (Long) o;
+
         // setAutoCommitDelay starts the thread, but only if
         // the parameter is different from the old value
         o = config.get("autoCommitDelay");
@@ -449,9 +615,108 @@ public class MVStore {
         }
         map.setRootPos(root, -1);
         maps.put(id, map);
+        if (deltaLog != null) {
+            replayDeltaLog(map);
+        }
         return map;
     }
 
+    /**
+     * Apply the committed changes of a map that were read from the delta log.
+     *
+     * @param map the map
+     */
+    private void replayDeltaLog(MVMap<?, ?> map) {
+        ArrayList<DeltaLog.Operation> ops =
+                deltaLog.removeReplayOperations(map.getId());
+        if (ops == null) {
+            return;
+        }
+        // changes of older versions are already stored
+        long minVersion = -1;
+        long rootPos = map.getRoot().getPos();
+        if (rootPos != 0) {
+            minVersion = getChunk(rootPos).version;
+        }
+        @SuppressWarnings("unchecked")
+        MVMap<Object, Object> m = (MVMap<Object, Object>) map;
+        // the changes are already in the log
+        deltaLogReplayMap = map;
+        try {
+            for (DeltaLog.Operation op : ops) {
+                if (op.version < minVersion) {
+                    continue;
+                }
+                byte[] data = op.data;
+                ByteBuffer buff = ByteBuffer.wrap(data, 1, data.length - 1);
+                Object key = m.getKeyType().read(buff);
+                if (data[0] == DeltaLog.PUT) {
+                    m.put(key, m.getValueType().read(buff));
+                } else {
+                    m.remove(key);
+                }
+            }
+        } finally {
+            deltaLogReplayMap = null;
+        }
+    }
+
+    /**
+     * Add a put or remove operation to the delta log, if the log is used.
+     * Changes of maps of other types than MVMap can not be logged; if such a
+     * map is changed, the changes are stored when committing.
+     *
+     * @param map the map
+     * @param version the version of the change
+     * @param key the key
+     * @param value the new value, or null if the entry was removed
+     */
+    void logChange(MVMap<?, ?> map, long version, Object key, Object value) {
+        DeltaLog log = deltaLog;
+        if (log == null || map == deltaLogReplayMap) {
+            return;
+        }
+        if (map.getClass() != MVMap.class) {
+            deltaLogStoreNeeded = true;
+            return;
+        }
+        log.log(map.getId(), version, map.getKeyType(), map.getValueType(), key, value);
+    }
+
+    /**
+     * Called when a map was cleared. Clearing a map is not logged, so the
+     * changes are stored when committing.
+     *
+     * @param map the map
+     */
+    void logClear(MVMap<?, ?> map) {
+        if (deltaLog != null) {
+            deltaLogStoreNeeded = true;
+        }
+    }
+
+    /**
+     * Called when entries were added to a map by a bulk loader. The entries
+     * are not logged, so the changes are stored when committing.
+     *
+     * @param map the map
+     */
+    void logBulkLoad(MVMap<?, ?> map) {
+        if (deltaLog != null) {
+            deltaLogStoreNeeded = true;
+        }
+    }
+
+    /**
+     * Check whether a map with this id exists.
+     *
+     * @param mapId the map id
+     * @return true if yes
+     */
+    synchronized boolean isMapIdUsed(int mapId) {
+        return meta.containsKey("map." + mapId);
+    }
+
     /**
      * Get the metadata map. This data is for informational purposes only. The
      * data is subject to change in future versions.
@@ -556,7 +821,7 @@ public class MVStore {
         for (Chunk c : chunks.values()) {
             if (c.pageCountLive == 0) {
                 // remove this chunk in the next save operation
-                registerFreePage(currentVersion, c.id, 0, 0);
+                registerFreePage(currentVersion, c.id, 0, 0, 0);
             }
             int len = MathUtils.roundUpInt(c.length, BLOCK_SIZE) + BLOCK_SIZE;
             fileStore.markUsed(c.start, len);
@@ -639,13 +904,17 @@ public class MVStore {
     }
 
     private void writeStoreHeader() {
+        fileStore.writeFully(0, getStoreHeaderBuffer());
+    }
+
+    private ByteBuffer getStoreHeaderBuffer() {
         byte[] bytes = getStoreHeaderBytes();
         ByteBuffer header = ByteBuffer.allocate(2 * BLOCK_SIZE);
         header.put(bytes);
         header.position(BLOCK_SIZE);
         header.put(bytes);
         header.rewind();
-        fileStore.writeFully(0, header);
+        return header;
     }
 
     /**
@@ -691,12 +960,30 @@ public class MVStore {
             return;
         }
         synchronized (this) {
+            if (chunkWriter != null) {
+                try {
+                    if (shrinkIfPossible) {
+                        waitForPendingWrites();
+                    }
+                } finally {
+                    chunkWriter.shutdown();
+                    try {
+                        chunkWriter.awaitTermination(Long.MAX_VALUE,
+                                TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                    chunkWriter = null;
+                    pendingChunks.clear();
+                }
+            }
             if (shrinkIfPossible) {
                 shrinkFileIfPossible(0);
             }
             // release memory early - this is important when called
             // because of out of memory
             cache = null;
+            offHeapCache = null;
             for (MVMap<?, ?> m : New.arrayList(maps.values())) {
                 m.close();
             }
@@ -704,6 +991,9 @@ public class MVStore {
             chunks.clear();
             maps.clear();
             try {
+                if (deltaLog != null) {
+                    deltaLog.close();
+                }
                 fileStore.close();
             } finally {
                 fileStore = null;
@@ -761,18 +1051,91 @@ public class MVStore {
      * setting), as in this case it is automatically called from time to time or
      * when enough changes have accumulated. However, it may still be called to
      * flush all changes to disk.
+     * <p>
+     * If asynchronous writes are enabled, this method waits until the changes
+     * are written.
      *
      * @return the new version
      */
     public long commit() {
         if (fileStore != null) {
-            return commitAndSave();
+            if (deltaLog != null) {
+                long v = commitToDeltaLog();
+                if (v >= 0) {
+                    return v;
+                }
+            }
+            long v = commitAndSave();
+            if (chunkWriter != null) {
+                waitForPendingWrites();
+            }
+            return v;
+        }
+        long v = ++currentVersion;
+        setWriteVersion(v);
+        return v;
+    }
+
+    /**
+     * Commit the changes by appending them to the delta log, if possible.
+     *
+     * @return the new version, or -1 if the changes need to be stored
+     */
+    private synchronized long commitToDeltaLog() {
+        if (closed || fileStore.isReadOnly() || currentStoreVersion >= 0) {
+            return -1;
+        }
+        if (metaChanged || deltaLogStoreNeeded ||
+                deltaLog.size() > deltaLogMaxSize) {
+            return -1;
+        }
+        for (MVMap<?, ?> m : maps.values()) {
+            if (m.getClass() != MVMap.class && !m.isClosed()) {
+                long v = m.getVersion();
+                if (v >= 0 && v > lastStoredVersion) {
+                    // a change that was not logged
+                    return -1;
+                }
+            }
+        }
+        if (!deltaLog.hasPendingOperations()) {
+            return currentVersion;
         }
+        checkWriteFailure();
+        deltaLog.commit(currentVersion);
         long v = ++currentVersion;
         setWriteVersion(v);
         return v;
     }
 
+    /**
+     * Commit the changes, without waiting until they are written. If
+     * asynchronous writes are enabled, the chunk is written by a separate
+     * thread, and modifications can continue in the new version in the
+     * meantime. Otherwise, this is the same as calling commit.
+     *
+     * @return the future that completes with the new version once the
+     *         changes are written
+     */
+    public Future<Long> commitAsync() {
+        final long v = fileStore == null ? commit() : commitAndSave();
+        Future<Long> f = lastWrite;
+        if (chunkWriter == null || f == null || f.isDone()) {
+            checkWriteFailure();
+            FutureTask<Long> done = new FutureTask<Long>(new Callable<Long>() {
+
+                @Override
+                public Long call() {
+                    return v;
+                }
+
+            });
+            done.run();
+            return done;
+        }
+        return f;
+    }
+
     /**
      * Commit all changes and persist them to disk. This method does nothing if
      * there are no unsaved changes, otherwise it increments the current version
@@ -802,10 +1165,15 @@ public class MVStore {
             throw DataUtils.newIllegalStateException(
                     DataUtils.ERROR_WRITING_FAILED, "This store is read-only");
         }
+        checkWriteFailure();
         try {
             currentStoreVersion = currentVersion;
             currentStoreThread = Thread.currentThread();
-            return storeNow();
+            long version = storeNow();
+            if (deltaLog != null) {
+                resetDeltaLog();
+            }
+            return version;
         } finally {
             // in any case reset the current store version,
             // to allow closing the store
@@ -814,11 +1182,28 @@ public class MVStore {
         }
     }
 
+    /**
+     * Empty the delta log, after all changes were stored. Before that, the
+     * store is synced, so that the stored changes are not lost.
+     */
+    private void resetDeltaLog() {
+        deltaLogStoreNeeded = false;
+        if (deltaLog.size() > 0) {
+            sync();
+            deltaLog.reset(this);
+        }
+    }
+
     private long storeNow() {
         int currentUnsavedPageCount = unsavedPageCount;
         long storeVersion = currentStoreVersion;
         long version = ++currentVersion;
         setWriteVersion(version);
+        if (deltaLog != null) {
+            // the changes of the old versions are stored as well, but
+            // changes of the new version that are logged concurrently are not
+            deltaLog.clearPending(version);
+        }
         long time = getTime();
         lastCommitTime = time;
         retainChunk = null;
@@ -888,6 +1273,7 @@ public class MVStore {
         // the correct value is written in the chunk header
         Page metaRoot = meta.getRoot();
         metaRoot.writeUnsavedRecursive(c, buff);
+        c.initLivePages();
 
         int chunkLength = buff.position();
 
@@ -927,14 +1313,27 @@ public class MVStore {
         buff.put(new byte[BLOCK_SIZE - header.length]);
 
         buff.position(0);
-        fileStore.writeFully(filePos, buff.getBuffer());
-
-        releaseWriteBuffer(buff);
-
-        // overwrite the header if required
-        if (!storeAtEndOfFile) {
-            writeStoreHeader();
-            shrinkFileIfPossible(1);
+        if (chunkWriter != null) {
+            // overwrite the header if required, and shrink the file after
+            // the chunk was written
+            ByteBuffer storeHeader = null;
+            long shrinkTo = -1;
+            if (!storeAtEndOfFile) {
+                storeHeader = getStoreHeaderBuffer();
+                shrinkTo = getShrinkPosition(1);
+            }
+            // the buffer is not re-used, as it is read until the chunk is
+            // written
+            writeChunkAsync(c.id, version, filePos, buff.getBuffer(),
+                    storeHeader, shrinkTo);
+        } else {
+            fileStore.writeFully(filePos, buff.getBuffer());
+            releaseWriteBuffer(buff);
+            // overwrite the header if required
+            if (!storeAtEndOfFile) {
+                writeStoreHeader();
+                shrinkFileIfPossible(1);
+            }
         }
 
         for (MVMap<?, ?> m : changed) {
@@ -956,6 +1355,101 @@ public class MVStore {
         return version;
     }
 
+    /**
+     * Queue a chunk for writing. Until the chunk is written, pages of this
+     * chunk are read from the buffer.
+     *
+     * @param chunkId the chunk id
+     * @param version the version of the chunk
+     * @param filePos the position in the file
+     * @param data the chunk data
+     * @param header the store header to write afterwards, or null
+     * @param shrinkTo the new file size after writing, or -1
+     */
+    private void writeChunkAsync(final int chunkId, final long version,
+            final long filePos, final ByteBuffer data, final ByteBuffer header,
+            final long shrinkTo) {
+        if (pendingChunks.size() >= MAX_PENDING_WRITES) {
+            waitForPendingWrites();
+        }
+        pendingChunks.put(chunkId, data);
+        final FileStore fs = fileStore;
+        lastWrite = chunkWriter.submit(new Callable<Long>() {
+
+            @Override
+            public Long call() {
+                try {
+                    if (writeFailure == null) {
+                        fs.writeFully(filePos, data.duplicate());
+                        if (header != null) {
+                            fs.writeFully(0, header);
+                        }
+                        if (shrinkTo >= 0 && shrinkTo < fs.size()) {
+                            fs.truncate(shrinkTo);
+                        }
+                    }
+                } catch (IllegalStateException e) {
+                    writeFailure = e;
+                    if (backgroundExceptionHandler != null) {
+                        backgroundExceptionHandler.uncaughtException(null, e);
+                    }
+                    throw e;
+                } finally {
+                    pendingChunks.remove(chunkId);
+                }
+                return version;
+            }
+
+        });
+    }
+
+    /**
+     * Wait until all chunks that are queued for writing are written.
+     *
+     * @throws IllegalStateException if writing failed
+     */
+    private void waitForPendingWrites() {
+        Future<Long> f = lastWrite;
+        if (f != null) {
+            waitFor(f);
+        }
+        checkWriteFailure();
+    }
+
+    private static long waitFor(Future<Long> f) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return f.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof IllegalStateException) {
+                throw (IllegalStateException) t;
+            }
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_WRITING_FAILED,
+                    "Writing chunk failed", t);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void checkWriteFailure() {
+        IllegalStateException e = writeFailure;
+        if (e != null) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_WRITING_FAILED,
+                    "Writing a chunk failed", e);
+        }
+    }
+
     /**
      * Get a buffer for writing. This caller must synchronize on the store
      * before calling the method and until after using the buffer.
@@ -1030,6 +1524,7 @@ public class MVStore {
                     // are not concurrently modified
                     c.maxLengthLive += f.maxLengthLive;
                     c.pageCountLive += f.pageCountLive;
+                    c.removeLivePages(f);
                     if (c.pageCountLive < 0) {
                         throw DataUtils.newIllegalStateException(
                                 DataUtils.ERROR_INTERNAL,
@@ -1057,7 +1552,7 @@ public class MVStore {
                         meta.remove("chunk." + c.id);
                     } else {
                         // remove this chunk in the next save operation
-                        registerFreePage(storeVersion + 1, c.id, 0, 0);
+                        registerFreePage(storeVersion + 1, c.id, 0, 0, 0);
                     }
                 } else {
                     meta.put("chunk." + c.id, c.asString());
@@ -1077,19 +1572,33 @@ public class MVStore {
      * @param minPercent the minimum percentage to save
      */
     private void shrinkFileIfPossible(int minPercent) {
+        long end = getShrinkPosition(minPercent);
+        if (end >= 0) {
+            fileStore.truncate(end);
+        }
+    }
+
+    /**
+     * Get the new file size if the file can be shrunk by at least the given
+     * percentage.
+     *
+     * @param minPercent the minimum percentage to save
+     * @return the new file size, or -1 if the file should not be shrunk
+     */
+    private long getShrinkPosition(int minPercent) {
         long end = getEndPosition();
         long fileSize = fileStore.size();
         if (end >= fileSize) {
-            return;
+            return -1;
         }
         if (minPercent > 0 && fileSize - end < BLOCK_SIZE) {
-            return;
+            return -1;
         }
         int savedPercent = (int) (100 - (end * 100 / fileSize));
         if (savedPercent < minPercent) {
-            return;
+            return -1;
         }
-        fileStore.truncate(end);
+        return end;
     }
 
     /**
@@ -1129,6 +1638,7 @@ public class MVStore {
     }
 
     private Chunk readChunkHeader(long start) {
+        waitForPendingWrites();
         ByteBuffer buff = fileStore.readFully(start, 40);
         return Chunk.fromHeader(buff, start);
     }
@@ -1143,6 +1653,7 @@ public class MVStore {
      */
     public synchronized boolean compactMoveChunks() {
         checkOpen();
+        waitForPendingWrites();
         if (chunks.size() == 0) {
             // nothing to do
             return false;
@@ -1255,6 +1766,7 @@ public class MVStore {
      * implementation calls FileChannel.force(true).
      */
     public void sync() {
+        waitForPendingWrites();
         fileStore.sync();
     }
 
@@ -1344,14 +1856,25 @@ public class MVStore {
 
         // iterate over all the pages in the old pages
         for (Chunk c : old) {
-            copyLive(c, old);
+            copyLive(c, old, null);
         }
 
         commitAndSave();
         return true;
     }
 
-    private void copyLive(Chunk chunk, ArrayList<Chunk> old) {
+    /**
+     * Re-write the live pages of a chunk. Entries of the metadata map are
+     * always re-written immediately.
+     *
+     * @param chunk the chunk to read
+     * @param old the chunks to free up
+     * @param live if set, the keys of the live entries are added to this map
+     *            instead of re-writing the entries
+     */
+    private void copyLive(Chunk chunk, ArrayList<Chunk> old,
+            HashMap<MVMap<Object, Object>, ArrayList<Object>> live) {
+        waitForPendingWrites();
         ByteBuffer buff = fileStore.readFully(chunk.start, chunk.length);
         Chunk.fromHeader(buff, chunk.start);
         int chunkLength = chunk.length;
@@ -1370,6 +1893,15 @@ public class MVStore {
                 buff.position(start + pageLength);
                 continue;
             }
+            DataUtils.readVarInt(buff);
+            int type = buff.get() & 1;
+            long pos = DataUtils.getPagePos(chunk.id, start, pageLength, type);
+            if (!chunk.isLivePage(pos)) {
+                // the page was replaced, so none of the keys
+                // need to be looked up
+                buff.position(start + pageLength);
+                continue;
+            }
             buff.position(start);
             Page page = new Page(map, 0);
             page.read(buff, chunk.id, buff.position(), chunk.length);
@@ -1384,7 +1916,16 @@ public class MVStore {
                     // TODO move old data if there is an uncommitted change?
                 } else {
                     Chunk c = getChunk(p.getPos());
-                    if (old.contains(c)) {
+                    if (!old.contains(c)) {
+                        // already moved
+                    } else if (live != null && mapId != 0) {
+                        ArrayList<Object> keys = live.get(map);
+                        if (keys == null) {
+                            keys = New.arrayList();
+                            live.put(map, keys);
+                        }
+                        keys.add(k);
+                    } else {
                         Object value = map.remove(k);
                         map.put(k, value);
                     }
@@ -1393,6 +1934,178 @@ public class MVStore {
         }
     }
 
+    /**
+     * Re-write some of the least filled chunks, if the I/O budget allows it.
+     * This is done while the application changes the store. The live entries
+     * are collected while the store is locked, but they are re-written while
+     * only the map is locked, so that the locks are acquired in the same order
+     * as when the application writes. Entries are skipped while another thread
+     * writes to the map (see MVMap.rewrite). This method is called by the
+     * background thread.
+     */
+    void compactInBackground() {
+        HashMap<MVMap<Object, Object>, ArrayList<Object>> live = New.hashMap();
+        ArrayList<Chunk> old;
+        long bytes = 0;
+        synchronized (this) {
+            int fillRate = autoCompactFillRate;
+            if (fillRate <= 0 || closed || fileStore.isReadOnly()) {
+                return;
+            }
+            long time = getTime();
+            long limit = autoCompactIoLimit;
+            if (limit > 0) {
+                long elapsed = Math.min(1000, time - autoCompactLastTime);
+                autoCompactLastTime = time;
+                // the unused budget is kept for at most one second
+                autoCompactBudget = Math.min(limit,
+                        autoCompactBudget + elapsed * limit / 1000);
+                if (autoCompactBudget <= 0) {
+                    return;
+                }
+            }
+            try {
+                // if the budget is full, re-write even if this exceeds the
+                // budget
+                old = getChunksToRewrite(fillRate,
+                        limit > 0 && autoCompactBudget < limit ?
+                        autoCompactBudget : Long.MAX_VALUE);
+                if (old != null) {
+                    for (Chunk c : old) {
+                        bytes += c.length + c.maxLengthLive;
+                    }
+                    for (Chunk c : old) {
+                        copyLive(c, old, live);
+                    }
+                }
+            } catch (Exception e) {
+                handleBackgroundException(e);
+                return;
+            }
+            if (old == null) {
+                return;
+            }
+        }
+        try {
+            for (Entry<MVMap<Object, Object>, ArrayList<Object>> e :
+                    live.entrySet()) {
+                rewriteEntries(e.getKey(), e.getValue(), old);
+            }
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                commitAndSave();
+                if (autoCompactIoLimit > 0) {
+                    // the budget may temporarily be negative
+                    autoCompactBudget -= bytes;
+                }
+                autoCompactCount++;
+                autoCompactChunkCount += old.size();
+                autoCompactBytes += bytes;
+            }
+        } catch (Exception e) {
+            handleBackgroundException(e);
+        }
+    }
+
+    private void handleBackgroundException(Exception e) {
+        if (backgroundExceptionHandler != null) {
+            backgroundExceptionHandler.uncaughtException(null, e);
+        }
+    }
+
+    /**
+     * Get the least filled chunks that should be re-written, if the fill rate
+     * of all chunks combined is below the target fill rate. About one average
+     * sized chunk is selected. Nothing is selected if re-writing would exceed
+     * the I/O budget.
+     *
+     * @param fillRate the target fill rate in percent
+     * @param maxBytes the I/O budget in bytes (the chunk length is counted as
+     *            read, and the live length as written)
+     * @return the chunks, or null if nothing should be re-written
+     */
+    private ArrayList<Chunk> getChunksToRewrite(int fillRate, long maxBytes) {
+        long maxLengthSum = 0, maxLengthLiveSum = 0;
+        for (Chunk c : chunks.values()) {
+            maxLengthSum += c.maxLength;
+            maxLengthLiveSum += c.maxLengthLive;
+        }
+        if (maxLengthSum <= 0 ||
+                100 * maxLengthLiveSum / maxLengthSum >= fillRate) {
+            return null;
+        }
+        long time = getTime();
+        ArrayList<Chunk> old = New.arrayList();
+        for (Chunk c : chunks.values()) {
+            if (c.maxLengthLive > 0 && c.getFillRate() < fillRate &&
+                    canOverwriteChunk(c, time)) {
+                old.add(c);
+            }
+        }
+        if (old.size() == 0) {
+            return null;
+        }
+        Collections.sort(old, new Comparator<Chunk>() {
+            @Override
+            public int compare(Chunk o1, Chunk o2) {
+                int comp = new Integer(o1.getFillRate()).compareTo(
+                        o2.getFillRate());
+                return comp != 0 ? comp : new Integer(o1.id).compareTo(o2.id);
+            }
+        });
+        // move about one average sized chunk, so that the
+        // new chunk is not much smaller than the others
+        long averageMaxLength = maxLengthSum / chunks.size();
+        long bytes = 0, moved = 0;
+        for (Iterator<Chunk> it = old.iterator(); it.hasNext();) {
+            Chunk c = it.next();
+            if (moved > 0 && moved + c.maxLengthLive > averageMaxLength) {
+                it.remove();
+            } else {
+                bytes += c.length + c.maxLengthLive;
+                moved += c.maxLengthLive;
+            }
+        }
+        if (bytes > maxBytes) {
+            // wait until the budget is large enough
+            return null;
+        }
+        return old;
+    }
+
+    /**
+     * Re-write the given entries of a map, if they are still stored in one of
+     * the old chunks. Like replace(key, value, value), this synchronizes on
+     * the map. Entries are skipped while another thread writes to the map.
+     *
+     * @param map the map
+     * @param keys the keys of the entries
+     * @param old the chunks to free up
+     */
+    private void rewriteEntries(MVMap<Object, Object> map,
+            ArrayList<Object> keys, ArrayList<Chunk> old) {
+        synchronized (map) {
+            for (Object k : keys) {
+                if (map.isClosed()) {
+                    return;
+                }
+                Page p = map.getPage(k);
+                if (p == null || p.getPos() == 0) {
+                    // removed or changed in the meantime
+                    continue;
+                }
+                Chunk c = chunks.get(DataUtils.getPageChunkId(p.getPos()));
+                if (c == null || !old.contains(c)) {
+                    // already moved
+                    continue;
+                }
+                map.rewrite(k);
+            }
+        }
+    }
+
     private MVMap<?, ?> getMap(int mapId) {
         if (mapId == 0) {
             return meta;
@@ -1422,7 +2135,27 @@ public class MVStore {
                         DataUtils.ERROR_FILE_CORRUPT,
                         "Negative position {0}", filePos);
             }
-            p = Page.read(fileStore, map, pos, filePos, fileStore.size());
+            ByteBuffer pending = pendingChunks.isEmpty() ? null :
+                    pendingChunks.get(c.id);
+            if (pending != null) {
+                // the chunk is not yet written
+                p = Page.read(pending, map, pos);
+            } else if (offHeapCache != null) {
+                ByteBuffer buff = offHeapCache.get(pos);
+                if (buff == null) {
+                    buff = Page.readBuffer(fileStore, pos, filePos,
+                            fileStore.size());
+                    int len = buff.getInt(buff.position());
+                    if (len > 0 && len <= buff.remaining()) {
+                        ByteBuffer data = buff.duplicate();
+                        data.limit(data.position() + len);
+                        offHeapCache.put(pos, data);
+                    }
+                }
+                p = Page.read(buff, map, pos, buff.remaining());
+            } else {
+                p = Page.read(fileStore, map, pos, filePos, fileStore.size());
+            }
             if (cache != null) {
                 cache.put(pos, p, p.getMemory());
             }
@@ -1452,6 +2185,9 @@ public class MVStore {
         if (cache != null) {
             cache.remove(pos);
         }
+        if (offHeapCache != null) {
+            offHeapCache.remove(pos);
+        }
 
         Chunk c = getChunk(pos);
         long version = currentVersion;
@@ -1464,11 +2200,21 @@ public class MVStore {
                 version = currentStoreVersion;
             }
         }
-        registerFreePage(version, c.id, DataUtils.getPageMaxLength(pos), 1);
+        registerFreePage(version, c.id, DataUtils.getPageMaxLength(pos), 1, pos);
     }
 
+    /**
+     * Register freed space in a chunk. The space is applied to the chunk
+     * metadata when storing the given version.
+     *
+     * @param version the version
+     * @param chunkId the chunk id
+     * @param maxLengthLive the freed max length
+     * @param pageCount the number of freed pages
+     * @param pos the position of the freed page, or 0
+     */
     private void registerFreePage(long version, int chunkId,
-            long maxLengthLive, int pageCount) {
+            long maxLengthLive, int pageCount, long pos) {
         HashMap<Integer, Chunk> freed = freedPageSpace.get(version);
         if (freed == null) {
             freed = New.hashMap();
@@ -1487,15 +2233,87 @@ public class MVStore {
             }
             f.maxLengthLive -= maxLengthLive;
             f.pageCountLive -= pageCount;
+            if (pos != 0) {
+                f.addPagePosition(pos);
+            }
         }
     }
 
-    Compressor getCompressor() {
-        return compressor;
+    /**
+     * Get the compressor for the given algorithm.
+     *
+     * @param algorithm the algorithm (see Compressor)
+     * @return the compressor
+     * @throws IllegalStateException if the algorithm is not supported
+     */
+    Compressor getCompressor(int algorithm) {
+        if (algorithm <= Compressor.NO || algorithm >= compressors.length) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_FILE_CORRUPT,
+                    "Unsupported compression algorithm {0}", algorithm);
+        }
+        Compressor c = compressors[algorithm];
+        if (c == null) {
+            switch (algorithm) {
+            case Compressor.LZF:
+                c = new CompressLZF();
+                break;
+            case Compressor.DEFLATE:
+                c = new CompressDeflate();
+                break;
+            default:
+                c = new CompressLZ4();
+            }
+            compressors[algorithm] = c;
+        }
+        return c;
     }
 
-    boolean getCompress() {
-        return compress;
+    /**
+     * Get the default compression algorithm for new pages.
+     *
+     * @return the algorithm, or Compressor.NO if disabled
+     */
+    int getCompressionAlgorithm() {
+        return compressionAlgorithm;
+    }
+
+    /**
+     * Check whether page checksums are written and verified.
+     *
+     * @return true if yes
+     */
+    boolean isPageChecksum() {
+        return pageChecksum;
+    }
+
+    /**
+     * Change the format in the store header to the current format, if it is
+     * older. This method is called when writing a page that older versions
+     * can not read. The store header is written after the pages of the
+     * chunk, so that older versions refuse to open the file once such a page
+     * was stored.
+     */
+    void upgradeFormat() {
+        if (formatUpgraded) {
+            return;
+        }
+        long format = DataUtils.parseLong(storeHeader.get("format"), 0);
+        if (format < FORMAT_WRITE) {
+            storeHeader.put("format", "" + FORMAT_WRITE);
+            // the read format is then the same as the write format
+            storeHeader.remove("formatRead");
+        }
+        formatUpgraded = true;
+    }
+
+    /**
+     * Get the list of chunks.
+     *
+     * @return a copy of the list
+     */
+    synchronized ArrayList<Chunk> getChunkList() {
+        return new ArrayList<Chunk>(chunks.values());
     }
 
     public int getPageSplitSize() {
@@ -1687,6 +2505,10 @@ public class MVStore {
      */
     public synchronized void rollbackTo(long version) {
         checkOpen();
+        waitForPendingWrites();
+        if (deltaLog != null) {
+            deltaLog.rollback(version);
+        }
         if (version == 0) {
             // special case: remove all data
             for (MVMap<?, ?> m : maps.values()) {
@@ -1699,6 +2521,7 @@ public class MVStore {
             }
             maps.clear();
             freedPageSpace.clear();
+            clearCaches();
             currentVersion = version;
             setWriteVersion(version);
             metaChanged = false;
@@ -1733,6 +2556,8 @@ public class MVStore {
         if (removeChunksNewerThan >= 0 && lastChunkId > removeChunksNewerThan) {
             revertTemp(version);
             loadFromFile = true;
+            // the ids of the removed chunks are re-used
+            clearCaches();
             Chunk last = null;
             while (true) {
                 last = chunks.get(lastChunkId);
@@ -1912,6 +2737,24 @@ public class MVStore {
         }
     }
 
+    private void clearCaches() {
+        if (cache != null) {
+            cache.clear();
+        }
+        if (offHeapCache != null) {
+            offHeapCache.clear();
+        }
+    }
+
+    /**
+     * Get the off-heap page cache.
+     *
+     * @return the cache, or null if disabled
+     */
+    public CacheLongKeyOffHeap getOffHeapCache() {
+        return offHeapCache;
+    }
+
     /**
      * Set the read cache size in MB.
      *
@@ -1967,8 +2810,9 @@ public class MVStore {
         if (millis > 0) {
             int sleep = Math.max(1, millis / 10);
             BackgroundWriterThread t = new BackgroundWriterThread(this, sleep, fileStore.toString());
-            t.start();
+            // set the field first, otherwise the thread could stop immediately
             backgroundWriterThread = t;
+            t.start();
         }
     }
 
@@ -1981,6 +2825,70 @@ public class MVStore {
         return autoCommitDelay;
     }
 
+    /**
+     * Set the target fill rate for the background compaction. If the fill
+     * rate of all chunks combined is lower, the live pages of the least filled
+     * chunks are re-written by the background thread, also while the
+     * application changes the store; the I/O limit restricts how much is
+     * re-written. Only chunks older than the retention time and data of open
+     * maps are re-written.
+     * <p>
+     * Background compaction requires auto-commit to be enabled. The default is
+     * 0, meaning background compaction is disabled.
+     *
+     * @param percent the target fill rate (0 to disable)
+     */
+    public void setAutoCompactFillRate(int percent) {
+        autoCompactFillRate = percent;
+    }
+
+    public int getAutoCompactFillRate() {
+        return autoCompactFillRate;
+    }
+
+    /**
+     * Set the maximum number of bytes per second the background compaction
+     * may read and write. At least one chunk is re-written per run, so that
+     * the limit is exceeded for short periods if chunks are large.
+     *
+     * @param bytesPerSecond the limit, or 0 for no limit
+     */
+    public void setAutoCompactIoLimit(long bytesPerSecond) {
+        autoCompactIoLimit = bytesPerSecond;
+    }
+
+    public long getAutoCompactIoLimit() {
+        return autoCompactIoLimit;
+    }
+
+    /**
+     * Get the number of times the background compaction re-wrote chunks.
+     *
+     * @return the number of runs
+     */
+    public long getAutoCompactCount() {
+        return autoCompactCount;
+    }
+
+    /**
+     * Get the number of chunks re-written by the background compaction.
+     *
+     * @return the number of chunks
+     */
+    public long getAutoCompactChunkCount() {
+        return autoCompactChunkCount;
+    }
+
+    /**
+     * Get the number of bytes read and written by the background compaction
+     * (the chunk length is counted as read, and the live length as written).
+     *
+     * @return the number of bytes
+     */
+    public long getAutoCompactBytes() {
+        return autoCompactBytes;
+    }
+
     /**
      * Get the maximum number of unsaved pages. If this number is exceeded,
      * unsaved changes are stored to disk.
@@ -2035,6 +2943,7 @@ public class MVStore {
                     }
                 }
                 store.commitInBackground();
+                store.compactInBackground();
             }
         }
 
@@ -2136,6 +3045,81 @@ public class MVStore {
             return set("cacheSize", mb);
         }
 
+        /**
+         * Set the size of the second level page cache in MB. This cache keeps
+         * the serialized (and possibly compressed) pages in the off-heap area
+         * of the main memory (direct byte buffers), so that a large cache does
+         * not increase the garbage collection pauses. Pages that are not in
+         * the read cache (see cacheSize) are read from this cache before
+         * reading from the file. The memory is allocated when needed. By
+         * default, this cache is disabled.
+         *
+         * @param mb the cache size in megabytes
+         * @return this
+         */
+        public Builder offHeapCacheSize(int mb) {
+            return set("offHeapCacheSize", mb);
+        }
+
+        /**
+         * Write chunks asynchronously, using a separate thread. Storing
+         * changes (explicitly or by the background thread) then only
+         * serializes the changed pages, and modifications can continue while
+         * the chunk is written. The method commit still waits until the
+         * changes are written; use commitAsync to not wait.
+         *
+         * @return this
+         */
+        public Builder asyncWrite() {
+            return set("asyncWrite", 1);
+        }
+
+        /**
+         * Use a delta log for committed changes. Committing then only appends
+         * the changed entries to a log file and syncs it, instead of storing
+         * all changed pages in a new chunk. The changes are stored in a chunk
+         * by the background thread (see autoCommitDelay), when the log grows
+         * larger than the write buffer size, when closing, and when committing
+         * changes that can not be logged (new, renamed, removed, or cleared
+         * maps, and changes of maps of other types than MVMap). After a crash,
+         * the log is replayed, and the changes of each map are applied when
+         * the map is opened.
+         * <p>
+         * Unlike regular commits, commit is then durable: when it returns, the
+         * changes are synced to disk.
+         *
+         * @return this
+         */
+        public Builder deltaLog() {
+            return set("deltaLog", 1);
+        }
+
+        /**
+         * Set the target fill rate for the background compaction, in percent.
+         * See MVStore.setAutoCompactFillRate for details.
+         * <p>
+         * The default is 0 (disabled).
+         *
+         * @param percent the target fill rate
+         * @return this
+         */
+        public Builder autoCompactFillRate(int percent) {
+            return set("autoCompactFillRate", percent);
+        }
+
+        /**
+         * Set the maximum number of bytes per second the background
+         * compaction may read and write.
+         * <p>
+         * The default is 0 (no limit).
+         *
+         * @param bytesPerSecond the limit
+         * @return this
+         */
+        public Builder autoCompactIoLimit(long bytesPerSecond) {
+            return set("autoCompactIoLimit", bytesPerSecond);
+        }
+
         /**
          * Compress data before writing using the LZF algorithm. This will save
          * about 50% of the disk space, but will slow down read and write
@@ -2148,7 +3132,40 @@ public class MVStore {
          * @return this
          */
         public Builder compressData() {
-            return set("compress", 1);
+            return compressData(Compressor.LZF);
+        }
+
+        /**
+         * Compress data before writing using the given algorithm.
+         * Compressor.LZ4 is fast, specially when reading, while
+         * Compressor.DEFLATE results in a higher compression rate, but is
+         * slower. The algorithm can be
+         * overridden per map, see MVMap.Builder.
+         * <p>
+         * The algorithm is stored in each page, so that it is possible to
+         * change the algorithm later on. Pages that are compressed with
+         * another algorithm than LZF can not be read by older versions.
+         *
+         * @param algorithm the algorithm (see Compressor)
+         * @return this
+         */
+        public Builder compressData(int algorithm) {
+            return set("compress", algorithm);
+        }
+
+        /**
+         * Write a checksum (CRC-32) for each page, and verify the checksum
+         * when reading a page, so that corruption is detected early. Pages
+         * without checksum (written without this setting) are read as usual.
+         * Pages with checksum can not be read by older versions, therefore
+         * the file format is changed once the first such page is stored.
+         * <p>
+         * To check a whole file, see MVStoreTool.verify.
+         *
+         * @return this
+         */
+        public Builder pageChecksum() {
+            return set("pageChecksum", 1);
         }
 
         /**
@@ -11,9 +11,17 @@ import java.io.PrintWriter;
 import java.io.Writer;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.h2.mvstore.type.StringDataType;
 import org.h2.store.fs.FilePath;
+import org.h2.util.New;
 
 /**
  * Utility methods used in combination with the MVStore.
@@ -26,6 +34,8 @@ public class MVStoreTool {
      * <table>
      * <tr><td>[-dump &lt;dir&gt;]</td>
      * <td>Dump the contends of the file</td></tr>
+     * <tr><td>[-verify &lt;fileName&gt;]</td>
+     * <td>Verify all pages of the file</td></tr>
      * </table>
      *
      * @param args the command line arguments
@@ -35,6 +45,10 @@ public class MVStoreTool {
             if ("-dump".equals(args[i])) {
                 String fileName = args[++i];
                 dump(fileName, new PrintWriter(System.out));
+            } else if ("-verify".equals(args[i])) {
+                String fileName = args[++i];
+                int threads = Runtime.getRuntime().availableProcessors();
+                verify(fileName, threads, new PrintWriter(System.out));
             }
         }
     }
@@ -112,9 +126,18 @@ public class MVStoreTool {
                     int type = chunk.get();
                     boolean compressed = (type & 2) != 0;
                     boolean node = (type & 1) != 0;
+                    boolean checksum = (type & DataUtils.PAGE_CHECKSUM) != 0;
+                    boolean longKeys = (type & DataUtils.PAGE_LONG_KEYS) != 0;
+                    boolean prefixKeys = (type & DataUtils.PAGE_PREFIX_KEYS) != 0;
+                    if (checksum) {
+                        chunk.getInt();
+                    }
                     pw.println("        map " + mapId + " at " + p + " " +
                             (node ? "node" : "leaf") + " " +
                             (compressed ? "compressed " : "") +
+                            (checksum ? "checksum " : "") +
+                            (longKeys ? "longKeys " : "") +
+                            (prefixKeys ? "prefixKeys " : "") +
                             "len: " + pageLength + " entries: " + len);
                     p += pageLength;
                     chunkLength -= pageLength;
@@ -170,10 +193,191 @@ public class MVStoreTool {
         pw.flush();
     }
 
+    /**
+     * Verify the pages of all chunks of a file. The chunk and page headers are
+     * checked, and the checksum of pages that have a checksum (see
+     * MVStore.Builder.pageChecksum). The chunks are read and verified
+     * concurrently, using the given number of threads. Encrypted files are
+     * not supported.
+     *
+     * @param fileName the name of the file
+     * @param threadCount the number of threads
+     * @param writer the print writer (for errors and the summary)
+     * @return the number of errors found
+     */
+    public static int verify(String fileName, int threadCount, Writer writer) {
+        PrintWriter pw = new PrintWriter(writer, true);
+        if (!FilePath.get(fileName).exists()) {
+            pw.println("File not found: " + fileName);
+            return 1;
+        }
+        ArrayList<Chunk> chunks;
+        try {
+            MVStore store = new MVStore.Builder().
+                    fileName(fileName).
+                    readOnly().
+                    open();
+            try {
+                chunks = store.getChunkList();
+            } finally {
+                store.close();
+            }
+        } catch (IllegalStateException e) {
+            pw.println("ERROR: " + e);
+            return 1;
+        }
+        Collections.sort(chunks, new Comparator<Chunk>() {
+            @Override
+            public int compare(Chunk a, Chunk b) {
+                return Long.signum(a.start - b.start);
+            }
+        });
+        FileChannel file = null;
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, threadCount));
+        int errors = 0;
+        long pages = 0, checksums = 0;
+        try {
+            file = FilePath.get(fileName).open("r");
+            ArrayList<Future<ChunkVerifier>> futures = New.arrayList();
+            for (Chunk c : chunks) {
+                futures.add(executor.submit(new ChunkVerifier(file, c)));
+            }
+            for (Future<ChunkVerifier> f : futures) {
+                ChunkVerifier v = f.get();
+                for (String e : v.errors) {
+                    pw.println("ERROR: chunk " + v.chunk.id +
+                            " at " + v.chunk.start + ": " + e);
+                }
+                errors += v.errors.size();
+                pages += v.pageCount;
+                checksums += v.checksumCount;
+            }
+        } catch (Exception e) {
+            pw.println("ERROR: " + e);
+            e.printStackTrace(pw);
+            errors++;
+        } finally {
+            executor.shutdownNow();
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        pw.println("chunks: " + chunks.size() +
+                " pages: " + pages +
+                " with checksum: " + checksums +
+                " errors: " + errors);
+        pw.flush();
+        return errors;
+    }
+
     private static String getPosString(long pos) {
         return "pos " + pos + ", chunk " + DataUtils.getPageChunkId(pos) +
                 ", offset " + DataUtils.getPageOffset(pos);
 
     }
 
+    /**
+     * Verifies the pages of a chunk.
+     */
+    private static class ChunkVerifier implements Callable<ChunkVerifier> {
+
+        /**
+         * The chunk.
+         */
+        final Chunk chunk;
+
+        /**
+         * The errors found.
+         */
+        final ArrayList<String> errors = New.arrayList();
+
+        /**
+         * The number of pages.
+         */
+        int pageCount;
+
+        /**
+         * The number of pages with checksum.
+         */
+        int checksumCount;
+
+        private final FileChannel file;
+
+        ChunkVerifier(FileChannel file, Chunk chunk) {
+            this.file = file;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public ChunkVerifier call() {
+            try {
+                verify();
+            } catch (Exception e) {
+                errors.add(e.toString());
+            }
+            return this;
+        }
+
+        private void verify() {
+            int length = chunk.length;
+            ByteBuffer buff = ByteBuffer.allocate(length);
+            DataUtils.readFully(file, chunk.start, buff);
+            buff.rewind();
+            Chunk header = Chunk.fromHeader(buff, chunk.start);
+            if (header.id != chunk.id || header.length != length) {
+                errors.add("chunk header mismatch: " + header);
+                return;
+            }
+            int chunkId = chunk.id;
+            for (int p = buff.position(); p < length;) {
+                if (p + 6 > length) {
+                    errors.add("page header at " + p + " truncated");
+                    return;
+                }
+                int pageLength = buff.getInt(p);
+                if (pageLength < 6 || p + pageLength > length) {
+                    errors.add("page at " + p +
+                            " has illegal length " + pageLength);
+                    return;
+                }
+                int check = buff.getShort(p + 4);
+                int checkTest = DataUtils.getCheckValue(chunkId)
+                        ^ DataUtils.getCheckValue(p)
+                        ^ DataUtils.getCheckValue(pageLength);
+                if (check != (short) checkTest) {
+                    errors.add("page at " + p + " has check value " + check +
+                            ", expected " + (short) checkTest);
+                    return;
+                }
+                buff.position(p + 6);
+                DataUtils.readVarInt(buff);
+                DataUtils.readVarInt(buff);
+                int type = buff.get();
+                if ((type & DataUtils.PAGE_CHECKSUM) != 0) {
+                    int checksumPos = buff.position();
+                    int checksum = buff.getInt();
+                    int checksumTest = DataUtils.getPageChecksum(buff, p,
+                            pageLength, checksumPos);
+                    if (checksum != checksumTest) {
+                        errors.add("page at " + p + " has checksum " +
+                                checksum + ", expected " + checksumTest);
+                    }
+                    checksumCount++;
+                }
+                pageCount++;
+                p += pageLength;
+            }
+            if (pageCount != chunk.pageCount) {
+                errors.add("page count is " + pageCount +
+                        ", expected " + chunk.pageCount);
+            }
+        }
+
+    }
+
 }
@@ -9,7 +9,9 @@ package org.h2.mvstore;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import org.h2.compress.Compressor;
+import org.h2.mvstore.type.BytesKeyType;
 import org.h2.mvstore.type.DataType;
+import org.h2.mvstore.type.LongKeyType;
 
 /**
  * A page (a node or a leaf).
@@ -22,9 +24,14 @@ import org.h2.mvstore.type.DataType;
  * check value: short
  * map id: varInt
  * number of keys: varInt
- * type: byte (0: leaf, 1: node; +2: compressed)
+ * type: byte (0: leaf, 1: node; +2: compressed; +4: compression algorithm
+ * stored; +8: checksum stored; +16: long keys)
+ * checksum: int (if stored; a CRC-32 of the page, see
+ * DataUtils.getPageChecksum)
+ * compression algorithm: byte (if stored)
  * compressed: bytes saved (varInt)
- * keys
+ * keys (long keys: the first key as a varLong, then the difference to the
+ * previous key as a varLong)
  * leaf: values (one for each key)
  * node: children (1 more than keys)
  */
@@ -34,6 +41,8 @@ public class Page {
 
     private static final Object[] EMPTY_OBJECT_ARRAY = new Object[0];
 
+    private static final long[] EMPTY_LONG_ARRAY = new long[0];
+
     private final MVMap<?, ?> map;
     private long version;
     private long pos;
@@ -75,6 +84,13 @@ public class Page {
      */
     private Object[] keys;
 
+    /**
+     * The keys, if the map uses long keys (in which case keys is null).
+     * <p>
+     * The array might be larger than needed, to avoid frequent re-sizing.
+     */
+    private long[] longKeys;
+
     /**
      * The values.
      * <p>
@@ -141,10 +157,30 @@ public class Page {
             int keyCount, Object[] keys, Object[] values,
             int childCount, long[] children, Page[] childrenPages, long[] counts,
             long totalCount, int sharedFlags, int memory) {
+        long[] longKeys = null;
+        LongKeyType longKeyType = map.getLongKeyType();
+        if (longKeyType != null) {
+            longKeys = keyCount == 0 ? EMPTY_LONG_ARRAY : new long[keyCount];
+            for (int i = 0; i < keyCount; i++) {
+                longKeys[i] = longKeyType.toLong(keys[i]);
+            }
+            keys = null;
+            sharedFlags &= ~SHARED_KEYS;
+        }
+        return create(map, version, keyCount, keys, longKeys, values,
+                childCount, children, childrenPages, counts,
+                totalCount, sharedFlags, memory);
+    }
+
+    private static Page create(MVMap<?, ?> map, long version,
+            int keyCount, Object[] keys, long[] longKeys, Object[] values,
+            int childCount, long[] children, Page[] childrenPages, long[] counts,
+            long totalCount, int sharedFlags, int memory) {
         Page p = new Page(map, version);
         // the position is 0
         p.keyCount = keyCount;
         p.keys = keys;
+        p.longKeys = longKeys;
         p.values = values;
         p.childCount = childCount;
         p.children = children;
@@ -172,6 +208,22 @@ public class Page {
      */
     static Page read(FileStore fileStore, MVMap<?, ?> map,
             long pos, long filePos, long fileSize) {
+        ByteBuffer buff = readBuffer(fileStore, pos, filePos, fileSize);
+        return read(buff, map, pos, buff.remaining());
+    }
+
+    /**
+     * Read the serialized data of a page from the file. The returned buffer
+     * may contain additional bytes after the page.
+     *
+     * @param fileStore the file store
+     * @param pos the page position
+     * @param filePos the position in the file
+     * @param fileSize the file size (to avoid reading past EOF)
+     * @return the buffer
+     */
+    static ByteBuffer readBuffer(FileStore fileStore, long pos, long filePos,
+            long fileSize) {
         ByteBuffer buff;
         int maxLength = DataUtils.getPageMaxLength(pos);
         if (maxLength == Integer.MAX_VALUE) {
@@ -185,12 +237,39 @@ public class Page {
             throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT,
                     "Illegal page length {0} reading at {1}; file size {1} ", length, filePos, fileSize);
         }
-        buff = fileStore.readFully(filePos, length);
+        return fileStore.readFully(filePos, length);
+    }
+
+    /**
+     * Read a page from the data of a chunk that is not yet written.
+     *
+     * @param chunk the chunk data
+     * @param map the map
+     * @param pos the page position
+     * @return the page
+     */
+    static Page read(ByteBuffer chunk, MVMap<?, ?> map, long pos) {
+        ByteBuffer buff = chunk.duplicate();
+        int offset = DataUtils.getPageOffset(pos);
+        buff.position(offset);
+        return read(buff, map, pos, buff.limit() - offset);
+    }
+
+    /**
+     * Read a page from a buffer. The page starts at the current position.
+     *
+     * @param buff the buffer
+     * @param map the map
+     * @param pos the page position
+     * @param maxLength the maximum length of the page
+     * @return the page
+     */
+    static Page read(ByteBuffer buff, MVMap<?, ?> map, long pos,
+            int maxLength) {
         Page p = new Page(map, 0);
         p.pos = pos;
-        int chunkId = DataUtils.getPageChunkId(pos);
-        int offset = DataUtils.getPageOffset(pos);
-        p.read(buff, chunkId, offset, maxLength);
+        p.read(buff, DataUtils.getPageChunkId(pos),
+                DataUtils.getPageOffset(pos), maxLength);
         return p;
     }
 
@@ -201,6 +280,9 @@ public class Page {
      * @return the key
      */
     public Object getKey(int index) {
+        if (longKeys != null) {
+            return map.getLongKeyType().fromLong(longKeys[index]);
+        }
         return keys[index];
     }
 
@@ -265,7 +347,7 @@ public class Page {
                 buff.append("[" + children[i] + "] ");
             }
             if (i < keyCount) {
-                buff.append(keys[i]);
+                buff.append(getKey(i));
                 if (values != null) {
                     buff.append(':');
                     buff.append(values[i]);
@@ -282,13 +364,25 @@ public class Page {
      * @return a page with the given version
      */
     public Page copy(long version) {
+        Page newPage = copyKeepOld(version);
+        // mark the old as deleted
+        removePage();
+        return newPage;
+    }
+
+    /**
+     * Create a copy of this page, without marking this page as deleted. This
+     * is needed if the copy might be discarded later on.
+     *
+     * @param version the new version
+     * @return a page with the given version
+     */
+    Page copyKeepOld(long version) {
         Page newPage = create(map, version,
-                keyCount, keys, values,
+                keyCount, keys, longKeys, values,
                 childCount, children, childrenPages, counts, totalCount,
                 SHARED_KEYS | SHARED_VALUES | SHARED_CHILDREN | SHARED_COUNTS,
                 memory);
-        // mark the old as deleted
-        removePage();
         newPage.cachedCompare = cachedCompare;
         return newPage;
     }
@@ -305,6 +399,9 @@ public class Page {
      * @return the value or null
      */
     public int binarySearch(Object key) {
+        if (longKeys != null) {
+            return binarySearch(map.getLongKeyType().toLong(key));
+        }
         int low = 0, high = keyCount - 1;
         // the cached index minus one, so that
         // for the first time (when cachedCompare is 0),
@@ -345,6 +442,36 @@ public class Page {
         // return -(low + 1);
     }
 
+    /**
+     * Search the key in the long keys of this page, using a binary search.
+     * The last found index is cached, as in binarySearch(Object).
+     *
+     * @param key the key
+     * @return the index, or a negative value if not found
+     */
+    private int binarySearch(long key) {
+        int low = 0, high = keyCount - 1;
+        int x = cachedCompare - 1;
+        if (x < 0 || x > high) {
+            x = (low + high) >>> 1;
+        }
+        long[] k = longKeys;
+        while (low <= high) {
+            long y = k[x];
+            if (key > y) {
+                low = x + 1;
+            } else if (key < y) {
+                high = x - 1;
+            } else {
+                cachedCompare = x + 1;
+                return x;
+            }
+            x = (low + high) >>> 1;
+        }
+        cachedCompare = low;
+        return -(low + 1);
+    }
+
     /**
      * Split the page. This modifies the current page.
      *
@@ -357,11 +484,21 @@ public class Page {
 
     private Page splitLeaf(int at) {
         int a = at, b = keyCount - a;
-        Object[] aKeys = new Object[a];
-        Object[] bKeys = new Object[b];
-        System.arraycopy(keys, 0, aKeys, 0, a);
-        System.arraycopy(keys, a, bKeys, 0, b);
-        keys = aKeys;
+        Object[] bKeys = null;
+        long[] bLongKeys = null;
+        if (longKeys != null) {
+            long[] aLongKeys = new long[a];
+            bLongKeys = new long[b];
+            System.arraycopy(longKeys, 0, aLongKeys, 0, a);
+            System.arraycopy(longKeys, a, bLongKeys, 0, b);
+            longKeys = aLongKeys;
+        } else {
+            Object[] aKeys = new Object[a];
+            bKeys = new Object[b];
+            System.arraycopy(keys, 0, aKeys, 0, a);
+            System.arraycopy(keys, a, bKeys, 0, b);
+            keys = aKeys;
+        }
         keyCount = a;
         Object[] aValues = new Object[a];
         Object[] bValues = new Object[b];
@@ -372,9 +509,9 @@ public class Page {
         sharedFlags &= ~(SHARED_KEYS | SHARED_VALUES);
         totalCount = a;
         Page newPage = create(map, version,
-                b, bKeys, bValues,
+                b, bKeys, bLongKeys, bValues,
                 0, null, null, null,
-                bKeys.length, 0, 0);
+                b, 0, 0);
         memory = calculateMemory();
         newPage.memory = newPage.calculateMemory();
         return newPage;
@@ -383,11 +520,21 @@ public class Page {
     private Page splitNode(int at) {
         int a = at, b = keyCount - a;
 
-        Object[] aKeys = new Object[a];
-        Object[] bKeys = new Object[b - 1];
-        System.arraycopy(keys, 0, aKeys, 0, a);
-        System.arraycopy(keys, a + 1, bKeys, 0, b - 1);
-        keys = aKeys;
+        Object[] bKeys = null;
+        long[] bLongKeys = null;
+        if (longKeys != null) {
+            long[] aLongKeys = new long[a];
+            bLongKeys = new long[b - 1];
+            System.arraycopy(longKeys, 0, aLongKeys, 0, a);
+            System.arraycopy(longKeys, a + 1, bLongKeys, 0, b - 1);
+            longKeys = aLongKeys;
+        } else {
+            Object[] aKeys = new Object[a];
+            bKeys = new Object[b - 1];
+            System.arraycopy(keys, 0, aKeys, 0, a);
+            System.arraycopy(keys, a + 1, bKeys, 0, b - 1);
+            keys = aKeys;
+        }
         keyCount = a;
 
         long[] aChildren = new long[a + 1];
@@ -420,7 +567,7 @@ public class Page {
             t += x;
         }
         Page newPage = create(map, version,
-                b - 1, bKeys, null,
+                b - 1, bKeys, bLongKeys, null,
                 b, bChildren, bChildrenPages, bCounts,
                 t, 0, 0);
         memory = calculateMemory();
@@ -452,6 +599,26 @@ public class Page {
         return totalCount;
     }
 
+    /**
+     * Get the position of the child page at the given index.
+     *
+     * @param index the index
+     * @return the position, or 0 if the child page was not stored yet
+     */
+    long getChildPagePos(int index) {
+        return children[index];
+    }
+
+    /**
+     * Get the child page at the given index, if it is in memory.
+     *
+     * @param index the index
+     * @return the child page, or null if it was not read
+     */
+    Page getChildPageIfLoaded(int index) {
+        return childrenPages[index];
+    }
+
     /**
      * Get the descendant counts for the given child.
      *
@@ -515,6 +682,14 @@ public class Page {
      * @param key the new key
      */
     public void setKey(int index, Object key) {
+        if (longKeys != null) {
+            if ((sharedFlags & SHARED_KEYS) != 0) {
+                longKeys = Arrays.copyOf(longKeys, longKeys.length);
+                sharedFlags &= ~SHARED_KEYS;
+            }
+            longKeys[index] = map.getLongKeyType().toLong(key);
+            return;
+        }
         if ((sharedFlags & SHARED_KEYS) != 0) {
             keys = Arrays.copyOf(keys, keys.length);
             sharedFlags &= ~SHARED_KEYS;
@@ -579,29 +754,59 @@ public class Page {
      * @param value the value
      */
     public void insertLeaf(int index, Object key, Object value) {
-        if (((sharedFlags & SHARED_KEYS) == 0) && keys.length > keyCount + 1) {
+        if (longKeys != null) {
+            insertLongKey(index, map.getLongKeyType().toLong(key));
+        } else if (((sharedFlags & SHARED_KEYS) == 0) && keys.length > keyCount + 1) {
             if (index < keyCount) {
                 System.arraycopy(keys, index, keys, index + 1, keyCount - index);
-                System.arraycopy(values, index, values, index + 1, keyCount - index);
             }
+            keys[index] = key;
         } else {
-            int len = keyCount + 6;
-            Object[] newKeys = new Object[len];
+            Object[] newKeys = new Object[keyCount + 6];
             DataUtils.copyWithGap(keys, newKeys, keyCount, index);
             keys = newKeys;
-            Object[] newValues = new Object[len];
+            keys[index] = key;
+        }
+        if (((sharedFlags & SHARED_VALUES) == 0) && values.length > keyCount + 1) {
+            if (index < keyCount) {
+                System.arraycopy(values, index, values, index + 1, keyCount - index);
+            }
+        } else {
+            Object[] newValues = new Object[keyCount + 6];
             DataUtils.copyWithGap(values, newValues, keyCount, index);
             values = newValues;
         }
-        keys[index] = key;
         values[index] = value;
         keyCount++;
         sharedFlags &= ~(SHARED_KEYS | SHARED_VALUES);
         totalCount++;
-        memory += map.getKeyType().getMemory(key);
+        memory += getKeyMemory(key);
         memory += map.getValueType().getMemory(value);
     }
 
+    /**
+     * Insert a long key. The key count is not changed.
+     *
+     * @param index the index
+     * @param key the key
+     */
+    private void insertLongKey(int index, long key) {
+        if (((sharedFlags & SHARED_KEYS) == 0) && longKeys.length > keyCount + 1) {
+            if (index < keyCount) {
+                System.arraycopy(longKeys, index, longKeys, index + 1, keyCount - index);
+            }
+        } else {
+            long[] newKeys = new long[keyCount + 6];
+            DataUtils.copyWithGap(longKeys, newKeys, keyCount, index);
+            longKeys = newKeys;
+        }
+        longKeys[index] = key;
+    }
+
+    private int getKeyMemory(Object key) {
+        return longKeys != null ? 8 : map.getKeyType().getMemory(key);
+    }
+
     /**
      * Insert a child into this node.
      *
@@ -611,10 +816,17 @@ public class Page {
      */
     public void insertNode(int index, Object key, Page childPage) {
 
-        Object[] newKeys = new Object[keyCount + 1];
-        DataUtils.copyWithGap(keys, newKeys, keyCount, index);
-        newKeys[index] = key;
-        keys = newKeys;
+        if (longKeys != null) {
+            long[] newKeys = new long[keyCount + 1];
+            DataUtils.copyWithGap(longKeys, newKeys, keyCount, index);
+            newKeys[index] = map.getLongKeyType().toLong(key);
+            longKeys = newKeys;
+        } else {
+            Object[] newKeys = new Object[keyCount + 1];
+            DataUtils.copyWithGap(keys, newKeys, keyCount, index);
+            newKeys[index] = key;
+            keys = newKeys;
+        }
 
         keyCount++;
 
@@ -637,7 +849,7 @@ public class Page {
 
         sharedFlags &= ~(SHARED_KEYS | SHARED_CHILDREN | SHARED_COUNTS);
         totalCount += childPage.totalCount;
-        memory += map.getKeyType().getMemory(key);
+        memory += getKeyMemory(key);
         memory += DataUtils.PAGE_MEMORY_CHILD;
     }
 
@@ -648,22 +860,36 @@ public class Page {
      */
     public void remove(int index) {
         int keyIndex = index >= keyCount ? index - 1 : index;
-        Object old = keys[keyIndex];
-        memory -= map.getKeyType().getMemory(old);
-        if ((sharedFlags & SHARED_KEYS) == 0 && keys.length > keyCount - 4) {
-            if (keyIndex < keyCount - 1) {
-                System.arraycopy(keys, keyIndex + 1, keys, keyIndex, keyCount - keyIndex - 1);
+        if (longKeys != null) {
+            memory -= 8;
+            if ((sharedFlags & SHARED_KEYS) == 0 && longKeys.length > keyCount - 4) {
+                if (keyIndex < keyCount - 1) {
+                    System.arraycopy(longKeys, keyIndex + 1, longKeys, keyIndex, keyCount - keyIndex - 1);
+                }
+            } else {
+                long[] newKeys = new long[keyCount - 1];
+                DataUtils.copyExcept(longKeys, newKeys, keyCount, keyIndex);
+                longKeys = newKeys;
+                sharedFlags &= ~SHARED_KEYS;
             }
-            keys[keyCount - 1] = null;
         } else {
-            Object[] newKeys = new Object[keyCount - 1];
-            DataUtils.copyExcept(keys, newKeys, keyCount, keyIndex);
-            keys = newKeys;
-            sharedFlags &= ~SHARED_KEYS;
+            Object old = keys[keyIndex];
+            memory -= map.getKeyType().getMemory(old);
+            if ((sharedFlags & SHARED_KEYS) == 0 && keys.length > keyCount - 4) {
+                if (keyIndex < keyCount - 1) {
+                    System.arraycopy(keys, keyIndex + 1, keys, keyIndex, keyCount - keyIndex - 1);
+                }
+                keys[keyCount - 1] = null;
+            } else {
+                Object[] newKeys = new Object[keyCount - 1];
+                DataUtils.copyExcept(keys, newKeys, keyCount, keyIndex);
+                keys = newKeys;
+                sharedFlags &= ~SHARED_KEYS;
+            }
         }
 
         if (values != null) {
-            old = values[index];
+            Object old = values[index];
             memory -= map.getValueType().getMemory(old);
             if ((sharedFlags & SHARED_VALUES) == 0 && values.length > keyCount - 4) {
                 if (index < keyCount - 1) {
@@ -738,13 +964,31 @@ public class Page {
                     checkTest, check);
         }
         int len = DataUtils.readVarInt(buff);
-        keys = new Object[len];
         keyCount = len;
         int type = buff.get();
+        if ((type & DataUtils.PAGE_CHECKSUM) != 0) {
+            int checksumPos = buff.position();
+            int checksum = buff.getInt();
+            if (map.getStore().isPageChecksum()) {
+                int checksumTest = DataUtils.getPageChecksum(buff, start,
+                        pageLength, checksumPos);
+                if (checksum != checksumTest) {
+                    throw DataUtils.newIllegalStateException(
+                            DataUtils.ERROR_FILE_CORRUPT,
+                            "File corrupted in chunk {0} at offset {1}, " +
+                            "expected page checksum {2}, got {3}",
+                            chunkId, offset, checksumTest, checksum);
+                }
+            }
+        }
         boolean node = (type & 1) == DataUtils.PAGE_TYPE_NODE;
         boolean compressed = (type & DataUtils.PAGE_COMPRESSED) != 0;
         if (compressed) {
-            Compressor compressor = map.getStore().getCompressor();
+            int algorithm = Compressor.LZF;
+            if ((type & DataUtils.PAGE_COMPRESSED_ALGORITHM) != 0) {
+                algorithm = buff.get();
+            }
+            Compressor compressor = map.getStore().getCompressor(algorithm);
             int lenAdd = DataUtils.readVarInt(buff);
             int compLen = pageLength + start - buff.position();
             byte[] comp = DataUtils.newBytes(compLen);
@@ -753,10 +997,10 @@ public class Page {
             buff = ByteBuffer.allocate(l);
             compressor.expand(comp, 0, compLen, buff.array(), buff.arrayOffset(), l);
         }
-        DataType keyType = map.getKeyType();
-        for (int i = 0; i < len; i++) {
-            Object k = keyType.read(buff);
-            keys[i] = k;
+        if ((type & DataUtils.PAGE_PREFIX_KEYS) != 0) {
+            readPrefixKeys(buff, len);
+        } else {
+            readKeys(buff, len, (type & DataUtils.PAGE_LONG_KEYS) != 0);
         }
         if (node) {
             childCount = len + 1;
@@ -785,6 +1029,120 @@ public class Page {
         memory = calculateMemory();
     }
 
+    /**
+     * Read the keys. Pages of maps with long keys keep the keys in a long
+     * array, even if they were stored as objects, and the other way round.
+     *
+     * @param buff the buffer
+     * @param len the number of keys
+     * @param storedLongKeys whether the keys are stored as long values
+     */
+    private void readKeys(ByteBuffer buff, int len, boolean storedLongKeys) {
+        DataType keyType = map.getKeyType();
+        LongKeyType longKeyType = map.getLongKeyType();
+        if (storedLongKeys) {
+            if (!(keyType instanceof LongKeyType)) {
+                throw DataUtils.newIllegalStateException(
+                        DataUtils.ERROR_FILE_CORRUPT,
+                        "File corrupted, map {0} with key type {1} " +
+                        "does not support long keys",
+                        map.getId(), keyType.getClass().getName());
+            }
+            long[] k = new long[len];
+            long x = 0;
+            for (int i = 0; i < len; i++) {
+                x += DataUtils.readVarLong(buff);
+                k[i] = x;
+            }
+            if (longKeyType != null) {
+                longKeys = k;
+            } else {
+                keys = new Object[len];
+                for (int i = 0; i < len; i++) {
+                    keys[i] = ((LongKeyType) keyType).fromLong(k[i]);
+                }
+            }
+        } else if (longKeyType != null) {
+            longKeys = new long[len];
+            for (int i = 0; i < len; i++) {
+                longKeys[i] = longKeyType.toLong(keyType.read(buff));
+            }
+        } else {
+            keys = new Object[len];
+            for (int i = 0; i < len; i++) {
+                keys[i] = keyType.read(buff);
+            }
+        }
+    }
+
+    /**
+     * Read the prefix compressed keys.
+     *
+     * @param buff the buffer
+     * @param len the number of keys
+     */
+    private void readPrefixKeys(ByteBuffer buff, int len) {
+        DataType keyType = map.getKeyType();
+        if (!(keyType instanceof BytesKeyType)) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_FILE_CORRUPT,
+                    "File corrupted, map {0} with key type {1} " +
+                    "does not support prefix compressed keys",
+                    map.getId(), keyType.getClass().getName());
+        }
+        BytesKeyType bytesKeyType = (BytesKeyType) keyType;
+        int prefixLen = DataUtils.readVarInt(buff);
+        byte[] prefix = DataUtils.newBytes(prefixLen);
+        buff.get(prefix);
+        keys = new Object[len];
+        for (int i = 0; i < len; i++) {
+            int l = DataUtils.readVarInt(buff);
+            byte[] k = Arrays.copyOf(prefix, prefixLen + l);
+            buff.get(k, prefixLen, l);
+            keys[i] = bytesKeyType.fromBytes(k);
+        }
+    }
+
+    /**
+     * Get the keys as byte arrays, if the key type supports it.
+     *
+     * @return the byte arrays, or null
+     */
+    private byte[][] getBytesKeys() {
+        DataType keyType = map.getKeyType();
+        int len = keyCount;
+        if (len == 0 || keys == null || !(keyType instanceof BytesKeyType)) {
+            return null;
+        }
+        BytesKeyType bytesKeyType = (BytesKeyType) keyType;
+        byte[][] k = new byte[len][];
+        for (int i = 0; i < len; i++) {
+            byte[] b = bytesKeyType.toBytes(keys[i]);
+            if (b == null) {
+                return null;
+            }
+            k[i] = b;
+        }
+        return k;
+    }
+
+    /**
+     * Get the length of the common prefix of sorted byte arrays, which is the
+     * common prefix of the first and the last array.
+     *
+     * @param k the byte arrays
+     * @return the length of the common prefix
+     */
+    private static int getPrefixLength(byte[][] k) {
+        byte[] first = k[0], last = k[k.length - 1];
+        int len = Math.min(first.length, last.length);
+        int i = 0;
+        while (i < len && first[i] == last[i]) {
+            i++;
+        }
+        return i;
+    }
+
     /**
      * Store the page and update the position.
      *
@@ -796,15 +1154,54 @@ public class Page {
         int len = keyCount;
         int type = children != null ? DataUtils.PAGE_TYPE_NODE
                 : DataUtils.PAGE_TYPE_LEAF;
+        MVStore store = map.getStore();
+        boolean checksum = store.isPageChecksum();
+        int flags = 0;
+        if (checksum) {
+            flags |= DataUtils.PAGE_CHECKSUM;
+            store.upgradeFormat();
+        }
+        byte[][] bytesKeys = null;
+        if (longKeys != null) {
+            flags |= DataUtils.PAGE_LONG_KEYS;
+            store.upgradeFormat();
+        } else {
+            bytesKeys = getBytesKeys();
+            if (bytesKeys != null) {
+                flags |= DataUtils.PAGE_PREFIX_KEYS;
+                store.upgradeFormat();
+            }
+        }
         buff.putInt(0).
             putShort((byte) 0).
             putVarInt(map.getId()).
             putVarInt(len).
-            put((byte) type);
+            put((byte) (type + flags));
+        int checksumPos = buff.position();
+        if (checksum) {
+            buff.putInt(0);
+        }
         int compressStart = buff.position();
-        DataType keyType = map.getKeyType();
-        for (int i = 0; i < len; i++) {
-            keyType.write(buff, keys[i]);
+        if (longKeys != null) {
+            long last = 0;
+            for (int i = 0; i < len; i++) {
+                long x = longKeys[i];
+                buff.putVarLong(x - last);
+                last = x;
+            }
+        } else if (bytesKeys != null) {
+            int prefixLen = getPrefixLength(bytesKeys);
+            buff.putVarInt(prefixLen).put(bytesKeys[0], 0, prefixLen);
+            for (int i = 0; i < len; i++) {
+                byte[] k = bytesKeys[i];
+                int l = k.length - prefixLen;
+                buff.putVarInt(l).put(k, prefixLen, l);
+            }
+        } else {
+            DataType keyType = map.getKeyType();
+            for (int i = 0; i < len; i++) {
+                keyType.write(buff, keys[i]);
+            }
         }
         if (type == DataUtils.PAGE_TYPE_NODE) {
             for (int i = 0; i <= len; i++) {
@@ -819,18 +1216,34 @@ public class Page {
                 valueType.write(buff, values[i]);
             }
         }
-        if (map.getStore().getCompress()) {
-            Compressor compressor = map.getStore().getCompressor();
+        int algorithm = map.getCompressionAlgorithm();
+        if (algorithm != Compressor.NO) {
+            Compressor compressor = store.getCompressor(algorithm);
             int expLen = buff.position() - compressStart;
             byte[] exp = new byte[expLen];
             buff.position(compressStart).
                 get(exp);
             byte[] comp = new byte[exp.length * 2];
             int compLen = compressor.compress(exp, exp.length, comp, 0);
-            if (compLen + DataUtils.getVarIntLen(compLen - expLen) < expLen) {
-                buff.position(compressStart - 1).
-                    put((byte) (type + DataUtils.PAGE_COMPRESSED)).
-                    putVarInt(expLen - compLen).
+            // LZF compressed pages don't store the algorithm,
+            // for compatibility with older versions
+            int algorithmLen = algorithm == Compressor.LZF ? 0 : 1;
+            if (compLen + algorithmLen +
+                    DataUtils.getVarIntLen(compLen - expLen) < expLen) {
+                int t = type + flags + DataUtils.PAGE_COMPRESSED;
+                if (algorithmLen != 0) {
+                    t += DataUtils.PAGE_COMPRESSED_ALGORITHM;
+                    store.upgradeFormat();
+                }
+                buff.position(checksumPos - 1).
+                    put((byte) t);
+                if (checksum) {
+                    buff.putInt(0);
+                }
+                if (algorithmLen != 0) {
+                    buff.put((byte) algorithm);
+                }
+                buff.putVarInt(expLen - compLen).
                     put(comp, 0, compLen);
             }
         }
@@ -841,6 +1254,10 @@ public class Page {
                 ^ DataUtils.getCheckValue(pageLength);
         buff.putInt(start, pageLength).
             putShort(start + 4, (short) check);
+        if (checksum) {
+            buff.putInt(checksumPos, DataUtils.getPageChecksum(
+                    buff.getBuffer(), start, pageLength, checksumPos));
+        }
         if (pos != 0) {
             throw DataUtils.newIllegalStateException(
                     DataUtils.ERROR_INTERNAL, "Page already stored");
@@ -851,6 +1268,7 @@ public class Page {
         chunk.maxLengthLive += max;
         chunk.pageCount++;
         chunk.pageCountLive++;
+        chunk.addPagePosition(pos);
     }
 
     /**
@@ -937,9 +1355,13 @@ public class Page {
 
     private int calculateMemory() {
         int mem = DataUtils.PAGE_MEMORY;
-        DataType keyType = map.getKeyType();
-        for (int i = 0; i < keyCount; i++) {
-            mem += keyType.getMemory(keys[i]);
+        if (longKeys != null) {
+            mem += keyCount * 8;
+        } else {
+            DataType keyType = map.getKeyType();
+            for (int i = 0; i < keyCount; i++) {
+                mem += keyType.getMemory(keys[i]);
+            }
         }
         if (this.isLeaf()) {
             DataType valueType = map.getValueType();
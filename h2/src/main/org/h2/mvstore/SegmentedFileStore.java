@@ -0,0 +1,382 @@
+/*
+ * Copyright 2004-2013 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.h2.mvstore.cache.FilePathCache;
+import org.h2.store.fs.FilePath;
+import org.h2.store.fs.FilePathEncrypt;
+import org.h2.util.MathUtils;
+
+/**
+ * A file store that splits the data over multiple segment files of a fixed
+ * size. The first segment is the file with the given name, and contains the
+ * store header; segment n (n &gt; 0) is stored in the file "name.n".
+ * <p>
+ * Space is allocated within a segment where possible. Once all chunks of a
+ * segment are freed (for example after compact or compactMoveChunks), the
+ * segment file is truncated on the next sync, so that the disk space is
+ * returned to the file system without having to move the remaining chunks.
+ * The truncation is delayed until then, as the last stored version may still
+ * reference the freed chunks until it is synced. Segments at the end of
+ * the store are deleted when the store is shrunk. Reads and writes of different
+ * segments use different file channels, so that they don't block each other.
+ * <p>
+ * The file returned by getFile() is the first segment only.
+ */
+public class SegmentedFileStore extends FileStore {
+
+    /**
+     * The default segment size (256 MB).
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 256 * 1024 * 1024;
+
+    /**
+     * The size of a segment in bytes (a multiple of the block size).
+     */
+    private final int segmentSize;
+
+    /**
+     * The segment files. The first entry is the same as the field "file".
+     * Entries may be null for segments that don't exist yet.
+     */
+    private volatile FileChannel[] segments = new FileChannel[0];
+
+    /**
+     * The password bytes, used to open additional segments of an encrypted
+     * store.
+     */
+    private byte[] encryptionKey;
+
+    /**
+     * The segments that became empty since the last sync.
+     */
+    private final BitSet emptySegments = new BitSet();
+
+    /**
+     * Create a store with the default segment size.
+     */
+    public SegmentedFileStore() {
+        this(DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Create a store with the given segment size.
+     *
+     * @param segmentSize the segment size in bytes (at least 4 blocks), will
+     *            be rounded up to a multiple of the block size
+     */
+    public SegmentedFileStore(int segmentSize) {
+        DataUtils.checkArgument(segmentSize >= 4 * MVStore.BLOCK_SIZE,
+                "Segment size {0} is too small", segmentSize);
+        this.segmentSize = MathUtils.roundUpInt(segmentSize, MVStore.BLOCK_SIZE);
+    }
+
+    /**
+     * Get the segment size.
+     *
+     * @return the segment size in bytes
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Get the number of segment files.
+     *
+     * @return the number of segments
+     */
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * Get the file name of the given segment.
+     *
+     * @param index the segment index
+     * @return the file name
+     */
+    public String getSegmentFileName(int index) {
+        return index == 0 ? fileName : fileName + "." + index;
+    }
+
+    @Override
+    public void open(String fileName, boolean readOnly, char[] encryptionKey) {
+        super.open(fileName, readOnly, encryptionKey);
+        if (encryptionKey != null) {
+            this.encryptionKey = FilePathEncrypt.getPasswordBytes(encryptionKey);
+        }
+        FileChannel[] list = { file };
+        long size = fileSize;
+        try {
+            for (int i = 1;; i++) {
+                FilePath f = FilePath.get(getSegmentFileName(i));
+                if (!f.exists()) {
+                    break;
+                }
+                list = Arrays.copyOf(list, i + 1);
+                list[i] = openSegment(f, this.readOnly);
+                long len = list[i].size();
+                if (len > 0) {
+                    size = (long) i * segmentSize + len;
+                }
+            }
+        } catch (IOException e) {
+            segments = list;
+            close();
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_READING_FAILED,
+                    "Could not open segment of file {0}", fileName, e);
+        }
+        segments = list;
+        fileSize = size;
+    }
+
+    private FileChannel openSegment(FilePath f, boolean readOnly)
+            throws IOException {
+        FileChannel channel = f.open(readOnly ? "r" : "rw");
+        if (encryptionKey != null) {
+            channel = new FilePathEncrypt.FileEncrypt(f.toString(),
+                    encryptionKey, channel);
+        }
+        return FilePathCache.wrap(channel);
+    }
+
+    /**
+     * Get the file channel of the given segment, and open (create) the segment
+     * if needed.
+     *
+     * @param index the segment index
+     * @return the file channel
+     */
+    private FileChannel getSegment(int index) {
+        FileChannel[] list = segments;
+        if (index < list.length && list[index] != null) {
+            return list[index];
+        }
+        synchronized (this) {
+            list = segments;
+            if (index < list.length && list[index] != null) {
+                return list[index];
+            }
+            if (index >= list.length) {
+                list = Arrays.copyOf(list, index + 1);
+            } else {
+                list = list.clone();
+            }
+            String name = getSegmentFileName(index);
+            try {
+                list[index] = openSegment(FilePath.get(name), readOnly);
+            } catch (IOException e) {
+                throw DataUtils.newIllegalStateException(
+                        DataUtils.ERROR_WRITING_FAILED,
+                        "Could not open file {0}", name, e);
+            }
+            segments = list;
+            return list[index];
+        }
+    }
+
+    @Override
+    public ByteBuffer readFully(long pos, int len) {
+        readCount++;
+        ByteBuffer dst = ByteBuffer.allocate(len);
+        while (dst.hasRemaining()) {
+            int index = (int) (pos / segmentSize);
+            long offset = pos - (long) index * segmentSize;
+            int l = (int) Math.min(dst.remaining(), segmentSize - offset);
+            ByteBuffer part = dst.slice();
+            part.limit(l);
+            DataUtils.readFully(getSegment(index), offset, part);
+            dst.position(dst.position() + l);
+            pos += l;
+        }
+        dst.rewind();
+        return dst;
+    }
+
+    @Override
+    public void writeFully(long pos, ByteBuffer src) {
+        writeCount++;
+        fileSize = Math.max(fileSize, pos + src.remaining());
+        while (src.hasRemaining()) {
+            int index = (int) (pos / segmentSize);
+            long offset = pos - (long) index * segmentSize;
+            int l = (int) Math.min(src.remaining(), segmentSize - offset);
+            ByteBuffer part = src.slice();
+            part.limit(l);
+            DataUtils.writeFully(getSegment(index), offset, part);
+            src.position(src.position() + l);
+            pos += l;
+        }
+    }
+
+    /**
+     * Allocate a number of blocks and mark them as used. If possible, the
+     * space is allocated within one segment.
+     *
+     * @param length the number of bytes to allocate
+     * @return the start position in bytes
+     */
+    @Override
+    public long allocate(int length) {
+        if (length > segmentSize) {
+            return freeSpace.allocate(length);
+        }
+        long[] skipped = null;
+        int skippedCount = 0;
+        long pos;
+        while (true) {
+            pos = freeSpace.allocate(length);
+            long boundary = (pos / segmentSize + 1) * segmentSize;
+            if (pos + length <= boundary) {
+                break;
+            }
+            // the free space crosses a segment boundary:
+            // temporarily mark the part before the boundary as used
+            freeSpace.free(pos, length);
+            freeSpace.markUsed(pos, (int) (boundary - pos));
+            if (skipped == null) {
+                skipped = new long[4];
+            } else if (skippedCount == skipped.length) {
+                skipped = Arrays.copyOf(skipped, skippedCount * 2);
+            }
+            skipped[skippedCount++] = pos;
+        }
+        for (int i = 0; i < skippedCount; i++) {
+            long p = skipped[i];
+            long boundary = (p / segmentSize + 1) * segmentSize;
+            freeSpace.free(p, (int) (boundary - p));
+        }
+        return pos;
+    }
+
+    @Override
+    public void free(long pos, int length) {
+        freeSpace.free(pos, length);
+        if (readOnly) {
+            return;
+        }
+        int first = (int) (pos / segmentSize);
+        int last = (int) ((pos + length - 1) / segmentSize);
+        // the first segment contains the store header, and is never trimmed
+        synchronized (emptySegments) {
+            for (int i = Math.max(1, first); i <= last; i++) {
+                long start = (long) i * segmentSize;
+                if (freeSpace.isFree(start, segmentSize)) {
+                    emptySegments.set(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Truncate the files of the segments that became empty, if they are still
+     * empty.
+     */
+    private void trimEmptySegments() {
+        synchronized (emptySegments) {
+            FileChannel[] list = segments;
+            for (int i = emptySegments.nextSetBit(0); i >= 0 && i < list.length;
+                    i = emptySegments.nextSetBit(i + 1)) {
+                long start = (long) i * segmentSize;
+                if (list[i] == null || !freeSpace.isFree(start, segmentSize)) {
+                    continue;
+                }
+                try {
+                    if (list[i].size() > 0) {
+                        writeCount++;
+                        list[i].truncate(0);
+                    }
+                } catch (IOException e) {
+                    throw DataUtils.newIllegalStateException(
+                            DataUtils.ERROR_WRITING_FAILED,
+                            "Could not truncate file {0}",
+                            getSegmentFileName(i), e);
+                }
+            }
+            emptySegments.clear();
+        }
+    }
+
+    @Override
+    public synchronized void truncate(long size) {
+        FileChannel[] list = segments;
+        int keep = Math.max(1, (int) ((size + segmentSize - 1) / segmentSize));
+        try {
+            writeCount++;
+            if (keep < list.length) {
+                segments = Arrays.copyOf(list, keep);
+                for (int i = list.length - 1; i >= keep; i--) {
+                    if (list[i] != null) {
+                        list[i].close();
+                    }
+                    FilePath.get(getSegmentFileName(i)).delete();
+                }
+            }
+            int index = keep - 1;
+            long len = size - (long) index * segmentSize;
+            FileChannel last = list[index];
+            if (last != null && last.size() > len) {
+                last.truncate(len);
+            }
+            fileSize = Math.min(fileSize, size);
+        } catch (IOException e) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_WRITING_FAILED,
+                    "Could not truncate file {0} to size {1}",
+                    fileName, size, e);
+        }
+    }
+
+    @Override
+    public void sync() {
+        FileChannel[] list = segments;
+        for (int i = 0; i < list.length; i++) {
+            if (list[i] == null) {
+                continue;
+            }
+            try {
+                list[i].force(true);
+            } catch (IOException e) {
+                throw DataUtils.newIllegalStateException(
+                        DataUtils.ERROR_WRITING_FAILED,
+                        "Could not sync file {0}", getSegmentFileName(i), e);
+            }
+        }
+        trimEmptySegments();
+    }
+
+    @Override
+    public void close() {
+        FileChannel[] list = segments;
+        segments = new FileChannel[0];
+        if (encryptionKey != null) {
+            Arrays.fill(encryptionKey, (byte) 0);
+            encryptionKey = null;
+        }
+        try {
+            for (int i = 1; i < list.length; i++) {
+                if (list[i] != null) {
+                    list[i].close();
+                }
+            }
+        } catch (IOException e) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_WRITING_FAILED,
+                    "Closing failed for file {0}", fileName, e);
+        } finally {
+            super.close();
+        }
+    }
+
+}
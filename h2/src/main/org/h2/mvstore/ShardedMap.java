@@ -0,0 +1,687 @@
+/*
+ * Copyright 2004-2013 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+
+import org.h2.mvstore.type.DataType;
+import org.h2.mvstore.type.ObjectDataType;
+import org.h2.mvstore.type.StringDataType;
+
+/**
+ * A map that is split into multiple sub-maps (shards) within one store. Each
+ * shard has its own root page, so that updates of different shards don't
+ * conflict, and page splits only affect one shard.
+ * <p>
+ * Keys are assigned to shards either by range (if split keys are set), or by
+ * the hash code of the key. Keys that are equal according to the key type
+ * need to be in the same shard, and the hash code of a key must not change
+ * between runs. Therefore, hash partitioning is only supported for the
+ * default key type and the string type, and for keys that are numbers,
+ * strings, characters, booleans, UUIDs, or byte arrays. Iteration is always
+ * in key order: for hash partitioning, the cursors of all shards are merged.
+ * <p>
+ * The shards are stored as the maps "name.shard.0" to "name.shard.(n-1)". The
+ * same partitioning (number of shards, and split keys if set) needs to be used
+ * when opening the map again.
+ *
+ * @param <K> the key class
+ * @param <V> the value class
+ */
+public class ShardedMap<K, V> extends AbstractMap<K, V>
+        implements ConcurrentMap<K, V> {
+
+    private final String name;
+    private final MVMap<K, V>[] shards;
+    private final Object[] splitKeys;
+    private final DataType keyType;
+
+    ShardedMap(String name, MVMap<K, V>[] shards, Object[] splitKeys) {
+        this.name = name;
+        this.shards = shards;
+        this.splitKeys = splitKeys;
+        this.keyType = shards[0].getKeyType();
+    }
+
+    /**
+     * Get the name of the map shard with the given index.
+     *
+     * @param name the name of the sharded map
+     * @param index the shard index
+     * @return the map name
+     */
+    static String getShardName(String name, int index) {
+        return name + ".shard." + index;
+    }
+
+    /**
+     * Get the index of the shard that contains the given key.
+     *
+     * @param key the key
+     * @return the shard index
+     */
+    int getShardIndex(Object key) {
+        if (splitKeys != null) {
+            int low = 0, high = splitKeys.length - 1;
+            while (low <= high) {
+                int x = (low + high) >>> 1;
+                int compare = keyType.compare(key, splitKeys[x]);
+                if (compare < 0) {
+                    high = x - 1;
+                } else {
+                    low = x + 1;
+                }
+            }
+            return low;
+        }
+        int hash = getHash(key);
+        // spread the bits, as the hash code of numbers is often sequential
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return (hash & Integer.MAX_VALUE) % shards.length;
+    }
+
+    /**
+     * Get the hash code of a key, for hash partitioning. Keys that are equal
+     * according to the key type get the same hash code, for example the
+     * BigDecimal values 1.0 and 1.00.
+     *
+     * @param key the key
+     * @return the hash code
+     * @throws IllegalArgumentException if hash partitioning is not supported
+     *             for keys of this class
+     */
+    static int getHash(Object key) {
+        if (key instanceof byte[]) {
+            return Arrays.hashCode((byte[]) key);
+        } else if (key instanceof BigDecimal) {
+            BigDecimal d = (BigDecimal) key;
+            // older JREs don't strip the trailing zeros of zero
+            return d.signum() == 0 ? 0 : d.stripTrailingZeros().hashCode();
+        } else if (key instanceof String || key instanceof Integer ||
+                key instanceof Long || key instanceof Short ||
+                key instanceof Byte || key instanceof BigInteger ||
+                key instanceof Double || key instanceof Float ||
+                key instanceof Character || key instanceof Boolean ||
+                key instanceof UUID) {
+            return key.hashCode();
+        }
+        throw DataUtils.newIllegalArgumentException(
+                "Hash partitioning is not supported for keys of class {0}, " +
+                "split keys need to be used", key.getClass().getName());
+    }
+
+    /**
+     * Get the shard that contains the given key.
+     *
+     * @param key the key
+     * @return the shard
+     */
+    public MVMap<K, V> getShard(Object key) {
+        return shards[getShardIndex(key)];
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    @Override
+    public V get(Object key) {
+        return getShard(key).get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return getShard(key).containsKey(key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        return getShard(key).put(key, value);
+    }
+
+    @Override
+    public V remove(Object key) {
+        return getShard(key).remove(key);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return getShard(key).putIfAbsent(key, value);
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        return getShard(key).remove(key, value);
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        return getShard(key).replace(key, oldValue, newValue);
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        return getShard(key).replace(key, value);
+    }
+
+    /**
+     * Remove all entries.
+     */
+    @Override
+    public void clear() {
+        for (MVMap<K, V> m : shards) {
+            m.clear();
+        }
+    }
+
+    /**
+     * Get the first key, or null if the map is empty.
+     *
+     * @return the first key, or null
+     */
+    public K firstKey() {
+        return getFirstLast(true);
+    }
+
+    /**
+     * Get the last key, or null if the map is empty.
+     *
+     * @return the last key, or null
+     */
+    public K lastKey() {
+        return getFirstLast(false);
+    }
+
+    private K getFirstLast(boolean first) {
+        K result = null;
+        for (MVMap<K, V> m : shards) {
+            K k = first ? m.firstKey() : m.lastKey();
+            if (k == null) {
+                continue;
+            }
+            if (result == null) {
+                result = k;
+            } else {
+                int compare = keyType.compare(k, result);
+                if (first ? compare < 0 : compare > 0) {
+                    result = k;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the index of the given key in the map.
+     * <p>
+     * If the key was found, the returned value is the index in the key array.
+     * If not found, the returned value is negative, where -1 means the
+     * provided key is smaller than any keys. See also Arrays.binarySearch.
+     *
+     * @param key the key
+     * @return the index
+     */
+    public long getKeyIndex(K key) {
+        int shard = getShardIndex(key);
+        long index = 0;
+        boolean found = false;
+        for (int i = 0; i < shards.length; i++) {
+            long x = shards[i].getKeyIndex(key);
+            if (x >= 0) {
+                index += x;
+                found = i == shard;
+            } else {
+                index += -x - 1;
+            }
+        }
+        return found ? index : -index - 1;
+    }
+
+    /**
+     * Iterate over all keys, in ascending order.
+     *
+     * @param from the first key to return
+     * @return the iterator
+     */
+    public Iterator<K> keyIterator(K from) {
+        if (splitKeys != null) {
+            return new RangeIterator<K>(shards, from,
+                    from == null ? 0 : getShardIndex(from));
+        }
+        return new MergedIterator<K>(shards, keyType, from);
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K, V>>() {
+
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                final Iterator<K> it = keyIterator(null);
+                return new Iterator<Map.Entry<K, V>>() {
+
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<K, V> next() {
+                        K k = it.next();
+                        return new ShardEntry<K, V>(k, get(k));
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw DataUtils.newUnsupportedOperationException(
+                                "Removing is not supported");
+                    }
+
+                };
+            }
+
+            @Override
+            public int size() {
+                return ShardedMap.this.size();
+            }
+
+        };
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return new AbstractSet<K>() {
+
+            @Override
+            public Iterator<K> iterator() {
+                return keyIterator(null);
+            }
+
+            @Override
+            public int size() {
+                return ShardedMap.this.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return ShardedMap.this.containsKey(o);
+            }
+
+        };
+    }
+
+    @Override
+    public int size() {
+        long size = sizeAsLong();
+        return size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) size;
+    }
+
+    /**
+     * Get the number of entries, as a long.
+     *
+     * @return the number of entries
+     */
+    public long sizeAsLong() {
+        long size = 0;
+        for (MVMap<K, V> m : shards) {
+            size += m.sizeAsLong();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (MVMap<K, V> m : shards) {
+            if (!m.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Open an old version for the given map.
+     *
+     * @param version the version
+     * @return the map
+     */
+    public ShardedMap<K, V> openVersion(long version) {
+        MVMap<K, V>[] old = newArray(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            old[i] = shards[i].openVersion(version);
+        }
+        return new ShardedMap<K, V>(name, old, splitKeys);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int hashCode() {
+        return name.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> MVMap<K, V>[] newArray(int len) {
+        return (MVMap<K, V>[]) new MVMap<?, ?>[len];
+    }
+
+    /**
+     * An entry of the map, returned when iterating over the entry set.
+     */
+    private static class ShardEntry<K, V> implements Map.Entry<K, V> {
+
+        private final K key;
+        private final V value;
+
+        ShardEntry(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            throw DataUtils.newUnsupportedOperationException(
+                    "Updating the value is not supported");
+        }
+
+        @Override
+        public int hashCode() {
+            return (key == null ? 0 : key.hashCode()) ^
+                    (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return key.equals(e.getKey()) &&
+                    (value == null ? e.getValue() == null : value.equals(e.getValue()));
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+
+    }
+
+    /**
+     * An iterator over the shards of a range partitioned map. The shards are
+     * iterated one after the other.
+     */
+    private static class RangeIterator<K> implements Iterator<K> {
+
+        private final MVMap<K, ?>[] shards;
+        private int shard;
+        private Cursor<K> cursor;
+
+        RangeIterator(MVMap<K, ?>[] shards, K from, int shard) {
+            this.shards = shards;
+            this.shard = shard;
+            cursor = shards[shard].keyIterator(from);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!cursor.hasNext()) {
+                if (++shard >= shards.length) {
+                    return false;
+                }
+                cursor = shards[shard].keyIterator(null);
+            }
+            return true;
+        }
+
+        @Override
+        public K next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return cursor.next();
+        }
+
+        @Override
+        public void remove() {
+            throw DataUtils.newUnsupportedOperationException(
+                    "Removing is not supported");
+        }
+
+    }
+
+    /**
+     * An iterator that merges the (sorted) cursors of all shards.
+     */
+    private static class MergedIterator<K> implements Iterator<K> {
+
+        private final Cursor<K>[] cursors;
+        private final Object[] current;
+        private final DataType keyType;
+
+        @SuppressWarnings("unchecked")
+        MergedIterator(MVMap<K, ?>[] shards, DataType keyType, K from) {
+            this.keyType = keyType;
+            cursors = (Cursor<K>[]) new Cursor<?>[shards.length];
+            current = new Object[shards.length];
+            for (int i = 0; i < shards.length; i++) {
+                cursors[i] = shards[i].keyIterator(from);
+                fetch(i);
+            }
+        }
+
+        private void fetch(int i) {
+            Cursor<K> c = cursors[i];
+            current[i] = c.hasNext() ? c.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            for (Object k : current) {
+                if (k != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public K next() {
+            int min = -1;
+            for (int i = 0; i < current.length; i++) {
+                Object k = current[i];
+                if (k != null && (min < 0 ||
+                        keyType.compare(k, current[min]) < 0)) {
+                    min = i;
+                }
+            }
+            if (min < 0) {
+                throw new NoSuchElementException();
+            }
+            K result = (K) current[min];
+            fetch(min);
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw DataUtils.newUnsupportedOperationException(
+                    "Removing is not supported");
+        }
+
+    }
+
+    /**
+     * A builder for this class.
+     *
+     * @param <K> the key type
+     * @param <V> the value type
+     */
+    public static class Builder<K, V> {
+
+        private DataType keyType;
+        private DataType valueType;
+        private int shardCount = 16;
+        private Object[] splitKeys;
+        private boolean concurrent;
+
+        /**
+         * Set the key data type.
+         *
+         * @param keyType the key type
+         * @return this
+         */
+        public Builder<K, V> keyType(DataType keyType) {
+            this.keyType = keyType;
+            return this;
+        }
+
+        /**
+         * Set the value data type.
+         *
+         * @param valueType the value type
+         * @return this
+         */
+        public Builder<K, V> valueType(DataType valueType) {
+            this.valueType = valueType;
+            return this;
+        }
+
+        /**
+         * Set the number of shards, for hash partitioning. The default is 16.
+         *
+         * @param shardCount the number of shards
+         * @return this
+         */
+        public Builder<K, V> shards(int shardCount) {
+            DataUtils.checkArgument(shardCount > 0,
+                    "Shard count must be positive, is {0}", shardCount);
+            this.shardCount = shardCount;
+            this.splitKeys = null;
+            return this;
+        }
+
+        /**
+         * Use range partitioning with the given split keys, which must be
+         * sorted. Shard i contains the keys smaller than split key i (and
+         * larger or equal than split key i - 1), so there is one shard more
+         * than there are split keys.
+         *
+         * @param splitKeys the sorted split keys
+         * @return this
+         */
+        @SuppressWarnings("unchecked")
+        public Builder<K, V> splitKeys(K... splitKeys) {
+            // the array is only read, so there is no heap pollution
+            DataUtils.checkArgument(splitKeys.length > 0,
+                    "At least one split key is required");
+            this.splitKeys = splitKeys.clone();
+            this.shardCount = splitKeys.length + 1;
+            return this;
+        }
+
+        /**
+         * Use maps that support concurrent writes for the shards.
+         *
+         * @return this
+         */
+        public Builder<K, V> concurrent() {
+            this.concurrent = true;
+            return this;
+        }
+
+        /**
+         * Open the sharded map. The shards are created if they don't exist
+         * yet.
+         *
+         * @param store the store
+         * @param name the name of the map
+         * @return the map
+         */
+        public ShardedMap<K, V> open(MVStore store, String name) {
+            if (keyType == null) {
+                keyType = new ObjectDataType();
+            }
+            if (valueType == null) {
+                valueType = new ObjectDataType();
+            }
+            if (splitKeys != null) {
+                for (int i = 1; i < splitKeys.length; i++) {
+                    DataUtils.checkArgument(
+                            keyType.compare(splitKeys[i - 1], splitKeys[i]) < 0,
+                            "The split keys are not sorted");
+                }
+            } else {
+                // the hash code of the keys needs to be consistent
+                // with the comparison of the key type
+                Class<?> c = keyType.getClass();
+                DataUtils.checkArgument(c == ObjectDataType.class ||
+                        c == StringDataType.class,
+                        "Hash partitioning is not supported for key type " +
+                        "{0}, split keys need to be used", c.getName());
+            }
+            if (store.hasMap(getShardName(name, 0))) {
+                if (!store.hasMap(getShardName(name, shardCount - 1)) ||
+                        store.hasMap(getShardName(name, shardCount))) {
+                    throw DataUtils.newIllegalArgumentException(
+                            "Map {0} was created with a different number of shards",
+                            name);
+                }
+            }
+            MVMap<K, V>[] shards = newArray(shardCount);
+            for (int i = 0; i < shardCount; i++) {
+                String shardName = getShardName(name, i);
+                if (concurrent) {
+                    shards[i] = store.openMap(shardName,
+                            new MVMapConcurrent.Builder<K, V>().
+                            keyType(keyType).valueType(valueType));
+                } else {
+                    shards[i] = store.openMap(shardName,
+                            new MVMap.Builder<K, V>().
+                            keyType(keyType).valueType(valueType));
+                }
+            }
+            return new ShardedMap<K, V>(name, shards, splitKeys);
+        }
+
+    }
+
+}
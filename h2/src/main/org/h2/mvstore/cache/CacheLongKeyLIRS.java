@@ -102,7 +102,7 @@ public class CacheLongKeyLIRS<V> {
     public void clear() {
         long max = Math.max(1, maxMemory / segmentCount);
         for (int i = 0; i < segmentCount; i++) {
-            segments[i] = new Segment<V>(
+            segments[i] = new Segment<V>(this,
                     max, averageMemory, stackMoveDistance);
         }
     }
@@ -173,6 +173,18 @@ public class CacheLongKeyLIRS<V> {
         return averageMemory;
     }
 
+    /**
+     * Called after a resident entry was removed, replaced, or evicted. This
+     * method is called while the segment is locked. The default
+     * implementation does nothing.
+     *
+     * @param key the key
+     * @param value the removed value
+     */
+    protected void onRemove(long key, V value) {
+        // nothing to do
+    }
+
     /**
      * Remove an entry. Both resident and non-resident entries can be
      * removed.
@@ -543,15 +555,23 @@ public class CacheLongKeyLIRS<V> {
          */
         private int stackMoveCounter;
 
+        /**
+         * The cache this segment belongs to.
+         */
+        private final CacheLongKeyLIRS<V> cache;
+
         /**
          * Create a new cache.
          *
+         * @param cache the cache this segment belongs to
          * @param maxMemory the maximum memory to use
          * @param averageMemory the average memory usage of an object
          * @param stackMoveDistance the number of other entries to be moved to
          *        the top of the stack before moving an entry to the top
          */
-        Segment(long maxMemory, int averageMemory, int stackMoveDistance) {
+        Segment(CacheLongKeyLIRS<V> cache, long maxMemory, int averageMemory,
+                int stackMoveDistance) {
+            this.cache = cache;
             setMaxMemory(maxMemory);
             setAverageMemory(averageMemory);
             this.stackMoveDistance = stackMoveDistance;
@@ -773,6 +793,9 @@ public class CacheLongKeyLIRS<V> {
                 removeFromQueue(e);
             }
             pruneStack();
+            if (old != null) {
+                cache.onRemove(key, old);
+            }
             return old;
         }
 
@@ -800,9 +823,11 @@ public class CacheLongKeyLIRS<V> {
                 Entry<V> e = queue.queuePrev;
                 usedMemory -= e.memory;
                 removeFromQueue(e);
+                V old = e.value;
                 e.value = null;
                 e.memory = 0;
                 addToQueue(queue2, e);
+                cache.onRemove(e.key, old);
                 // the size of the non-resident-cold entries needs to be limited
                 while (queue2Size + queue2Size > stackSize) {
                     e = queue2.queuePrev;
@@ -0,0 +1,432 @@
+/*
+ * Copyright 2004-2013 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.h2.mvstore.DataUtils;
+
+/**
+ * A cache for byte arrays that uses keys of type long, and keeps the data in
+ * the off-heap area of the main memory (direct byte buffers), so that large
+ * caches don't slow down the garbage collection. It is meant to cache the
+ * serialized form of objects that are costly to read, for example pages of a
+ * file.
+ * <p>
+ * The replacement algorithm is LIRS (see CacheLongKeyLIRS). Only a small
+ * object per entry is kept on the heap.
+ * <p>
+ * The memory is split into blocks of 512 bytes. Each entry uses a list of
+ * blocks: the first 4 bytes of each block contain the index of the next block
+ * of the entry (or of the next free block). The blocks are allocated in slabs
+ * of up to 16 MB, when they are needed for the first time.
+ * <p>
+ * This implementation is multi-threading safe.
+ */
+public class CacheLongKeyOffHeap {
+
+    /**
+     * The size of a block.
+     */
+    static final int BLOCK_SIZE = 512;
+
+    /**
+     * The number of data bytes in a block.
+     */
+    private static final int BLOCK_DATA = BLOCK_SIZE - 4;
+
+    /**
+     * The number of blocks per slab.
+     */
+    private static final int BLOCKS_PER_SLAB = 16 * 1024 * 1024 / BLOCK_SIZE;
+
+    private static final int SEGMENT_COUNT = 16;
+
+    /**
+     * The cache of the entries, with the number of bytes of the used blocks
+     * as the memory.
+     */
+    private final CacheLongKeyLIRS<Item> cache;
+
+    private final long maxMemory;
+
+    /**
+     * The total number of blocks.
+     */
+    private final int blockCount;
+
+    /**
+     * The slabs (created on demand).
+     */
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+
+    /**
+     * The number of blocks that were used at some point.
+     */
+    private int usedBlockHighWater;
+
+    /**
+     * The first free block, or -1.
+     */
+    private int firstFreeBlock = -1;
+
+    /**
+     * The number of blocks in the free list.
+     */
+    private int freeBlockCount;
+
+    /**
+     * The number of blocks in use.
+     */
+    private int usedBlockCount;
+
+    /**
+     * The number of cache hits and misses (updated by concurrent readers).
+     */
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    /**
+     * Create a new cache.
+     *
+     * @param maxMemory the maximum memory to use, in bytes
+     * @param averageMemory the expected average size of an entry, in bytes
+     */
+    public CacheLongKeyOffHeap(long maxMemory, int averageMemory) {
+        DataUtils.checkArgument(maxMemory >= BLOCK_SIZE * SEGMENT_COUNT,
+                "Max memory must be at least {0}, is {1}",
+                BLOCK_SIZE * SEGMENT_COUNT, maxMemory);
+        this.blockCount = (int) Math.min(Integer.MAX_VALUE - BLOCKS_PER_SLAB,
+                maxMemory / BLOCK_SIZE);
+        this.maxMemory = (long) blockCount * BLOCK_SIZE;
+        int average = Math.max(BLOCK_SIZE, averageMemory);
+        int stackMoveDistance = (int) Math.min(Integer.MAX_VALUE,
+                this.maxMemory / average * 2 / 100);
+        cache = new CacheLongKeyLIRS<Item>(this.maxMemory, average,
+                SEGMENT_COUNT, stackMoveDistance) {
+
+            @Override
+            protected void onRemove(long key, Item value) {
+                value.free();
+            }
+
+        };
+    }
+
+    /**
+     * Get a copy of the data for the given key.
+     *
+     * @param key the key
+     * @return a (heap) buffer with the data, or null if not found
+     */
+    public ByteBuffer get(long key) {
+        Item e = cache.get(key);
+        byte[] data = e == null ? null : e.read();
+        if (data == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return ByteBuffer.wrap(data);
+    }
+
+    /**
+     * Add an entry to the cache, and remove older entries if needed. If the
+     * data is too large, it is not added.
+     *
+     * @param key the key
+     * @param data the data (from the position to the limit; the position is
+     *            not changed)
+     */
+    public void put(long key, ByteBuffer data) {
+        int len = data.remaining();
+        int blocks = Math.max(1, (len + BLOCK_DATA - 1) / BLOCK_DATA);
+        int memory = blocks * BLOCK_SIZE;
+        if (memory > maxMemory / SEGMENT_COUNT / 4) {
+            // too large
+            cache.remove(key);
+            return;
+        }
+        Item e = new Item(len);
+        // this may evict other entries
+        cache.put(key, e, memory);
+        if (!e.write(data, blocks) && cache.peek(key) == e) {
+            cache.remove(key);
+        }
+    }
+
+    /**
+     * Remove an entry.
+     *
+     * @param key the key
+     */
+    public void remove(long key) {
+        cache.remove(key);
+    }
+
+    /**
+     * Remove all entries. The memory is kept.
+     */
+    public void clear() {
+        for (Long k : cache.keySet()) {
+            cache.remove(k);
+        }
+    }
+
+    /**
+     * Get the number of bytes of the blocks in use.
+     *
+     * @return the used memory
+     */
+    public synchronized long getUsedMemory() {
+        return (long) usedBlockCount * BLOCK_SIZE;
+    }
+
+    /**
+     * Get the number of bytes of the direct buffers that were allocated.
+     *
+     * @return the allocated memory
+     */
+    public long getAllocatedMemory() {
+        long x = 0;
+        for (ByteBuffer b : slabs) {
+            x += b.capacity();
+        }
+        return x;
+    }
+
+    /**
+     * Get the maximum memory to use.
+     *
+     * @return the maximum memory
+     */
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    /**
+     * Get the number of entries.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * Get the number of cache hits.
+     *
+     * @return the number of hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of cache misses.
+     *
+     * @return the number of misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Allocate a list of blocks.
+     *
+     * @param count the number of blocks
+     * @return the first block, or -1 if there is not enough space
+     */
+    synchronized int allocate(int count) {
+        if (freeBlockCount + blockCount - usedBlockHighWater < count) {
+            return -1;
+        }
+        int first = -1, last = -1;
+        for (int i = 0; i < count; i++) {
+            int block;
+            if (firstFreeBlock >= 0) {
+                block = firstFreeBlock;
+                firstFreeBlock = getNext(block);
+                freeBlockCount--;
+            } else {
+                block = usedBlockHighWater++;
+                int slab = block / BLOCKS_PER_SLAB;
+                if (slab >= slabs.length) {
+                    addSlab();
+                }
+            }
+            if (last < 0) {
+                first = block;
+            } else {
+                setNext(last, block);
+            }
+            last = block;
+        }
+        setNext(last, -1);
+        usedBlockCount += count;
+        return first;
+    }
+
+    private void addSlab() {
+        int index = slabs.length;
+        long remaining = (long) blockCount - (long) index * BLOCKS_PER_SLAB;
+        int blocks = (int) Math.min(BLOCKS_PER_SLAB, remaining);
+        slabs = Arrays.copyOf(slabs, index + 1);
+        slabs[index] = ByteBuffer.allocateDirect(blocks * BLOCK_SIZE);
+    }
+
+    /**
+     * Add a list of blocks to the free list.
+     *
+     * @param first the first block
+     * @param count the number of blocks
+     */
+    synchronized void free(int first, int count) {
+        int last = first;
+        for (int i = 1; i < count; i++) {
+            last = getNext(last);
+        }
+        setNext(last, firstFreeBlock);
+        firstFreeBlock = first;
+        freeBlockCount += count;
+        usedBlockCount -= count;
+    }
+
+    /**
+     * Get the next block of a list. The caller needs to ensure the list is not
+     * freed concurrently.
+     *
+     * @param block the block
+     * @return the next block, or -1
+     */
+    int getNext(int block) {
+        return getSlab(block).getInt(getOffset(block));
+    }
+
+    private void setNext(int block, int next) {
+        getSlab(block).putInt(getOffset(block), next);
+    }
+
+    /**
+     * Get the slab of a block.
+     *
+     * @param block the block
+     * @return the slab
+     */
+    ByteBuffer getSlab(int block) {
+        return slabs[block / BLOCKS_PER_SLAB];
+    }
+
+    /**
+     * Get the offset of a block within its slab.
+     *
+     * @param block the block
+     * @return the offset
+     */
+    static int getOffset(int block) {
+        return (block % BLOCKS_PER_SLAB) * BLOCK_SIZE;
+    }
+
+    /**
+     * A cache item. Only the list of blocks is kept on the heap.
+     */
+    private class Item {
+
+        /**
+         * The length of the data.
+         */
+        private final int length;
+
+        /**
+         * The first block, or -1 if the data is not written yet.
+         */
+        private int firstBlock = -1;
+
+        /**
+         * The number of blocks.
+         */
+        private int blockCount;
+
+        /**
+         * Whether the entry was removed.
+         */
+        private boolean freed;
+
+        Item(int length) {
+            this.length = length;
+        }
+
+        /**
+         * Allocate the blocks and write the data.
+         *
+         * @param data the data
+         * @param count the number of blocks
+         * @return true if successful
+         */
+        synchronized boolean write(ByteBuffer data, int count) {
+            if (freed) {
+                return false;
+            }
+            int first = allocate(count);
+            if (first < 0) {
+                freed = true;
+                return false;
+            }
+            ByteBuffer src = data.duplicate();
+            for (int block = first; block >= 0; block = getNext(block)) {
+                ByteBuffer dst = getSlab(block).duplicate();
+                dst.position(getOffset(block) + 4);
+                int l = Math.min(BLOCK_DATA, src.remaining());
+                int limit = src.limit();
+                src.limit(src.position() + l);
+                dst.put(src);
+                src.limit(limit);
+            }
+            firstBlock = first;
+            blockCount = count;
+            return true;
+        }
+
+        /**
+         * Read the data.
+         *
+         * @return the data, or null if not available
+         */
+        synchronized byte[] read() {
+            if (freed || firstBlock < 0) {
+                return null;
+            }
+            byte[] data = new byte[length];
+            int pos = 0;
+            for (int block = firstBlock; block >= 0; block = getNext(block)) {
+                ByteBuffer src = getSlab(block).duplicate();
+                src.position(getOffset(block) + 4);
+                int l = Math.min(BLOCK_DATA, length - pos);
+                src.get(data, pos, l);
+                pos += l;
+            }
+            return data;
+        }
+
+        /**
+         * Free the blocks.
+         */
+        synchronized void free() {
+            if (freed) {
+                return;
+            }
+            freed = true;
+            if (firstBlock >= 0) {
+                CacheLongKeyOffHeap.this.free(firstBlock, blockCount);
+                firstBlock = -1;
+            }
+        }
+
+    }
+
+}
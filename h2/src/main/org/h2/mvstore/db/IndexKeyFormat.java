@@ -0,0 +1,364 @@
+/*
+ * Copyright 2004-2013 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore.db;
+
+import java.util.Arrays;
+
+import org.h2.message.DbException;
+import org.h2.result.SortOrder;
+import org.h2.value.CompareMode;
+import org.h2.value.Value;
+import org.h2.value.ValueBoolean;
+import org.h2.value.ValueByte;
+import org.h2.value.ValueBytes;
+import org.h2.value.ValueDate;
+import org.h2.value.ValueDouble;
+import org.h2.value.ValueFloat;
+import org.h2.value.ValueInt;
+import org.h2.value.ValueLong;
+import org.h2.value.ValueNull;
+import org.h2.value.ValueShort;
+import org.h2.value.ValueString;
+import org.h2.value.ValueStringFixed;
+import org.h2.value.ValueTime;
+import org.h2.value.ValueTimestamp;
+import org.h2.value.ValueUuid;
+
+/**
+ * An order preserving binary encoding of index keys. Two encoded keys,
+ * compared as unsigned bytes, are sorted in the same order as the column
+ * values. Each column starts with a marker byte (null or not null), followed
+ * by the value; all bytes of a descending column are inverted. Numbers are
+ * stored big endian with the sign bit flipped, and strings and byte arrays
+ * are terminated by a zero byte.
+ * <p>
+ * Only data types where this order matches the order of the values are
+ * supported. Strings are only supported if no collation is used.
+ */
+class IndexKeyFormat {
+
+    private static final int NULL = 1;
+    private static final int NOT_NULL = 2;
+
+    private final int[] types;
+    private final int[] sortTypes;
+    private final boolean binaryUnsigned;
+
+    private IndexKeyFormat(int[] types, int[] sortTypes, boolean binaryUnsigned) {
+        this.types = types;
+        this.sortTypes = sortTypes;
+        this.binaryUnsigned = binaryUnsigned;
+    }
+
+    /**
+     * Get the key format for the given column types.
+     *
+     * @param types the data types of the columns
+     * @param sortTypes the sort types of the columns
+     * @param compareMode the compare mode
+     * @return the key format, or null if one of the data types is not
+     *         supported
+     */
+    static IndexKeyFormat get(int[] types, int[] sortTypes, CompareMode compareMode) {
+        for (int type : types) {
+            switch (type) {
+            case Value.BOOLEAN:
+            case Value.BYTE:
+            case Value.SHORT:
+            case Value.INT:
+            case Value.LONG:
+            case Value.DATE:
+            case Value.TIME:
+            case Value.TIMESTAMP:
+            case Value.DOUBLE:
+            case Value.FLOAT:
+            case Value.UUID:
+            case Value.BYTES:
+                break;
+            case Value.STRING:
+            case Value.STRING_FIXED:
+                if (!CompareMode.OFF.equals(compareMode.getName())) {
+                    return null;
+                }
+                break;
+            default:
+                return null;
+            }
+        }
+        return new IndexKeyFormat(types, sortTypes, compareMode.isBinaryUnsigned());
+    }
+
+    /**
+     * Encode the values. Encoding stops at the first value that is not set
+     * (null) or not of the data type of the column. Such a key sorts before
+     * all keys that start with the same column values, and can be used to
+     * start a search.
+     *
+     * @param values the values
+     * @return the key
+     */
+    ValueIndexKey encode(Value[] values) {
+        Buffer buff = new Buffer();
+        for (int i = 0; i < types.length; i++) {
+            Value v = values[i];
+            if (v == null) {
+                break;
+            }
+            int start = buff.pos;
+            if (v == ValueNull.INSTANCE) {
+                buff.put(NULL);
+            } else if (v.getType() == types[i]) {
+                buff.put(NOT_NULL);
+                writeValue(buff, v);
+            } else {
+                break;
+            }
+            if ((sortTypes[i] & SortOrder.DESCENDING) != 0) {
+                buff.invert(start);
+            }
+        }
+        return new ValueIndexKey(buff.toByteArray());
+    }
+
+    private void writeValue(Buffer buff, Value v) {
+        switch (v.getType()) {
+        case Value.BOOLEAN:
+            buff.put(v.getBoolean().booleanValue() ? 1 : 0);
+            break;
+        case Value.BYTE:
+            buff.putBits(v.getByte() ^ Byte.MIN_VALUE, 1);
+            break;
+        case Value.SHORT:
+            buff.putBits(v.getShort() ^ Short.MIN_VALUE, 2);
+            break;
+        case Value.INT:
+            buff.putBits(v.getInt() ^ Integer.MIN_VALUE, 4);
+            break;
+        case Value.LONG:
+            buff.putBits(v.getLong() ^ Long.MIN_VALUE, 8);
+            break;
+        case Value.DATE:
+            buff.putBits(((ValueDate) v).getDateValue() ^ Long.MIN_VALUE, 8);
+            break;
+        case Value.TIME:
+            buff.putBits(((ValueTime) v).getNanos() ^ Long.MIN_VALUE, 8);
+            break;
+        case Value.TIMESTAMP: {
+            ValueTimestamp ts = (ValueTimestamp) v;
+            buff.putBits(ts.getDateValue() ^ Long.MIN_VALUE, 8);
+            buff.putBits(ts.getNanos() ^ Long.MIN_VALUE, 8);
+            break;
+        }
+        case Value.DOUBLE: {
+            long x = Double.doubleToLongBits(v.getDouble());
+            buff.putBits(x ^ ((x >> 63) | Long.MIN_VALUE), 8);
+            break;
+        }
+        case Value.FLOAT: {
+            int x = Float.floatToIntBits(v.getFloat());
+            buff.putBits(x ^ ((x >> 31) | Integer.MIN_VALUE), 4);
+            break;
+        }
+        case Value.UUID: {
+            ValueUuid uuid = (ValueUuid) v;
+            buff.putBits(uuid.getHigh() ^ Long.MIN_VALUE, 8);
+            buff.putBits(uuid.getLow() ^ Long.MIN_VALUE, 8);
+            break;
+        }
+        case Value.BYTES: {
+            // zero is stored as 0, 255; the end as 0, 0
+            int flip = binaryUnsigned ? 0 : 0x80;
+            for (byte b : v.getBytesNoCopy()) {
+                int x = (b & 255) ^ flip;
+                buff.put(x);
+                if (x == 0) {
+                    buff.put(255);
+                }
+            }
+            buff.put(0);
+            buff.put(0);
+            break;
+        }
+        case Value.STRING:
+        case Value.STRING_FIXED: {
+            // characters below 127 need one byte, the end is stored as 0
+            String s = v.getString();
+            for (int i = 0, len = s.length(); i < len; i++) {
+                int c = s.charAt(i);
+                if (c < 0x7f) {
+                    buff.put(c + 1);
+                } else if (c < 0x7f + 0x4000) {
+                    c -= 0x7f;
+                    buff.put(0x80 | (c >> 8));
+                    buff.put(c & 255);
+                } else {
+                    buff.put(0xc0);
+                    buff.put(c >> 8);
+                    buff.put(c & 255);
+                }
+            }
+            buff.put(0);
+            break;
+        }
+        default:
+            DbException.throwInternalError("type=" + v.getType());
+        }
+    }
+
+    /**
+     * Decode a key that contains all columns.
+     *
+     * @param key the key
+     * @return the values
+     */
+    Value[] decode(ValueIndexKey key) {
+        Reader r = new Reader(key.getData());
+        int len = types.length;
+        Value[] values = new Value[len];
+        for (int i = 0; i < len; i++) {
+            r.mask = (sortTypes[i] & SortOrder.DESCENDING) != 0 ? 255 : 0;
+            if (r.get() == NULL) {
+                values[i] = ValueNull.INSTANCE;
+            } else {
+                values[i] = readValue(r, types[i]);
+            }
+        }
+        return values;
+    }
+
+    private Value readValue(Reader r, int type) {
+        switch (type) {
+        case Value.BOOLEAN:
+            return ValueBoolean.get(r.get() != 0);
+        case Value.BYTE:
+            return ValueByte.get((byte) (r.getBits(1) ^ Byte.MIN_VALUE));
+        case Value.SHORT:
+            return ValueShort.get((short) (r.getBits(2) ^ Short.MIN_VALUE));
+        case Value.INT:
+            return ValueInt.get((int) r.getBits(4) ^ Integer.MIN_VALUE);
+        case Value.LONG:
+            return ValueLong.get(r.getBits(8) ^ Long.MIN_VALUE);
+        case Value.DATE:
+            return ValueDate.fromDateValue(r.getBits(8) ^ Long.MIN_VALUE);
+        case Value.TIME:
+            return ValueTime.fromNanos(r.getBits(8) ^ Long.MIN_VALUE);
+        case Value.TIMESTAMP: {
+            long dateValue = r.getBits(8) ^ Long.MIN_VALUE;
+            long nanos = r.getBits(8) ^ Long.MIN_VALUE;
+            return ValueTimestamp.fromDateValueAndNanos(dateValue, nanos);
+        }
+        case Value.DOUBLE: {
+            long x = r.getBits(8);
+            x ^= x < 0 ? Long.MIN_VALUE : -1L;
+            return ValueDouble.get(Double.longBitsToDouble(x));
+        }
+        case Value.FLOAT: {
+            int x = (int) r.getBits(4);
+            x ^= x < 0 ? Integer.MIN_VALUE : -1;
+            return ValueFloat.get(Float.intBitsToFloat(x));
+        }
+        case Value.UUID: {
+            long high = r.getBits(8) ^ Long.MIN_VALUE;
+            long low = r.getBits(8) ^ Long.MIN_VALUE;
+            return ValueUuid.get(high, low);
+        }
+        case Value.BYTES: {
+            int flip = binaryUnsigned ? 0 : 0x80;
+            Buffer buff = new Buffer();
+            while (true) {
+                int x = r.get();
+                if (x == 0 && r.get() == 0) {
+                    break;
+                }
+                buff.put(x ^ flip);
+            }
+            return ValueBytes.getNoCopy(buff.toByteArray());
+        }
+        case Value.STRING:
+        case Value.STRING_FIXED: {
+            StringBuilder buff = new StringBuilder();
+            while (true) {
+                int x = r.get();
+                if (x == 0) {
+                    break;
+                } else if (x < 0x80) {
+                    buff.append((char) (x - 1));
+                } else if (x < 0xc0) {
+                    buff.append((char) ((((x & 0x3f) << 8) | r.get()) + 0x7f));
+                } else {
+                    buff.append((char) ((r.get() << 8) | r.get()));
+                }
+            }
+            String s = buff.toString();
+            return type == Value.STRING ? ValueString.get(s) : ValueStringFixed.get(s);
+        }
+        default:
+            throw DbException.throwInternalError("type=" + type);
+        }
+    }
+
+    /**
+     * A growable byte buffer.
+     */
+    private static class Buffer {
+
+        byte[] data = new byte[32];
+        int pos;
+
+        void put(int x) {
+            if (pos == data.length) {
+                data = Arrays.copyOf(data, pos * 2);
+            }
+            data[pos++] = (byte) x;
+        }
+
+        void putBits(long x, int bytes) {
+            for (int i = bytes - 1; i >= 0; i--) {
+                put((int) (x >>> (i * 8)));
+            }
+        }
+
+        void invert(int start) {
+            for (int i = start; i < pos; i++) {
+                data[i] = (byte) ~data[i];
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(data, pos);
+        }
+
+    }
+
+    /**
+     * Reads the bytes of a key, inverting them for descending columns.
+     */
+    private static class Reader {
+
+        final byte[] data;
+        int pos;
+        int mask;
+
+        Reader(byte[] data) {
+            this.data = data;
+        }
+
+        int get() {
+            return (data[pos++] ^ mask) & 255;
+        }
+
+        long getBits(int bytes) {
+            long x = 0;
+            for (int i = 0; i < bytes; i++) {
+                x = (x << 8) | get();
+            }
+            return x;
+        }
+
+    }
+
+}
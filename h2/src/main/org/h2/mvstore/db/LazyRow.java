@@ -0,0 +1,61 @@
+/*
+ * Copyright 2004-2013 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore.db;
+
+import org.h2.result.Row;
+import org.h2.store.Data;
+import org.h2.value.Value;
+
+/**
+ * A row of a table that decodes each column when it is first accessed.
+ */
+class LazyRow extends Row {
+
+    private final ValueLazyArray array;
+
+    LazyRow(ValueLazyArray array) {
+        super(new Value[array.getColumnCount()], 0);
+        this.array = array;
+    }
+
+    @Override
+    public Value getValue(int i) {
+        Value v = super.getValue(i);
+        if (v == null) {
+            v = array.getValue(i);
+            super.setValue(i, v);
+        }
+        return v;
+    }
+
+    @Override
+    public Value[] getValueList() {
+        for (int i = 0, len = getColumnCount(); i < len; i++) {
+            getValue(i);
+        }
+        return super.getValueList();
+    }
+
+    @Override
+    public Row getCopy() {
+        getValueList();
+        return super.getCopy();
+    }
+
+    @Override
+    public int getByteCount(Data dummy) {
+        getValueList();
+        return super.getByteCount(dummy);
+    }
+
+    @Override
+    public String toString() {
+        getValueList();
+        return super.toString();
+    }
+
+}
@@ -51,9 +51,9 @@ public class MVPrimaryIndex extends BaseIndex {
             sortTypes[i] = SortOrder.ASCENDING;
         }
         ValueDataType keyType = new ValueDataType(
-                null, null, null);
+                null, null, null, true);
         ValueDataType valueType = new ValueDataType(
-                db.getCompareMode(), db, sortTypes);
+                db.getCompareMode(), db, sortTypes, false, true);
         mapName = "table." + getId();
         dataMap = mvTable.getTransaction(null).openMap(
                 mapName, keyType, valueType);
@@ -123,7 +123,7 @@ public class MVPrimaryIndex extends BaseIndex {
         try {
             map.put(key, ValueArray.get(row.getValueList()));
         } catch (IllegalStateException e) {
-            throw DbException.get(ErrorCode.CONCURRENT_UPDATE_1, table.getName());
+            throw mvTable.convertException(session, e);
         }
         lastKey = Math.max(lastKey, row.getKey());
     }
@@ -146,7 +146,7 @@ public class MVPrimaryIndex extends BaseIndex {
                         getSQL() + ": " + row.getKey());
             }
         } catch (IllegalStateException e) {
-            throw DbException.get(ErrorCode.CONCURRENT_UPDATE_1, table.getName());
+            throw mvTable.convertException(session, e);
         }
     }
 
@@ -185,10 +185,24 @@ public class MVPrimaryIndex extends BaseIndex {
 
     @Override
     public Row getRow(Session session, long key) {
-        TransactionMap<Value, Value> map = getMap(session);
+        return getRow(getMap(session), key);
+    }
+
+    /**
+     * Get the row with the given key from the given map.
+     *
+     * @param map the map
+     * @param key the row key
+     * @return the row
+     */
+    Row getRow(TransactionMap<Value, Value> map, long key) {
         Value v = map.get(ValueLong.get(key));
-        ValueArray array = (ValueArray) v;
-        Row row = new Row(array.getList(), 0);
+        Row row;
+        if (v instanceof ValueLazyArray) {
+            row = new LazyRow((ValueLazyArray) v);
+        } else {
+            row = new Row(((ValueArray) v).getList(), 0);
+        }
         row.setKey(key);
         return row;
     }
@@ -196,7 +210,7 @@ public class MVPrimaryIndex extends BaseIndex {
     @Override
     public double getCost(Session session, int[] masks, TableFilter filter, SortOrder sortOrder) {
         try {
-            long cost = 10 * (dataMap.map.sizeAsLong() + Constants.COST_ROW_OFFSET);
+            long cost = 10 * (dataMap.sizeAsLongApproximation() + Constants.COST_ROW_OFFSET);
             return cost;
         } catch (IllegalStateException e) {
             throw DbException.get(ErrorCode.OBJECT_CLOSED);
@@ -261,7 +275,7 @@ public class MVPrimaryIndex extends BaseIndex {
     @Override
     public long getRowCountApproximation() {
         try {
-            return dataMap.map.sizeAsLong();
+            return dataMap.sizeAsLongApproximation();
         } catch (IllegalStateException e) {
             throw DbException.get(ErrorCode.OBJECT_CLOSED);
         }
@@ -311,7 +325,7 @@ public class MVPrimaryIndex extends BaseIndex {
      * @param last the key of the last row
      * @return the cursor
      */
-    Cursor find(Session session, long first, long last) {
+    public Cursor find(Session session, long first, long last) {
         TransactionMap<Value, Value> map = getMap(session);
         return new MVStoreCursor(session, map.keyIterator(ValueLong.get(first)), last);
     }
@@ -321,6 +335,24 @@ public class MVPrimaryIndex extends BaseIndex {
         return true;
     }
 
+    /**
+     * Get the row keys that split the table into parts with about the same
+     * number of rows.
+     *
+     * @param parts the number of parts
+     * @return the first row key of each part except the first one
+     */
+    public long[] getSplitKeys(int parts) {
+        long size = dataMap.map.sizeAsLong();
+        long[] keys = new long[parts - 1];
+        for (int i = 1; i < parts; i++) {
+            Value k = dataMap.map.getKey(size * i / parts);
+            // the map could be empty
+            keys[i - 1] = k == null ? Long.MAX_VALUE : k.getLong();
+        }
+        return keys;
+    }
+
     /**
      * Get the map to store the data.
      *
@@ -332,7 +364,9 @@ public class MVPrimaryIndex extends BaseIndex {
             return dataMap;
         }
         Transaction t = mvTable.getTransaction(session);
-        return dataMap.getInstance(t, Long.MAX_VALUE);
+        TransactionMap<Value, Value> map = dataMap.getInstance(t, Long.MAX_VALUE);
+        map.setReadView(session.getReadView());
+        return map;
     }
 
     /**
@@ -8,7 +8,12 @@ package org.h2.mvstore.db;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.h2.api.DatabaseEventListener;
 
 import org.h2.constant.ErrorCode;
 import org.h2.engine.Database;
@@ -17,14 +22,18 @@ import org.h2.index.BaseIndex;
 import org.h2.index.Cursor;
 import org.h2.index.IndexType;
 import org.h2.message.DbException;
+import org.h2.mvstore.MVMap;
 import org.h2.mvstore.db.TransactionStore.Transaction;
 import org.h2.mvstore.db.TransactionStore.TransactionMap;
+import org.h2.mvstore.db.TransactionStore.VersionedValue;
+import org.h2.mvstore.type.DataType;
 import org.h2.result.Row;
 import org.h2.result.SearchRow;
 import org.h2.result.SortOrder;
 import org.h2.table.Column;
 import org.h2.table.IndexColumn;
 import org.h2.table.TableFilter;
+import org.h2.util.MathUtils;
 import org.h2.util.New;
 import org.h2.value.Value;
 import org.h2.value.ValueArray;
@@ -43,6 +52,7 @@ public class MVSecondaryIndex extends BaseIndex {
 
     private final int keyColumns;
     private final String mapName;
+    private final IndexKeyFormat keyFormat;
     private TransactionMap<Value, Value> dataMap;
 
     public MVSecondaryIndex(Database db, MVTable table, int id, String indexName,
@@ -56,10 +66,13 @@ public class MVSecondaryIndex extends BaseIndex {
         // even for unique indexes, as some of the index columns could be null
         keyColumns = columns.length + 1;
         int[] sortTypes = new int[keyColumns];
+        int[] types = new int[keyColumns];
         for (int i = 0; i < columns.length; i++) {
             sortTypes[i] = columns[i].sortType;
+            types[i] = columns[i].column.getType();
         }
         sortTypes[keyColumns - 1] = SortOrder.ASCENDING;
+        types[keyColumns - 1] = Value.LONG;
         mapName = "index." + getId();
         ValueDataType keyType = new ValueDataType(
                 db.getCompareMode(), db, sortTypes);
@@ -69,6 +82,16 @@ public class MVSecondaryIndex extends BaseIndex {
         if (keyType != dataMap.map.getKeyType()) {
             throw DbException.throwInternalError("Incompatible key type");
         }
+        // use binary keys if all column types support it,
+        // unless the index already contains array keys
+        IndexKeyFormat format = IndexKeyFormat.get(types, sortTypes, db.getCompareMode());
+        if (format != null) {
+            Value first = dataMap.map.firstKey();
+            if (first != null && !(first instanceof ValueIndexKey)) {
+                format = null;
+            }
+        }
+        keyFormat = format;
     }
 
     @Override
@@ -79,18 +102,17 @@ public class MVSecondaryIndex extends BaseIndex {
     @Override
     public void add(Session session, Row row) {
         TransactionMap<Value, Value> map = getMap(session);
-        ValueArray array = getKey(row);
-        ValueArray unique = null;
+        Value array = getKey(row, row.getKey());
+        Value unique = null;
         if (indexType.isUnique()) {
             // this will detect committed entries only
-            unique = getKey(row);
-            unique.getList()[keyColumns - 1] = ValueLong.get(Long.MIN_VALUE);
-            ValueArray key = (ValueArray) map.getLatestCeilingKey(unique);
+            unique = getKey(row, Long.MIN_VALUE);
+            Value key = map.getLatestCeilingKey(unique);
             if (key != null) {
-                SearchRow r2 = getRow(key.getList());
+                SearchRow r2 = getRow(key);
                 if (compareRows(row, r2) == 0) {
                     if (!containsNullAndAllowMultipleNull(r2)) {
-                        throw getDuplicateKeyException(key.toString());
+                        throw getDuplicateKeyException(getKeyString(key));
                     }
                 }
             }
@@ -98,14 +120,14 @@ public class MVSecondaryIndex extends BaseIndex {
         try {
             map.put(array, ValueNull.INSTANCE);
         } catch (IllegalStateException e) {
-            throw DbException.get(ErrorCode.CONCURRENT_UPDATE_1, table.getName());
+            throw mvTable.convertException(session, e);
         }
         if (indexType.isUnique()) {
             // check if there is another (uncommitted) entry
             Iterator<Value> it = map.keyIterator(unique, true);
             while (it.hasNext()) {
-                ValueArray k = (ValueArray) it.next();
-                SearchRow r2 = getRow(k.getList());
+                Value k = it.next();
+                SearchRow r2 = getRow(k);
                 if (compareRows(row, r2) != 0) {
                     break;
                 }
@@ -119,16 +141,89 @@ public class MVSecondaryIndex extends BaseIndex {
                 map.remove(array);
                 if (map.get(k) != null) {
                     // committed
-                    throw getDuplicateKeyException(k.toString());
+                    throw getDuplicateKeyException(getKeyString(k));
                 }
                 throw DbException.get(ErrorCode.CONCURRENT_UPDATE_1, table.getName());
             }
         }
     }
 
+    /**
+     * Sort the index keys of the given rows and add them to the temporary
+     * map. The list is cleared afterwards.
+     *
+     * @param keys the index keys
+     * @param buffer the temporary map
+     */
+    void addKeysToBuffer(ArrayList<Value> keys, MVMap<Value, Value> buffer) {
+        final DataType keyType = dataMap.map.getKeyType();
+        Collections.sort(keys, new Comparator<Value>() {
+            @Override
+            public int compare(Value a, Value b) {
+                return keyType.compare(a, b);
+            }
+        });
+        for (Value k : keys) {
+            buffer.put(k, ValueNull.INSTANCE);
+        }
+        keys.clear();
+    }
+
+    /**
+     * Merge the keys of the temporary maps, and add them to this index. The
+     * index must be empty and not used by other transactions; the entries are
+     * added as committed entries, without undo log.
+     *
+     * @param buffers the temporary maps
+     */
+    void addBufferedKeys(List<MVMap<Value, Value>> buffers) {
+        final DataType keyType = dataMap.map.getKeyType();
+        PriorityQueue<Source> queue = new PriorityQueue<Source>(
+                Math.max(1, buffers.size()), new Comparator<Source>() {
+            @Override
+            public int compare(Source a, Source b) {
+                return keyType.compare(a.current, b.current);
+            }
+        });
+        long total = 0;
+        for (MVMap<Value, Value> b : buffers) {
+            total += b.sizeAsLong();
+            Iterator<Value> it = b.keyIterator(null);
+            if (it.hasNext()) {
+                queue.add(new Source(it));
+            }
+        }
+        String n = table.getName() + ":" + getName();
+        int t = MathUtils.convertLongToInt(total);
+        long i = 0;
+        SearchRow last = null;
+        MVMap.BulkLoader<Value, VersionedValue> loader = dataMap.map.bulkLoader(100);
+        VersionedValue value = new VersionedValue();
+        value.value = ValueNull.INSTANCE;
+        while (!queue.isEmpty()) {
+            Source s = queue.poll();
+            Value key = s.current;
+            if (indexType.isUnique()) {
+                SearchRow r = getRow(key);
+                if (last != null && compareRows(r, last) == 0 &&
+                        !containsNullAndAllowMultipleNull(r)) {
+                    throw getDuplicateKeyException(getKeyString(key));
+                }
+                last = r;
+            }
+            loader.add(key, value);
+            if (s.next()) {
+                queue.add(s);
+            }
+            database.setProgress(DatabaseEventListener.STATE_CREATE_INDEX, n,
+                    MathUtils.convertLongToInt(i++), t);
+        }
+        loader.finish();
+    }
+
     @Override
     public void remove(Session session, Row row) {
-        ValueArray array = getKey(row);
+        Value array = getKey(row, row.getKey());
         TransactionMap<Value, Value> map = getMap(session);
         try {
             Value old = map.remove(array);
@@ -137,41 +232,82 @@ public class MVSecondaryIndex extends BaseIndex {
                         getSQL() + ": " + row.getKey());
             }
         } catch (IllegalStateException e) {
-            throw DbException.get(ErrorCode.CONCURRENT_UPDATE_1, table.getName());
+            throw mvTable.convertException(session, e);
         }
     }
 
     @Override
     public Cursor find(Session session, SearchRow first, SearchRow last) {
-        ValueArray min = getKey(first);
-        if (min != null) {
-            min.getList()[keyColumns - 1] = ValueLong.get(Long.MIN_VALUE);
-        }
+        Value min = getSearchKey(first);
         TransactionMap<Value, Value> map = getMap(session);
         return new MVStoreCursor(session, map.keyIterator(min), last);
     }
 
-    private ValueArray getKey(SearchRow r) {
+    /**
+     * Get the index key of a row.
+     *
+     * @param r the row
+     * @param key the row key
+     * @return the index key
+     */
+    Value getKey(SearchRow r, long key) {
+        Value[] array = new Value[keyColumns];
+        for (int i = 0; i < columns.length; i++) {
+            Column c = columns[i];
+            Value v = r.getValue(c.getColumnId());
+            if (keyFormat != null && v != ValueNull.INSTANCE && v.getType() != c.getType()) {
+                v = c.convert(v);
+            }
+            array[i] = v;
+        }
+        array[keyColumns - 1] = ValueLong.get(key);
+        return keyFormat == null ? ValueArray.get(array) : keyFormat.encode(array);
+    }
+
+    /**
+     * Get the key to start searching. For binary keys, only the leading
+     * columns that are set and of the column type are used.
+     *
+     * @param r the search row (may be null)
+     * @return the key, or null to start at the first entry
+     */
+    private Value getSearchKey(SearchRow r) {
         if (r == null) {
             return null;
         }
         Value[] array = new Value[keyColumns];
         for (int i = 0; i < columns.length; i++) {
-            Column c = columns[i];
-            int idx = c.getColumnId();
-            array[i] = r.getValue(idx);
+            array[i] = r.getValue(columns[i].getColumnId());
         }
-        array[keyColumns - 1] = ValueLong.get(r.getKey());
-        return ValueArray.get(array);
+        array[keyColumns - 1] = ValueLong.get(Long.MIN_VALUE);
+        return keyFormat == null ? ValueArray.get(array) : keyFormat.encode(array);
+    }
+
+    /**
+     * Get the column values and the row key of an index key.
+     *
+     * @param key the index key
+     * @return the values
+     */
+    private Value[] getList(Value key) {
+        if (keyFormat == null) {
+            return ((ValueArray) key).getList();
+        }
+        return keyFormat.decode((ValueIndexKey) key);
+    }
+
+    private String getKeyString(Value key) {
+        return ValueArray.get(getList(key)).toString();
     }
 
     /**
      * Get the row with the given index key.
      *
-     * @param array the index key
+     * @param key the index key
      * @return the row
      */
-    SearchRow getRow(Value[] array) {
+    SearchRow getRow(Value key) {
+        Value[] array = getList(key);
         SearchRow searchRow = mvTable.getTemplateRow();
         searchRow.setKey((array[array.length - 1]).getLong());
         Column[] cols = getColumns();
@@ -192,7 +328,7 @@ public class MVSecondaryIndex extends BaseIndex {
     @Override
     public double getCost(Session session, int[] masks, TableFilter filter, SortOrder sortOrder) {
         try {
-            return 10 * getCostRangeIndex(masks, dataMap.map.sizeAsLong(), filter, sortOrder);
+            return 10 * getCostRangeIndex(masks, dataMap.sizeAsLongApproximation(), filter, sortOrder);
         } catch (IllegalStateException e) {
             throw DbException.get(ErrorCode.OBJECT_CLOSED);
         }
@@ -226,7 +362,7 @@ public class MVSecondaryIndex extends BaseIndex {
             if (key == null) {
                 return new MVStoreCursor(session, Collections.<Value>emptyList().iterator(), null);
             }
-            if (((ValueArray) key).getList()[0] != ValueNull.INSTANCE) {
+            if (getList(key)[0] != ValueNull.INSTANCE) {
                 break;
             }
             key = first ? map.higherKey(key) : map.lowerKey(key);
@@ -256,7 +392,7 @@ public class MVSecondaryIndex extends BaseIndex {
     @Override
     public long getRowCountApproximation() {
         try {
-            return dataMap.map.sizeAsLong();
+            return dataMap.sizeAsLongApproximation();
         } catch (IllegalStateException e) {
             throw DbException.get(ErrorCode.OBJECT_CLOSED);
         }
@@ -284,7 +420,41 @@ public class MVSecondaryIndex extends BaseIndex {
             return dataMap;
         }
         Transaction t = mvTable.getTransaction(session);
-        return dataMap.getInstance(t, Long.MAX_VALUE);
+        TransactionMap<Value, Value> map = dataMap.getInstance(t, Long.MAX_VALUE);
+        map.setReadView(session.getReadView());
+        return map;
+    }
+
+    /**
+     * The sorted keys of a temporary map, while merging.
+     */
+    private static class Source {
+
+        private final Iterator<Value> iterator;
+
+        /**
+         * The current key.
+         */
+        Value current;
+
+        Source(Iterator<Value> iterator) {
+            this.iterator = iterator;
+            current = iterator.next();
+        }
+
+        /**
+         * Move to the next key.
+         *
+         * @return false if there are no more keys
+         */
+        boolean next() {
+            if (!iterator.hasNext()) {
+                return false;
+            }
+            current = iterator.next();
+            return true;
+        }
+
     }
 
     /**
@@ -320,7 +490,7 @@ public class MVSecondaryIndex extends BaseIndex {
         public SearchRow getSearchRow() {
             if (searchRow == null) {
                 if (current != null) {
-                    searchRow = getRow(((ValueArray) current).getList());
+                    searchRow = getRow(current);
                 }
             }
             return searchRow;
@@ -123,7 +123,7 @@ public class MVSpatialIndex extends BaseIndex implements SpatialIndex {
         try {
             map.put(key, ValueLong.get(0));
         } catch (IllegalStateException e) {
-            throw DbException.get(ErrorCode.CONCURRENT_UPDATE_1, table.getName());
+            throw mvTable.convertException(session, e);
         }
         if (indexType.isUnique()) {
             // check if there is another (uncommitted) entry
@@ -169,7 +169,7 @@ public class MVSpatialIndex extends BaseIndex implements SpatialIndex {
                         getSQL() + ": " + row.getKey());
             }
         } catch (IllegalStateException e) {
-            throw DbException.get(ErrorCode.CONCURRENT_UPDATE_1, table.getName());
+            throw mvTable.convertException(session, e);
         }
     }
 
@@ -297,7 +297,7 @@ public class MVSpatialIndex extends BaseIndex implements SpatialIndex {
     @Override
     public long getRowCountApproximation() {
         try {
-            return dataMap.map.sizeAsLong();
+            return dataMap.sizeAsLongApproximation();
         } catch (IllegalStateException e) {
             throw DbException.get(ErrorCode.OBJECT_CLOSED);
         }
@@ -325,7 +325,9 @@ public class MVSpatialIndex extends BaseIndex implements SpatialIndex {
             return dataMap;
         }
         Transaction t = mvTable.getTransaction(session);
-        return dataMap.getInstance(t, Long.MAX_VALUE);
+        TransactionMap<SpatialKey, Value> map = dataMap.getInstance(t, Long.MAX_VALUE);
+        map.setReadView(session.getReadView());
+        return map;
     }
 
     /**
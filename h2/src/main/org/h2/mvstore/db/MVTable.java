@@ -10,6 +10,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Set;
 
 import org.h2.api.DatabaseEventListener;
@@ -28,7 +29,10 @@ import org.h2.index.IndexType;
 import org.h2.index.MultiVersionIndex;
 import org.h2.message.DbException;
 import org.h2.message.Trace;
+import org.h2.mvstore.DataUtils;
+import org.h2.mvstore.MVMap;
 import org.h2.mvstore.db.TransactionStore.Transaction;
+import org.h2.mvstore.db.TransactionStore.TransactionMap;
 import org.h2.result.Row;
 import org.h2.result.SortOrder;
 import org.h2.schema.SchemaObject;
@@ -39,14 +43,21 @@ import org.h2.table.Table;
 import org.h2.table.TableBase;
 import org.h2.util.MathUtils;
 import org.h2.util.New;
+import org.h2.util.Task;
 import org.h2.value.DataType;
 import org.h2.value.Value;
+import org.h2.value.ValueLong;
 
 /**
  * A table stored in a MVStore.
  */
 public class MVTable extends TableBase {
 
+    /**
+     * The name prefix of the temporary maps used to build indexes.
+     */
+    static final String TEMP_MAP_PREFIX = "temp.index.";
+
     private MVPrimaryIndex primaryIndex;
     private ArrayList<Index> indexes = New.arrayList();
     private long lastModificationId;
@@ -408,28 +419,10 @@ public class MVTable extends TableBase {
         }
         if (index.needRebuild() && rowCount > 0) {
             try {
-                Index scan = getScanIndex(session);
-                long remaining = scan.getRowCount(session);
-                long total = remaining;
-                Cursor cursor = scan.find(session, null, null);
-                long i = 0;
-                int bufferSize = (int) Math.min(rowCount, Constants.DEFAULT_MAX_MEMORY_ROWS);
-                ArrayList<Row> buffer = New.arrayList(bufferSize);
-                String n = getName() + ":" + index.getName();
-                int t = MathUtils.convertLongToInt(total);
-                while (cursor.next()) {
-                    Row row = cursor.get();
-                    buffer.add(row);
-                    database.setProgress(DatabaseEventListener.STATE_CREATE_INDEX, n,
-                            MathUtils.convertLongToInt(i++), t);
-                    if (buffer.size() >= bufferSize) {
-                        addRowsToIndex(session, buffer, index);
-                    }
-                    remaining--;
-                }
-                addRowsToIndex(session, buffer, index);
-                if (SysProperties.CHECK && remaining != 0) {
-                    DbException.throwInternalError("rowcount remaining=" + remaining + " " + getName());
+                if (index instanceof MVSecondaryIndex) {
+                    rebuildIndexParallel(session, (MVSecondaryIndex) index);
+                } else {
+                    rebuildIndex(session, index);
                 }
             } catch (DbException e) {
                 getSchema().freeUniqueName(indexName);
@@ -482,6 +475,104 @@ public class MVTable extends TableBase {
         return first.column.getColumnId();
     }
 
+    private void rebuildIndex(Session session, Index index) {
+        Index scan = getScanIndex(session);
+        long remaining = scan.getRowCount(session);
+        long total = remaining;
+        Cursor cursor = scan.find(session, null, null);
+        long i = 0;
+        int bufferSize = (int) Math.min(rowCount, Constants.DEFAULT_MAX_MEMORY_ROWS);
+        ArrayList<Row> buffer = New.arrayList(bufferSize);
+        String n = getName() + ":" + index.getName();
+        int t = MathUtils.convertLongToInt(total);
+        while (cursor.next()) {
+            Row row = cursor.get();
+            buffer.add(row);
+            database.setProgress(DatabaseEventListener.STATE_CREATE_INDEX, n,
+                    MathUtils.convertLongToInt(i++), t);
+            if (buffer.size() >= bufferSize) {
+                addRowsToIndex(session, buffer, index);
+            }
+            remaining--;
+        }
+        addRowsToIndex(session, buffer, index);
+        if (SysProperties.CHECK && remaining != 0) {
+            DbException.throwInternalError("rowcount remaining=" + remaining + " " + getName());
+        }
+    }
+
+    /**
+     * Add all rows to a new secondary index. The table is split into parts
+     * that are read by multiple threads; each thread sorts the index keys of
+     * its part in a temporary map. The temporary maps are then merged into the
+     * index. No undo log entries are written: the index is removed if building
+     * it fails.
+     *
+     * @param session the session
+     * @param index the new index
+     */
+    private void rebuildIndexParallel(Session session, final MVSecondaryIndex index) {
+        final TransactionMap<Value, Value> map = primaryIndex.getMap(session);
+        final int bufferSize = Math.max(1, database.getMaxMemoryRows());
+        int parts = (int) Math.min(Runtime.getRuntime().availableProcessors(),
+                1 + rowCount / bufferSize);
+        long[] splitKeys = primaryIndex.getSplitKeys(parts);
+        MVMap.Builder<Value, Value> builder = new MVMap.Builder<Value, Value>().
+                keyType(index.getMap(null).map.getKeyType()).
+                valueType(new ValueDataType(null, null, null));
+        ArrayList<MVMap<Value, Value>> buffers = New.arrayList();
+        ArrayList<Task> tasks = New.arrayList();
+        try {
+            for (int i = 0; i < parts; i++) {
+                final long min = i == 0 ? Long.MIN_VALUE : splitKeys[i - 1];
+                final boolean lastPart = i == parts - 1;
+                final long max = lastPart ? 0 : splitKeys[i];
+                final MVMap<Value, Value> buffer = store.store.openMap(
+                        TEMP_MAP_PREFIX + index.getId() + "." + i, builder);
+                buffers.add(buffer);
+                Task task = new Task() {
+                    @Override
+                    public void call() {
+                        ArrayList<Value> keys = New.arrayList();
+                        Iterator<Value> it = map.keyIterator(ValueLong.get(min));
+                        while (it.hasNext()) {
+                            long key = it.next().getLong();
+                            if (key >= max && !lastPart) {
+                                break;
+                            }
+                            Row row = primaryIndex.getRow(map, key);
+                            keys.add(index.getKey(row, key));
+                            if (keys.size() >= bufferSize) {
+                                index.addKeysToBuffer(keys, buffer);
+                            }
+                        }
+                        index.addKeysToBuffer(keys, buffer);
+                    }
+                };
+                tasks.add(task.execute("H2 create index " + index.getName() + " " + i));
+            }
+            DbException ex = null;
+            for (Task t : tasks) {
+                Exception e = t.getException();
+                if (e != null && ex == null) {
+                    ex = DbException.convert(e);
+                }
+            }
+            tasks.clear();
+            if (ex != null) {
+                throw ex;
+            }
+            index.addBufferedKeys(buffers);
+        } finally {
+            for (Task t : tasks) {
+                t.getException();
+            }
+            for (MVMap<Value, Value> b : buffers) {
+                store.store.removeMap(b);
+            }
+        }
+    }
+
     private static void addRowsToIndex(Session session, ArrayList<Row> list, Index index) {
         final Index idx = index;
         Collections.sort(list, new Comparator<Row>() {
@@ -683,6 +774,26 @@ public class MVTable extends TableBase {
         return session.getTransaction();
     }
 
+    /**
+     * Convert the exception of a failed change to a database exception. If the
+     * transaction doesn't wait for locks, a concurrent update exception is
+     * returned, so that the statement is re-tried.
+     *
+     * @param session the session
+     * @param e the exception
+     * @return the database exception
+     */
+    DbException convertException(Session session, IllegalStateException e) {
+        int errorCode = DataUtils.getErrorCode(e.getMessage());
+        if (errorCode == DataUtils.ERROR_TRANSACTION_DEADLOCK) {
+            return DbException.get(ErrorCode.DEADLOCK_1, e, e.getMessage());
+        } else if (errorCode == DataUtils.ERROR_TRANSACTION_LOCK_TIMEOUT &&
+                getTransaction(session).getLockTimeout() > 0) {
+            return DbException.get(ErrorCode.LOCK_TIMEOUT_1, e, getName());
+        }
+        return DbException.get(ErrorCode.CONCURRENT_UPDATE_1, e, getName());
+    }
+
     @Override
     public Column getRowIdColumn() {
         if (rowIdColumn == null) {
@@ -10,6 +10,7 @@ import java.io.InputStream;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 import org.h2.api.TableEngine;
@@ -21,6 +22,7 @@ import org.h2.engine.Session;
 import org.h2.message.DbException;
 import org.h2.mvstore.DataUtils;
 import org.h2.mvstore.FileStore;
+import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
 import org.h2.mvstore.db.TransactionStore.Transaction;
 import org.h2.store.InDoubtTransaction;
@@ -29,6 +31,7 @@ import org.h2.store.fs.FileUtils;
 import org.h2.table.RegularTable;
 import org.h2.table.TableBase;
 import org.h2.util.New;
+import org.h2.value.Value;
 
 /**
  * A table engine that internally uses the MVStore.
@@ -57,6 +60,8 @@ public class MVTableEngine implements TableEngine {
             if (db.isReadOnly()) {
                 builder.readOnly();
             } else {
+                // write chunks in a separate thread
+                builder.asyncWrite();
                 // possibly create the directory
                 boolean exists = FileUtils.exists(fileName);
                 if (exists && !FileUtils.canWrite(fileName)) {
@@ -142,6 +147,36 @@ public class MVTableEngine implements TableEngine {
             this.store = store;
             this.transactionStore = new TransactionStore(store,
                     new ValueDataType(null, db, null));
+            // sessions may write to the same table concurrently
+            transactionStore.setConcurrentMaps(db.isMultiThreaded());
+            removeTemporaryMaps();
+        }
+
+        /**
+         * Remove the temporary maps of indexes that were being built when the
+         * database was closed.
+         */
+        private void removeTemporaryMaps() {
+            FileStore s = store.getFileStore();
+            if (s == null || s.isReadOnly()) {
+                return;
+            }
+            String prefix = "name." + MVTable.TEMP_MAP_PREFIX;
+            ArrayList<String> names = New.arrayList();
+            Iterator<String> it = store.getMetaMap().keyIterator(prefix);
+            while (it.hasNext()) {
+                String k = it.next();
+                if (!k.startsWith(prefix)) {
+                    break;
+                }
+                names.add(k.substring("name.".length()));
+            }
+            MVMap.Builder<Value, Value> builder = new MVMap.Builder<Value, Value>().
+                    keyType(new ValueDataType(null, db, null)).
+                    valueType(new ValueDataType(null, db, null));
+            for (String name : names) {
+                store.removeMap(store.openMap(name, builder));
+            }
         }
 
         public MVStore getStore() {
@@ -173,6 +208,9 @@ public class MVTableEngine implements TableEngine {
             if (s == null || s.isReadOnly()) {
                 return;
             }
+            // remove the entries of committed transactions from the maps,
+            // so that they are not stored and don't need to be skipped
+            transactionStore.cleanup();
             if (!store.compact(50)) {
                 store.commit();
             }
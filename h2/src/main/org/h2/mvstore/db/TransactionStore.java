@@ -8,13 +8,21 @@ package org.h2.mvstore.db;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.h2.mvstore.Cursor;
 import org.h2.mvstore.DataUtils;
+import org.h2.mvstore.FileStore;
 import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVMapConcurrent;
 import org.h2.mvstore.MVStore;
 import org.h2.mvstore.WriteBuffer;
 import org.h2.mvstore.type.DataType;
@@ -28,6 +36,17 @@ public class TransactionStore {
 
     private static final String LAST_TRANSACTION_ID = "lastTransactionId";
 
+    /**
+     * The name prefix of the undo log maps.
+     */
+    private static final String UNDO_LOG = "undoLog.";
+
+    /**
+     * The name of the undo log map of older versions, that was used by all
+     * transactions.
+     */
+    private static final String OLD_UNDO_LOG = "undoLog";
+
     // TODO should not be hard-coded
     private static final int MAX_UNSAVED_PAGES = 4 * 1024;
 
@@ -43,7 +62,9 @@ public class TransactionStore {
     final MVMap<Long, Object[]> preparedTransactions;
 
     /**
-     * The undo log.
+     * The undo logs, one map per slot. Each transaction that changes data
+     * uses a slot, so that transactions don't share an undo log. Slots (and
+     * their maps) are re-used after a transaction is closed.
      * <p>
      * If the first entry for a transaction doesn't have a logId
      * of 0, then the transaction is partially committed (which means rollback
@@ -52,13 +73,99 @@ public class TransactionStore {
      * <p>
      * Key: [ transactionId, logId ], value: [ opType, mapId, key, oldValue ].
      */
-    final MVMap<long[], Object[]> undoLog;
+    private final ArrayList<MVMap<long[], Object[]>> undoLogs = New.arrayList();
+
+    /**
+     * The slots that are in use.
+     */
+    private final BitSet usedSlots = new BitSet();
+
+    /**
+     * The transactions that have (or might have) undo log entries.
+     * Key: transactionId.
+     */
+    private final ConcurrentHashMap<Long, Transaction> openTransactions =
+            new ConcurrentHashMap<Long, Transaction>();
+
+    /**
+     * The slots of the transactions that are committed, but not all undo log
+     * entries were processed yet. The set is replaced (not modified) when
+     * changed, so that readers don't need to synchronize.
+     */
+    private volatile BitSet committingTransactions = new BitSet();
 
     /**
-     * The lock timeout in milliseconds. 0 means timeout immediately.
+     * The committed transactions, in the order they were committed, that still
+     * have undo log entries.
+     */
+    private final ArrayList<Transaction> committedTransactions = New.arrayList();
+
+    private volatile boolean cleanupNeeded;
+
+    /**
+     * The number of commits since the store was opened.
+     */
+    private long commitCount;
+
+    /**
+     * The open read views, in the order they were opened.
+     */
+    private final ArrayList<ReadView> readViews = New.arrayList();
+
+    /**
+     * The default lock timeout of new transactions in milliseconds. 0 means
+     * timeout immediately.
      */
     long lockTimeout;
 
+    /**
+     * The lock used to change and check the wait-for graph (the transactions
+     * that wait for other transactions).
+     */
+    private final Object waitForLock = new Object();
+
+    /**
+     * The lock used to coordinate group commits.
+     */
+    private final Object groupCommitLock = new Object();
+
+    /**
+     * The maximum time in microseconds the leader of a group commit waits for
+     * other transactions to join the group, before it writes the changes.
+     */
+    private volatile int groupCommitDelay;
+
+    /**
+     * The number of transactions after which the leader stops waiting.
+     */
+    private volatile int groupCommitSize = 64;
+
+    /**
+     * Whether the file is synced when committing (if the auto-commit delay is
+     * 0).
+     */
+    private volatile boolean syncOnCommit;
+
+    /**
+     * Whether a transaction currently writes the changes of a group.
+     */
+    private boolean groupCommitLeader;
+
+    /**
+     * The number of commits that requested the changes to be written.
+     */
+    private long groupCommitRequested;
+
+    /**
+     * The number of commits whose changes are written.
+     */
+    private long groupCommitWritten;
+
+    /**
+     * The number of times the changes of a group were written.
+     */
+    private long groupCommitCount;
+
     /**
      * The transaction settings. The entry "lastTransaction" contains the last
      * transaction id.
@@ -71,7 +178,9 @@ public class TransactionStore {
 
     private long lastTransactionId;
 
-    private long firstOpenTransaction = -1;
+    private final MVMap.Builder<long[], Object[]> undoLogBuilder;
+
+    private boolean concurrentMaps;
 
     /**
      * Create a new transaction store.
@@ -94,18 +203,13 @@ public class TransactionStore {
         settings = store.openMap("settings");
         preparedTransactions = store.openMap("openTransactions",
                 new MVMap.Builder<Long, Object[]>());
-        // TODO commit of larger transaction could be faster if we have one undo
-        // log per transaction, or a range delete operation for maps
         VersionedValueType oldValueType = new VersionedValueType(dataType);
         ArrayType undoLogValueType = new ArrayType(new DataType[]{
                 new ObjectDataType(), new ObjectDataType(), dataType,
                 oldValueType
         });
-        MVMap.Builder<long[], Object[]> builder =
-                new MVMap.Builder<long[], Object[]>().
+        undoLogBuilder = new MVMap.Builder<long[], Object[]>().
                 valueType(undoLogValueType);
-        // TODO escape other map names, to avoid conflicts
-        undoLog = store.openMap("undoLog", builder);
         init();
     }
 
@@ -119,12 +223,117 @@ public class TransactionStore {
                     DataUtils.ERROR_TRANSACTION_CORRUPT,
                     "Last transaction not stored");
         }
-        synchronized (undoLog) {
-            if (undoLog.size() > 0) {
-                long[] key = undoLog.firstKey();
-                firstOpenTransaction = key[0];
+        if (store.hasMap(OLD_UNDO_LOG)) {
+            convertOldUndoLog();
+        }
+        String prefix = "name." + UNDO_LOG;
+        Cursor<String> cursor = store.getMetaMap().keyIterator(prefix);
+        ArrayList<Integer> slots = New.arrayList();
+        while (cursor.hasNext()) {
+            String key = cursor.next();
+            if (!key.startsWith(prefix)) {
+                break;
+            }
+            int slot = getSlot(key.substring(prefix.length()));
+            if (slot >= 0) {
+                slots.add(slot);
+            }
+        }
+        for (int slot : slots) {
+            MVMap<long[], Object[]> undoLog = getUndoLog(slot);
+            long[] key = undoLog.firstKey();
+            if (key == null) {
+                continue;
+            }
+            // a slot is only used by one transaction at a time
+            long transactionId = key[0];
+            int status;
+            String name;
+            Object[] data = preparedTransactions.get(transactionId);
+            if (data == null) {
+                if (key[1] == 0) {
+                    status = Transaction.STATUS_OPEN;
+                } else {
+                    status = Transaction.STATUS_COMMITTING;
+                }
+                name = null;
+            } else {
+                status = (Integer) data[0];
+                name = (String) data[1];
+            }
+            long logId = undoLog.lastKey()[1] + 1;
+            Transaction t = new Transaction(this, transactionId, status, name, logId);
+            t.hasRemovals = true;
+            t.slot = slot;
+            t.undoLog = undoLog;
+            usedSlots.set(slot);
+            if (status == Transaction.STATUS_COMMITTING) {
+                // readers see the changes as committed
+                setCommitting(slot, true);
+            }
+            openTransactions.put(transactionId, t);
+        }
+    }
+
+    /**
+     * Parse the slot number of an undo log map name.
+     *
+     * @param suffix the part of the name after the prefix
+     * @return the slot, or -1 if this is not the name of an undo log map (for
+     *         example a map of the application with a similar name)
+     */
+    private static int getSlot(String suffix) {
+        int len = suffix.length();
+        if (len == 0 || len > 9 || (len > 1 && suffix.charAt(0) == '0')) {
+            return -1;
+        }
+        for (int i = 0; i < len; i++) {
+            char c = suffix.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+        }
+        return Integer.parseInt(suffix);
+    }
+
+    /**
+     * Copy the entries of the undo log map of older versions, that was used by
+     * all transactions, to the undo log maps of the slots (one slot per
+     * transaction), and remove the old map. The slots are assigned in the
+     * order of the transaction ids, so that the result is the same if the
+     * process is stopped and the conversion is repeated.
+     */
+    private void convertOldUndoLog() {
+        MVMap<long[], Object[]> old = store.openMap(OLD_UNDO_LOG, undoLogBuilder);
+        if (old.isEmpty()) {
+            if (!isReadOnly()) {
+                store.removeMap(old);
+            }
+            return;
+        }
+        if (isReadOnly()) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_TRANSACTION_CORRUPT,
+                    "The undo log of an older version can not be converted " +
+                    "in read-only mode");
+        }
+        int slot = -1;
+        long transactionId = -1;
+        Cursor<long[]> cursor = old.keyIterator(null);
+        while (cursor.hasNext()) {
+            long[] key = cursor.next();
+            if (slot < 0 || key[0] != transactionId) {
+                transactionId = key[0];
+                slot++;
             }
+            getUndoLog(slot).put(key, old.get(key));
         }
+        store.removeMap(old);
+    }
+
+    private boolean isReadOnly() {
+        FileStore fs = store.getFileStore();
+        return fs != null && fs.isReadOnly();
     }
 
     /**
@@ -133,44 +342,40 @@ public class TransactionStore {
      * @return the list of transactions (sorted by id)
      */
     public List<Transaction> getOpenTransactions() {
-        synchronized (undoLog) {
-            ArrayList<Transaction> list = New.arrayList();
-            long[] key = undoLog.firstKey();
-            while (key != null) {
-                long transactionId = key[0];
-                long[] end = { transactionId, Long.MAX_VALUE };
-                key = undoLog.floorKey(end);
-                long logId = key[1] + 1;
-                Object[] data = preparedTransactions.get(transactionId);
-                int status;
-                String name;
-                if (data == null) {
-                    key[1] = 0;
-                    if (undoLog.containsKey(key)) {
-                        status = Transaction.STATUS_OPEN;
-                    } else {
-                        status = Transaction.STATUS_COMMITTING;
-                    }
-                    name = null;
-                } else {
-                    status = (Integer) data[0];
-                    name = (String) data[1];
-                }
-                Transaction t = new Transaction(this, transactionId, status, name, logId);
+        ArrayList<Transaction> list = New.arrayList();
+        for (Transaction t : openTransactions.values()) {
+            if (t.getStatus() == Transaction.STATUS_CLOSED) {
+                // committed
+                continue;
+            }
+            if (t.undoLog != null && t.undoLog.size() > 0) {
                 list.add(t);
-                key = undoLog.higherKey(end);
             }
-            return list;
         }
+        Collections.sort(list, new Comparator<Transaction>() {
+
+            @Override
+            public int compare(Transaction a, Transaction b) {
+                return Long.signum(a.transactionId - b.transactionId);
+            }
+
+        });
+        return list;
     }
 
     /**
      * Close the transaction store.
      */
-    public synchronized void close() {
-        // to avoid losing transaction ids
-        settings.put(LAST_TRANSACTION_ID, "" + lastTransactionId);
-        store.commit();
+    public void close() {
+        synchronized (this) {
+            readViews.clear();
+        }
+        cleanup(Integer.MAX_VALUE);
+        synchronized (this) {
+            // to avoid losing transaction ids
+            settings.put(LAST_TRANSACTION_ID, "" + lastTransactionId);
+            store.commit();
+        }
     }
 
     /**
@@ -219,14 +424,41 @@ public class TransactionStore {
     void log(Transaction t, long logId, int opType, int mapId,
             Object key, Object oldValue) {
         commitIfNeeded();
+        if (t.undoLog == null) {
+            openUndoLog(t);
+        }
         long[] undoKey = { t.getId(), logId };
         Object[] log = new Object[] { opType, mapId, key, oldValue };
-        synchronized (undoLog) {
-            undoLog.put(undoKey, log);
+        t.undoLog.put(undoKey, log);
+        if (opType == Transaction.OP_REMOVE) {
+            t.hasRemovals = true;
         }
-        if (firstOpenTransaction == -1 || t.getId() < firstOpenTransaction) {
-            firstOpenTransaction = t.getId();
+    }
+
+    /**
+     * Assign a free slot to the transaction, and open the undo log map of that
+     * slot.
+     *
+     * @param t the transaction
+     */
+    private synchronized void openUndoLog(Transaction t) {
+        int slot = usedSlots.nextClearBit(0);
+        usedSlots.set(slot);
+        t.slot = slot;
+        t.undoLog = getUndoLog(slot);
+        openTransactions.put(t.getId(), t);
+    }
+
+    private MVMap<long[], Object[]> getUndoLog(int slot) {
+        while (undoLogs.size() <= slot) {
+            undoLogs.add(null);
+        }
+        MVMap<long[], Object[]> undoLog = undoLogs.get(slot);
+        if (undoLog == null) {
+            undoLog = store.openMap(UNDO_LOG + slot, undoLogBuilder);
+            undoLogs.set(slot, undoLog);
         }
+        return undoLog;
     }
 
     /**
@@ -237,55 +469,278 @@ public class TransactionStore {
      */
     public void logUndo(Transaction t, long logId) {
         long[] undoKey = { t.getId(), logId };
-        synchronized (undoLog) {
-            undoLog.remove(undoKey);
-        }
+        t.undoLog.remove(undoKey);
     }
 
     /**
-     * Commit a transaction.
+     * Commit a transaction. Only the first undo log entry is processed here:
+     * afterwards the transaction is marked as committing, so that readers see
+     * the changes as committed. The remaining entries are processed later on
+     * (see cleanup).
      *
      * @param t the transaction
-     * @param maxLogId the last log id
      */
-    void commit(Transaction t, long maxLogId) {
+    void commit(Transaction t) {
         if (store.isClosed()) {
             return;
         }
-        synchronized (undoLog) {
-            t.setStatus(Transaction.STATUS_COMMITTING);
-            for (long logId = 0; logId < maxLogId; logId++) {
-                commitIfNeeded();
-                long[] undoKey = new long[] { t.getId(), logId };
-                Object[] op = undoLog.get(undoKey);
-                if (op == null) {
-                    // partially committed: load next
-                    undoKey = undoLog.ceilingKey(undoKey);
-                    if (undoKey == null || undoKey[0] != t.getId()) {
-                        break;
+        MVMap<long[], Object[]> undoLog = t.undoLog;
+        t.setStatus(Transaction.STATUS_COMMITTING);
+        if (undoLog != null) {
+            // from now on, readers see the changes as committed
+            boolean keep = markCommitted(t);
+            if (!t.hasRemovals && !keep) {
+                // there is nothing to do for added and updated entries
+                undoLog.clear();
+                releaseSlot(t);
+                endTransaction(t);
+                return;
+            }
+            long[] undoKey = new long[] { t.getId(), 0 };
+            Object[] op = undoLog.get(undoKey);
+            if (op != null) {
+                // without the first entry, the transaction is
+                // committed when the store is opened the next time
+                if (keep) {
+                    // the open read views might still need the old value,
+                    // so the entry is copied to a key that sorts first
+                    undoLog.put(new long[] { t.getId(), -1 }, op);
+                } else {
+                    commitEntry(t, undoKey, op);
+                }
+            }
+            if (undoLog.isEmpty()) {
+                releaseSlot(t);
+            } else {
+                synchronized (committedTransactions) {
+                    committedTransactions.add(t);
+                    cleanupNeeded = true;
+                }
+            }
+        }
+        endTransaction(t);
+    }
+
+    /**
+     * Process and remove an undo log entry of a committed transaction.
+     *
+     * @param t the transaction
+     * @param undoKey the key of the entry
+     * @param op the entry
+     */
+    private void commitEntry(Transaction t, long[] undoKey, Object[] op) {
+        int opType = (Integer) op[0];
+        if (opType == Transaction.OP_REMOVE) {
+            int mapId = (Integer) op[1];
+            MVMap<Object, VersionedValue> map = openMap(mapId);
+            if (map != null) {
+                Object key = op[2];
+                VersionedValue value = map.get(key);
+                // possibly the entry was added later on,
+                // or (if the transaction is already committed)
+                // changed by another transaction, so we have to check
+                if (value == null) {
+                    // nothing to do
+                } else if (value.value == null &&
+                        value.transactionId == t.getId()) {
+                    // remove the value
+                    if (map.remove(key, value)) {
+                        countRemoved(t, mapId, value, -1);
                     }
-                    logId = undoKey[1] - 1;
+                }
+            }
+        }
+        t.undoLog.remove(undoKey);
+    }
+
+    /**
+     * Process a few of the remaining undo log entries of committed
+     * transactions, if there are any. This is called before writing, and
+     * processes more entries than are added, so that the backlog shrinks.
+     */
+    void cleanupIfNeeded() {
+        if (cleanupNeeded) {
+            cleanup(2);
+        }
+    }
+
+    /**
+     * Process the remaining undo log entries of committed transactions. Once
+     * all entries of a transaction are processed, its slot is released.
+     *
+     * @param maxEntries the maximum number of entries to process
+     */
+    private void cleanup(int maxEntries) {
+        synchronized (committedTransactions) {
+            while (maxEntries > 0 && !committedTransactions.isEmpty()) {
+                Transaction t = committedTransactions.get(0);
+                if (!isVisibleToAllReadViews(t)) {
+                    // the old values are still needed
+                    break;
+                }
+                MVMap<long[], Object[]> undoLog = t.undoLog;
+                if (!t.hasRemovals) {
+                    undoLog.clear();
+                }
+                long[] undoKey = undoLog.firstKey();
+                if (undoKey == null) {
+                    committedTransactions.remove(0);
+                    releaseSlot(t);
                     continue;
                 }
-                int opType = (Integer) op[0];
-                if (opType == Transaction.OP_REMOVE) {
-                    int mapId = (Integer) op[1];
-                    MVMap<Object, VersionedValue> map = openMap(mapId);
-                    Object key = op[2];
-                    VersionedValue value = map.get(key);
-                    // possibly the entry was added later on
-                    // so we have to check
-                    if (value == null) {
-                        // nothing to do
-                    } else if (value.value == null) {
-                        // remove the value
-                        map.remove(key);
+                commitEntry(t, undoKey, undoLog.get(undoKey));
+                maxEntries--;
+            }
+            cleanupNeeded = !committedTransactions.isEmpty();
+        }
+    }
+
+    /**
+     * Process the remaining undo log entries of committed transactions, as far
+     * as the old values are no longer needed by open read views.
+     */
+    public void cleanup() {
+        cleanup(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Count a removed entry that is added to a map (if the delta is positive)
+     * or replaced in a map (if negative). Removed entries stay in the map
+     * until the undo log entry is processed. They are counted per
+     * transaction, so that the entries removed by committed transactions can
+     * be excluded from the size of the map.
+     *
+     * @param t the current transaction
+     * @param mapId the map id
+     * @param value the value (only removed values are counted)
+     * @param delta 1 if the value is added, -1 if it is replaced
+     */
+    void countRemoved(Transaction t, int mapId, VersionedValue value, int delta) {
+        if (value == null || value.value != null) {
+            return;
+        }
+        Transaction owner = null;
+        if (value.transactionId == t.transactionId) {
+            owner = t;
+            if (delta > 0) {
+                t.hasRemovals = true;
+            }
+        }
+        synchronized (committedTransactions) {
+            if (owner == null) {
+                for (Transaction c : committedTransactions) {
+                    if (c.transactionId == value.transactionId) {
+                        owner = c;
+                        break;
                     }
                 }
-                undoLog.remove(undoKey);
+                if (owner == null) {
+                    // committed before the store was opened
+                    return;
+                }
             }
+            Long old = owner.removedCounts.get(mapId);
+            long count = (old == null ? 0 : old) + delta;
+            owner.removedCounts.put(mapId, Math.max(0, count));
         }
-        endTransaction(t);
+    }
+
+    /**
+     * Get the number of entries of a map that were removed by committed
+     * transactions, but are still in the map because the undo log entries
+     * were not processed yet.
+     *
+     * @param mapId the map id
+     * @return the number of entries
+     */
+    long getCommittedRemovals(int mapId) {
+        long count = 0;
+        synchronized (committedTransactions) {
+            for (Transaction t : committedTransactions) {
+                Long c = t.removedCounts.get(mapId);
+                if (c != null) {
+                    count += c;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Mark the transaction as committed, so that readers see the changes.
+     *
+     * @param t the transaction
+     * @return whether there are open read views (that don't see the changes)
+     */
+    private synchronized boolean markCommitted(Transaction t) {
+        t.commitId = ++commitCount;
+        setCommitting(t.slot, true);
+        return !readViews.isEmpty();
+    }
+
+    /**
+     * Check whether all open read views see the changes of the committed
+     * transaction.
+     *
+     * @param t the transaction
+     * @return true if yes
+     */
+    private synchronized boolean isVisibleToAllReadViews(Transaction t) {
+        return readViews.isEmpty() || readViews.get(0).commitCount >= t.commitId;
+    }
+
+    /**
+     * Open a read view. Reading through the view, the changes of transactions
+     * that are committed afterwards are not visible. The undo logs of such
+     * transactions are kept until the view is closed.
+     *
+     * @return the read view
+     */
+    public synchronized ReadView openReadView() {
+        ReadView view = new ReadView(commitCount);
+        readViews.add(view);
+        return view;
+    }
+
+    /**
+     * Close a read view.
+     *
+     * @param view the read view
+     */
+    public synchronized void closeReadView(ReadView view) {
+        readViews.remove(view);
+    }
+
+    private synchronized void setCommitting(int slot, boolean committing) {
+        BitSet b = (BitSet) committingTransactions.clone();
+        b.set(slot, committing);
+        committingTransactions = b;
+    }
+
+    /**
+     * Check whether the transaction is committed, but its undo log is not yet
+     * fully processed.
+     *
+     * @param t the transaction
+     * @return true if it is committed
+     */
+    boolean isCommitted(Transaction t) {
+        int slot = t.slot;
+        return slot < 0 || committingTransactions.get(slot);
+    }
+
+    /**
+     * Release the slot of a closed transaction.
+     *
+     * @param t the transaction
+     */
+    private synchronized void releaseSlot(Transaction t) {
+        int slot = t.slot;
+        openTransactions.remove(t.getId());
+        setCommitting(slot, false);
+        usedSlots.clear(slot);
+        t.undoLog = null;
+        t.slot = -1;
     }
 
     private synchronized MVMap<Object, VersionedValue> openMap(int mapId) {
@@ -297,12 +752,91 @@ public class TransactionStore {
             return null;
         }
         String mapName = DataUtils.parseMap(m).get("name");
-        VersionedValueType vt = new VersionedValueType(dataType);
-        MVMap.Builder<Object, VersionedValue> mapBuilder =
-                new MVMap.Builder<Object, VersionedValue>().
-                keyType(dataType).valueType(vt);
-        MVMap<Object, VersionedValue> map = store.openMap(mapName, mapBuilder);
-        return map;
+        return openVersionedMap(mapName, dataType, dataType);
+    }
+
+    /**
+     * Open the map that contains the versioned values.
+     *
+     * @param <K> the key type
+     * @param name the map name
+     * @param keyType the key type
+     * @param valueType the value type
+     * @return the map
+     */
+    <K> MVMap<K, VersionedValue> openVersionedMap(String name,
+            DataType keyType, DataType valueType) {
+        VersionedValueType vt = new VersionedValueType(valueType);
+        if (concurrentMaps) {
+            MVMapConcurrent.Builder<K, VersionedValue> builder =
+                    new MVMapConcurrent.Builder<K, VersionedValue>().
+                    keyType(keyType).valueType(vt);
+            return store.openMap(name, builder);
+        }
+        MVMap.Builder<K, VersionedValue> builder =
+                new MVMap.Builder<K, VersionedValue>().
+                keyType(keyType).valueType(vt);
+        return store.openMap(name, builder);
+    }
+
+    /**
+     * Whether data maps should support concurrent writes. If enabled, data
+     * maps that are opened afterwards use lock-free concurrent updates, so
+     * that multiple threads can change the same map at the same time.
+     *
+     * @param concurrentMaps the new value
+     */
+    public void setConcurrentMaps(boolean concurrentMaps) {
+        this.concurrentMaps = concurrentMaps;
+    }
+
+    /**
+     * Set the maximum time the changes of a committed transaction may be
+     * delayed, so that the changes of concurrently committing transactions
+     * are written together (group commit). This is only used if the
+     * auto-commit delay of the store is 0. If set to 0 (the default), the
+     * leader does not wait, but transactions that commit while the leader
+     * writes are still combined in the next group.
+     *
+     * @param micros the delay in microseconds
+     */
+    public void setGroupCommitDelay(int micros) {
+        this.groupCommitDelay = micros;
+    }
+
+    /**
+     * Set the number of transactions of a group commit after which the leader
+     * stops waiting for more transactions, and writes the changes.
+     *
+     * @param size the number of transactions (at least 1)
+     */
+    public void setGroupCommitSize(int size) {
+        DataUtils.checkArgument(size > 0, "Group commit size is {0}", size);
+        this.groupCommitSize = size;
+    }
+
+    /**
+     * Whether to sync the file when committing, so that committed changes are
+     * durable even if the operating system crashes. This is only used if the
+     * auto-commit delay of the store is 0. The file is synced once for each
+     * group commit.
+     *
+     * @param syncOnCommit the new value
+     */
+    public void setSyncOnCommit(boolean syncOnCommit) {
+        this.syncOnCommit = syncOnCommit;
+    }
+
+    /**
+     * Get the number of times the changes of a group of committed
+     * transactions were written.
+     *
+     * @return the number of group commits
+     */
+    public long getGroupCommitCount() {
+        synchronized (groupCommitLock) {
+            return groupCommitCount;
+        }
     }
 
     /**
@@ -313,28 +847,117 @@ public class TransactionStore {
      * @return true if it is open
      */
     boolean isTransactionOpen(long transactionId) {
-        if (transactionId < firstOpenTransaction) {
-            return false;
+        Transaction t = openTransactions.get(transactionId);
+        return t != null && !isCommitted(t);
+    }
+
+    /**
+     * Get the transaction with the given id, if it contains log entries. The
+     * transaction might already be committed.
+     *
+     * @param transactionId the transaction id
+     * @return the transaction, or null if it is closed
+     */
+    Transaction getOpenTransaction(long transactionId) {
+        return openTransactions.get(transactionId);
+    }
+
+    /**
+     * Wait until the blocking transaction is closed (committed or rolled
+     * back), or until the lock timeout of the waiting transaction. If waiting
+     * would result in a deadlock, the youngest transaction of the cycle (the
+     * one with the highest id) is chosen as the victim.
+     *
+     * @param t the waiting transaction
+     * @param blocker the blocking transaction
+     * @param timeout the maximum time to wait, in milliseconds
+     * @return true if the blocking transaction is closed
+     * @throws IllegalStateException if this transaction was chosen as the
+     *             victim of a deadlock
+     */
+    boolean waitFor(Transaction t, Transaction blocker, long timeout) {
+        Transaction victim;
+        synchronized (waitForLock) {
+            t.blockingTransaction = blocker;
+            victim = getDeadlockVictim(t);
+            if (victim == t) {
+                t.blockingTransaction = null;
+                throw getDeadlockException(t);
+            } else if (victim != null) {
+                victim.deadlockVictim = true;
+            }
         }
-        synchronized (undoLog) {
-            if (firstOpenTransaction == -1) {
-                if (undoLog.size() == 0) {
-                    return false;
+        if (victim != null) {
+            // wake up the victim, so that it can roll back
+            Transaction b = victim.blockingTransaction;
+            if (b != null) {
+                synchronized (b) {
+                    b.notifyAll();
                 }
-                long[] key = undoLog.firstKey();
-                if (key == null) {
-                    // unusual, but can happen
-                    return false;
+            }
+        }
+        try {
+            long end = System.currentTimeMillis() + timeout;
+            synchronized (blocker) {
+                while (blocker.getStatus() != Transaction.STATUS_CLOSED) {
+                    if (t.deadlockVictim) {
+                        break;
+                    }
+                    long wait = end - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        return false;
+                    }
+                    try {
+                        blocker.wait(wait);
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
                 }
-                firstOpenTransaction = key[0];
             }
-            if (firstOpenTransaction == transactionId) {
-                return true;
+        } finally {
+            synchronized (waitForLock) {
+                t.blockingTransaction = null;
+            }
+        }
+        if (t.deadlockVictim) {
+            t.deadlockVictim = false;
+            throw getDeadlockException(t);
+        }
+        return true;
+    }
+
+    /**
+     * Follow the wait-for graph, starting with the given transaction. If there
+     * is a cycle that contains this transaction, the transaction with the
+     * highest id in the cycle is returned.
+     *
+     * @param t the transaction
+     * @return the victim, or null if there is no deadlock
+     */
+    private static Transaction getDeadlockVictim(Transaction t) {
+        HashSet<Transaction> visited = New.hashSet();
+        Transaction victim = t;
+        for (Transaction x = t.blockingTransaction; x != null;
+                x = x.blockingTransaction) {
+            if (x == t) {
+                return victim;
+            }
+            if (!visited.add(x)) {
+                // a cycle that doesn't contain this transaction
+                return null;
+            }
+            if (x.transactionId > victim.transactionId) {
+                victim = x;
             }
-            long[] key = { transactionId, -1 };
-            key = undoLog.higherKey(key);
-            return key != null && key[0] == transactionId;
         }
+        return null;
+    }
+
+    private static IllegalStateException getDeadlockException(Transaction t) {
+        return DataUtils.newIllegalStateException(
+                DataUtils.ERROR_TRANSACTION_DEADLOCK,
+                "Deadlock detected, transaction {0} was chosen as the victim",
+                t.transactionId);
     }
 
     /**
@@ -342,22 +965,38 @@ public class TransactionStore {
      *
      * @param t the transaction
      */
-    synchronized void endTransaction(Transaction t) {
+    void endTransaction(Transaction t) {
+        if (closeTransaction(t)) {
+            commitGroup();
+        }
+    }
+
+    /**
+     * Close the transaction, and store the changes if needed.
+     *
+     * @param t the transaction
+     * @return whether the changes need to be committed and written
+     *         (using a group commit)
+     */
+    private synchronized boolean closeTransaction(Transaction t) {
         if (t.getStatus() == Transaction.STATUS_PREPARED) {
             preparedTransactions.remove(t.getId());
         }
         t.setStatus(Transaction.STATUS_CLOSED);
-        if (t.getId() == firstOpenTransaction) {
-            firstOpenTransaction = -1;
+        if (t.undoLog != null && !isCommitted(t)) {
+            releaseSlot(t);
+        }
+        // wake up the transactions that wait for this one
+        synchronized (t) {
+            t.notifyAll();
         }
         if (store.getAutoCommitDelay() == 0) {
-            store.commit();
-            return;
+            return true;
         }
         // to avoid having to store the transaction log,
         // if there is no open transaction,
         // and if there have been many changes, store them now
-        if (undoLog.isEmpty()) {
+        if (openTransactions.isEmpty()) {
             int unsaved = store.getUnsavedPageCount();
             int max = store.getAutoCommitPageCount();
             // save at 3/4 capacity
@@ -365,6 +1004,78 @@ public class TransactionStore {
                 store.commit();
             }
         }
+        return false;
+    }
+
+    /**
+     * Commit and write the changes of this and all concurrently committing
+     * transactions. The first transaction becomes the leader: it waits for
+     * other transactions to join the group (at most the group commit delay),
+     * then commits the store and syncs the file once for the whole group. The
+     * other transactions wait until the leader has written their changes. If
+     * the leader fails, the next transaction takes over.
+     */
+    private void commitGroup() {
+        long ticket;
+        synchronized (groupCommitLock) {
+            ticket = ++groupCommitRequested;
+            if (ticket - groupCommitWritten >= groupCommitSize) {
+                // the group is full: wake up the leader
+                groupCommitLock.notifyAll();
+            }
+            while (true) {
+                if (groupCommitWritten >= ticket) {
+                    return;
+                }
+                if (!groupCommitLeader) {
+                    groupCommitLeader = true;
+                    break;
+                }
+                try {
+                    groupCommitLock.wait();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+        }
+        long written = -1;
+        try {
+            long last;
+            synchronized (groupCommitLock) {
+                long delay = groupCommitDelay;
+                if (delay > 0) {
+                    long end = System.nanoTime() + delay * 1000;
+                    while (groupCommitRequested - groupCommitWritten < groupCommitSize) {
+                        long wait = end - System.nanoTime();
+                        if (wait <= 0) {
+                            break;
+                        }
+                        try {
+                            groupCommitLock.wait(wait / 1000000, (int) (wait % 1000000));
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+                // the changes of all transactions that are registered
+                // at this point are stored by the following commit
+                last = groupCommitRequested;
+            }
+            store.commit();
+            if (syncOnCommit && store.getFileStore() != null && !store.isClosed()) {
+                store.sync();
+            }
+            written = last;
+        } finally {
+            synchronized (groupCommitLock) {
+                if (written >= 0) {
+                    groupCommitWritten = written;
+                    groupCommitCount++;
+                }
+                groupCommitLeader = false;
+                groupCommitLock.notifyAll();
+            }
+        }
     }
 
     /**
@@ -375,35 +1086,40 @@ public class TransactionStore {
      * @param toLogId the log id to roll back to
      */
     void rollbackTo(Transaction t, long maxLogId, long toLogId) {
-        synchronized (undoLog) {
-            for (long logId = maxLogId - 1; logId >= toLogId; logId--) {
-                commitIfNeeded();
-                long[] undoKey = new long[] { t.getId(), logId };
-                Object[] op = undoLog.get(undoKey);
-                if (op == null) {
-                    // partially rolled back: load previous
-                    undoKey = undoLog.floorKey(undoKey);
-                    if (undoKey == null || undoKey[0] != t.getId()) {
-                        break;
-                    }
-                    logId = undoKey[1] + 1;
-                    continue;
+        MVMap<long[], Object[]> undoLog = t.undoLog;
+        if (undoLog == null) {
+            return;
+        }
+        for (long logId = maxLogId - 1; logId >= toLogId; logId--) {
+            commitIfNeeded();
+            long[] undoKey = new long[] { t.getId(), logId };
+            Object[] op = undoLog.get(undoKey);
+            if (op == null) {
+                // partially rolled back: load previous
+                undoKey = undoLog.floorKey(undoKey);
+                if (undoKey == null || undoKey[0] != t.getId()) {
+                    break;
                 }
-                int mapId = ((Integer) op[1]).intValue();
-                MVMap<Object, VersionedValue> map = openMap(mapId);
-                if (map != null) {
-                    Object key = op[2];
-                    VersionedValue oldValue = (VersionedValue) op[3];
-                    if (oldValue == null) {
-                        // this transaction added the value
-                        map.remove(key);
-                    } else {
-                        // this transaction updated the value
-                        map.put(key, oldValue);
-                    }
+                logId = undoKey[1] + 1;
+                continue;
+            }
+            int mapId = ((Integer) op[1]).intValue();
+            MVMap<Object, VersionedValue> map = openMap(mapId);
+            if (map != null) {
+                Object key = op[2];
+                VersionedValue oldValue = (VersionedValue) op[3];
+                VersionedValue value;
+                if (oldValue == null) {
+                    // this transaction added the value
+                    value = map.remove(key);
+                } else {
+                    // this transaction updated the value
+                    value = map.put(key, oldValue);
+                    countRemoved(t, mapId, oldValue, 1);
                 }
-                undoLog.remove(undoKey);
+                countRemoved(t, mapId, value, -1);
             }
+            undoLog.remove(undoKey);
         }
     }
 
@@ -427,34 +1143,33 @@ public class TransactionStore {
             }
 
             private void fetchNext() {
-                synchronized (undoLog) {
-                    while (logId >= toLogId) {
-                        long[] undoKey = new long[] { t.getId(), logId };
-                        Object[] op = undoLog.get(undoKey);
-                        logId--;
-                        if (op == null) {
-                            // partially rolled back: load previous
-                            undoKey = undoLog.floorKey(undoKey);
-                            if (undoKey == null || undoKey[0] != t.getId()) {
-                                break;
-                            }
-                            logId = undoKey[1];
-                            continue;
-                        }
-                        int mapId = ((Integer) op[1]).intValue();
-                        // TODO open map by id if possible
-                        Map<String, String> meta = store.getMetaMap();
-                        String m = meta.get("map." + mapId);
-                        if (m == null) {
-                            // map was removed later on
-                        } else {
-                            current = new Change();
-                            current.mapName = DataUtils.parseMap(m).get("name");
-                            current.key = op[2];
-                            VersionedValue oldValue = (VersionedValue) op[3];
-                            current.value = oldValue == null ? null : oldValue.value;
-                            return;
+                MVMap<long[], Object[]> undoLog = t.undoLog;
+                while (undoLog != null && logId >= toLogId) {
+                    long[] undoKey = new long[] { t.getId(), logId };
+                    Object[] op = undoLog.get(undoKey);
+                    logId--;
+                    if (op == null) {
+                        // partially rolled back: load previous
+                        undoKey = undoLog.floorKey(undoKey);
+                        if (undoKey == null || undoKey[0] != t.getId()) {
+                            break;
                         }
+                        logId = undoKey[1];
+                        continue;
+                    }
+                    int mapId = ((Integer) op[1]).intValue();
+                    // TODO open map by id if possible
+                    Map<String, String> meta = store.getMetaMap();
+                    String m = meta.get("map." + mapId);
+                    if (m == null) {
+                        // map was removed later on
+                    } else {
+                        current = new Change();
+                        current.mapName = DataUtils.parseMap(m).get("name");
+                        current.key = op[2];
+                        VersionedValue oldValue = (VersionedValue) op[3];
+                        current.value = oldValue == null ? null : oldValue.value;
+                        return;
                     }
                 }
                 current = null;
@@ -552,6 +1267,49 @@ public class TransactionStore {
          */
         long logId;
 
+        /**
+         * The undo log slot, or -1 if the transaction has no undo log yet.
+         */
+        int slot = -1;
+
+        /**
+         * The undo log map of this transaction, or null.
+         */
+        volatile MVMap<long[], Object[]> undoLog;
+
+        /**
+         * Whether the undo log might contain entries of removed values.
+         */
+        boolean hasRemovals;
+
+        /**
+         * The number of entries that were removed by this transaction and are
+         * still in the map, by map id. Guarded by the list of committed
+         * transactions of the store.
+         */
+        final HashMap<Integer, Long> removedCounts = New.hashMap();
+
+        /**
+         * The number of commits when this transaction was committed (0 if
+         * not committed, or if committed before the store was opened).
+         */
+        long commitId;
+
+        /**
+         * The transaction this transaction is waiting for, or null.
+         */
+        volatile Transaction blockingTransaction;
+
+        /**
+         * Whether this transaction was chosen as the victim of a deadlock.
+         */
+        volatile boolean deadlockVictim;
+
+        /**
+         * The lock timeout in milliseconds.
+         */
+        private long lockTimeout;
+
         private int status;
 
         private String name;
@@ -562,6 +1320,7 @@ public class TransactionStore {
             this.status = status;
             this.name = name;
             this.logId = logId;
+            this.lockTimeout = store.lockTimeout;
         }
 
         public long getId() {
@@ -586,6 +1345,22 @@ public class TransactionStore {
             return name;
         }
 
+        /**
+         * Set the lock timeout. If a row is locked by another transaction,
+         * changing it waits until the other transaction is closed, or until
+         * the lock timeout.
+         *
+         * @param lockTimeout the lock timeout in milliseconds, 0 means timeout
+         *            immediately
+         */
+        public void setLockTimeout(long lockTimeout) {
+            this.lockTimeout = lockTimeout;
+        }
+
+        public long getLockTimeout() {
+            return lockTimeout;
+        }
+
         /**
          * Create a new savepoint.
          *
@@ -645,10 +1420,8 @@ public class TransactionStore {
             if (valueType == null) {
                 valueType = new ObjectDataType();
             }
-            VersionedValueType vt = new VersionedValueType(valueType);
-            MVMap.Builder<K, VersionedValue> builder = new MVMap.Builder<K, VersionedValue>()
-                    .keyType(keyType).valueType(vt);
-            MVMap<K, VersionedValue> map = store.store.openMap(name, builder);
+            MVMap<K, VersionedValue> map = store.openVersionedMap(name,
+                    keyType, valueType);
             int mapId = map.getId();
             return new TransactionMap<K, V>(this, map, mapId);
         }
@@ -682,7 +1455,7 @@ public class TransactionStore {
          */
         public void commit() {
             checkNotClosed();
-            store.commit(this, logId);
+            store.commit(this);
         }
 
         /**
@@ -768,6 +1541,11 @@ public class TransactionStore {
          */
         private long readLogId = Long.MAX_VALUE;
 
+        /**
+         * The read view, or null to read the latest committed values.
+         */
+        private ReadView readView;
+
         TransactionMap(Transaction transaction, MVMap<K, VersionedValue> map, int mapId) {
             this.transaction = transaction;
             this.map = map;
@@ -784,6 +1562,16 @@ public class TransactionStore {
             this.readLogId = savepoint;
         }
 
+        /**
+         * Set the read view. Afterwards, changes of transactions that were
+         * committed after the view was opened are not visible when reading.
+         *
+         * @param readView the read view, or null
+         */
+        public void setReadView(ReadView readView) {
+            this.readView = readView;
+        }
+
         /**
          * Get a clone of this map for the given transaction.
          *
@@ -815,6 +1603,18 @@ public class TransactionStore {
             return size;
         }
 
+        /**
+         * Get the approximate size of the map, without iterating over the
+         * entries. Uncommitted changes of all transactions are included, but
+         * entries that were removed by committed transactions are not.
+         *
+         * @return the approximate size
+         */
+        public long sizeAsLongApproximation() {
+            long size = map.sizeAsLong() - transaction.store.getCommittedRemovals(mapId);
+            return Math.max(0, size);
+        }
+
         /**
          * Remove an entry.
          * <p>
@@ -854,26 +1654,35 @@ public class TransactionStore {
                     return old;
                 }
                 // an uncommitted transaction:
-                // wait until it is committed, or until the lock timeout
-                long timeout = transaction.store.lockTimeout;
+                // wait until it is closed, or until the lock timeout
+                long timeout = transaction.getLockTimeout();
                 if (timeout == 0) {
                     throw DataUtils.newIllegalStateException(
                             DataUtils.ERROR_TRANSACTION_LOCK_TIMEOUT, "Lock timeout");
                 }
+                long now = System.currentTimeMillis();
                 if (start == 0) {
-                    start = System.currentTimeMillis();
-                } else {
-                    long t = System.currentTimeMillis() - start;
-                    if (t > timeout) {
-                        throw DataUtils.newIllegalStateException(
-                                DataUtils.ERROR_TRANSACTION_LOCK_TIMEOUT, "Lock timeout");
-                    }
-                    // TODO use wait/notify instead, or remove the feature
-                    try {
-                        Thread.sleep(1);
-                    } catch (InterruptedException e) {
-                        // ignore
-                    }
+                    start = now;
+                } else if (now - start > timeout) {
+                    throw DataUtils.newIllegalStateException(
+                            DataUtils.ERROR_TRANSACTION_LOCK_TIMEOUT, "Lock timeout");
+                }
+                VersionedValue current = map.get(key);
+                if (current == null) {
+                    // removed in the meantime
+                    continue;
+                }
+                TransactionStore store = transaction.store;
+                Transaction blocker = store.getOpenTransaction(current.transactionId);
+                if (blocker == null || blocker == transaction ||
+                        store.isCommitted(blocker)) {
+                    // changed concurrently: try again
+                    continue;
+                }
+                long wait = timeout - (now - start);
+                if (!store.waitFor(transaction, blocker, wait)) {
+                    throw DataUtils.newIllegalStateException(
+                            DataUtils.ERROR_TRANSACTION_LOCK_TIMEOUT, "Lock timeout");
                 }
             }
         }
@@ -918,9 +1727,10 @@ public class TransactionStore {
          * @return true if the value was set, false if there was a concurrent update
          */
         public boolean trySet(K key, V value, boolean onlyIfUnchanged) {
+            transaction.store.cleanupIfNeeded();
             VersionedValue current = map.get(key);
             if (onlyIfUnchanged) {
-                VersionedValue old = getValue(key, readLogId);
+                VersionedValue old = getValue(key, readLogId, null);
                 if (!map.areValuesEqual(old, current)) {
                     long tx = current.transactionId;
                     if (tx == transaction.transactionId) {
@@ -967,6 +1777,7 @@ public class TransactionStore {
                     transaction.logUndo();
                     return false;
                 }
+                transaction.store.countRemoved(transaction, mapId, newValue, 1);
                 return true;
             }
             long tx = current.transactionId;
@@ -979,6 +1790,7 @@ public class TransactionStore {
                     transaction.logUndo();
                     return false;
                 }
+                countReplaced(current, newValue);
                 return true;
             }
             // added or updated by another transaction
@@ -992,12 +1804,19 @@ public class TransactionStore {
                     transaction.logUndo();
                     return false;
                 }
+                countReplaced(current, newValue);
                 return true;
             }
             // the transaction is not yet committed
             return false;
         }
 
+        private void countReplaced(VersionedValue current, VersionedValue newValue) {
+            TransactionStore store = transaction.store;
+            store.countRemoved(transaction, mapId, current, -1);
+            store.countRemoved(transaction, mapId, newValue, 1);
+        }
+
         /**
          * Get the value for the given key at the time when this map was opened.
          *
@@ -1038,7 +1857,7 @@ public class TransactionStore {
         @SuppressWarnings("unchecked")
         public V get(K key, long maxLogId) {
             transaction.checkNotClosed();
-            VersionedValue data = getValue(key, maxLogId);
+            VersionedValue data = getValue(key, maxLogId, readView);
             return data == null ? null : (V) data.value;
         }
 
@@ -1058,9 +1877,11 @@ public class TransactionStore {
             return tx == transaction.transactionId;
         }
 
-        private VersionedValue getValue(K key, long maxLog) {
+        private VersionedValue getValue(K key, long maxLog, ReadView view) {
             VersionedValue data = map.get(key);
-            for (int i = 0; i < 10; i++) {
+            // with a read view, each transaction that changed the entry
+            // afterwards might be visited once
+            for (int i = 0; i < 10 || i <= transaction.store.openTransactions.size(); i++) {
                 long tx;
                 if (data == null) {
                     // doesn't exist or deleted by a committed transaction
@@ -1075,17 +1896,18 @@ public class TransactionStore {
                     }
                 }
                 // added or updated by another transaction
-                boolean open = transaction.store.isTransactionOpen(tx);
-                if (!open) {
+                Transaction owner = transaction.store.getOpenTransaction(tx);
+                MVMap<long[], Object[]> undoLog =
+                        owner == null ? null : owner.undoLog;
+                if (undoLog == null || isVisible(owner, view)) {
                     // it is committed
                     return data;
                 }
                 // get the value before the uncommitted transaction
+                // (the slot might be re-used in the meantime,
+                // but the key contains the transaction id)
                 long[] x = new long[] { tx, logId };
-                Object[] d;
-                synchronized (transaction.store.undoLog) {
-                    d = transaction.store.undoLog.get(x);
-                }
+                Object[] d = undoLog.get(x);
                 if (d == null) {
                     // committed or rolled back in the meantime
                     data = map.get(key);
@@ -1098,6 +1920,13 @@ public class TransactionStore {
                     "The transaction log might be corrupt for key {0}", key);
         }
 
+        private boolean isVisible(Transaction owner, ReadView view) {
+            if (!transaction.store.isCommitted(owner)) {
+                return false;
+            }
+            return view == null || owner.commitId <= view.commitCount;
+        }
+
         /**
          * Check whether this map is closed.
          *
@@ -1224,6 +2053,19 @@ public class TransactionStore {
             return wrapIterator(it, includeUncommitted);
         }
 
+        /**
+         * Check whether the entry was removed by a committed transaction, but
+         * is not yet removed from the map.
+         *
+         * @param key the key
+         * @return true if yes
+         */
+        boolean isCommittedRemoval(K key) {
+            VersionedValue data = map.get(key);
+            return data != null && data.value == null &&
+                    !transaction.store.isTransactionOpen(data.transactionId);
+        }
+
         /**
          * Iterate over keys.
          *
@@ -1243,9 +2085,10 @@ public class TransactionStore {
                     while (iterator.hasNext()) {
                         current = iterator.next();
                         if (includeUncommitted) {
-                            return;
-                        }
-                        if (containsKey(current)) {
+                            if (!isCommittedRemoval(current)) {
+                                return;
+                            }
+                        } else if (containsKey(current)) {
                             return;
                         }
                     }
@@ -1278,6 +2121,23 @@ public class TransactionStore {
 
     }
 
+    /**
+     * A read view. Changes of transactions that were committed after the view
+     * was opened are not visible.
+     */
+    public static class ReadView {
+
+        /**
+         * The number of commits when the view was opened.
+         */
+        final long commitCount;
+
+        ReadView(long commitCount) {
+            this.commitCount = commitCount;
+        }
+
+    }
+
     /**
      * A versioned value (possibly null). It contains a pointer to the old
      * value, and the value itself.
@@ -19,11 +19,13 @@ import org.h2.mvstore.DataUtils;
 import org.h2.mvstore.WriteBuffer;
 import org.h2.mvstore.rtree.SpatialDataType;
 import org.h2.mvstore.rtree.SpatialKey;
-import org.h2.mvstore.type.DataType;
+import org.h2.mvstore.type.BytesKeyType;
+import org.h2.mvstore.type.LongKeyType;
 import org.h2.result.SortOrder;
 import org.h2.store.DataHandler;
 import org.h2.store.LobStorageFrontend;
 import org.h2.tools.SimpleResultSet;
+import org.h2.util.Utils;
 import org.h2.value.CompareMode;
 import org.h2.value.Value;
 import org.h2.value.ValueArray;
@@ -52,8 +54,19 @@ import org.h2.value.ValueUuid;
 
 /**
  * A row type.
+ * <p>
+ * Keys of type ValueLong can be converted to long values. If enabled, pages
+ * of maps with this key type keep the keys in a long array (this is used for
+ * the row keys of tables).
+ * <p>
+ * Rows of tables are stored with the length of each column in front of the
+ * column data. If lazy rows are enabled, such rows are read as a
+ * ValueLazyArray, so that only the columns that are accessed are decoded.
+ * <p>
+ * Keys of type ValueIndexKey are compared as unsigned bytes, and pages store
+ * their common prefix only once.
  */
-public class ValueDataType implements DataType {
+public class ValueDataType implements LongKeyType, BytesKeyType {
 
     static final String PREFIX = ValueDataType.class.getName();
 
@@ -71,16 +84,68 @@ public class ValueDataType implements DataType {
     private static final int STRING_0_31 = 68;
     private static final int BYTES_0_31 = 100;
     private static final int SPATIAL_KEY_2D = 132;
+    private static final int ROW = 133;
+    private static final int INDEX_KEY = 134;
 
     final DataHandler handler;
     final CompareMode compareMode;
     final int[] sortTypes;
     final SpatialDataType spatialType = new SpatialDataType(2);
+    private final boolean longKeys;
+    private final boolean lazyRows;
 
     public ValueDataType(CompareMode compareMode, DataHandler handler, int[] sortTypes) {
+        this(compareMode, handler, sortTypes, false);
+    }
+
+    public ValueDataType(CompareMode compareMode, DataHandler handler,
+            int[] sortTypes, boolean longKeys) {
+        this(compareMode, handler, sortTypes, longKeys, false);
+    }
+
+    /**
+     * Create a new data type.
+     *
+     * @param compareMode the compare mode
+     * @param handler the data handler
+     * @param sortTypes the sort types
+     * @param longKeys whether pages of maps with this key type keep the keys
+     *            as long values (all keys must be of type ValueLong)
+     * @param lazyRows whether arrays are written in the row format, and rows
+     *            are read as a ValueLazyArray (used for the rows of tables)
+     */
+    public ValueDataType(CompareMode compareMode, DataHandler handler,
+            int[] sortTypes, boolean longKeys, boolean lazyRows) {
         this.compareMode = compareMode;
         this.handler = handler;
         this.sortTypes = sortTypes;
+        this.longKeys = longKeys;
+        this.lazyRows = lazyRows;
+    }
+
+    @Override
+    public boolean useLongKeys() {
+        return longKeys;
+    }
+
+    @Override
+    public long toLong(Object key) {
+        return ((ValueLong) key).getLong();
+    }
+
+    @Override
+    public Object fromLong(long x) {
+        return ValueLong.get(x);
+    }
+
+    @Override
+    public byte[] toBytes(Object key) {
+        return key instanceof ValueIndexKey ? ((ValueIndexKey) key).getData() : null;
+    }
+
+    @Override
+    public Object fromBytes(byte[] bytes) {
+        return new ValueIndexKey(bytes);
     }
 
     @Override
@@ -88,6 +153,17 @@ public class ValueDataType implements DataType {
         if (a == b) {
             return 0;
         }
+        if (a instanceof ValueIndexKey && b instanceof ValueIndexKey) {
+            return Utils.compareNotNullUnsigned(
+                    ((ValueIndexKey) a).getData(),
+                    ((ValueIndexKey) b).getData());
+        }
+        if (a instanceof ValueLazyArray) {
+            a = ((ValueLazyArray) a).toArray();
+        }
+        if (b instanceof ValueLazyArray) {
+            b = ((ValueLazyArray) b).toArray();
+        }
         if (a instanceof ValueArray && b instanceof ValueArray) {
             Value[] ax = ((ValueArray) a).getList();
             Value[] bx = ((ValueArray) b).getList();
@@ -161,6 +237,10 @@ public class ValueDataType implements DataType {
             return;
         }
         Value x = (Value) obj;
+        if (lazyRows && x instanceof ValueArray) {
+            writeRow(buff, ((ValueArray) x).getList());
+            return;
+        }
         writeValue(buff, x);
     }
 
@@ -169,6 +249,16 @@ public class ValueDataType implements DataType {
             buff.put((byte) 0);
             return;
         }
+        if (v instanceof ValueLazyArray) {
+            writeRow(buff, (ValueLazyArray) v);
+            return;
+        } else if (v instanceof ValueIndexKey) {
+            byte[] b = ((ValueIndexKey) v).getData();
+            buff.put((byte) INDEX_KEY).
+                putVarInt(b.length).
+                put(b);
+            return;
+        }
         int type = v.getType();
         switch (type) {
         case Value.BOOLEAN:
@@ -420,6 +510,35 @@ public class ValueDataType implements DataType {
         }
     }
 
+    private void writeRow(WriteBuffer buff, Value[] list) {
+        int len = list.length;
+        int[] lengths = new int[len];
+        int start = buff.position();
+        for (int i = 0; i < len; i++) {
+            int pos = buff.position();
+            writeValue(buff, list[i]);
+            lengths[i] = buff.position() - pos;
+        }
+        byte[] data = new byte[buff.position() - start];
+        buff.position(start);
+        buff.get(data);
+        buff.position(start);
+        buff.put((byte) ROW).putVarInt(len);
+        for (int x : lengths) {
+            buff.putVarInt(x);
+        }
+        buff.put(data);
+    }
+
+    private static void writeRow(WriteBuffer buff, ValueLazyArray row) {
+        int len = row.getColumnCount();
+        buff.put((byte) ROW).putVarInt(len);
+        for (int i = 0; i < len; i++) {
+            buff.putVarInt(row.getLength(i));
+        }
+        buff.put(row.getData());
+    }
+
     private static void writeString(WriteBuffer buff, String s) {
         int len = s.length();
         buff.putVarInt(len).putStringData(s, len);
@@ -428,9 +547,10 @@ public class ValueDataType implements DataType {
     /**
      * Read a value.
      *
+     * @param buff the source buffer
      * @return the value
      */
-    private Object readValue(ByteBuffer buff) {
+    Object readValue(ByteBuffer buff) {
         int type = buff.get() & 255;
         switch (type) {
         case Value.NULL:
@@ -577,6 +697,29 @@ public class ValueDataType implements DataType {
             buff.get(b, 0, len);
             return ValueGeometry.get(b);
         }
+        case ROW: {
+            int len = readVarInt(buff);
+            int[] offsets = new int[len + 1];
+            for (int i = 0; i < len; i++) {
+                offsets[i + 1] = offsets[i] + readVarInt(buff);
+            }
+            if (lazyRows) {
+                byte[] data = DataUtils.newBytes(offsets[len]);
+                buff.get(data);
+                return new ValueLazyArray(this, offsets, data);
+            }
+            Value[] list = new Value[len];
+            for (int i = 0; i < len; i++) {
+                list[i] = (Value) readValue(buff);
+            }
+            return ValueArray.get(list);
+        }
+        case INDEX_KEY: {
+            int len = readVarInt(buff);
+            byte[] b = DataUtils.newBytes(len);
+            buff.get(b, 0, len);
+            return new ValueIndexKey(b);
+        }
         case SPATIAL_KEY_2D:
             return spatialType.read(buff);
         default:
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2004-2013 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore.db;
+
+import java.sql.PreparedStatement;
+import java.util.Arrays;
+
+import org.h2.engine.Constants;
+import org.h2.util.StringUtils;
+import org.h2.util.Utils;
+import org.h2.value.CompareMode;
+import org.h2.value.Value;
+
+/**
+ * The binary key of an index entry. The key is encoded such that the byte
+ * arrays of two keys, compared as unsigned bytes, are sorted in the same order
+ * as the index entries (see IndexKeyFormat).
+ */
+public class ValueIndexKey extends Value {
+
+    private final byte[] data;
+
+    ValueIndexKey(byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * Get the encoded key.
+     *
+     * @return the bytes (not a copy)
+     */
+    byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public int getType() {
+        return Value.ARRAY;
+    }
+
+    @Override
+    public long getPrecision() {
+        return data.length;
+    }
+
+    @Override
+    public int getDisplaySize() {
+        return data.length * 2;
+    }
+
+    @Override
+    public String getString() {
+        return StringUtils.convertBytesToHex(data);
+    }
+
+    @Override
+    public String getSQL() {
+        return "X'" + getString() + "'";
+    }
+
+    @Override
+    public Object getObject() {
+        return Utils.cloneByteArray(data);
+    }
+
+    @Override
+    public byte[] getBytesNoCopy() {
+        return data;
+    }
+
+    @Override
+    public void set(PreparedStatement prep, int parameterIndex) {
+        throw throwUnsupportedExceptionForType("PreparedStatement.set");
+    }
+
+    @Override
+    protected int compareSecure(Value v, CompareMode mode) {
+        return Utils.compareNotNullUnsigned(data, ((ValueIndexKey) v).data);
+    }
+
+    @Override
+    public int getMemory() {
+        return Constants.MEMORY_OBJECT * 2 + data.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(data);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof ValueIndexKey &&
+                Arrays.equals(data, ((ValueIndexKey) other).data);
+    }
+
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2004-2013 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore.db;
+
+import java.nio.ByteBuffer;
+import java.sql.PreparedStatement;
+
+import org.h2.engine.Constants;
+import org.h2.value.CompareMode;
+import org.h2.value.Value;
+import org.h2.value.ValueArray;
+
+/**
+ * The serialized form of a row, as read from a page of a table map. The
+ * columns are only decoded when they are accessed. The bytes of each column
+ * are stored one after the other; the offset of each column is kept in a
+ * separate array, so that a column can be decoded without decoding the
+ * columns before it.
+ */
+public class ValueLazyArray extends Value {
+
+    private final ValueDataType type;
+    private final int[] offsets;
+    private final byte[] data;
+
+    /**
+     * Create a new lazy array.
+     *
+     * @param type the data type used to decode the columns
+     * @param offsets the start offset of each column, plus the total length
+     * @param data the serialized columns
+     */
+    ValueLazyArray(ValueDataType type, int[] offsets, byte[] data) {
+        this.type = type;
+        this.offsets = offsets;
+        this.data = data;
+    }
+
+    /**
+     * Get the values of an array, which is either a ValueArray or a
+     * ValueLazyArray.
+     *
+     * @param v the array
+     * @return the values
+     */
+    public static Value[] getList(Value v) {
+        if (v instanceof ValueLazyArray) {
+            return ((ValueLazyArray) v).getList();
+        }
+        return ((ValueArray) v).getList();
+    }
+
+    /**
+     * Get the number of columns.
+     *
+     * @return the column count
+     */
+    public int getColumnCount() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * Decode a column.
+     *
+     * @param i the column index (0-based)
+     * @return the value
+     */
+    public Value getValue(int i) {
+        int start = offsets[i];
+        int len = offsets[i + 1] - start;
+        return (Value) type.readValue(ByteBuffer.wrap(data, start, len));
+    }
+
+    /**
+     * Decode all columns.
+     *
+     * @return a new array with the values
+     */
+    public Value[] getList() {
+        int len = getColumnCount();
+        Value[] list = new Value[len];
+        ByteBuffer buff = ByteBuffer.wrap(data);
+        for (int i = 0; i < len; i++) {
+            list[i] = (Value) type.readValue(buff);
+        }
+        return list;
+    }
+
+    /**
+     * Decode all columns.
+     *
+     * @return the array
+     */
+    public ValueArray toArray() {
+        return ValueArray.get(getList());
+    }
+
+    /**
+     * Get the length of the serialized column.
+     *
+     * @param i the column index (0-based)
+     * @return the length in bytes
+     */
+    int getLength(int i) {
+        return offsets[i + 1] - offsets[i];
+    }
+
+    /**
+     * Get the serialized columns.
+     *
+     * @return the bytes (not a copy)
+     */
+    byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public int getType() {
+        return Value.ARRAY;
+    }
+
+    @Override
+    public long getPrecision() {
+        return toArray().getPrecision();
+    }
+
+    @Override
+    public int getDisplaySize() {
+        return toArray().getDisplaySize();
+    }
+
+    @Override
+    public String getString() {
+        return toArray().getString();
+    }
+
+    @Override
+    public String getSQL() {
+        return toArray().getSQL();
+    }
+
+    @Override
+    public Object getObject() {
+        return toArray().getObject();
+    }
+
+    @Override
+    public void set(PreparedStatement prep, int parameterIndex) {
+        throw throwUnsupportedExceptionForType("PreparedStatement.set");
+    }
+
+    @Override
+    protected int compareSecure(Value v, CompareMode mode) {
+        if (v instanceof ValueLazyArray) {
+            v = ((ValueLazyArray) v).toArray();
+        }
+        return toArray().compareTypeSave(v, mode);
+    }
+
+    @Override
+    public int getMemory() {
+        return Constants.MEMORY_OBJECT * 3 + data.length + offsets.length * 4;
+    }
+
+    @Override
+    public int hashCode() {
+        return toArray().hashCode();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other instanceof ValueLazyArray) {
+            other = ((ValueLazyArray) other).toArray();
+        }
+        return toArray().equals(other);
+    }
+
+}
@@ -213,6 +213,12 @@ public class MVRTreeMap<V> extends MVMap<SpatialKey, V> {
         putOrAdd(key, value, true);
     }
 
+    @Override
+    public BulkLoader<SpatialKey, V> bulkLoader(int fillRate) {
+        throw DataUtils.newUnsupportedOperationException(
+                "Bulk loading is not supported for r-trees");
+    }
+
     private Object putOrAdd(SpatialKey key, V value, boolean alwaysAdd) {
         beforeWrite();
         try {
@@ -718,6 +724,7 @@ public class MVRTreeMap<V> extends MVMap<SpatialKey, V> {
 
         private int dimensions = 2;
         private DataType valueType;
+        private int compressionAlgorithm = -1;
 
         /**
          * Create a new builder for maps with 2 dimensions.
@@ -748,12 +755,27 @@ public class MVRTreeMap<V> extends MVMap<SpatialKey, V> {
             return this;
         }
 
+        /**
+         * Set the compression algorithm for new pages of this map, overriding
+         * the default of the store. The setting is persisted. Use
+         * Compressor.NO to disable compression for this map.
+         *
+         * @param algorithm the algorithm (see Compressor)
+         * @return this
+         */
+        public Builder<V> compressData(int algorithm) {
+            this.compressionAlgorithm = algorithm;
+            return this;
+        }
+
         @Override
         public MVRTreeMap<V> create() {
             if (valueType == null) {
                 valueType = new ObjectDataType();
             }
-            return new MVRTreeMap<V>(dimensions, valueType);
+            MVRTreeMap<V> map = new MVRTreeMap<V>(dimensions, valueType);
+            map.setCompressionAlgorithm(compressionAlgorithm);
+            return map;
         }
 
     }
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2004-2013 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore.type;
+
+/**
+ * A data type for keys that can be converted to byte arrays, where the byte
+ * arrays (compared as unsigned bytes) are sorted in the same order as the
+ * keys.
+ * <p>
+ * Pages of maps with such a key type store the common prefix of the keys
+ * only once.
+ */
+public interface BytesKeyType extends DataType {
+
+    /**
+     * Convert a key to a byte array.
+     *
+     * @param key the key
+     * @return the byte array, or null if the key can not be converted
+     */
+    byte[] toBytes(Object key);
+
+    /**
+     * Convert a byte array to a key.
+     *
+     * @param bytes the byte array
+     * @return the key
+     */
+    Object fromBytes(byte[] bytes);
+
+}
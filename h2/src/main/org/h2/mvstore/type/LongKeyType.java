@@ -0,0 +1,44 @@
+/*
+ * Copyright 2004-2013 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore.type;
+
+/**
+ * A data type for keys that can be converted to long values, where the long
+ * values are sorted in the same order as the keys.
+ * <p>
+ * If enabled, the pages of maps with such a key type keep the keys in a long
+ * array (instead of an array of objects), search them without calling
+ * compare, and store them delta encoded.
+ */
+public interface LongKeyType extends DataType {
+
+    /**
+     * Whether pages of maps with this key type keep the keys as long values.
+     * If not, the conversion methods are only used to read pages that were
+     * stored with long keys.
+     *
+     * @return true if yes
+     */
+    boolean useLongKeys();
+
+    /**
+     * Convert a key to a long value.
+     *
+     * @param key the key
+     * @return the long value
+     */
+    long toLong(Object key);
+
+    /**
+     * Convert a long value to a key.
+     *
+     * @param x the long value
+     * @return the key
+     */
+    Object fromLong(long x);
+
+}
@@ -18,9 +18,10 @@ import org.h2.util.New;
 import org.h2.value.Value;
 
 /**
- * This class implements the disk buffer for the LocalResult class.
+ * This class implements the disk buffer for the LocalResult class. It is also
+ * used to store the rows of large GROUP BY queries.
  */
-class ResultDiskBuffer implements ResultExternal {
+public class ResultDiskBuffer implements ResultExternal {
 
     private static final int READ_AHEAD = 128;
 
@@ -65,7 +66,7 @@ class ResultDiskBuffer implements ResultExternal {
         ArrayList<Value[]> buffer = New.arrayList();
     }
 
-    ResultDiskBuffer(Session session, SortOrder sort, int columnCount) {
+    public ResultDiskBuffer(Session session, SortOrder sort, int columnCount) {
         this.parent = null;
         this.sort = sort;
         this.columnCount = columnCount;
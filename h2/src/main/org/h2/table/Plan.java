@@ -108,7 +108,7 @@ public class Plan {
         boolean invalidPlan = false;
         int level = 1;
         for (TableFilter tableFilter : allFilters) {
-            PlanItem item = tableFilter.getBestPlanItem(session, level++);
+            PlanItem item = tableFilter.getBestPlanItem(session, level++, cost);
             planItems.put(tableFilter, item);
             cost += cost * item.cost;
             setEvaluatable(tableFilter, true);
@@ -17,9 +17,11 @@ import org.h2.expression.Comparison;
 import org.h2.expression.ConditionAndOr;
 import org.h2.expression.Expression;
 import org.h2.expression.ExpressionColumn;
+import org.h2.index.HashJoinIndex;
 import org.h2.index.Index;
 import org.h2.index.IndexCondition;
 import org.h2.index.IndexCursor;
+import org.h2.index.MergeJoinIndex;
 import org.h2.message.DbException;
 import org.h2.result.Row;
 import org.h2.result.SearchRow;
@@ -27,6 +29,7 @@ import org.h2.result.SortOrder;
 import org.h2.util.New;
 import org.h2.util.StatementBuilder;
 import org.h2.util.StringUtils;
+import org.h2.value.CompareMode;
 import org.h2.value.Value;
 import org.h2.value.ValueLong;
 import org.h2.value.ValueNull;
@@ -149,7 +152,7 @@ public class TableFilter implements ColumnResolver {
     }
 
     /**
-     * Get the best plan item (index, cost) to use use for the current join
+     * Get the best plan item (index, cost) to use for the current join
      * order.
      *
      * @param s the session
@@ -157,6 +160,20 @@ public class TableFilter implements ColumnResolver {
      * @return the best plan item
      */
     public PlanItem getBestPlanItem(Session s, int level) {
+        return getBestPlanItem(s, level, 0);
+    }
+
+    /**
+     * Get the best plan item (index, cost) to use for the current join
+     * order. If the filter is joined to other tables, a hash join may be used.
+     *
+     * @param s the session
+     * @param level 1 for the first table in a join, 2 for the second, and so on
+     * @param outerCost the cost of the tables that are evaluated before this
+     *            one (the expected number of lookups), or 0 if unknown
+     * @return the best plan item
+     */
+    public PlanItem getBestPlanItem(Session s, int level, double outerCost) {
         PlanItem item;
         if (indexConditions.size() == 0) {
             item = new PlanItem();
@@ -182,6 +199,14 @@ public class TableFilter implements ColumnResolver {
                 sortOrder = select.getSortOrder();
             }
             item = table.getBestPlanItem(s, masks, this, sortOrder);
+            if (level > 1 && outerCost > 1 && masks != null &&
+                    item.getIndex() == table.getScanIndex(s) &&
+                    s.getDatabase().getSettings().optimizeHashJoin) {
+                PlanItem hashJoin = getHashJoinPlanItem(s, masks, outerCost);
+                if (hashJoin != null && hashJoin.cost < item.cost) {
+                    item = hashJoin;
+                }
+            }
             // The more index conditions, the earlier the table.
             // This is to ensure joins without indexes run quickly:
             // x (x.a=10); y (x.b=y.b) - see issue 113
@@ -204,6 +229,54 @@ public class TableFilter implements ColumnResolver {
         return item;
     }
 
+    /**
+     * Get the plan item for a hash join on the columns of the equi-join
+     * conditions. The cost to build the hash map is distributed over the
+     * expected number of lookups.
+     *
+     * @param s the session
+     * @param masks the condition masks of the columns
+     * @param outerCost the expected number of lookups
+     * @return the plan item, or null if a hash join is not possible
+     */
+    private PlanItem getHashJoinPlanItem(Session s, int[] masks, double outerCost) {
+        if (!(table instanceof TableBase)) {
+            // the rows of views and functions may depend on the outer query
+            return null;
+        }
+        if (table.getRowCountApproximation() > s.getDatabase().getMaxMemoryRows()) {
+            // the hash map would not be built, and each lookup
+            // would scan the table
+            return null;
+        }
+        CompareMode compareMode = s.getDatabase().getCompareMode();
+        ArrayList<IndexColumn> list = New.arrayList();
+        boolean[] used = new boolean[table.getColumns().length];
+        for (IndexCondition condition : indexConditions) {
+            Column column = condition.getColumn();
+            int id = column.getColumnId();
+            if (id >= 0 && !used[id] && condition.isEvaluatable() &&
+                    condition.isEquiJoin() &&
+                    HashJoinIndex.isHashable(column, compareMode)) {
+                used[id] = true;
+                IndexColumn c = new IndexColumn();
+                c.column = column;
+                list.add(c);
+            }
+        }
+        if (list.isEmpty()) {
+            return null;
+        }
+        IndexColumn[] cols = new IndexColumn[list.size()];
+        list.toArray(cols);
+        HashJoinIndex index = new HashJoinIndex(table, cols);
+        PlanItem item = new PlanItem();
+        item.setIndex(index);
+        item.cost = index.getCost(s, masks, this, null) +
+                index.getBuildCost(s) / outerCost;
+        return item;
+    }
+
     private void setEvaluatable(TableFilter join) {
         if (session.getDatabase().getSettings().nestedJoins) {
             setEvaluatable(true);
@@ -266,6 +339,9 @@ public class TableFilter implements ColumnResolver {
                 }
             }
         }
+        if (session.getDatabase().getSettings().optimizeMergeJoin) {
+            prepareMergeJoin();
+        }
         if (nestedJoin != null) {
             if (SysProperties.CHECK && nestedJoin == this) {
                 DbException.throwInternalError("self join");
@@ -286,6 +362,54 @@ public class TableFilter implements ColumnResolver {
         }
     }
 
+    /**
+     * Use a merge join if the rows are looked up by the first column of the
+     * index, and the table this column is compared with is read in the same
+     * order.
+     */
+    private void prepareMergeJoin() {
+        if (index == null || index.getIndexType().isScan() ||
+                indexConditions.size() == 0) {
+            return;
+        }
+        Column[] columns = index.getColumns();
+        if (columns == null || columns.length == 0) {
+            return;
+        }
+        Column first = columns[0];
+        boolean sorted = false;
+        for (IndexCondition condition : indexConditions) {
+            if (condition.getColumn() != first) {
+                return;
+            }
+            if (condition.getCompareType() == Comparison.EQUAL &&
+                    condition.getExpression() instanceof ExpressionColumn) {
+                ExpressionColumn outer = (ExpressionColumn) condition.getExpression();
+                TableFilter f = outer.getTableFilter();
+                if (f != null && f != this && f.getIndex() != null &&
+                        MergeJoinIndex.isSortedBy(f.getIndex(), outer.getColumn()) &&
+                        !f.isSingleRowLookup(outer.getColumn())) {
+                    sorted = true;
+                }
+            }
+        }
+        if (sorted && MergeJoinIndex.isSortedBy(index, first)) {
+            setIndex(new MergeJoinIndex(index));
+        }
+    }
+
+    private boolean isSingleRowLookup(Column column) {
+        if (index.getIndexType().isUnique() && index.getColumns().length == 1) {
+            for (IndexCondition condition : indexConditions) {
+                if (condition.getColumn() == column &&
+                        condition.getCompareType() == Comparison.EQUAL) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      * Start the query. This will reset the scan counts.
      *
@@ -294,6 +418,11 @@ public class TableFilter implements ColumnResolver {
     public void startQuery(Session s) {
         this.session = s;
         scanCount = 0;
+        if (index instanceof HashJoinIndex) {
+            ((HashJoinIndex) index).reset();
+        } else if (index instanceof MergeJoinIndex) {
+            ((MergeJoinIndex) index).reset();
+        }
         if (nestedJoin != null) {
             nestedJoin.startQuery(s);
         }
@@ -476,6 +605,10 @@ public class TableFilter implements ColumnResolver {
         return table.getName();
     }
 
+    public ArrayList<IndexCondition> getIndexConditions() {
+        return indexConditions;
+    }
+
     /**
      * Add an index condition.
      *
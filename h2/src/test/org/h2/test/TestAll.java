@@ -113,6 +113,7 @@ import org.h2.test.server.TestWeb;
 import org.h2.test.store.TestCacheConcurrentLIRS;
 import org.h2.test.store.TestCacheLIRS;
 import org.h2.test.store.TestCacheLongKeyLIRS;
+import org.h2.test.store.TestCacheLongKeyOffHeap;
 import org.h2.test.store.TestConcurrent;
 import org.h2.test.store.TestDataUtils;
 import org.h2.test.store.TestFreeSpace;
@@ -749,6 +750,7 @@ kill -9 `jps -l | grep "org.h2.test." | cut -d " " -f 1`
         new TestCacheConcurrentLIRS().runTest(this);
         new TestCacheLIRS().runTest(this);
         new TestCacheLongKeyLIRS().runTest(this);
+        new TestCacheLongKeyOffHeap().runTest(this);
         new TestConcurrent().runTest(this);
         new TestDataUtils().runTest(this);
         new TestFreeSpace().runTest(this);
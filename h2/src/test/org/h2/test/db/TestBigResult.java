@@ -40,6 +40,7 @@ public class TestBigResult extends TestBase {
         testCloseConnectionDelete();
         testOrderGroup();
         testLimitBufferedResult();
+        testLargeGroupBy();
         deleteDb("bigResult");
     }
 
@@ -66,6 +67,53 @@ public class TestBigResult extends TestBase {
         conn.close();
     }
 
+    private void testLargeGroupBy() throws SQLException {
+        deleteDb("bigResult");
+        Connection conn = getConnection("bigResult");
+        Statement stat = conn.createStatement();
+        int len = getSize(10000, 100000);
+        stat.execute("CREATE TABLE TEST(ID INT PRIMARY KEY, NAME VARCHAR) AS " +
+                "SELECT X, 'Hello ' || MOD(X * 7, " + (len / 4) + ") " +
+                "FROM SYSTEM_RANGE(1, " + len + ")");
+        String[] queries = {
+                "SELECT NAME, COUNT(*), SUM(ID), MIN(ID), MAX(ID) FROM TEST " +
+                "GROUP BY NAME ORDER BY NAME",
+                "SELECT NAME, COUNT(*), GROUP_CONCAT(ID ORDER BY ID) FROM TEST " +
+                "WHERE MOD(ID, 3) > 0 GROUP BY NAME " +
+                "HAVING COUNT(*) > 1 ORDER BY NAME",
+                "SELECT T.NAME, U.ID, COUNT(*), SUM(T.ID) FROM TEST T " +
+                "INNER JOIN TEST U ON U.ID = MOD(T.ID, 10) + 1 " +
+                "GROUP BY T.NAME, U.ID ORDER BY T.NAME, U.ID",
+                "SELECT NAME, MIN(ROWNUM()), MAX(ROWNUM()) FROM TEST " +
+                "GROUP BY NAME ORDER BY NAME" };
+        String[] expected = new String[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            expected[i] = getResult(stat, queries[i]);
+        }
+        // the groups don't fit in memory
+        stat.execute("SET MAX_MEMORY_ROWS " + (len / 100));
+        for (int i = 0; i < queries.length; i++) {
+            assertEquals(expected[i], getResult(stat, queries[i]));
+        }
+        stat.execute("SET MAX_MEMORY_ROWS 2");
+        assertEquals(expected[0], getResult(stat, queries[0]));
+        stat.execute("DROP TABLE TEST");
+        conn.close();
+    }
+
+    private static String getResult(Statement stat, String sql) throws SQLException {
+        ResultSet rs = stat.executeQuery(sql);
+        int columnCount = rs.getMetaData().getColumnCount();
+        StringBuilder buff = new StringBuilder();
+        while (rs.next()) {
+            for (int i = 1; i <= columnCount; i++) {
+                buff.append(rs.getString(i)).append(' ');
+            }
+            buff.append('\n');
+        }
+        return buff.toString();
+    }
+
     private void testLargeUpdateDelete() throws SQLException {
         deleteDb("bigResult");
         Connection conn = getConnection("bigResult");
@@ -73,6 +73,9 @@ public class TestOptimizations extends TestBase {
         testMinMaxCountOptimization(false);
         testOrderedIndexes();
         testConvertOrToIn();
+        testHashJoin();
+        testMergeJoin();
+        testParallelGroupBy();
         deleteDb("optimizations");
     }
 
@@ -874,4 +877,140 @@ public class TestOptimizations extends TestBase {
 
         conn.close();
     }
+
+    private void testHashJoin() throws SQLException {
+        deleteDb("optimizations");
+        Connection conn = getConnection("optimizations");
+        Statement stat = conn.createStatement();
+        stat.execute("create table a(id int, x int) as " +
+                "select x, mod(x, 7) from system_range(1, 200)");
+        stat.execute("create table b(id int, x int) as " +
+                "select x, mod(x, 5) from system_range(1, 300)");
+        String sql = "select count(*), sum(a.id), sum(b.id) " +
+                "from a, b where a.x = b.x and a.id < 50";
+        ResultSet rs = stat.executeQuery("explain " + sql);
+        rs.next();
+        assertContains(rs.getString(1), "hashJoin");
+        String expected = getSingleRow(stat, sql);
+        // not used if the table is too large
+        stat.execute("set max_memory_rows 100");
+        rs = stat.executeQuery("explain " + sql);
+        rs.next();
+        assertFalse(rs.getString(1).contains("hashJoin"));
+        assertEquals(expected, getSingleRow(stat, sql));
+        stat.execute("set max_memory_rows 10000");
+        // rows changed after the hash map was built
+        stat.execute("insert into b values(1000, 1)");
+        expected = getSingleRow(stat, sql);
+        conn.close();
+
+        conn = getConnection("optimizations;OPTIMIZE_HASH_JOIN=FALSE");
+        stat = conn.createStatement();
+        rs = stat.executeQuery("explain " + sql);
+        rs.next();
+        assertFalse(rs.getString(1).contains("hashJoin"));
+        assertEquals(expected, getSingleRow(stat, sql));
+        stat.execute("drop table a, b");
+        conn.close();
+    }
+
+    private void testMergeJoin() throws SQLException {
+        deleteDb("optimizations");
+        Connection conn = getConnection("optimizations");
+        Statement stat = conn.createStatement();
+        stat.execute("create table parent(id int primary key) as " +
+                "select x from system_range(1, 1000)");
+        // gaps, duplicate values, and values without parent
+        stat.execute("create table child(id int primary key, pid int) as " +
+                "select x, case when mod(x, 3) = 0 then x / 3 " +
+                "when x < 500 then 800 + mod(x, 7) else x * 2 end " +
+                "from system_range(1, 3000)");
+        stat.execute("create index idx_pid on child(pid)");
+        String sql = "select count(*), sum(p.id), sum(c.id) " +
+                "from parent p inner join child c on c.pid = p.id";
+        String outerSql = "select count(*), sum(c.id), sum(p.id) " +
+                "from parent p left join child c on c.pid = p.id " +
+                "where p.id > 300";
+        ResultSet rs = stat.executeQuery("explain " + sql);
+        rs.next();
+        assertContains(rs.getString(1), "mergeJoin");
+        String expected = getSingleRow(stat, sql);
+        String expectedOuter = getSingleRow(stat, outerSql);
+        // duplicate runs that don't fit in memory
+        stat.execute("set max_memory_rows 5");
+        assertEquals(expected, getSingleRow(stat, sql));
+        assertEquals(expectedOuter, getSingleRow(stat, outerSql));
+        stat.execute("set max_memory_rows 10000");
+        conn.close();
+
+        conn = getConnection("optimizations;OPTIMIZE_MERGE_JOIN=FALSE");
+        stat = conn.createStatement();
+        rs = stat.executeQuery("explain " + sql);
+        rs.next();
+        assertFalse(rs.getString(1).contains("mergeJoin"));
+        assertEquals(expected, getSingleRow(stat, sql));
+        assertEquals(expectedOuter, getSingleRow(stat, outerSql));
+        stat.execute("drop table parent, child");
+        conn.close();
+    }
+
+    private void testParallelGroupBy() throws SQLException {
+        deleteDb("optimizations");
+        Connection conn = getConnection("optimizations");
+        Statement stat = conn.createStatement();
+        stat.execute("create table test(id int primary key, g int, " +
+                "v int, d double, b boolean, s varchar, p int) as " +
+                "select x, mod(x, 13), mod(x * 7, 1000), x / 4.0, " +
+                "mod(x, 100) > 0, case when mod(x, 3) = 0 then null " +
+                "else 'x' || x end, (x - 1) / 12500 from system_range(1, 50000)");
+        Connection conn2 = getConnection("optimizations;QUERY_PARALLELISM=4");
+        Statement stat2 = conn2.createStatement();
+        ResultSet rs = stat2.executeQuery("select value from " +
+                "information_schema.settings where name = 'QUERY_PARALLELISM'");
+        rs.next();
+        assertEquals("4", rs.getString(1));
+        String[] queries = {
+                "select count(*), sum(v), min(s), max(d) from test",
+                "select count(*), sum(v) from test where v < 0",
+                "select g, count(*), count(s), sum(v), avg(v), min(v), max(v), " +
+                "sum(d), bool_and(b), bool_or(b) from test " +
+                "where v > 10 group by g order by g",
+                "select g / 2, sum(v) + max(v) from test group by g / 2 " +
+                "having count(*) > 7000 order by 1",
+                "select v, count(*) from test group by v order by v",
+                "select id, sum(v) from test where id between 10 and 20000 " +
+                "group by id order by id",
+        };
+        for (String sql : queries) {
+            assertEquals(sql, stat.executeQuery(sql), stat2.executeQuery(sql));
+        }
+        String sql = "select g, sum(v) from test where v > ? group by g order by g";
+        PreparedStatement prep = conn.prepareStatement(sql);
+        PreparedStatement prep2 = conn2.prepareStatement(sql);
+        for (int i = 0; i < 1000; i += 400) {
+            prep.setInt(1, i);
+            prep2.setInt(1, i);
+            assertEquals(sql, prep.executeQuery(), prep2.executeQuery());
+        }
+        // the column is not grouped, and has the same value within the
+        // range of each thread
+        assertThrows(ErrorCode.MUST_GROUP_BY_COLUMN_1, stat2).
+                executeQuery("select count(*), p from test");
+        assertThrows(ErrorCode.INVALID_VALUE_2, stat2).
+                execute("set query_parallelism -1");
+        // too many groups to keep in memory
+        stat2.execute("set max_memory_rows 100");
+        sql = "select v, sum(id) from test group by v order by v";
+        assertEquals(sql, stat.executeQuery(sql), stat2.executeQuery(sql));
+        stat.execute("drop table test");
+        conn2.close();
+        conn.close();
+    }
+
+    private static String getSingleRow(Statement stat, String sql)
+            throws SQLException {
+        ResultSet rs = stat.executeQuery(sql);
+        rs.next();
+        return rs.getString(1) + " " + rs.getString(2) + " " + rs.getString(3);
+    }
 }
@@ -44,6 +44,7 @@ public class TestCacheLongKeyLIRS extends TestBase {
         testLimitNonResident();
         testScanResistance();
         testRandomOperations();
+        testOnRemove();
     }
 
     private static void testRandomSmallCache() {
@@ -486,6 +487,33 @@ public class TestCacheLongKeyLIRS extends TestBase {
         }
     }
 
+    private void testOnRemove() {
+        final HashMap<Long, Integer> removed = New.hashMap();
+        CacheLongKeyLIRS<Integer> test = new CacheLongKeyLIRS<Integer>(
+                3, 1, 1, 0) {
+            @Override
+            protected void onRemove(long key, Integer value) {
+                assertNull(removed.put(key, value));
+            }
+        };
+        test.put(1, 10);
+        test.put(1, 11);
+        assertEquals(10, removed.remove(1L).intValue());
+        test.remove(1);
+        assertEquals(11, removed.remove(1L).intValue());
+        test.remove(1);
+        assertEquals(0, removed.size());
+        // evict
+        for (int i = 0; i < 10; i++) {
+            test.put(i, i);
+        }
+        assertEquals(10, removed.size() + test.size());
+        for (Entry<Long, Integer> e : removed.entrySet()) {
+            assertEquals(e.getKey().intValue(), e.getValue().intValue());
+            assertNull(test.peek(e.getKey()));
+        }
+    }
+
     private static <V> CacheLongKeyLIRS<V> createCache(int maxElements) {
         return createCache(maxElements, 1);
     }
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2004-2013 H2 Group. Multiple-Licensed under the H2 License, Version
+ * 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html). Initial Developer: H2 Group
+ */
+package org.h2.test.store;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.h2.mvstore.cache.CacheLongKeyOffHeap;
+import org.h2.test.TestBase;
+
+/**
+ * Tests the off-heap cache.
+ */
+public class TestCacheLongKeyOffHeap extends TestBase {
+
+    /**
+     * Run just this test.
+     *
+     * @param a ignored
+     */
+    public static void main(String... a) throws Exception {
+        TestBase.createCaller().init().test();
+    }
+
+    @Override
+    public void test() throws Exception {
+        testGetPutRemove();
+        testLimit();
+        testLargeEntry();
+        testConcurrent();
+    }
+
+    private void testGetPutRemove() {
+        CacheLongKeyOffHeap cache = new CacheLongKeyOffHeap(1024 * 1024, 1000);
+        assertNull(cache.get(1));
+        assertEquals(1, cache.getMisses());
+        for (int i = 0; i < 100; i++) {
+            cache.put(i, createData(i, i * 30));
+        }
+        assertEquals(100, cache.size());
+        for (int i = 0; i < 100; i++) {
+            checkData(i, i * 30, cache.get(i));
+        }
+        assertEquals(100, cache.getHits());
+        // replace
+        cache.put(5, createData(50, 3000));
+        checkData(50, 3000, cache.get(5));
+        cache.remove(5);
+        assertNull(cache.get(5));
+        assertEquals(99, cache.size());
+        assertTrue(cache.getUsedMemory() > 0);
+        assertTrue(cache.getAllocatedMemory() >= cache.getUsedMemory());
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getUsedMemory());
+        assertNull(cache.get(1));
+    }
+
+    private void testLimit() {
+        int max = 256 * 1024;
+        CacheLongKeyOffHeap cache = new CacheLongKeyOffHeap(max, 1000);
+        Random r = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            int key = r.nextInt(1000);
+            ByteBuffer buff = cache.get(key);
+            if (buff == null) {
+                cache.put(key, createData(key, 100 + key * 2));
+            } else {
+                checkData(key, 100 + key * 2, buff);
+            }
+            assertTrue(cache.getUsedMemory() <= max);
+        }
+        assertTrue(cache.getHits() > 0);
+        assertTrue(cache.getAllocatedMemory() <= max);
+    }
+
+    private void testLargeEntry() {
+        CacheLongKeyOffHeap cache = new CacheLongKeyOffHeap(64 * 1024, 1000);
+        cache.put(1, createData(1, 100));
+        // too large: not cached, and the old entry is removed
+        cache.put(1, createData(1, 64 * 1024));
+        assertNull(cache.get(1));
+        assertEquals(0, cache.getUsedMemory());
+    }
+
+    private void testConcurrent() throws Exception {
+        final CacheLongKeyOffHeap cache = new CacheLongKeyOffHeap(
+                512 * 1024, 1000);
+        final AtomicReference<Throwable> ex = new AtomicReference<Throwable>();
+        final AtomicInteger gets = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Random r = new Random(seed);
+                        for (int i = 0; i < 20000; i++) {
+                            int key = r.nextInt(2000);
+                            int len = key % 3000;
+                            if (r.nextInt(10) == 0) {
+                                cache.remove(key);
+                                continue;
+                            }
+                            ByteBuffer buff = cache.get(key);
+                            gets.incrementAndGet();
+                            if (buff == null) {
+                                cache.put(key, createData(key, len));
+                            } else {
+                                checkData(key, len, buff);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        ex.set(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (ex.get() != null) {
+            throw new AssertionError(ex.get());
+        }
+        assertTrue(cache.getUsedMemory() <= cache.getMaxMemory());
+        // no hit or miss is lost
+        assertEquals(gets.get(), cache.getHits() + cache.getMisses());
+    }
+
+    private static ByteBuffer createData(int seed, int len) {
+        ByteBuffer buff = ByteBuffer.allocate(len);
+        for (int i = 0; i < len; i++) {
+            buff.put((byte) (seed + i));
+        }
+        buff.flip();
+        return buff;
+    }
+
+    private void checkData(int seed, int len, ByteBuffer buff) {
+        assertEquals(len, buff.remaining());
+        for (int i = 0; i < len; i++) {
+            if (buff.get(i) != (byte) (seed + i)) {
+                fail("key " + seed + " index " + i);
+            }
+        }
+    }
+
+}
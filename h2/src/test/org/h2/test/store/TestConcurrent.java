@@ -52,6 +52,7 @@ public class TestConcurrent extends TestMVStore {
         testConcurrentStoreAndClose();
         testConcurrentOnlineBackup();
         testConcurrentMap();
+        testConcurrentMapUpdates();
         testConcurrentIterate();
         testConcurrentWrite();
         testConcurrentRead();
@@ -256,6 +257,55 @@ public class TestConcurrent extends TestMVStore {
         s.close();
     }
 
+    /**
+     * Test that conditional updates of the concurrent map are atomic.
+     */
+    private void testConcurrentMapUpdates() throws Exception {
+        final MVStore s = openStore(null);
+        final MVMap<Integer, Integer> m = s.openMap("data",
+                new MVMapConcurrent.Builder<Integer, Integer>());
+        final int size = 10;
+        final int count = 1000;
+        Task[] tasks = new Task[4];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = new Task() {
+                @Override
+                public void call() throws Exception {
+                    for (int j = 0; j < count; j++) {
+                        int key = j % size;
+                        while (true) {
+                            Integer old = m.putIfAbsent(key, 1);
+                            if (old == null ||
+                                    m.replace(key, old, old + 1)) {
+                                break;
+                            }
+                        }
+                    }
+                }
+            };
+            tasks[i].execute();
+        }
+        for (int j = 0; j < 100; j++) {
+            s.commit();
+            Thread.sleep(1);
+        }
+        int sum = 0;
+        for (Task t : tasks) {
+            t.get();
+        }
+        for (int i = 0; i < size; i++) {
+            sum += m.get(i);
+        }
+        assertEquals(tasks.length * count, sum);
+        for (int i = 0; i < size; i++) {
+            assertFalse(m.remove(i, -1));
+            assertTrue(m.remove(i, m.get(i)));
+            assertNull(m.replace(i, 1));
+        }
+        assertEquals(0, m.size());
+        s.close();
+    }
+
     private void testConcurrentOnlineBackup() throws Exception {
         String fileName = getBaseDir() + "/onlineBackup.h3";
         String fileNameRestore = getBaseDir() + "/onlineRestore.h3";
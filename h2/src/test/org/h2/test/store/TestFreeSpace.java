@@ -7,6 +7,7 @@ package org.h2.test.store;
 
 import java.util.Random;
 
+import org.h2.mvstore.CountingBloomFilter;
 import org.h2.mvstore.FreeSpaceBitSet;
 import org.h2.test.TestBase;
 import org.h2.util.Utils;
@@ -31,6 +32,47 @@ public class TestFreeSpace extends TestBase {
     public void test() throws Exception {
         testSimple();
         testRandomized();
+        testCountingBloomFilter();
+    }
+
+    private void testCountingBloomFilter() {
+        int len = 10000;
+        CountingBloomFilter f = new CountingBloomFilter(len);
+        Random r = new Random(1);
+        long[] values = new long[len];
+        for (int i = 0; i < len; i++) {
+            values[i] = r.nextLong();
+            f.add(values[i]);
+        }
+        for (int i = 0; i < len; i++) {
+            assertTrue(f.mightContain(values[i]));
+        }
+        // remove every other value
+        for (int i = 0; i < len; i += 2) {
+            f.remove(values[i]);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < len; i++) {
+            if (i % 2 == 1) {
+                assertTrue(f.mightContain(values[i]));
+            } else if (f.mightContain(values[i])) {
+                falsePositives++;
+            }
+        }
+        assertTrue("falsePositives: " + falsePositives,
+                falsePositives < len / 20);
+        // duplicate entries
+        f = new CountingBloomFilter(10);
+        for (int i = 0; i < 20; i++) {
+            f.add(1);
+        }
+        for (int i = 0; i < 19; i++) {
+            f.remove(1);
+        }
+        assertTrue(f.mightContain(1));
+        f.add(2);
+        f.remove(2);
+        assertFalse(f.mightContain(2));
     }
 
     private static void testPerformance() {
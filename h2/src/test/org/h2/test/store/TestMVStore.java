@@ -5,27 +5,42 @@
  */
 package org.h2.test.store;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.math.BigDecimal;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Random;
 import java.util.TreeMap;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicReference;
 
+import org.h2.compress.Compressor;
 import org.h2.mvstore.Cursor;
 import org.h2.mvstore.DataUtils;
 import org.h2.mvstore.FileStore;
 import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVMapConcurrent;
 import org.h2.mvstore.MVStore;
+import org.h2.mvstore.MVStoreTool;
 import org.h2.mvstore.OffHeapStore;
+import org.h2.mvstore.SegmentedFileStore;
+import org.h2.mvstore.Page;
+import org.h2.mvstore.ShardedMap;
+import org.h2.mvstore.rtree.MVRTreeMap;
+import org.h2.mvstore.type.BytesKeyType;
 import org.h2.mvstore.type.DataType;
+import org.h2.mvstore.type.LongKeyType;
 import org.h2.mvstore.type.ObjectDataType;
 import org.h2.mvstore.type.StringDataType;
 import org.h2.store.fs.FilePath;
 import org.h2.store.fs.FileUtils;
 import org.h2.test.TestBase;
+import org.h2.util.Task;
 
 /**
  * Tests the MVStore.
@@ -53,8 +68,17 @@ public class TestMVStore extends TestBase {
         testRemoveMap();
         testIsEmpty();
         testOffHeapStorage();
+        testSegmentedFileStore();
         testNewerWriteVersion();
         testCompactFully();
+        testAutoCompact();
+        testDeltaLog();
+        testDeltaLogEncrypted();
+        testPageChecksum();
+        testLongKeys();
+        testPrefixKeys();
+        testBulkLoad();
+        testOffHeapCache();
         testBackgroundExceptionListener();
         testOldVersion();
         testAtomicOperations();
@@ -65,7 +89,10 @@ public class TestMVStore extends TestBase {
         testRecreateMap();
         testRenameMapRollback();
         testCustomMapType();
+        testShardedMap();
         testCacheSize();
+        testCompressionAlgorithms();
+        testAsyncWrite();
         testConcurrentOpen();
         testFileHeader();
         testFileHeaderCorruption();
@@ -181,6 +208,103 @@ public class TestMVStore extends TestBase {
         s.close();
     }
 
+    private void testSegmentedFileStore() throws Exception {
+        String fileName = getBaseDir() + "/testSegmented.h3";
+        for (int test = 0; test < 2; test++) {
+            FileUtils.deleteRecursive(getBaseDir(), true);
+            FileUtils.createDirectories(getBaseDir());
+            String password = test == 0 ? null : "007";
+            SegmentedFileStore fs = new SegmentedFileStore(64 * 1024);
+            MVStore s = openSegmented(fs, fileName, password);
+            s.setRetentionTime(0);
+            MVMap<Integer, String> a = s.openMap("a");
+            MVMap<Integer, String> b = s.openMap("b");
+            String data = new String(new char[1000]).replace((char) 0, 'x');
+            for (int i = 0; i < 300; i++) {
+                a.put(i, data + i);
+                if (i % 50 == 0) {
+                    s.commit();
+                }
+            }
+            for (int i = 0; i < 600; i++) {
+                b.put(i, data + i);
+                if (i % 50 == 0) {
+                    s.commit();
+                }
+            }
+            for (int i = 300; i < 600; i++) {
+                a.put(i, data + i);
+                if (i % 50 == 0) {
+                    s.commit();
+                }
+            }
+            s.commit();
+            int segments = fs.getSegmentCount();
+            assertTrue("segments: " + segments, segments > 10);
+            for (int i = 0; i < segments; i++) {
+                assertTrue(FileUtils.size(fs.getSegmentFileName(i)) > 0);
+            }
+
+            // the segments that only contain chunks of map b
+            // are truncated, without moving the chunks of map a
+            s.removeMap(b);
+            s.commit();
+            a.put(-1, "x");
+            s.commit();
+            s.sync();
+            int empty = 0;
+            for (int i = 0; i < segments; i++) {
+                // an encrypted file always contains the encryption header
+                if (FileUtils.size(fs.getSegmentFileName(i)) <= 4096) {
+                    empty++;
+                }
+            }
+            assertTrue("empty: " + empty, empty > 3);
+            assertTrue(FileUtils.size(fs.getSegmentFileName(0)) > 0);
+            s.close();
+
+            fs = new SegmentedFileStore(64 * 1024);
+            s = openSegmented(fs, fileName, password);
+            assertEquals(segments, fs.getSegmentCount());
+            a = s.openMap("a");
+            assertEquals(601, a.size());
+            for (int i = 0; i < 600; i++) {
+                assertEquals(data + i, a.get(i));
+            }
+            for (int i = 100; i < 600; i++) {
+                a.remove(i);
+            }
+            s.commit();
+            s.compactMoveChunks();
+            s.close();
+
+            // the trailing segments are deleted when the file is shrunk
+            assertFalse(FileUtils.exists(fs.getSegmentFileName(segments - 1)));
+            fs = new SegmentedFileStore(64 * 1024);
+            s = openSegmented(fs, fileName, password);
+            assertTrue(fs.getSegmentCount() < segments);
+            a = s.openMap("a");
+            assertEquals(101, a.size());
+            for (int i = 0; i < 100; i++) {
+                assertEquals(data + i, a.get(i));
+            }
+            s.close();
+        }
+        FileUtils.deleteRecursive(getBaseDir(), true);
+        FileUtils.createDirectories(getBaseDir());
+    }
+
+    private static MVStore openSegmented(SegmentedFileStore fs,
+            String fileName, String password) {
+        MVStore.Builder builder = new MVStore.Builder().
+                fileStore(fs).
+                fileName(fileName);
+        if (password != null) {
+            builder.encryptionKey(password.toCharArray());
+        }
+        return builder.open();
+    }
+
     private void testNewerWriteVersion() throws Exception {
         String fileName = getBaseDir() + "/testNewerWriteVersion.h3";
         FileUtils.delete(fileName);
@@ -191,7 +315,7 @@ public class TestMVStore extends TestBase {
         Map<String, String> header = s.getStoreHeader();
         assertEquals("1", header.get("format"));
         header.put("formatRead", "1");
-        header.put("format", "2");
+        header.put("format", "3");
         MVMap<Integer, String> m = s.openMap("data");
         m.put(0, "Hello World");
         s.close();
@@ -228,6 +352,632 @@ public class TestMVStore extends TestBase {
 
     }
 
+    private void testAutoCompact() throws Exception {
+        String fileName = getBaseDir() + "/testAutoCompact.h3";
+        FileUtils.delete(fileName);
+        final AtomicReference<Throwable> exRef = new AtomicReference<Throwable>();
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                autoCommitDisabled().
+                backgroundExceptionHandler(new UncaughtExceptionHandler() {
+
+                    @Override
+                    public void uncaughtException(Thread t, Throwable e) {
+                        exRef.compareAndSet(null, e);
+                    }
+
+                }).
+                open();
+        s.setRetentionTime(0);
+        final MVMap<Integer, String> m = s.openMap("data");
+        String data = new String(new char[100]).replace((char) 0, 'x');
+        for (int i = 0; i < 5000; i++) {
+            m.put(i, data + i);
+            if (i % 100 == 0) {
+                s.commit();
+            }
+        }
+        s.commit();
+        // overwrite most of the entries of each chunk
+        for (int i = 0; i < 5000; i++) {
+            if (i % 100 < 70) {
+                m.put(i, "x");
+            }
+        }
+        s.commit();
+        assertEquals(0, s.getAutoCompactCount());
+        int fillRate = getChunkFillRate(s);
+        assertTrue("fillRate: " + fillRate, fillRate < 50);
+
+        s.setAutoCompactFillRate(80);
+        int limit = 1024 * 1024;
+        s.setAutoCompactIoLimit(limit);
+        s.setAutoCommitDelay(10);
+        long start = System.currentTimeMillis();
+        // write to the same map while the background thread is running
+        Task task = new Task() {
+            @Override
+            public void call() {
+                for (int i = 0; i < 100000; i++) {
+                    m.put(5000 + i % 100, "y" + i);
+                }
+            }
+        };
+        task.execute();
+        task.get();
+        MVMap<Integer, Integer> other = s.openMap("other");
+        s.commit();
+        // wait for each compaction, and check the fill rate while the
+        // background thread is stopped
+        for (int i = 0;; i++) {
+            assertTrue("compactions: " + i, i < 100);
+            long count = s.getAutoCompactCount();
+            while (s.getAutoCompactCount() == count) {
+                assertTrue("no compaction after " + count,
+                        System.currentTimeMillis() - start < 60000);
+                Thread.sleep(10);
+            }
+            s.setAutoCommitDelay(0);
+            // the metadata of the last chunk is only updated when the next
+            // chunk is stored, and the chunks stored here are not full,
+            // so the fill rate seen here stays below the target
+            other.put(0, i);
+            s.commit();
+            if (getChunkFillRate(s) >= 60) {
+                break;
+            }
+            s.setAutoCommitDelay(10);
+        }
+        assertTrue("exception: " + exRef.get(), exRef.get() == null);
+        long count = s.getAutoCompactCount();
+        long chunkCount = s.getAutoCompactChunkCount();
+        assertTrue("chunks: " + chunkCount + " count: " + count,
+                chunkCount >= count);
+        long bytes = s.getAutoCompactBytes();
+        assertTrue("bytes: " + bytes, bytes > 0);
+        long time = System.currentTimeMillis() - start;
+        // the budget is at most one second worth of I/O
+        assertTrue("bytes: " + bytes + " time: " + time,
+                bytes <= limit + time * limit / 1000);
+        s.close();
+
+        s = new MVStore.Builder().
+                fileName(fileName).
+                autoCompactFillRate(80).
+                open();
+        MVMap<Integer, String> m2 = s.openMap("data");
+        assertEquals(5100, m2.size());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(i % 100 < 70 ? "x" : data + i, m2.get(i));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals("y" + (99900 + i), m2.get(5000 + i));
+        }
+        assertEquals(80, s.getAutoCompactFillRate());
+        s.close();
+    }
+
+    private static int getChunkFillRate(MVStore s) {
+        long maxLength = 0, maxLengthLive = 0;
+        MVMap<String, String> meta = s.getMetaMap();
+        for (Iterator<String> it = meta.keyIterator("chunk."); it.hasNext();) {
+            String key = it.next();
+            if (!key.startsWith("chunk.")) {
+                break;
+            }
+            String value = meta.get(key);
+            if (value == null) {
+                // removed concurrently
+                continue;
+            }
+            Map<String, String> c = DataUtils.parseMap(value);
+            maxLength += DataUtils.parseLong(c.get("maxLength"), 0);
+            maxLengthLive += DataUtils.parseLong(c.get("maxLengthLive"), 0);
+        }
+        return (int) (100 * maxLengthLive / Math.max(1, maxLength));
+    }
+
+    private void testDeltaLog() {
+        String fileName = getBaseDir() + "/testDeltaLog.h3";
+        FileUtils.delete(fileName);
+        FileUtils.delete(fileName + ".log.0");
+        FileUtils.delete(fileName + ".log.1");
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                deltaLog().
+                autoCommitDisabled().
+                open();
+        MVMap<Integer, String> m = s.openMap("data");
+        MVMap<Integer, String> other = s.openMap("other");
+        m.put(0, "initial");
+        // a new map is stored in a chunk
+        s.commit();
+        long writeCount = s.getFileStore().getWriteCount();
+        for (int i = 1; i <= 10; i++) {
+            m.put(i, "v" + i);
+            s.commit();
+        }
+        m.remove(0);
+        other.put(1, "o");
+        s.commit();
+        // small commits only append to the log
+        assertEquals(writeCount, s.getFileStore().getWriteCount());
+        long logSize = FileUtils.size(fileName + ".log.0");
+        assertTrue(logSize > 0);
+        long v = s.commit();
+        m.put(11, "rolled back");
+        s.commit();
+        assertTrue(FileUtils.size(fileName + ".log.0") > logSize);
+        s.rollbackTo(v);
+        assertNull(m.get(11));
+        assertEquals(logSize, FileUtils.size(fileName + ".log.0"));
+        m.put(12, "not committed");
+        // simulate a crash
+        s.closeImmediately();
+
+        s = new MVStore.Builder().
+                fileName(fileName).
+                deltaLog().
+                autoCommitDisabled().
+                open();
+        m = s.openMap("data");
+        assertEquals(10, m.size());
+        for (int i = 1; i <= 10; i++) {
+            assertEquals("v" + i, m.get(i));
+        }
+        m.put(13, "after replay");
+        s.commit();
+        // store all changes; the changes of the map
+        // that was not opened are kept in the log
+        s.setStoreVersion(1);
+        s.commit();
+        assertTrue(s.getFileStore().getWriteCount() > 0);
+        s.closeImmediately();
+
+        s = new MVStore.Builder().
+                fileName(fileName).
+                deltaLog().
+                open();
+        m = s.openMap("data");
+        other = s.openMap("other");
+        assertEquals(11, m.size());
+        assertEquals("after replay", m.get(13));
+        assertEquals("o", other.get(1));
+        s.close();
+        assertEquals(0, FileUtils.size(fileName + ".log.0") +
+                FileUtils.size(fileName + ".log.1"));
+
+        s = MVStore.open(fileName);
+        assertEquals(1, s.getStoreVersion());
+        m = s.openMap("data");
+        other = s.openMap("other");
+        assertEquals(11, m.size());
+        assertEquals("o", other.get(1));
+        s.close();
+    }
+
+    private void testDeltaLogEncrypted() throws IOException {
+        String fileName = getBaseDir() + "/testDeltaLogEncrypted.h3";
+        FileUtils.delete(fileName);
+        FileUtils.delete(fileName + ".log.0");
+        FileUtils.delete(fileName + ".log.1");
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                encryptionKey("007".toCharArray()).
+                deltaLog().
+                autoCommitDisabled().
+                open();
+        MVMap<Integer, String> m = s.openMap("data");
+        m.put(0, "initial");
+        s.commit();
+        long writeCount = s.getFileStore().getWriteCount();
+        m.put(1, "secret");
+        s.commit();
+        assertEquals(writeCount, s.getFileStore().getWriteCount());
+        FileChannel f = FilePath.get(fileName + ".log.0").open("r");
+        ByteBuffer buff = ByteBuffer.allocate((int) f.size());
+        DataUtils.readFully(f, 0, buff);
+        f.close();
+        String log = new String(buff.array(), "ISO-8859-1");
+        assertTrue(log.length() > 0);
+        assertTrue(log.indexOf("secret") < 0);
+        s.closeImmediately();
+
+        s = new MVStore.Builder().
+                fileName(fileName).
+                encryptionKey("007".toCharArray()).
+                deltaLog().
+                open();
+        m = s.openMap("data");
+        assertEquals("secret", m.get(1));
+        s.close();
+    }
+
+    private void testLongKeys() {
+        String fileName = getBaseDir() + "/testLongKeys.h3";
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                pageSplitSize(1000).
+                open();
+        MVMap<Long, String> m = s.openMap("data",
+                new MVMap.Builder<Long, String>().
+                keyType(new LongKeys(true)));
+        MVMap<Long, String> old = s.openMap("old",
+                new MVMap.Builder<Long, String>().
+                keyType(new LongKeys(false)));
+        old.put(0L, "x");
+        s.commit();
+        assertEquals("1", s.getStoreHeader().get("format"));
+        old.remove(0L);
+        TreeMap<Long, String> expected = new TreeMap<Long, String>();
+        Random r = new Random(1);
+        for (int i = 0; i < 5000; i++) {
+            long k = r.nextInt(2000) - 100;
+            if (i % 1000 == 0) {
+                k = r.nextBoolean() ? Long.MIN_VALUE : Long.MAX_VALUE;
+            }
+            if (r.nextInt(4) == 0) {
+                assertEquals(expected.remove(k), m.remove(k));
+                old.remove(k);
+            } else {
+                assertEquals(expected.put(k, "x" + i), m.put(k, "x" + i));
+                old.put(k, "x" + i);
+            }
+            if (i % 500 == 0) {
+                s.commit();
+            }
+        }
+        assertEquals(expected.size(), m.size());
+        assertEquals(expected.firstKey(), m.firstKey());
+        assertEquals(expected.lastKey(), m.lastKey());
+        assertEquals(expected.ceilingKey(500L), m.ceilingKey(500L));
+        assertEquals(expected.lowerKey(500L), m.lowerKey(500L));
+        long k = expected.ceilingKey(1000L);
+        assertEquals(expected.headMap(k).size(), m.getKeyIndex(k));
+        assertEquals(-expected.headMap(k).size() - 1, m.getKeyIndex(k - 1));
+        // older versions can not read pages with long keys
+        assertEquals("2", s.getStoreHeader().get("format"));
+        s.close();
+
+        // the same pages can be read using long keys or not
+        for (int j = 0; j < 2; j++) {
+            s = MVStore.open(fileName);
+            m = s.openMap("data",
+                    new MVMap.Builder<Long, String>().
+                    keyType(new LongKeys(j == 0)));
+            old = s.openMap("old",
+                    new MVMap.Builder<Long, String>().
+                    keyType(new LongKeys(j != 0)));
+            assertEquals(expected.size(), m.size());
+            assertEquals(expected.size(), old.size());
+            Iterator<Long> it = m.keyIterator(null);
+            Iterator<Long> it2 = old.keyIterator(null);
+            for (Map.Entry<Long, String> e : expected.entrySet()) {
+                assertEquals(e.getKey(), it.next());
+                assertEquals(e.getKey(), it2.next());
+                assertEquals(e.getValue(), m.get(e.getKey()));
+                assertEquals(e.getValue(), old.get(e.getKey()));
+            }
+            assertFalse(it.hasNext());
+            m.put(12345L, "new");
+            old.put(12345L, "new");
+            s.close();
+            expected.put(12345L, "new");
+        }
+
+        // a key type that doesn't support long keys can't read the pages
+        s = MVStore.open(fileName);
+        MVMap<Object, Object> m2 = s.openMap("data");
+        try {
+            m2.get(1L);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(DataUtils.ERROR_FILE_CORRUPT,
+                    DataUtils.getErrorCode(e.getMessage()));
+        }
+        s.closeImmediately();
+    }
+
+    /**
+     * A key type for Long objects, which may keep the keys as long values.
+     */
+    static class LongKeys extends ObjectDataType implements LongKeyType {
+
+        private final boolean longKeys;
+
+        LongKeys(boolean longKeys) {
+            this.longKeys = longKeys;
+        }
+
+        @Override
+        public boolean useLongKeys() {
+            return longKeys;
+        }
+
+        @Override
+        public long toLong(Object key) {
+            return (Long) key;
+        }
+
+        @Override
+        public Object fromLong(long x) {
+            return x;
+        }
+
+    }
+
+    private void testPrefixKeys() {
+        String fileName = getBaseDir() + "/testPrefixKeys.h3";
+        FileUtils.delete(fileName);
+        MVStore s = MVStore.open(fileName);
+        MVMap<String, Integer> m = s.openMap("data",
+                new MVMap.Builder<String, Integer>().
+                keyType(new BytesKeys()));
+        for (int i = 0; i < 1000; i++) {
+            m.put("tenant-" + (i % 3) + "-key-" + i, i);
+        }
+        s.commit();
+        // older versions can not read pages with prefix compressed keys
+        assertEquals("2", s.getStoreHeader().get("format"));
+        s.close();
+
+        s = MVStore.open(fileName);
+        assertEquals("2", s.getStoreHeader().get("format"));
+        m = s.openMap("data",
+                new MVMap.Builder<String, Integer>().
+                keyType(new BytesKeys()));
+        assertEquals(1000, m.size());
+        assertEquals(500, m.get("tenant-2-key-500").intValue());
+        assertEquals("tenant-0-key-0", m.firstKey());
+        assertEquals("tenant-2-key-998", m.lastKey());
+        s.close();
+    }
+
+    /**
+     * A key type for strings, where the keys are stored as byte arrays.
+     */
+    static class BytesKeys extends StringDataType implements BytesKeyType {
+
+        @Override
+        public byte[] toBytes(Object key) {
+            return key.toString().getBytes(DataUtils.UTF8);
+        }
+
+        @Override
+        public Object fromBytes(byte[] bytes) {
+            return new String(bytes, DataUtils.UTF8);
+        }
+
+    }
+
+    private void testBulkLoad() {
+        String fileName = getBaseDir() + "/testBulkLoad.h3";
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                pageSplitSize(1000).
+                autoCommitBufferSize(1).
+                open();
+        MVMap<Integer, String> m = s.openMap("data");
+        MVMap<Long, String> m2 = s.openMap("longKeys",
+                new MVMap.Builder<Long, String>().
+                keyType(new LongKeys(true)));
+        long version = s.getCurrentVersion();
+        MVMap.BulkLoader<Integer, String> loader = m.bulkLoader(100);
+        MVMap.BulkLoader<Long, String> loader2 = m2.bulkLoader(50);
+        for (int i = 0; i < 200000; i += 2) {
+            loader.add(i, "x" + i);
+            loader2.add((long) i, "y" + i);
+        }
+        // the pages are written while loading
+        assertTrue(s.getCurrentVersion() > version);
+        try {
+            loader.add(100, "x");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        loader.finish();
+        loader2.finish();
+        assertEquals(100000, m.size());
+        assertEquals(100000, m2.size());
+        assertEquals("x1000", m.get(1000));
+        assertNull(m.get(1001));
+        assertEquals(1000, m.getKey(500).intValue());
+        assertEquals(500, m.getKeyIndex(1000));
+        assertEquals(0, m.firstKey().intValue());
+        assertEquals(199998, m.lastKey().intValue());
+        assertEquals("y1000", m2.get(1000L));
+        assertEquals(199998, m2.lastKey().longValue());
+        // the pages are filled up to the fill rate
+        Page p = m.getRoot();
+        Page p2 = m2.getRoot();
+        while (!p.isLeaf()) {
+            p = p.getChildPage(0);
+        }
+        while (!p2.isLeaf()) {
+            p2 = p2.getChildPage(0);
+        }
+        assertTrue(p.getMemory() >= 1000);
+        assertTrue(p2.getMemory() >= 500 && p2.getMemory() < 1000);
+
+        // append to the existing maps
+        loader = m.bulkLoader(100);
+        try {
+            loader.add(199998, "x");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        for (int i = 200000; i < 300000; i++) {
+            loader.add(i, "x" + i);
+        }
+        loader.finish();
+        m.put(1001, "x1001");
+        m.remove(1000);
+        loader2 = m2.bulkLoader(100);
+        loader2.add(300000L, "y");
+        loader2.finish();
+        s.close();
+
+        s = MVStore.open(fileName);
+        m = s.openMap("data");
+        m2 = s.openMap("longKeys",
+                new MVMap.Builder<Long, String>().
+                keyType(new LongKeys(true)));
+        assertEquals(200000, m.size());
+        assertEquals(100001, m2.size());
+        Iterator<Integer> it = m.keyIterator(null);
+        for (int i = 0; i < 300000; i++) {
+            if (i == 1000 || i < 200000 && i % 2 == 1 && i != 1001) {
+                continue;
+            }
+            assertEquals(i, it.next().intValue());
+        }
+        assertFalse(it.hasNext());
+        assertEquals("x250000", m.get(250000));
+        assertEquals(m.size() - 1, m.getKeyIndex(299999));
+        assertEquals("y", m2.get(300000L));
+        assertEquals("y200", m2.get(200L));
+        s.close();
+
+        // in-memory store
+        s = new MVStore.Builder().open();
+        m = s.openMap("data");
+        m.put(1, "a");
+        loader = m.bulkLoader(10);
+        for (int i = 2; i < 1000; i++) {
+            loader.add(i, "x" + i);
+        }
+        loader.finish();
+        assertEquals(999, m.size());
+        assertEquals("a", m.get(1));
+        assertEquals("x999", m.get(999));
+        s.close();
+    }
+
+    private void testPageChecksum() throws Exception {
+        String fileName = getBaseDir() + "/testPageChecksum.h3";
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                pageChecksum().
+                open();
+        assertEquals("1", s.getStoreHeader().get("format"));
+        MVMap<Integer, String> m = s.openMap("data");
+        MVMap<Integer, String> c = s.openMap("compressed",
+                new MVMap.Builder<Integer, String>().
+                compressData(Compressor.LZ4));
+        String data = new String(new char[100]).replace((char) 0, 'x');
+        for (int i = 0; i < 1000; i++) {
+            m.put(i, data + i);
+            c.put(i, data + i);
+        }
+        s.commit();
+        // older versions can not read pages with checksum
+        assertEquals("2", s.getStoreHeader().get("format"));
+        m.put(-1, "last");
+        s.commit();
+        Map<String, String> chunk = DataUtils.parseMap(
+                s.getMetaMap().get("chunk.1"));
+        s.close();
+
+        // pages with checksum can be read without verification
+        s = MVStore.open(fileName);
+        assertEquals("2", s.getStoreHeader().get("format"));
+        m = s.openMap("data");
+        assertEquals(data + 10, m.get(10));
+        s.close();
+
+        StringWriter w = new StringWriter();
+        assertEquals(0, MVStoreTool.verify(fileName, 4, w));
+        assertTrue(w.toString(), w.toString().contains("errors: 0"));
+        assertFalse(w.toString(), w.toString().contains("with checksum: 0"));
+
+        // corrupt one byte in the middle of the first chunk
+        long start = DataUtils.parseLong(chunk.get("start"), 0);
+        long length = DataUtils.parseLong(chunk.get("length"), 0);
+        FileChannel f = FilePath.get(fileName).open("rw");
+        ByteBuffer buff = ByteBuffer.allocate(1);
+        long pos = start + length / 2;
+        DataUtils.readFully(f, pos, buff);
+        buff.put(0, (byte) (buff.get(0) ^ 1));
+        DataUtils.writeFully(f, pos, buff);
+        f.close();
+
+        w = new StringWriter();
+        assertTrue(MVStoreTool.verify(fileName, 4, w) > 0);
+        assertTrue(w.toString(), w.toString().contains("ERROR"));
+
+        s = new MVStore.Builder().
+                fileName(fileName).
+                pageChecksum().
+                readOnly().
+                open();
+        m = s.openMap("data");
+        c = s.openMap("compressed");
+        try {
+            for (int i = 0; i < 1000; i++) {
+                m.get(i);
+                c.get(i);
+            }
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(DataUtils.ERROR_FILE_CORRUPT,
+                    DataUtils.getErrorCode(e.getMessage()));
+        }
+        s.close();
+    }
+
+    private void testOffHeapCache() {
+        String fileName = getBaseDir() + "/testOffHeapCache.h3";
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                open();
+        assertNull(s.getOffHeapCache());
+        MVMap<Integer, String> m = s.openMap("data");
+        String data = new String(new char[100]).replace((char) 0, 'x');
+        for (int i = 0; i < 10000; i++) {
+            m.put(i, data + i);
+        }
+        s.close();
+
+        s = new MVStore.Builder().
+                fileName(fileName).
+                cacheSize(0).
+                offHeapCacheSize(8).
+                open();
+        m = s.openMap("data");
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(data + i, m.get(i));
+        }
+        long readCount = s.getFileStore().getReadCount();
+        assertTrue(s.getOffHeapCache().getUsedMemory() > 0);
+        // all pages are now read from the off-heap cache
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(data + i, m.get(i));
+        }
+        assertEquals(readCount, s.getFileStore().getReadCount());
+        assertTrue(s.getOffHeapCache().getHits() > 0);
+
+        // changed pages are removed from the cache
+        long v = s.getCurrentVersion();
+        for (int i = 0; i < 10000; i += 2) {
+            m.put(i, "new " + i);
+        }
+        s.commit();
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i % 2 == 0 ? "new " + i : data + i, m.get(i));
+        }
+        s.rollbackTo(v);
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(data + i, m.get(i));
+        }
+        s.close();
+    }
+
     private void testCompactFully() throws Exception {
         String fileName = getBaseDir() + "/testCompactFully.h3";
         FileUtils.delete(fileName);
@@ -502,7 +1252,8 @@ public class TestMVStore extends TestBase {
         Map<String, String> header = s.getStoreHeader();
         int format = Integer.parseInt(header.get("format"));
         assertEquals(1, format);
-        header.put("format", Integer.toString(format + 1));
+        // the newest supported format is 2
+        header.put("format", "3");
         s.close();
         try {
             openStore(fileName).close();
@@ -558,6 +1309,216 @@ public class TestMVStore extends TestBase {
         s.close();
     }
 
+    private void testShardedMap() {
+        String fileName = getBaseDir() + "/testShardedMap.h3";
+        FileUtils.delete(fileName);
+        MVStore s = openStore(fileName);
+        ShardedMap<Integer, String> map = new ShardedMap.Builder<Integer, String>().
+                shards(4).open(s, "data");
+        ShardedMap<Integer, String> range = new ShardedMap.Builder<Integer, String>().
+                splitKeys(10, 20).open(s, "range");
+        assertEquals(3, range.getShardCount());
+        for (int i = 0; i < 30; i += 2) {
+            map.put(i, "x" + i);
+            range.put(i, "x" + i);
+        }
+        assertTrue(range.getShard(5) == range.getShard(0));
+        assertTrue(range.getShard(10) != range.getShard(9));
+        long version = s.getCurrentVersion();
+        s.commit();
+        for (int j = 0; j < 2; j++) {
+            ShardedMap<Integer, String> m = j == 0 ? map : range;
+            assertEquals(15, m.sizeAsLong());
+            assertEquals(0, m.firstKey().intValue());
+            assertEquals(28, m.lastKey().intValue());
+            assertEquals(5, m.getKeyIndex(10));
+            assertEquals(-6, m.getKeyIndex(9));
+            assertEquals(-1, m.getKeyIndex(-1));
+            assertEquals(-16, m.getKeyIndex(100));
+            StringBuilder buff = new StringBuilder();
+            for (Iterator<Integer> it = m.keyIterator(21); it.hasNext();) {
+                buff.append(it.next()).append(';');
+            }
+            assertEquals("22;24;26;28;", buff.toString());
+            int expected = 0;
+            for (Map.Entry<Integer, String> e : m.entrySet()) {
+                assertEquals(expected, e.getKey().intValue());
+                assertEquals("x" + expected, e.getValue());
+                expected += 2;
+            }
+            assertEquals(30, expected);
+            assertEquals(15, m.entrySet().size());
+            assertEquals("x4", m.get(4));
+            assertNull(m.putIfAbsent(3, "x3"));
+            assertEquals("x3", m.remove(3));
+            m.clear();
+            assertTrue(m.isEmpty());
+            ShardedMap<Integer, String> old = m.openVersion(version);
+            assertEquals(15, old.size());
+            assertEquals("x12", old.get(12));
+        }
+
+        // keys that are equal according to the key type are in the same shard
+        ShardedMap<BigDecimal, String> dec =
+                new ShardedMap.Builder<BigDecimal, String>().open(s, "dec");
+        dec.put(new BigDecimal("1.0"), "x");
+        assertEquals("x", dec.get(new BigDecimal("1.00")));
+        assertEquals("x", dec.put(BigDecimal.ONE, "y"));
+        dec.put(new BigDecimal("0.00"), "zero");
+        assertEquals("zero", dec.get(BigDecimal.ZERO));
+        assertEquals(2, dec.size());
+        // other keys and key types need range partitioning
+        ShardedMap<Date, String> dates =
+                new ShardedMap.Builder<Date, String>().open(s, "dates");
+        try {
+            dates.put(new Date(0), "x");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new ShardedMap.Builder<Long, String>().
+                    keyType(new LongKeys(false)).open(s, "long");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        map.put(1, "Hello");
+        s.close();
+
+        s = openStore(fileName);
+        try {
+            new ShardedMap.Builder<Integer, String>().shards(3).open(s, "data");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        map = new ShardedMap.Builder<Integer, String>().
+                shards(4).open(s, "data");
+        assertEquals("Hello", map.get(1));
+        assertEquals(1, map.size());
+        s.close();
+    }
+
+    private void testCompressionAlgorithms() {
+        String fileName = getBaseDir() + "/testCompression.h3";
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                compressData(Compressor.LZ4).open();
+        MVMap<Integer, String> fast = s.openMap("fast");
+        MVMap<Integer, String> cold = s.openMap("cold",
+                new MVMap.Builder<Integer, String>().
+                compressData(Compressor.DEFLATE));
+        MVMap<Integer, String> plain = s.openMap("plain",
+                new MVMap.Builder<Integer, String>().
+                compressData(Compressor.NO));
+        String data = new String(new char[1000]).replace((char) 0, 'x');
+        for (int i = 0; i < 100; i++) {
+            fast.put(i, data + i);
+            cold.put(i, data + i);
+            plain.put(i, data + i);
+        }
+        s.commit();
+        long fastLen = 0, coldLen = 0, plainLen = 0;
+        for (int i = 0; i < 3; i++) {
+            MVMap<Integer, String> m = i == 0 ? fast : i == 1 ? cold : plain;
+            long len = 0;
+            Page p = m.getRoot();
+            for (int j = 0; j < p.getChildPageCount(); j++) {
+                len += DataUtils.getPageMaxLength(p.getChildPage(j).getPos());
+            }
+            if (i == 0) {
+                fastLen = len;
+            } else if (i == 1) {
+                coldLen = len;
+            } else {
+                plainLen = len;
+            }
+        }
+        assertTrue(fastLen < plainLen);
+        assertTrue(coldLen < plainLen);
+        // older versions can only read pages compressed with LZF
+        assertEquals("2", s.getStoreHeader().get("format"));
+        MVMapConcurrent<Integer, String> concurrent = s.openMap("concurrent",
+                new MVMapConcurrent.Builder<Integer, String>().
+                compressData(Compressor.DEFLATE));
+        MVRTreeMap<String> spatial = s.openMap("spatial",
+                new MVRTreeMap.Builder<String>().
+                compressData(Compressor.DEFLATE));
+        String compress = "compress:" + Compressor.DEFLATE;
+        MVMap<String, String> meta = s.getMetaMap();
+        assertTrue(meta.get("map." + concurrent.getId()).contains(compress));
+        assertTrue(meta.get("map." + spatial.getId()).contains(compress));
+        s.close();
+
+        // re-open with another default algorithm, and mix the pages
+        s = new MVStore.Builder().
+                fileName(fileName).
+                compressData().open();
+        fast = s.openMap("fast");
+        cold = s.openMap("cold");
+        plain = s.openMap("plain");
+        for (int i = 0; i < 100; i += 2) {
+            fast.put(i, data + "-" + i);
+        }
+        s.commit();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(data + (i % 2 == 0 ? "-" : "") + i, fast.get(i));
+            assertEquals(data + i, cold.get(i));
+            assertEquals(data + i, plain.get(i));
+        }
+        s.close();
+        s = openStore(fileName);
+        fast = s.openMap("fast");
+        cold = s.openMap("cold");
+        for (int i = 0; i < 100; i++) {
+            assertEquals(data + (i % 2 == 0 ? "-" : "") + i, fast.get(i));
+            assertEquals(data + i, cold.get(i));
+        }
+        s.close();
+    }
+
+    private void testAsyncWrite() throws Exception {
+        String fileName = getBaseDir() + "/testAsyncWrite.h3";
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                asyncWrite().
+                cacheSize(0).
+                autoCommitDisabled().open();
+        MVMap<Integer, String> map = s.openMap("data");
+        Future<Long> last = null;
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, "Hello " + i);
+            if (i % 100 == 0) {
+                long version = s.getCurrentVersion();
+                last = s.commitAsync();
+                // continue with the next version while writing
+                map.put(-i - 1, "World");
+                assertTrue(last.get() > version);
+                map.remove(-i - 1);
+            }
+        }
+        // pages are read from pending chunks or from the file
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("Hello " + i, map.get(i));
+        }
+        long v = s.commit();
+        assertTrue(last.get() < v);
+        assertTrue(s.commitAsync().isDone());
+        s.close();
+
+        s = openStore(fileName);
+        map = s.openMap("data");
+        assertEquals(1000, map.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("Hello " + i, map.get(i));
+        }
+        s.close();
+    }
+
     private void testCacheSize() {
         String fileName = getBaseDir() + "/testCacheSize.h3";
         MVStore s;
@@ -47,6 +47,9 @@ public class TestMVTableEngine extends TestBase {
 
     @Override
     public void test() throws Exception {
+        testCreateIndex();
+        testIndexKeys();
+        testWideTable();
         testTransactionLogUsuallyNotStored();
         testShrinkDatabaseFile();
         testTwoPhaseCommit();
@@ -68,6 +71,184 @@ public class TestMVTableEngine extends TestBase {
         testSimple();
     }
 
+    private void testCreateIndex() throws Exception {
+        FileUtils.deleteRecursive(getBaseDir(), true);
+        Connection conn;
+        Statement stat;
+        ResultSet rs;
+        String url = "mvstore;MV_STORE=TRUE;MAX_MEMORY_ROWS=1000";
+        conn = getConnection(url);
+        stat = conn.createStatement();
+        stat.execute("create table test(id int primary key, a int, b varchar)");
+        stat.execute("insert into test select x, mod(x * 7, 1000), " +
+                "'b' || (50000 - x) from system_range(1, 50000)");
+        stat.execute("delete from test where mod(id, 10) = 0");
+        stat.execute("create index idx_a on test(a)");
+        stat.execute("create unique index idx_b on test(b)");
+        try {
+            stat.execute("create unique index idx_a2 on test(a)");
+            fail();
+        } catch (SQLException e) {
+            assertEquals(ErrorCode.DUPLICATE_KEY_1, e.getErrorCode());
+        }
+        rs = stat.executeQuery("select count(*) from test where a = 7");
+        assertTrue(rs.next());
+        assertEquals(50, rs.getInt(1));
+        rs = stat.executeQuery("select id from test where b = 'b49989'");
+        assertTrue(rs.next());
+        assertEquals(11, rs.getInt(1));
+        rs = stat.executeQuery("select count(*) from test where b = 'b49990'");
+        assertTrue(rs.next());
+        assertEquals(0, rs.getInt(1));
+        conn.close();
+
+        MVStore s = MVStore.open(getBaseDir() + "/mvstore" + Constants.SUFFIX_MV_FILE);
+        for (String k : s.getMetaMap().keySet()) {
+            assertFalse(k, k.startsWith("name.temp."));
+        }
+        s.close();
+    }
+
+    private void testIndexKeys() throws Exception {
+        FileUtils.deleteRecursive(getBaseDir(), true);
+        Connection conn;
+        Statement stat;
+        ResultSet rs;
+        String url = "mvstore;MV_STORE=TRUE";
+        conn = getConnection(url);
+        stat = conn.createStatement();
+        stat.execute("create table test(id int primary key, " +
+                "tenant int, ts timestamp, name varchar, d double, b binary)");
+        stat.execute("create index idx_tenant on test(tenant, ts desc, id)");
+        stat.execute("create index idx_name on test(name, d)");
+        stat.execute("create unique index idx_b on test(b)");
+        stat.execute("insert into test select x, mod(x, 3), " +
+                "dateadd('second', x, timestamp '2013-01-01 00:00:00'), " +
+                "case when mod(x, 10) = 0 then null else 'n' || mod(x, 7) || " +
+                "char(mod(x, 3) * 200 + 1) end, " +
+                "case when mod(x, 4) = 0 then null else -1.5 * mod(x, 5) end, " +
+                "stringtoutf8('b' || x) from system_range(1, 1000)");
+        conn.close();
+
+        conn = getConnection(url);
+        stat = conn.createStatement();
+        rs = stat.executeQuery("select id from test where tenant = 1 " +
+                "and ts > timestamp '2013-01-01 00:15:00' order by ts desc, id");
+        for (int i = 1000; i > 900; i -= 3) {
+            assertTrue(rs.next());
+            assertEquals(i, rs.getInt(1));
+        }
+        rs = stat.executeQuery("select count(*) from test where tenant = 2 " +
+                "and ts between timestamp '2013-01-01 00:00:10' " +
+                "and timestamp '2013-01-01 00:01:00'");
+        assertTrue(rs.next());
+        assertEquals(17, rs.getInt(1));
+        rs = stat.executeQuery("select name, d, id from test " +
+                "where name >= 'n3' and name < 'n4' order by name, d, id");
+        String lastName = null;
+        double lastD = Double.NEGATIVE_INFINITY;
+        int count = 0;
+        while (rs.next()) {
+            String name = rs.getString(1);
+            assertTrue(name.startsWith("n3"));
+            double d = rs.getDouble(2);
+            if (!name.equals(lastName)) {
+                lastName = name;
+                lastD = Double.NEGATIVE_INFINITY;
+            }
+            if (!rs.wasNull()) {
+                assertTrue(d >= lastD);
+                lastD = d;
+            }
+            count++;
+        }
+        rs = stat.executeQuery("select count(*) from test where name like 'n3%'");
+        assertTrue(rs.next());
+        assertEquals(rs.getInt(1), count);
+        rs = stat.executeQuery("select count(*) from test where name is null");
+        assertTrue(rs.next());
+        assertEquals(100, rs.getInt(1));
+        rs = stat.executeQuery("select id from test where b = stringtoutf8('b500')");
+        assertTrue(rs.next());
+        assertEquals(500, rs.getInt(1));
+        assertFalse(rs.next());
+        rs = stat.executeQuery("select min(tenant), max(ts) from test");
+        assertTrue(rs.next());
+        assertEquals(0, rs.getInt(1));
+        assertEquals("2013-01-01 00:16:40.0", rs.getString(2));
+        try {
+            stat.execute("insert into test(id, b) values(1001, stringtoutf8('b1'))");
+            fail();
+        } catch (SQLException e) {
+            assertEquals(ErrorCode.DUPLICATE_KEY_1, e.getErrorCode());
+        }
+        stat.execute("delete from test where tenant = 0");
+        rs = stat.executeQuery("select count(*) from test where tenant = 0 and ts is not null");
+        assertTrue(rs.next());
+        assertEquals(0, rs.getInt(1));
+        conn.close();
+    }
+
+    private void testWideTable() throws Exception {
+        FileUtils.deleteRecursive(getBaseDir(), true);
+        Connection conn;
+        Statement stat;
+        ResultSet rs;
+        String url = "mvstore;MV_STORE=TRUE";
+        conn = getConnection(url);
+        stat = conn.createStatement();
+        StringBuilder buff = new StringBuilder("create table test(id int primary key");
+        for (int i = 0; i < 40; i++) {
+            buff.append(", c").append(i).append(i % 2 == 0 ? " varchar" : " int");
+        }
+        stat.execute(buff.append(")").toString());
+        stat.execute("insert into test(id, c0, c1, c38, c39) " +
+                "select x, 'x' || x, x, 'y' || x, -x from system_range(1, 1000)");
+        conn.close();
+
+        conn = getConnection(url);
+        stat = conn.createStatement();
+        rs = stat.executeQuery("select sum(c39), count(c38), max(c0) from test");
+        assertTrue(rs.next());
+        assertEquals(-500500, rs.getInt(1));
+        assertEquals(1000, rs.getInt(2));
+        assertEquals("x999", rs.getString(3));
+        rs = stat.executeQuery("select * from test where id = 10");
+        assertTrue(rs.next());
+        assertEquals("x10", rs.getString(2));
+        assertEquals(10, rs.getInt(3));
+        assertNull(rs.getString(20));
+        assertEquals("y10", rs.getString(40));
+        assertEquals(-10, rs.getInt(41));
+        conn.setAutoCommit(false);
+        Savepoint sp = conn.setSavepoint();
+        stat.execute("update test set c20 = 'z' where id <= 10");
+        stat.execute("delete from test where id > 990");
+        conn.rollback(sp);
+        rs = stat.executeQuery("select count(*), count(c20) from test");
+        assertTrue(rs.next());
+        assertEquals(1000, rs.getInt(1));
+        assertEquals(0, rs.getInt(2));
+        rs = stat.executeQuery("select c0, c39 from test where id = 1000");
+        assertTrue(rs.next());
+        assertEquals("x1000", rs.getString(1));
+        assertEquals(-1000, rs.getInt(2));
+        conn.commit();
+        conn.close();
+
+        Recover.execute(getBaseDir(), "mvstore");
+        DeleteDbFiles.execute(getBaseDir(), "mvstore", true);
+        conn = getConnection(url);
+        stat = conn.createStatement();
+        stat.execute("runscript from '" + getBaseDir() + "/mvstore.h2.sql'");
+        rs = stat.executeQuery("select c0, c38, c39 from test where id = 5");
+        assertTrue(rs.next());
+        assertEquals("x5", rs.getString(1));
+        assertEquals("y5", rs.getString(2));
+        assertEquals(-5, rs.getInt(3));
+        conn.close();
+    }
+
     private void testTransactionLogUsuallyNotStored() throws Exception {
         FileUtils.deleteRecursive(getBaseDir(), true);
         Connection conn;
@@ -17,10 +17,12 @@ import java.util.List;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.h2.mvstore.DataUtils;
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
 import org.h2.mvstore.db.TransactionStore;
 import org.h2.mvstore.db.TransactionStore.Change;
+import org.h2.mvstore.db.TransactionStore.ReadView;
 import org.h2.mvstore.db.TransactionStore.Transaction;
 import org.h2.mvstore.db.TransactionStore.TransactionMap;
 import org.h2.store.fs.FileUtils;
@@ -45,6 +47,13 @@ public class TestTransactionStore extends TestBase {
     @Override
     public void test() throws Exception {
         FileUtils.createDirectories(getBaseDir());
+        testUndoLogPerTransaction();
+        testOldUndoLog();
+        testCommitRemovalsLazily();
+        testReadView();
+        testGroupCommit();
+        testLockWait();
+        testDeadlock();
         testStopWhileCommitting();
         testGetModifiedMaps();
         testKeyIterator();
@@ -56,6 +65,406 @@ public class TestTransactionStore extends TestBase {
         testCompareWithPostgreSQL();
     }
 
+    private void testUndoLogPerTransaction() {
+        String fileName = getBaseDir() + "/testUndoLogPerTransaction.h3";
+        FileUtils.delete(fileName);
+        MVStore s = MVStore.open(fileName);
+        TransactionStore ts = new TransactionStore(s);
+        Transaction tx1, tx2, tx3;
+        TransactionMap<Integer, String> m1, m2, m3;
+
+        tx1 = ts.begin();
+        m1 = tx1.openMap("test");
+        // read-only transactions don't need an undo log
+        assertFalse(s.hasMap("undoLog.0"));
+        m1.put(1, "Hello");
+        tx2 = ts.begin();
+        m2 = tx2.openMap("test");
+        m2.put(2, "World");
+        assertTrue(s.hasMap("undoLog.0"));
+        assertTrue(s.hasMap("undoLog.1"));
+        MVMap<?, ?> undo1 = s.openMap("undoLog.0");
+        MVMap<?, ?> undo2 = s.openMap("undoLog.1");
+        assertEquals(1, undo1.size());
+        assertEquals(1, undo2.size());
+        assertNull(m1.get(2));
+        assertNull(m2.get(1));
+        tx1.commit();
+        assertEquals(0, undo1.size());
+        assertEquals("Hello", m2.get(1));
+
+        // the free slot is re-used
+        tx3 = ts.begin();
+        m3 = tx3.openMap("test");
+        m3.put(3, "!");
+        assertEquals(1, undo1.size());
+        assertFalse(s.hasMap("undoLog.2"));
+        List<Transaction> list = ts.getOpenTransactions();
+        assertEquals(2, list.size());
+        assertTrue(list.get(0) == tx2);
+        assertTrue(list.get(1) == tx3);
+        s.commit();
+        s.close();
+
+        // both transactions are found again
+        s = MVStore.open(fileName);
+        ts = new TransactionStore(s);
+        tx1 = ts.begin();
+        m1 = tx1.openMap("test");
+        assertEquals("Hello", m1.get(1));
+        assertNull(m1.get(2));
+        assertNull(m1.get(3));
+        list = ts.getOpenTransactions();
+        assertEquals(2, list.size());
+        assertEquals(tx2.getId(), list.get(0).getId());
+        assertEquals(tx3.getId(), list.get(1).getId());
+        assertEquals(Transaction.STATUS_OPEN, list.get(0).getStatus());
+        list.get(0).commit();
+        list.get(1).rollback();
+        assertEquals("World", m1.get(2));
+        assertNull(m1.get(3));
+        assertEquals(0, ts.getOpenTransactions().size());
+        tx1.commit();
+        s.close();
+        FileUtils.delete(fileName);
+    }
+
+    private void testOldUndoLog() {
+        String fileName = getBaseDir() + "/testOldUndoLog.h3";
+        FileUtils.delete(fileName);
+        MVStore s = MVStore.open(fileName);
+        TransactionStore ts = new TransactionStore(s);
+        Transaction tx = ts.begin();
+        TransactionMap<Integer, String> m = tx.openMap("test");
+        m.put(1, "Hello");
+        tx.commit();
+        tx = ts.begin();
+        m = tx.openMap("test");
+        m.put(2, "World");
+        m.remove(1);
+        // simulate a store of an older version, where all
+        // transactions used the same undo log map
+        s.renameMap(s.openMap("undoLog.0"), "undoLog");
+        // a map of the application with a similar name
+        s.openMap("undoLog.x").put(1, 1);
+        s.commit();
+        s.close();
+
+        s = MVStore.open(fileName);
+        ts = new TransactionStore(s);
+        assertFalse(s.hasMap("undoLog"));
+        assertTrue(s.hasMap("undoLog.0"));
+        tx = ts.begin();
+        m = tx.openMap("test");
+        // the changes of the open transaction are not visible
+        assertEquals("Hello", m.get(1));
+        assertNull(m.get(2));
+        List<Transaction> list = ts.getOpenTransactions();
+        assertEquals(1, list.size());
+        list.get(0).rollback();
+        assertEquals("Hello", m.get(1));
+        assertNull(m.get(2));
+        tx.commit();
+        s.close();
+        FileUtils.delete(fileName);
+    }
+
+    private void testCommitRemovalsLazily() {
+        MVStore s = MVStore.open(null);
+        TransactionStore ts = new TransactionStore(s);
+        Transaction tx;
+        TransactionMap<Integer, String> m;
+
+        tx = ts.begin();
+        m = tx.openMap("test");
+        for (int i = 0; i < 100; i++) {
+            m.put(i, "Hello");
+        }
+        tx.commit();
+        MVMap<Integer, ?> raw = s.openMap("test");
+        assertEquals(100, raw.size());
+
+        tx = ts.begin();
+        m = tx.openMap("test");
+        for (int i = 0; i < 100; i++) {
+            m.remove(i);
+        }
+        tx.commit();
+        // only the first entry of the undo log is processed when committing
+        assertEquals(99, raw.size());
+        assertEquals(0, ts.getOpenTransactions().size());
+
+        tx = ts.begin();
+        m = tx.openMap("test");
+        for (int i = 0; i < 100; i++) {
+            assertNull(m.get(i));
+        }
+        assertFalse(m.keyIterator(null).hasNext());
+        assertFalse(m.keyIterator(null, true).hasNext());
+        // each write processes some of the remaining entries
+        TransactionMap<Integer, String> m2 = tx.openMap("other");
+        for (int i = 0; i < 10; i++) {
+            m2.put(i, "World");
+        }
+        assertEquals(79, raw.size());
+        // an entry is re-added
+        m.put(50, "Hallo");
+        tx.commit();
+        tx = ts.begin();
+        m = tx.openMap("test");
+        assertEquals("Hallo", m.get(50));
+
+        ts.close();
+        assertEquals(1, raw.size());
+        s.close();
+    }
+
+    private void testReadView() {
+        MVStore s = MVStore.open(null);
+        TransactionStore ts = new TransactionStore(s);
+        Transaction tx;
+        TransactionMap<Integer, String> m;
+
+        tx = ts.begin();
+        m = tx.openMap("test");
+        for (int i = 0; i < 3; i++) {
+            m.put(i, "Hello");
+        }
+        tx.commit();
+
+        ReadView view = ts.openReadView();
+        Transaction reader = ts.begin();
+        TransactionMap<Integer, String> r = reader.openMap("test");
+        r.setReadView(view);
+
+        // changes that are committed later on are not visible
+        for (int j = 0; j < 20; j++) {
+            tx = ts.begin();
+            m = tx.openMap("test");
+            m.put(0, "World " + j);
+            if (j == 0) {
+                m.remove(1);
+            }
+            m.put(3, "World " + j);
+            assertEquals("Hello", r.get(0));
+            tx.commit();
+            assertEquals("Hello", r.get(0));
+            assertEquals("Hello", r.get(1));
+            assertEquals("Hello", r.get(2));
+            assertNull(r.get(3));
+        }
+        assertEquals(3, count(r.keyIterator(null)));
+        // the removed entry is kept, as the undo logs are still needed
+        MVMap<Integer, ?> raw = s.openMap("test");
+        assertTrue(raw.containsKey(1));
+
+        ts.closeReadView(view);
+        r.setReadView(null);
+        assertEquals("World 19", r.get(0));
+        assertNull(r.get(1));
+        tx = ts.begin();
+        m = tx.openMap("test");
+        // each write processes some of the remaining entries
+        for (int i = 0; i < 50; i++) {
+            m.put(10 + i, "Hello");
+        }
+        assertFalse(raw.containsKey(1));
+        tx.commit();
+        reader.commit();
+        s.close();
+    }
+
+    private static int count(Iterator<?> it) {
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        return count;
+    }
+
+    private void testGroupCommit() throws Exception {
+        String fileName = getBaseDir() + "/testGroupCommit.h3";
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                autoCommitDisabled().
+                open();
+        final TransactionStore ts = new TransactionStore(s);
+        ts.setSyncOnCommit(true);
+        Transaction tx = ts.begin();
+        tx.openMap("test").put(-1, "Hello");
+        tx.commit();
+        long groupCommits = ts.getGroupCommitCount();
+        long version = s.getCurrentVersion();
+
+        // the leader waits until all transactions joined the group
+        int len = 10;
+        ts.setGroupCommitDelay(60 * 1000 * 1000);
+        ts.setGroupCommitSize(len);
+        Task[] tasks = new Task[len];
+        for (int i = 0; i < len; i++) {
+            final int x = i;
+            tasks[i] = new Task() {
+
+                @Override
+                public void call() throws Exception {
+                    Transaction tx = ts.begin();
+                    TransactionMap<Integer, String> m = tx.openMap("test");
+                    m.put(x, "World " + x);
+                    tx.commit();
+                }
+            };
+            tasks[i].execute();
+        }
+        for (Task t : tasks) {
+            t.get();
+        }
+        assertEquals(groupCommits + 1, ts.getGroupCommitCount());
+        assertEquals(version + 1, s.getCurrentVersion());
+
+        // without delay, each transaction is written on its own
+        ts.setGroupCommitDelay(0);
+        for (int i = 0; i < 3; i++) {
+            tx = ts.begin();
+            tx.openMap("test").put(100 + i, "Hello");
+            tx.commit();
+        }
+        assertEquals(groupCommits + 4, ts.getGroupCommitCount());
+        s.closeImmediately();
+
+        s = MVStore.open(fileName);
+        MVMap<Integer, ?> m = s.openMap("test");
+        assertEquals(len + 4, m.size());
+        s.close();
+    }
+
+    private void testLockWait() throws Exception {
+        MVStore s = MVStore.open(null);
+        TransactionStore ts = new TransactionStore(s);
+        Transaction tx1 = ts.begin();
+        TransactionMap<String, String> m1 = tx1.openMap("test");
+        m1.put("1", "Hello");
+
+        final Transaction tx2 = ts.begin();
+        tx2.setLockTimeout(0);
+        final TransactionMap<String, String> m2 = tx2.openMap("test");
+        try {
+            m2.put("1", "Hallo");
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(DataUtils.ERROR_TRANSACTION_LOCK_TIMEOUT,
+                    DataUtils.getErrorCode(e.getMessage()));
+        }
+
+        // wait until the other transaction is committed
+        tx2.setLockTimeout(10000);
+        Task task = new Task() {
+
+            @Override
+            public void call() throws Exception {
+                m2.put("1", "World");
+                tx2.commit();
+            }
+        };
+        task.execute();
+        Thread.sleep(50);
+        assertFalse(task.isFinished());
+        tx1.commit();
+        task.get();
+        Transaction tx3 = ts.begin();
+        TransactionMap<String, String> m3 = tx3.openMap("test");
+        assertEquals("World", m3.get("1"));
+
+        // time out
+        m3.put("1", "!");
+        Transaction tx4 = ts.begin();
+        tx4.setLockTimeout(50);
+        TransactionMap<String, String> m4 = tx4.openMap("test");
+        long start = System.currentTimeMillis();
+        try {
+            m4.put("1", "?");
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(DataUtils.ERROR_TRANSACTION_LOCK_TIMEOUT,
+                    DataUtils.getErrorCode(e.getMessage()));
+        }
+        assertTrue(System.currentTimeMillis() - start >= 50);
+        tx3.rollback();
+        m4.put("1", "?");
+        tx4.commit();
+        s.close();
+    }
+
+    private void testDeadlock() throws Exception {
+        MVStore s = MVStore.open(null);
+        TransactionStore ts = new TransactionStore(s);
+
+        // the younger transaction detects the deadlock, and is the victim
+        final Transaction tx1 = ts.begin();
+        final TransactionMap<String, String> m1 = tx1.openMap("test");
+        Transaction tx2 = ts.begin();
+        TransactionMap<String, String> m2 = tx2.openMap("test");
+        tx1.setLockTimeout(10000);
+        tx2.setLockTimeout(10000);
+        m1.put("a", "1");
+        m2.put("b", "2");
+        Task task = new Task() {
+
+            @Override
+            public void call() throws Exception {
+                m1.put("b", "1");
+            }
+        };
+        task.execute();
+        Thread.sleep(50);
+        try {
+            m2.put("a", "2");
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(DataUtils.ERROR_TRANSACTION_DEADLOCK,
+                    DataUtils.getErrorCode(e.getMessage()));
+        }
+        tx2.rollback();
+        task.get();
+        tx1.commit();
+
+        // the older transaction detects the deadlock,
+        // and the younger one (which is waiting) is the victim
+        Transaction tx3 = ts.begin();
+        TransactionMap<String, String> m3 = tx3.openMap("test");
+        final Transaction tx4 = ts.begin();
+        final TransactionMap<String, String> m4 = tx4.openMap("test");
+        tx3.setLockTimeout(10000);
+        tx4.setLockTimeout(10000);
+        m3.put("a", "3");
+        m4.put("b", "4");
+        task = new Task() {
+
+            @Override
+            public void call() throws Exception {
+                try {
+                    m4.put("a", "4");
+                } finally {
+                    tx4.rollback();
+                }
+            }
+        };
+        task.execute();
+        Thread.sleep(50);
+        m3.put("b", "3");
+        Exception e = task.getException();
+        assertTrue(e instanceof IllegalStateException);
+        assertEquals(DataUtils.ERROR_TRANSACTION_DEADLOCK,
+                DataUtils.getErrorCode(e.getMessage()));
+        tx3.commit();
+        Transaction tx5 = ts.begin();
+        TransactionMap<String, String> m5 = tx5.openMap("test");
+        assertEquals("3", m5.get("a"));
+        assertEquals("3", m5.get("b"));
+        s.close();
+    }
+
     private void testStopWhileCommitting() throws Exception {
         String fileName = getBaseDir() + "/testStopWhileCommitting.h3";
         FileUtils.delete(fileName);
@@ -76,6 +485,11 @@ public class TestTransactionStore extends TestBase {
             for (int j = 0; j < 1000; j++) {
                 m.put(j, value);
             }
+            // the undo log of transactions that removed entries
+            // is processed entry by entry after committing
+            for (int j = 0; j < 1000; j += 2) {
+                m.remove(j);
+            }
             final AtomicInteger state = new AtomicInteger();
             final MVStore store = s;
             final MVMap<Integer, String> other = s.openMap("other");
@@ -102,12 +516,13 @@ public class TestTransactionStore extends TestBase {
             store.close();
             s = MVStore.open(fileName);
             // roll back a bit, until we have some undo log entries
-            assertTrue(s.hasMap("undoLog"));
+            assertTrue(s.hasMap("undoLog.0"));
             for (int back = 0; back < 100; back++) {
                 int minus = r.nextInt(10);
                 s.rollbackTo(Math.max(0, s.getCurrentVersion() - minus));
-                MVMap<?, ?> undo = s.openMap("undoLog");
-                if (undo.size() > 0) {
+                // the undo log map needs to be opened with the right data types
+                ts = new TransactionStore(s);
+                if (ts.getOpenTransactions().size() > 0) {
                     break;
                 }
             }
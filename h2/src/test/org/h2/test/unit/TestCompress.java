@@ -18,6 +18,7 @@ import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Random;
+import org.h2.compress.CompressLZ4;
 import org.h2.compress.CompressLZF;
 import org.h2.compress.Compressor;
 import org.h2.engine.Constants;
@@ -97,6 +98,8 @@ public class TestCompress extends TestBase {
     }
 
     private void testMultiThreaded() throws Exception {
+        // the same LZ4 compressor is used by all threads
+        final CompressLZ4 lz4 = new CompressLZ4();
         Task[] tasks = new Task[3];
         for (int i = 0; i < tasks.length; i++) {
             Task t = new Task() {
@@ -104,10 +107,17 @@ public class TestCompress extends TestBase {
                 public void call() {
                     CompressTool tool = CompressTool.getInstance();
                     byte[] b = new byte[1024];
+                    byte[] comp = new byte[2 * b.length];
+                    byte[] test = new byte[b.length];
                     Random r = new Random();
                     while (!stop) {
                         r.nextBytes(b);
-                        byte[] test = tool.expand(tool.compress(b, "LZF"));
+                        assertEquals(b, tool.expand(tool.compress(b, "LZF")));
+                        for (int j = 0; j < b.length; j++) {
+                            b[j] = (byte) r.nextInt(4);
+                        }
+                        int len = lz4.compress(b, b.length, comp, 0);
+                        lz4.expand(comp, 0, len, test, 0, test.length);
                         assertEquals(b, test);
                     }
                 }
@@ -240,7 +250,8 @@ public class TestCompress extends TestBase {
             }
             CompressTool utils = CompressTool.getInstance();
             // level 9 is highest, strategy 2 is huffman only
-            for (String a : new String[] { "LZF", "No", "Deflate", "Deflate level 9 strategy 2" }) {
+            for (String a : new String[] { "LZF", "No", "Deflate",
+                    "Deflate level 9 strategy 2", "LZ4" }) {
                 long time = System.currentTimeMillis();
                 byte[] out = utils.compress(b, a);
                 byte[] test = utils.expand(out);